@@ -0,0 +1,48 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding the sparse byte[] representations of {@link net.semanticmetadata.lire.solr.features.ShortFeatureCosineDistance}
+ * (sf) and {@link net.semanticmetadata.lire.solr.features.DoubleFeatureCosineDistance} (df), one third of the
+ * dimensions being non-zero.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"sf", "df"})
+    public String code;
+
+    @Param({"128", "512", "2048"})
+    public int dimensions;
+
+    private GlobalFeature feature;
+    private GlobalFeature scratch;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        feature = SyntheticFeatures.create(code, new Random(19), dimensions);
+        scratch = FeatureRegistry.getDefault().getDescriptorForClass(feature.getClass()).newFeature();
+        bytes = feature.getByteArrayRepresentation();
+    }
+
+    @Benchmark
+    public byte[] getByteArrayRepresentation() {
+        return feature.getByteArrayRepresentation();
+    }
+
+    @Benchmark
+    public GlobalFeature setByteArrayRepresentation() {
+        scratch.setByteArrayRepresentation(bytes, 0, bytes.length);
+        return scratch;
+    }
+}
@@ -0,0 +1,60 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The distance of each registered feature, once with decoded features like LIRE computes it and once with
+ * the {@link BoundedDistance} used for re-ranking, reading the byte[] of the index. Features registered in
+ * solrconfig.xml can be added with <code>-p code=xy</code> if their class is on the classpath.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DistanceBenchmark {
+    private static final int CANDIDATES = 64;
+
+    @Param({"cl", "eh", "jc", "oh", "ph", "ac", "ad", "ce", "fc", "fo", "jh", "sc", "pc", "df", "if", "sf"})
+    public String code;
+
+    /**
+     * The dimensions of the generic features df, if and sf.
+     */
+    @Param({"512"})
+    public int dimensions;
+
+    private GlobalFeature query;
+    private GlobalFeature[] candidates;
+    private BytesRef[] candidateBytes;
+    private BoundedDistance boundedDistance;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(17);
+        query = SyntheticFeatures.create(code, random, dimensions, 1)[0];
+        candidates = SyntheticFeatures.create(code, random, dimensions, CANDIDATES);
+        candidateBytes = new BytesRef[CANDIDATES];
+        for (int i = 0; i < CANDIDATES; i++) {
+            candidateBytes[i] = new BytesRef(candidates[i].getByteArrayRepresentation());
+        }
+        boundedDistance = BoundedDistance.forReRanking(query);
+    }
+
+    @Benchmark
+    public double getDistance() {
+        return query.getDistance(candidates[next++ & (CANDIDATES - 1)]);
+    }
+
+    @Benchmark
+    public double boundedDistance() {
+        return boundedDistance.getDistance(candidateBytes[next++ & (CANDIDATES - 1)], Double.MAX_VALUE);
+    }
+}
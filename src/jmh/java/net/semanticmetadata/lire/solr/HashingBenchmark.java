@@ -0,0 +1,89 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the candidate query of a search: the BitSampling hashes and MetricSpaces terms of the query feature,
+ * ordering the hashes by document frequency and creating the query, with the hashing data bundled in the jar
+ * or the directory given with <code>-Dlire.hashing.conf</code>. The document frequencies are random.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashingBenchmark {
+    /**
+     * Features with bundled MetricSpaces reference points.
+     */
+    @Param({"cl", "eh", "ce", "ph"})
+    public String code;
+
+    @Param({"0.33"})
+    public double accuracy;
+
+    @Param({"0"})
+    public int probes;
+
+    private HashingMetricSpacesManager hashing;
+    private CandidateSearch candidateSearch;
+    private String hashField;
+    private GlobalFeature feature;
+    private double[] vector;
+    private List<String> terms;
+    private final Map<String, Long> docFreqs = new HashMap<>();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(23);
+        hashing = HashingMetricSpacesManager.getDefault();
+        candidateSearch = new CandidateSearch(hashing);
+        hashField = FeatureRegistry.codeToHashField(code);
+        feature = SyntheticFeatures.create(code, random, 0);
+        vector = feature.getFeatureVector();
+        for (String term : candidateSearch.hashTerms(feature, hashField, probes)) {
+            docFreqs.put(term, (long) random.nextInt(1000));
+        }
+        terms = selectHashTerms();
+        // loads the reference points before measuring.
+        hashing.generateHashString(feature);
+    }
+
+    @Benchmark
+    public int[] bitSampling() {
+        return hashing.generateHashes(hashField, vector);
+    }
+
+    @Benchmark
+    public String metricSpaces() {
+        return hashing.generateHashString(feature);
+    }
+
+    /**
+     * What the request handler did in orderHashes.
+     */
+    @Benchmark
+    public List<String> selectHashTerms() {
+        return candidateSearch.selectHashTerms(feature, hashField, accuracy, probes, term -> docFreqs.getOrDefault(term, 0L));
+    }
+
+    @Benchmark
+    public Query createQuery() throws ParseException {
+        return candidateSearch.createQuery(feature, hashField, terms, accuracy, false);
+    }
+
+    @Benchmark
+    public Query createMetricSpacesQuery() throws ParseException {
+        return candidateSearch.createQuery(feature, hashField, terms, accuracy, true);
+    }
+}
@@ -0,0 +1,104 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.searchers.SimpleResult;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The re-ranking loop of the request handler, {@link LireRequestHandler#getReRankedResults}, over candidates
+ * held in memory, so the time is spent in decoding and distance computation rather than in reading the index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReRankBenchmark {
+    @Param({"cl", "eh", "ph", "ce", "sf", "df"})
+    public String code;
+
+    @Param({"512"})
+    public int dimensions;
+
+    @Param({"10000"})
+    public int candidates;
+
+    @Param({"10"})
+    public int rows;
+
+    private GlobalFeature query;
+    private int[] docs;
+    private BytesRef[] values;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(29);
+        query = SyntheticFeatures.create(code, random, dimensions, 1)[0];
+        // a few hundred distinct features repeated, extracting thousands of image features takes too long.
+        GlobalFeature[] features = SyntheticFeatures.create(code, random, dimensions, 512);
+        docs = new int[candidates];
+        values = new BytesRef[candidates];
+        for (int i = 0; i < candidates; i++) {
+            docs[i] = i;
+            values[i] = new BytesRef(features[random.nextInt(features.length)].getByteArrayRepresentation());
+        }
+    }
+
+    @Benchmark
+    public TreeSet<SimpleResult> getReRankedResults() throws IOException {
+        return LireRequestHandler.getReRankedResults(docs, new ArrayBinaryDocValues(values), query,
+                FeatureRegistry.getDefault().getDescriptorForClass(query.getClass()), rows, null, null, null, null);
+    }
+
+    /**
+     * The values of the documents 0 to n-1, in any order.
+     */
+    private static class ArrayBinaryDocValues extends BinaryDocValues {
+        private final BytesRef[] values;
+        private int doc = -1;
+
+        ArrayBinaryDocValues(BytesRef[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public BytesRef binaryValue() {
+            return values[doc];
+        }
+
+        @Override
+        public boolean advanceExact(int target) {
+            doc = target;
+            return target < values.length;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+            return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) {
+            doc = target < values.length ? target : NO_MORE_DOCS;
+            return doc;
+        }
+
+        @Override
+        public long cost() {
+            return values.length;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GenericDoubleLireFeature;
+import net.semanticmetadata.lire.imageanalysis.features.GenericIntLireFeature;
+import net.semanticmetadata.lire.imageanalysis.features.GenericShortLireFeature;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.tools.SyntheticDocuments;
+
+import java.util.Random;
+
+/**
+ * Creates the features for the benchmarks without any images on disk: features extracted from images of random
+ * rectangles, and sparse random vectors for the generic features.
+ */
+public class SyntheticFeatures {
+
+    /**
+     * @param code       the code of a registered feature, e.g. cl.
+     * @param dimensions the length of the generic features, those without fixed dimensions.
+     */
+    public static GlobalFeature create(String code, Random random, int dimensions) {
+        FeatureDescriptor descriptor = FeatureRegistry.getDefault().getDescriptorForFeatureField(FeatureRegistry.codeToFeatureField(code));
+        if (descriptor == null) {
+            throw new IllegalArgumentException("Feature " + code + " is not registered, use one of " + FeatureRegistry.getDefault().getCodes());
+        }
+        GlobalFeature feature = descriptor.newFeature();
+        if (feature instanceof GenericShortLireFeature) {
+            short[] data = new short[dimensions];
+            for (int i = 0; i < dimensions; i++) {
+                if (random.nextInt(3) == 0) data[i] = (short) (random.nextInt(2000) - 1000);
+            }
+            ((GenericShortLireFeature) feature).setData(data);
+        } else if (feature instanceof GenericDoubleLireFeature) {
+            double[] data = new double[dimensions];
+            for (int i = 0; i < dimensions; i++) {
+                if (random.nextInt(3) == 0) data[i] = random.nextGaussian();
+            }
+            ((GenericDoubleLireFeature) feature).setData(data);
+        } else if (feature instanceof GenericIntLireFeature) {
+            int[] data = new int[dimensions];
+            for (int i = 0; i < dimensions; i++) {
+                data[i] = random.nextInt(256);
+            }
+            ((GenericIntLireFeature) feature).setData(data);
+        } else {
+            feature.extract(SyntheticDocuments.randomImage(random));
+        }
+        return feature;
+    }
+
+    /**
+     * @return features decoded from the byte[] representation, as they are read from the index.
+     */
+    public static GlobalFeature[] create(String code, Random random, int dimensions, int count) {
+        GlobalFeature[] features = new GlobalFeature[count];
+        for (int i = 0; i < count; i++) {
+            GlobalFeature feature = create(code, random, dimensions);
+            features[i] = FeatureRegistry.getDefault().getDescriptorForClass(feature.getClass()).newFeature();
+            features[i].setByteArrayRepresentation(feature.getByteArrayRepresentation());
+        }
+        return features;
+    }
+}
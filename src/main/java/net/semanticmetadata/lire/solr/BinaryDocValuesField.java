@@ -54,8 +54,9 @@ import java.nio.ByteBuffer;
 
 /**
  * Base64 -&gt; DocValues implementation used for the Solr Plugin. Using this field one can index byte[] values by
- * sending them to Solr base64 encoded. In case of the LIRE plugin, the fields get read linearly, so they need to be
- * extremely fast, which is the case with the DocValues.
+ * sending them to Solr base64 encoded. With javabin, e.g. from SolrJ, the values can also be sent as byte[],
+ * ByteBuffer or BytesRef and are taken as they are. In case of the LIRE plugin, the fields get read linearly, so
+ * they need to be extremely fast, which is the case with the DocValues.
  * @author Mathias Lux, mathias@juggle.at, 12.08.2013
  */
 public class BinaryDocValuesField extends FieldType {
@@ -109,8 +110,19 @@ public class BinaryDocValuesField extends FieldType {
         } else if (val instanceof ByteBuffer && ((ByteBuffer)val).hasArray()) {
             ByteBuffer byteBuf = (ByteBuffer) val;
             buf = byteBuf.array();
-            offset = byteBuf.position();
+            offset = byteBuf.arrayOffset() + byteBuf.position();
             len = byteBuf.limit() - byteBuf.position();
+        } else if (val instanceof ByteBuffer) {
+            // no backing array, e.g. a direct buffer.
+            ByteBuffer byteBuf = ((ByteBuffer) val).duplicate();
+            buf = new byte[byteBuf.remaining()];
+            byteBuf.get(buf);
+            len = buf.length;
+        } else if (val instanceof BytesRef) {
+            BytesRef bytesRef = (BytesRef) val;
+            buf = bytesRef.bytes;
+            offset = bytesRef.offset;
+            len = bytesRef.length;
         } else {
             String strVal = val.toString();
             //the string has to be a base64 encoded string
@@ -0,0 +1,494 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.imageanalysis.features.global.EdgeHistogram;
+import net.semanticmetadata.lire.imageanalysis.features.global.mpeg7.ColorLayoutImpl;
+import net.semanticmetadata.lire.imageanalysis.features.global.mpeg7.EdgeHistogramImplementation;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+/**
+ * <p>Distance of a query feature to serialized candidate features, which stops summing up as soon as the partial
+ * distance exceeds a given bound. This works for features whose distance is a sum of non-negative terms, which
+ * are ColorLayout, EdgeHistogram and PHOG. The candidates are read directly from their byte[] representation, so
+ * abandoned candidates are not even decoded completely. The sparse cosine features sf and df are read directly
+ * from their byte[] representation too, but their distance cannot be abandoned.</p>
+ *
+ * <p>If the distance is not abandoned, the result is the same as the one of {@link GlobalFeature#getDistance}.
+ * Instances returned by {@link #forQuery(GlobalFeature)} hold only the query and can be shared between
+ * threads.</p>
+ *
+ * <p>Each implementation has its own copy of the re-rank loop in {@link #reRank}. This is intended: with a
+ * single loop in the base class the call of getDistance would see all the feature types served by the JVM and
+ * could not be inlined anymore, with a loop per final class it always calls the same method.</p>
+ */
+public abstract class BoundedDistance {
+    /**
+     * Returned instead of the distance if the computation has been abandoned.
+     */
+    public static final double ABANDONED = Double.POSITIVE_INFINITY;
+
+    /**
+     * Computes the distance of the query to a candidate.
+     *
+     * @param candidate the byte[] representation of the candidate feature, not empty.
+     * @param bound     the distance a candidate has to beat, Double.MAX_VALUE for computing the full distance.
+     * @return the distance or {@link #ABANDONED} if it is surely larger than the bound.
+     */
+    public abstract double getDistance(BytesRef candidate, double bound);
+
+    /**
+     * Computes the distances of the candidates and offers them to the heap. Candidates without a feature are
+     * skipped, so are candidates whose pivot distances show they cannot make it into the heap.
+     *
+     * @param docs                the candidates, top level docIds.
+     * @param values              the byte[] representations of the features.
+     * @param heap                collects the nearest candidates.
+     * @param pivotValues         the packed pivot distances of the documents, can be null.
+     * @param queryPivotDistances the distances of the query to the pivots, can be null.
+     * @param counts              counts what happened to the candidates.
+     */
+    public abstract void reRank(int[] docs, BinaryDocValues values, ResultHeap heap, BinaryDocValues pivotValues,
+                                PivotDistances.QueryDistances queryPivotDistances, ReRankCounts counts) throws IOException;
+
+    /**
+     * Creates the bounded distance for the query feature, one of the built-in features.
+     *
+     * @param query the query feature
+     * @return the bounded distance or null if there is no implementation reading the feature's byte[] directly.
+     */
+    public static BoundedDistance forQuery(GlobalFeature query) {
+        return forQuery(query, query == null ? null : FeatureRegistry.getDefault().getDescriptorForClass(query.getClass()));
+    }
+
+    /**
+     * Creates the bounded distance for the query feature.
+     *
+     * @param query      the query feature
+     * @param descriptor the descriptor of the query feature, e.g. from the registry of the core, can be null.
+     * @return the bounded distance or null if there is no implementation reading the feature's byte[] directly.
+     */
+    public static BoundedDistance forQuery(GlobalFeature query, FeatureDescriptor descriptor) {
+        if (query == null) return null;
+        if (query.getClass() == ColorLayout.class) {
+            return new ColorLayoutDistance((ColorLayout) query);
+        } else if (query.getClass() == EdgeHistogram.class && EdgeHistogramDistance.QUANT_TABLE != null) {
+            return new EdgeHistogramDistance(query.getByteArrayRepresentation());
+        }
+        // all other features by their declared codec and distance, so registered features can use them too.
+        if (descriptor == null) {
+            return null;
+        } else if (descriptor.hasCodecAndDistance("nibble", "l1")) {
+            return new NibbleL1Distance(query.getByteArrayRepresentation());
+        } else if (descriptor.hasCodecAndDistance("sparse-short", "cosine")) {
+            return new SparseShortCosineDistance(query.getFeatureVector());
+        } else if (descriptor.hasCodecAndDistance("sparse-double", "cosine")) {
+            return new SparseDoubleCosineDistance(query.getFeatureVector());
+        }
+        return null;
+    }
+
+    /**
+     * Creates the distance for re-ranking with the query feature. For features without a specialized
+     * implementation the candidates are decoded into the scratch feature of the current thread, so the result
+     * must not be shared between threads.
+     *
+     * @param query the query feature, one of the built-in features.
+     * @return the specialized distance or one decoding the candidates.
+     */
+    public static BoundedDistance forReRanking(GlobalFeature query) {
+        return forReRanking(query, FeatureRegistry.getDefault().getDescriptorForClass(query.getClass()));
+    }
+
+    /**
+     * @param query      the query feature
+     * @param descriptor the descriptor of the query feature, can be null.
+     * @see #forReRanking(GlobalFeature)
+     */
+    public static BoundedDistance forReRanking(GlobalFeature query, FeatureDescriptor descriptor) {
+        BoundedDistance distance = forQuery(query, descriptor);
+        return distance != null ? distance : new DecodingDistance(query, descriptor);
+    }
+
+    /**
+     * Counts what happened to the candidates of the re-ranking, for the debug output. Each candidate is either
+     * pruned by its pivot distances, missing the feature or compared to the query, so the three add up to the
+     * number of candidates.
+     */
+    public static final class ReRankCounts {
+        public long pruned = 0;
+        public long missing = 0;
+        public long distances = 0;
+        public long abandoned = 0;
+    }
+
+    /**
+     * @return true if the candidate is surely farther away than the current k-th result due to the triangle
+     * inequality with the pivots.
+     */
+    private static boolean prune(int doc, ResultHeap heap, BinaryDocValues pivotValues,
+                                 PivotDistances.QueryDistances queryPivotDistances) throws IOException {
+        return pivotValues != null && heap.isFull() && PivotDistances.exceeds(
+                queryPivotDistances.lowerBound(LireRequestHandler.getBytesRef(pivotValues, doc)), heap.bound());
+    }
+
+    private static void offer(int doc, double distance, ResultHeap heap, ReRankCounts counts) {
+        counts.distances++;
+        if (distance == ABANDONED) counts.abandoned++;
+        else heap.offer(doc, distance);
+    }
+
+    /**
+     * Decodes features storing two values from 0 to 15 in each byte, like EdgeHistogram and PHOG do.
+     */
+    private static int[] decodeNibbles(byte[] bytes) {
+        int[] values = new int[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int tmp = bytes[i] + 128;
+            values[i << 1] = tmp >> 4;
+            values[(i << 1) + 1] = tmp & 15;
+        }
+        return values;
+    }
+
+    /**
+     * L1 distance of PHOG, see MetricsUtils.distL1(byte[], byte[]).
+     */
+    private static final class NibbleL1Distance extends BoundedDistance {
+        private final int[] query;
+
+        NibbleL1Distance(byte[] query) {
+            this.query = decodeNibbles(query);
+        }
+
+        @Override
+        public double getDistance(BytesRef candidate, double bound) {
+            byte[] b = candidate.bytes;
+            int length = Math.min(candidate.length, query.length >> 1);
+            // the sum of integers is exact, so it is kept as int and compared to the bound every 8 bytes.
+            int sum = 0;
+            for (int i = 0; i < length; i++) {
+                int tmp = b[candidate.offset + i] + 128;
+                sum += Math.abs(query[i << 1] - (tmp >> 4)) + Math.abs(query[(i << 1) + 1] - (tmp & 15));
+                if ((i & 7) == 7 && sum > bound) return ABANDONED;
+            }
+            return sum;
+        }
+
+        @Override
+        public void reRank(int[] docs, BinaryDocValues values, ResultHeap heap, BinaryDocValues pivotValues,
+                           PivotDistances.QueryDistances queryPivotDistances, ReRankCounts counts) throws IOException {
+            for (int doc : docs) {
+                if (prune(doc, heap, pivotValues, queryPivotDistances)) {
+                    counts.pruned++;
+                    continue;
+                }
+                BytesRef bytesRef = LireRequestHandler.getBytesRef(values, doc);
+                if (bytesRef.length == 0) { // no feature, nothing to compare with.
+                    counts.missing++;
+                    continue;
+                }
+                offer(doc, getDistance(bytesRef, heap.bound()), heap, counts);
+            }
+        }
+    }
+
+    /**
+     * Distance of EdgeHistogram, see EdgeHistogramImplementation.calculateDistance(int[], int[]).
+     */
+    private static final class EdgeHistogramDistance extends BoundedDistance {
+        private static final double[][] QUANT_TABLE = readQuantTable();
+        private final int[] query;
+
+        EdgeHistogramDistance(byte[] query) {
+            this.query = decodeNibbles(query);
+        }
+
+        private static double[][] readQuantTable() {
+            try {
+                Field field = EdgeHistogramImplementation.class.getDeclaredField("QuantTable");
+                field.setAccessible(true);
+                return (double[][]) field.get(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                System.err.println("EdgeHistogram quantization table not accessible, no early abandoning: " + e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        public double getDistance(BytesRef candidate, double bound) {
+            byte[] b = candidate.bytes;
+            int offset = candidate.offset;
+            int length = Math.min(candidate.length, query.length >> 1);
+            // same order of summation as the original, so the result is exactly the same.
+            double sum = 0;
+            for (int i = 0; i < length; i++) {
+                int tmp = b[offset + i] + 128;
+                int j = i << 1;
+                sum += Math.abs(QUANT_TABLE[j % 5][query[j]] - QUANT_TABLE[j % 5][tmp >> 4]);
+                sum += Math.abs(QUANT_TABLE[(j + 1) % 5][query[j + 1]] - QUANT_TABLE[(j + 1) % 5][tmp & 15]);
+                if ((i & 7) == 7 && sum > bound) return ABANDONED;
+            }
+            for (int i = 0; i < length; i++) {
+                int tmp = b[offset + i] + 128;
+                int j = i << 1;
+                sum += (j <= 4 ? 5d : 1d) * Math.abs(query[j] - (tmp >> 4));
+                sum += (j + 1 <= 4 ? 5d : 1d) * Math.abs(query[j + 1] - (tmp & 15));
+                if ((i & 7) == 7 && sum > bound) return ABANDONED;
+            }
+            return sum;
+        }
+
+        @Override
+        public void reRank(int[] docs, BinaryDocValues values, ResultHeap heap, BinaryDocValues pivotValues,
+                           PivotDistances.QueryDistances queryPivotDistances, ReRankCounts counts) throws IOException {
+            for (int doc : docs) {
+                if (prune(doc, heap, pivotValues, queryPivotDistances)) {
+                    counts.pruned++;
+                    continue;
+                }
+                BytesRef bytesRef = LireRequestHandler.getBytesRef(values, doc);
+                if (bytesRef.length == 0) { // no feature, nothing to compare with.
+                    counts.missing++;
+                    continue;
+                }
+                offer(doc, getDistance(bytesRef, heap.bound()), heap, counts);
+            }
+        }
+    }
+
+    /**
+     * Distance of ColorLayout, see ColorLayoutImpl.getSimilarity(int[], int[], int[], int[], int[], int[]).
+     * It is the sum of the weighted euclidean distances of the Y, Cb and Cr coefficients.
+     */
+    private static final class ColorLayoutDistance extends BoundedDistance {
+        private final int[] queryY, queryCb, queryCr;
+
+        ColorLayoutDistance(ColorLayout query) {
+            // the arrays may be longer than the coefficients of the feature, e.g. after extraction.
+            int numYCoeff = Math.min(query.getNumberOfYCoeff(), query.YCoeff.length);
+            int numCCoeff = Math.min(query.getNumberOfCCoeff(), Math.min(query.CbCoeff.length, query.CrCoeff.length));
+            queryY = Arrays.copyOf(query.YCoeff, numYCoeff);
+            queryCb = Arrays.copyOf(query.CbCoeff, numCCoeff);
+            queryCr = Arrays.copyOf(query.CrCoeff, numCCoeff);
+        }
+
+        @Override
+        public double getDistance(BytesRef candidate, double bound) {
+            byte[] b = candidate.bytes;
+            int offset = candidate.offset;
+            int numYCoeff = b[offset], numCCoeff = b[offset + 1];
+            int[][] weights = Weights.MATRIX;
+            // the bound of the squared sums, Math.sqrt is monotone.
+            double squaredBound = bound < Math.sqrt(Double.MAX_VALUE) ? bound * bound : Double.MAX_VALUE;
+            // like LIRE, only the coefficients both features have are compared.
+            int lengthY = Math.min(queryY.length, numYCoeff), lengthC = Math.min(queryCb.length, numCCoeff);
+            int sumY = 0;
+            for (int i = 0; i < lengthY; i++) {
+                int diff = queryY[i] - b[offset + 2 + i];
+                sumY += weights[0][i] * diff * diff;
+                if (sumY > squaredBound) return ABANDONED;
+            }
+            double distanceY = Math.sqrt(sumY);
+            int sumCb = 0, sumCr = 0;
+            for (int i = 0; i < lengthC; i++) {
+                int diff = queryCb[i] - b[offset + 2 + numYCoeff + i];
+                sumCb += weights[1][i] * diff * diff;
+                diff = queryCr[i] - b[offset + 2 + numYCoeff + numCCoeff + i];
+                sumCr += weights[2][i] * diff * diff;
+            }
+            double distance = distanceY + Math.sqrt(sumCb);
+            if (distance > bound) return ABANDONED;
+            return distance + Math.sqrt(sumCr);
+        }
+
+        @Override
+        public void reRank(int[] docs, BinaryDocValues values, ResultHeap heap, BinaryDocValues pivotValues,
+                           PivotDistances.QueryDistances queryPivotDistances, ReRankCounts counts) throws IOException {
+            for (int doc : docs) {
+                if (prune(doc, heap, pivotValues, queryPivotDistances)) {
+                    counts.pruned++;
+                    continue;
+                }
+                BytesRef bytesRef = LireRequestHandler.getBytesRef(values, doc);
+                if (bytesRef.length == 0) { // no feature, nothing to compare with.
+                    counts.missing++;
+                    continue;
+                }
+                offer(doc, getDistance(bytesRef, heap.bound()), heap, counts);
+            }
+        }
+
+        /**
+         * Gives access to the weights of the coefficients.
+         */
+        private static final class Weights extends ColorLayoutImpl {
+            static final int[][] MATRIX = weightMatrix;
+        }
+    }
+
+    /**
+     * Cosine distance of ShortFeatureCosineDistance (sf), read directly from the sparse byte[] representation,
+     * which is a list of big endian shorts: the number of dimensions followed by pairs of index and value. The
+     * sums are exact integers, so the result is the same as the one of the distance kernels.
+     */
+    private static final class SparseShortCosineDistance extends BoundedDistance {
+        private final short[] query;
+        // squared norms of the query prefixes, as the cosine is computed on the common length.
+        private final long[] queryNorms;
+
+        SparseShortCosineDistance(double[] vector) {
+            this.query = new short[vector.length];
+            this.queryNorms = new long[vector.length + 1];
+            for (int i = 0; i < vector.length; i++) {
+                this.query[i] = (short) vector[i];
+                queryNorms[i + 1] = queryNorms[i] + this.query[i] * this.query[i];
+            }
+        }
+
+        private static short shortAt(byte[] b, int offset) {
+            return (short) (((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF));
+        }
+
+        @Override
+        public double getDistance(BytesRef candidate, double bound) {
+            byte[] b = candidate.bytes;
+            int offset = candidate.offset;
+            int end = offset + (candidate.length & ~1);
+            int common = Math.min(shortAt(b, offset), query.length);
+            long ab = 0, bb = 0;
+            for (int o = offset + 2; o + 3 < end; o += 4) {
+                int index = shortAt(b, o);
+                if (index < 0 || index >= common) continue;
+                int value = shortAt(b, o + 2);
+                ab += query[index] * value;
+                bb += value * value;
+            }
+            long aa = queryNorms[Math.max(common, 0)];
+            if ((double) aa * bb > 0) return 1d - ab / (Math.sqrt(aa) * Math.sqrt(bb));
+            return 0d;
+        }
+
+        @Override
+        public void reRank(int[] docs, BinaryDocValues values, ResultHeap heap, BinaryDocValues pivotValues,
+                           PivotDistances.QueryDistances queryPivotDistances, ReRankCounts counts) throws IOException {
+            for (int doc : docs) {
+                if (prune(doc, heap, pivotValues, queryPivotDistances)) {
+                    counts.pruned++;
+                    continue;
+                }
+                BytesRef bytesRef = LireRequestHandler.getBytesRef(values, doc);
+                if (bytesRef.length == 0) { // no feature, nothing to compare with.
+                    counts.missing++;
+                    continue;
+                }
+                offer(doc, getDistance(bytesRef, heap.bound()), heap, counts);
+            }
+        }
+    }
+
+    /**
+     * Cosine distance of DoubleFeatureCosineDistance (df), read directly from the sparse byte[] representation,
+     * which is a list of big endian doubles: the number of dimensions followed by pairs of index and value.
+     */
+    private static final class SparseDoubleCosineDistance extends BoundedDistance {
+        private final double[] query;
+        // squared norms of the query prefixes, as the cosine is computed on the common length.
+        private final double[] queryNorms;
+
+        SparseDoubleCosineDistance(double[] query) {
+            this.query = query.clone();
+            this.queryNorms = new double[query.length + 1];
+            for (int i = 0; i < query.length; i++) {
+                queryNorms[i + 1] = queryNorms[i] + query[i] * query[i];
+            }
+        }
+
+        private static double doubleAt(byte[] b, int offset) {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (b[offset + i] & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        @Override
+        public double getDistance(BytesRef candidate, double bound) {
+            byte[] b = candidate.bytes;
+            int offset = candidate.offset;
+            int end = offset + (candidate.length & ~7);
+            int common = Math.min((int) doubleAt(b, offset), query.length);
+            double ab = 0, bb = 0;
+            for (int o = offset + 8; o + 15 < end; o += 16) {
+                int index = (int) doubleAt(b, o);
+                if (index < 0 || index >= common) continue;
+                double value = doubleAt(b, o + 8);
+                ab += query[index] * value;
+                bb += value * value;
+            }
+            double aa = queryNorms[Math.max(common, 0)];
+            if (aa * bb > 0) return 1d - ab / (Math.sqrt(aa) * Math.sqrt(bb));
+            return 0d;
+        }
+
+        @Override
+        public void reRank(int[] docs, BinaryDocValues values, ResultHeap heap, BinaryDocValues pivotValues,
+                           PivotDistances.QueryDistances queryPivotDistances, ReRankCounts counts) throws IOException {
+            for (int doc : docs) {
+                if (prune(doc, heap, pivotValues, queryPivotDistances)) {
+                    counts.pruned++;
+                    continue;
+                }
+                BytesRef bytesRef = LireRequestHandler.getBytesRef(values, doc);
+                if (bytesRef.length == 0) { // no feature, nothing to compare with.
+                    counts.missing++;
+                    continue;
+                }
+                offer(doc, getDistance(bytesRef, heap.bound()), heap, counts);
+            }
+        }
+    }
+
+    /**
+     * Fallback for all other features: decodes the candidates into the scratch feature of the current thread and
+     * calls {@link GlobalFeature#getDistance}. The bound is not used and instances are not thread safe.
+     */
+    private static final class DecodingDistance extends BoundedDistance {
+        private final GlobalFeature query;
+        private final GlobalFeature tmpFeature;
+
+        DecodingDistance(GlobalFeature query, FeatureDescriptor descriptor) {
+            this.query = query;
+            this.tmpFeature = descriptor != null ? descriptor.getScratchFeature()
+                    : FeatureDescriptor.constructorFactory(query.getClass()).get();
+        }
+
+        @Override
+        public double getDistance(BytesRef candidate, double bound) {
+            tmpFeature.setByteArrayRepresentation(candidate.bytes, candidate.offset, candidate.length);
+            return query.getDistance(tmpFeature);
+        }
+
+        @Override
+        public void reRank(int[] docs, BinaryDocValues values, ResultHeap heap, BinaryDocValues pivotValues,
+                           PivotDistances.QueryDistances queryPivotDistances, ReRankCounts counts) throws IOException {
+            for (int doc : docs) {
+                if (prune(doc, heap, pivotValues, queryPivotDistances)) {
+                    counts.pruned++;
+                    continue;
+                }
+                BytesRef bytesRef = LireRequestHandler.getBytesRef(values, doc);
+                if (bytesRef.length == 0) { // no feature, nothing to compare with.
+                    counts.missing++;
+                    continue;
+                }
+                offer(doc, getDistance(bytesRef, heap.bound()), heap, counts);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.searchers.SimpleResult;
+import net.semanticmetadata.lire.solr.tools.RandomAccessBinaryDocValues;
+import net.semanticmetadata.lire.utils.StatsUtils;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * <p>The two steps of a LIRE search independent of Solr: building the candidate query from the BitSampling hashes or
+ * the MetricSpaces reference points of the query feature, and re-ranking the candidates by their feature distance.
+ * Used by the {@link LireSearchComponent}, the {@link LireRequestHandler} and
+ * {@link net.semanticmetadata.lire.solr.tools.RecallBenchmark}, so the benchmark measures what the handlers do.</p>
+ *
+ * <p>The parameters are the ones of the handlers: accuracy, the share of the hash terms used (from 0.9 on all
+ * documents are candidates), ms for MetricSpaces instead of BitSampling, probes for multi-probe BitSampling and
+ * candidates, the number of documents re-ranked.</p>
+ */
+public class CandidateSearch {
+    public static final int DEFAULT_NUMBER_OF_CANDIDATES = 10000;
+    public static final double DEFAULT_NUMBER_OF_QUERY_TERMS = 0.33;
+    public static final boolean DEFAULT_USE_METRIC_SPACES = false;
+    public static final int DEFAULT_NUMBER_OF_PROBES = 0;
+
+    private final HashingMetricSpacesManager hashing;
+
+    public CandidateSearch(HashingMetricSpacesManager hashing) {
+        this.hashing = hashing;
+    }
+
+    public HashingMetricSpacesManager getHashing() {
+        return hashing;
+    }
+
+    /**
+     * @return true if the candidates are all documents instead of the ones found by a hash query.
+     */
+    public static boolean isExhaustive(double accuracy) {
+        return accuracy >= 0.90;
+    }
+
+    /**
+     * @return the hash terms and the multi-probe terms of the feature, whose document frequencies are needed for
+     * {@link #selectHashTerms}.
+     */
+    public List<String> hashTerms(GlobalFeature queryFeature, String hashField, int probes) {
+        List<String> terms = toTerms(hashing.generateHashes(hashField, queryFeature.getFeatureVector()));
+        terms.addAll(toTerms(hashing.generateProbes(hashField, queryFeature.getFeatureVector(), probes)));
+        return terms;
+    }
+
+    /**
+     * Orders the BitSampling hashes of the feature ascending by document frequency, removes those not in the
+     * index (leaving at least three) and takes the share given by the accuracy, at least one. The multi-probe
+     * buckets are added on top, as far as they are in the index.
+     *
+     * @param docFreq gives the document frequency of a term, local, cached or summed up over all shards.
+     */
+    public List<String> selectHashTerms(GlobalFeature queryFeature, String hashField, double accuracy, int probes,
+                                        Function<String, Long> docFreq) {
+        List<String> hList = toTerms(hashing.generateHashes(hashField, queryFeature.getFeatureVector()));
+        int numberOfHashes = hList.size();
+        Map<String, Long> docFreqs = new HashMap<>(hList.size());
+        for (String term : hList) {
+            docFreqs.computeIfAbsent(term, docFreq);
+        }
+        hList.sort(Comparator.comparingLong(docFreqs::get));
+        while (docFreqs.get(hList.get(0)) < 1 && hList.size() > 3) {
+            hList.remove(0);
+        }
+        int numHashes = (int) Math.min(hList.size(), Math.floor(numberOfHashes * Math.max(0, Math.min(accuracy, 1))));
+        List<String> terms = new ArrayList<>(hList.subList(0, Math.max(1, numHashes)));
+        for (String probe : toTerms(hashing.generateProbes(hashField, queryFeature.getFeatureVector(), probes))) {
+            if (docFreq.apply(probe) > 0 && !terms.contains(probe)) terms.add(probe);
+        }
+        return terms;
+    }
+
+    /**
+     * @return a query matching the documents with any of the hash terms.
+     */
+    public static BooleanQuery createHashQuery(String hashField, List<String> terms) {
+        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
+        for (String term : terms) {
+            // be aware that the hash functions of the field must match the ones you put the hashes in before.
+            queryBuilder.add(new BooleanClause(new TermQuery(new Term(hashField, term)), BooleanClause.Occur.SHOULD));
+        }
+        return queryBuilder.build();
+    }
+
+    /**
+     * @return the boosted query on the *_ms field, or null if the feature is not supported by MetricSpaces.
+     */
+    public Query createMetricSpacesQuery(GlobalFeature queryFeature, String hashField, double accuracy) throws ParseException {
+        if (!hashing.supportsFeature(queryFeature)) return null;
+        int queryLength = (int) StatsUtils.clamp(accuracy * hashing.getPostingListLength(queryFeature),
+                3, hashing.getPostingListLength(queryFeature));
+        QueryParser qp = new QueryParser(hashField.replace("_ha", "_ms"), new WhitespaceAnalyzer());
+        return qp.parse(hashing.generateBoostedQuery(queryFeature, queryLength));
+    }
+
+    /**
+     * Creates the candidate query, either from the given hash terms, from the metric spaces reference points or a
+     * MatchAllDocsQuery for accuracy &gt;= 0.9 and for features not supported by MetricSpaces.
+     */
+    public Query createQuery(GlobalFeature queryFeature, String hashField, List<String> terms, double accuracy,
+                             boolean useMetricSpaces) throws ParseException {
+        if (isExhaustive(accuracy)) {
+            return new MatchAllDocsQuery();
+        } else if (useMetricSpaces) {
+            Query query = createMetricSpacesQuery(queryFeature, hashField, accuracy);
+            return query != null ? query : new MatchAllDocsQuery();
+        } else {
+            return createHashQuery(hashField, terms);
+        }
+    }
+
+    /**
+     * Re-ranks the candidates by their distance to the query feature, using the pivot distances of the field if
+     * there are any.
+     *
+     * @param descriptor the descriptor of the query feature, defines the feature field.
+     * @param pivots     the pivots of the feature field, null if there are none.
+     * @param docs       the candidates, top level docIds.
+     * @param counts     collects what happened to the candidates, may be null.
+     * @return the nearest documents, at most rows.
+     */
+    public static TreeSet<SimpleResult> reRank(IndexSearcher searcher, FeatureDescriptor descriptor, GlobalFeature queryFeature,
+                                               PivotDistances pivots, int[] docs, int rows,
+                                               BoundedDistance.ReRankCounts counts) throws IOException {
+        if (rows <= 0) return new TreeSet<>();
+        String featureFieldName = FeatureRegistry.codeToFeatureField(descriptor.getCode());
+        BinaryDocValues binaryValues = new RandomAccessBinaryDocValues(() -> {
+            try {
+                return MultiDocValues.getBinaryValues(searcher.getIndexReader(), featureFieldName);
+            } catch (IOException e) {
+                throw new RuntimeException("BinaryDocValues problem.", e);
+            }
+        });
+        PivotDistances.QueryDistances queryPivotDistances = pivots != null ? pivots.queryDistances(queryFeature) : null;
+        BinaryDocValues pivotValues = queryPivotDistances != null ?
+                PivotDistances.getPivotValues(searcher.getIndexReader(), featureFieldName) : null;
+        ResultHeap heap = new ResultHeap(rows);
+        BoundedDistance.forReRanking(queryFeature, descriptor).reRank(docs, binaryValues, heap, pivotValues, queryPivotDistances,
+                counts != null ? counts : new BoundedDistance.ReRankCounts());
+        return heap.toResults();
+    }
+
+    private static List<String> toTerms(int[] hashes) {
+        List<String> hList = new ArrayList<>(hashes.length);
+        for (int hash : hashes) {
+            hList.add(Integer.toHexString(hash));
+        }
+        return hList;
+    }
+}
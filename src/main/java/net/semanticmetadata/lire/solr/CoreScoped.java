@@ -0,0 +1,40 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Holds one instance of a resource per core, e.g. the pivots of a core. The instance is created on first use and
+ * dropped when the core is closed, so cores with the same field names don't see each other's resources and a
+ * reloaded core starts with a new one instead of keeping the old core's classes.
+ *
+ * @param <T> the resource.
+ */
+class CoreScoped<T> {
+    private final Map<SolrCore, T> instances = new ConcurrentHashMap<>();
+    private final Supplier<T> factory;
+
+    CoreScoped(Supplier<T> factory) {
+        this.factory = factory;
+    }
+
+    T get(SolrCore core) {
+        return instances.computeIfAbsent(core, c -> {
+            c.addCloseHook(new CloseHook() {
+                @Override
+                public void preClose(SolrCore core) {
+                }
+
+                @Override
+                public void postClose(SolrCore core) {
+                    instances.remove(core);
+                }
+            });
+            return factory.get();
+        });
+    }
+}
@@ -0,0 +1,118 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+
+import java.lang.reflect.Constructor;
+import java.util.function.Supplier;
+
+/**
+ * Describes a feature registered in the {@link FeatureRegistry}: its code, the factory for new instances and what
+ * is known about its byte[] representation. Declared values are informational, except for the codec and distance,
+ * which are used to pick a distance working directly on the byte[] representation, see
+ * {@link BoundedDistance#forQuery(GlobalFeature)}.
+ *
+ * <p>Known codecs are <code>nibble</code> (two values from 0 to 15 per byte), <code>sparse-short</code> and
+ * <code>sparse-double</code> (the number of dimensions followed by pairs of index and value, big endian). Known
+ * distances are <code>l1</code>, <code>cosine</code>, <code>tanimoto</code> and <code>jsd</code>.</p>
+ */
+public class FeatureDescriptor {
+    private final String code;
+    private final Class<? extends GlobalFeature> featureClass;
+    private final Supplier<? extends GlobalFeature> factory;
+    private final int dimensions;
+    private final int byteWidth;
+    private final String distance;
+    private final String codec;
+    // scratch instances for decoding candidates, one per thread.
+    private final ThreadLocal<GlobalFeature> scratch;
+
+    /**
+     * @param code         the code used for the field names, e.g. cl for cl_ha and cl_hi.
+     * @param featureClass the class of the feature.
+     * @param factory      creates new instances of the feature class.
+     * @param dimensions   the number of dimensions, 0 if not declared.
+     * @param byteWidth    the number of bytes of a value in the byte[] representation, 0 if not declared or if
+     *                     values are packed into less than a byte.
+     * @param distance     the distance function, null if not declared.
+     * @param codec        the coding of the byte[] representation, null if not declared.
+     */
+    public FeatureDescriptor(String code, Class<? extends GlobalFeature> featureClass, Supplier<? extends GlobalFeature> factory,
+                             int dimensions, int byteWidth, String distance, String codec) {
+        this.code = code;
+        this.featureClass = featureClass;
+        this.factory = factory;
+        this.dimensions = dimensions;
+        this.byteWidth = byteWidth;
+        this.distance = distance;
+        this.codec = codec;
+        this.scratch = ThreadLocal.withInitial(factory);
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public Class<? extends GlobalFeature> getFeatureClass() {
+        return featureClass;
+    }
+
+    /**
+     * @return a new instance, e.g. for a query feature.
+     */
+    public GlobalFeature newFeature() {
+        return factory.get();
+    }
+
+    /**
+     * Returns the instance of the current thread for decoding a candidate. It must only be used until the
+     * distance of the candidate is computed and must never be handed out, e.g. as query feature.
+     *
+     * @return the scratch instance of the current thread.
+     */
+    public GlobalFeature getScratchFeature() {
+        return scratch.get();
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public int getByteWidth() {
+        return byteWidth;
+    }
+
+    public String getDistance() {
+        return distance;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return true if the feature declares the given codec and distance.
+     */
+    public boolean hasCodecAndDistance(String codec, String distance) {
+        return codec.equals(this.codec) && distance.equals(this.distance);
+    }
+
+    /**
+     * Creates a factory calling the public no-arg constructor of the class. The constructor is looked up once,
+     * so there is no lookup for each new instance.
+     */
+    public static <T extends GlobalFeature> Supplier<T> constructorFactory(Class<T> featureClass) {
+        final Constructor<T> constructor;
+        try {
+            constructor = featureClass.getConstructor();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(featureClass.getName() + " has no public no-arg constructor.", e);
+        }
+        return () -> {
+            try {
+                return constructor.newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Could not create feature instance of " + featureClass.getName(), e);
+            }
+        };
+    }
+}
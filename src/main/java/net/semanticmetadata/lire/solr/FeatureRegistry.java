@@ -8,82 +8,242 @@ import net.semanticmetadata.lire.imageanalysis.features.global.spatialpyramid.SP
 import net.semanticmetadata.lire.solr.features.DoubleFeatureCosineDistance;
 import net.semanticmetadata.lire.solr.features.ShortFeatureCosineDistance;
 
-import java.util.HashMap;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrResourceLoader;
+
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * This file is part of LIRE Solr, a Java library for content based image retrieval.
  *
+ * <p>The built-in features are registered below. More features can be registered or built-in ones replaced in
+ * solrconfig.xml without recompiling, see {@link #configure(NamedList, SolrResourceLoader)}:</p>
+ * <pre>
+ * &lt;lst name="features"&gt;
+ *   &lt;lst name="xy"&gt;
+ *     &lt;str name="class"&gt;com.example.MyFeature&lt;/str&gt;
+ *     &lt;int name="dimensions"&gt;64&lt;/int&gt;
+ *     &lt;int name="byteWidth"&gt;1&lt;/int&gt;
+ *     &lt;str name="distance"&gt;l1&lt;/str&gt;
+ *     &lt;str name="codec"&gt;nibble&lt;/str&gt;
+ *   &lt;/lst&gt;
+ * &lt;/lst&gt;
+ * </pre>
+ * <p>Instead of the class a <code>factory</code> implementing <code>Supplier&lt;GlobalFeature&gt;</code> can be
+ * given. Everything but the class or factory is optional, see {@link FeatureDescriptor}.</p>
+ * <p>The features of solrconfig.xml are registered in the registry of the core, see {@link #forCore(SolrCore)}, so
+ * cores don't see each other's features. The tools use the built-in features of {@link #getDefault()}.</p>
+ *
  * @author Mathias Lux, mathias@juggle.at, 28.11.2014
  */
 public class FeatureRegistry {
     /**
      * Naming conventions for code: 2 letters for global features. More for local ones.
      */
-    private static HashMap<String, Class<? extends GlobalFeature>> codeToClass = new HashMap<String, Class<? extends GlobalFeature>>(16);
+    private final Map<String, FeatureDescriptor> codeToDescriptor = new ConcurrentHashMap<>(16);
     /**
      * Caching the entries for fast retrieval or Strings without generating new objects.
      */
-    private static HashMap<String, Class<? extends GlobalFeature>> hashFieldToClass = new HashMap<String, Class<? extends GlobalFeature>>(16);
-    private static HashMap<String, Class<? extends GlobalFeature>> featureFieldToClass = new HashMap<String, Class<? extends GlobalFeature>>(16);
-    private static HashMap<String, String> hashFieldToFeatureField = new HashMap<String, String>(16);
-    private static HashMap<Class<? extends GlobalFeature>, String> classToCode = new HashMap<Class<? extends GlobalFeature>, String>(16);
+    private final Map<String, FeatureDescriptor> hashFieldToDescriptor = new ConcurrentHashMap<>(16);
+    private final Map<String, FeatureDescriptor> featureFieldToDescriptor = new ConcurrentHashMap<>(16);
+    private final Map<String, String> hashFieldToFeatureField = new ConcurrentHashMap<>(16);
+    private final Map<Class<? extends GlobalFeature>, FeatureDescriptor> classToDescriptor = new ConcurrentHashMap<>(16);
+    private boolean readOnly;
+
+    /**
+     * The built-in features, never changed.
+     */
+    private static final FeatureRegistry defaultRegistry = new FeatureRegistry(null);
+    private static final CoreScoped<FeatureRegistry> coreRegistries = new CoreScoped<>(FeatureRegistry::new);
 
 
     // Constants.
     public static final String featureFieldPostfix = "_hi";   // contains the histogram
     public static final String hashFieldPostfix = "_ha";      // contains the hash
     public static final String metricSpacesFieldPostfix = "_ms";      // contains the hash
+    public static final String pivotFieldPostfix = "_pv";      // contains the distances to the pivots
+
+    private FeatureRegistry(FeatureRegistry defaults) {
+        if (defaults != null) {
+            for (FeatureDescriptor descriptor : defaults.codeToDescriptor.values()) {
+                register(descriptor);
+            }
+        }
+    }
+
+    /**
+     * Creates a registry with the built-in features, more can be registered.
+     */
+    public FeatureRegistry() {
+        this(defaultRegistry);
+    }
+
+    /**
+     * @return the registry of the built-in features, it can't be changed.
+     */
+    public static FeatureRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    /**
+     * @return the registry of the core, created with the built-in features on first use and dropped when the
+     * core is closed.
+     */
+    public static FeatureRegistry forCore(SolrCore core) {
+        return coreRegistries.get(core);
+    }
 
     static {
         // initial adding of the supported features:
         // classical features from the first implementation
-        codeToClass.put("cl", ColorLayout.class);
-        codeToClass.put("eh", EdgeHistogram.class);
-        codeToClass.put("jc", JCD.class);
-        codeToClass.put("oh", OpponentHistogram.class);
-        codeToClass.put("ph", PHOG.class);
+        FeatureRegistry registry = defaultRegistry;
+        registry.register(new FeatureDescriptor("cl", ColorLayout.class, ColorLayout::new, 33, 1, null, null));
+        registry.register(new FeatureDescriptor("eh", EdgeHistogram.class, EdgeHistogram::new, 80, 0, null, "nibble"));
+        registry.register(new FeatureDescriptor("jc", JCD.class, JCD::new, 168, 0, "tanimoto", null));
+        registry.register(new FeatureDescriptor("oh", OpponentHistogram.class, OpponentHistogram::new, 64, 1, "jsd", null));
+        registry.register(new FeatureDescriptor("ph", PHOG.class, PHOG::new, 630, 0, "l1", "nibble"));
 
         // additional global features
-        codeToClass.put("ac", AutoColorCorrelogram.class);
-        codeToClass.put("ad", ACCID.class);
-        codeToClass.put("ce", CEDD.class);
-        codeToClass.put("fc", FCTH.class);
-        codeToClass.put("fo", FuzzyOpponentHistogram.class);
-        codeToClass.put("jh", JointHistogram.class);
-        codeToClass.put("sc", ScalableColor.class);
-        codeToClass.put("pc", SPCEDD.class);
+        registry.register(new FeatureDescriptor("ac", AutoColorCorrelogram.class, AutoColorCorrelogram::new, 256, 0, null, "nibble"));
+        registry.register(new FeatureDescriptor("ad", ACCID.class, ACCID::new, 120, 2, "jsd", null));
+        registry.register(new FeatureDescriptor("ce", CEDD.class, CEDD::new, 144, 0, "tanimoto", null));
+        registry.register(new FeatureDescriptor("fc", FCTH.class, FCTH::new, 192, 0, "tanimoto", null));
+        registry.register(new FeatureDescriptor("fo", FuzzyOpponentHistogram.class, FuzzyOpponentHistogram::new, 576, 1, null, null));
+        registry.register(new FeatureDescriptor("jh", JointHistogram.class, JointHistogram::new, 576, 1, "jsd", null));
+        registry.register(new FeatureDescriptor("sc", ScalableColor.class, ScalableColor::new, 64, 0, null, null));
+        registry.register(new FeatureDescriptor("pc", SPCEDD.class, SPCEDD::new, 3024, 0, "tanimoto", null));
         // GenericFeatures filled with whatever one prefers.
-        codeToClass.put("df", DoubleFeatureCosineDistance.class);
-//        codeToClass.put("df", GenericGlobalDoubleFeature.class);
-        codeToClass.put("if", GenericGlobalIntFeature.class);
-        codeToClass.put("sf", ShortFeatureCosineDistance.class);
-//        codeToClass.put("sf", GenericGlobalShortFeature.class);
+        registry.register(new FeatureDescriptor("df", DoubleFeatureCosineDistance.class, DoubleFeatureCosineDistance::new, 0, 8, "cosine", "sparse-double"));
+//        registry.register(new FeatureDescriptor("df", GenericGlobalDoubleFeature.class, GenericGlobalDoubleFeature::new, 0, 8, null, null));
+        registry.register(new FeatureDescriptor("if", GenericGlobalIntFeature.class, GenericGlobalIntFeature::new, 0, 4, null, null));
+        registry.register(new FeatureDescriptor("sf", ShortFeatureCosineDistance.class, ShortFeatureCosineDistance::new, 0, 2, "cosine", "sparse-short"));
+//        registry.register(new FeatureDescriptor("sf", GenericGlobalShortFeature.class, GenericGlobalShortFeature::new, 0, 2, null, null));
 
         // local feature based histograms.
-        // codeToClass.put("sim_ce", GenericByteLireFeature.class); // SIMPLE CEDD ... just to give a hint how it might look like.
+        // registry.register(new FeatureDescriptor("sim_ce", GenericByteLireFeature.class, ...)); // SIMPLE CEDD ... just to give a hint how it might look like.
 
-        // add your features here if you want more.
+        // add your features here or in solrconfig.xml if you want more.
         // ....
+        registry.readOnly = true;
+    }
 
+    /**
+     * Registers a feature, a feature already registered with the same code is replaced.
+     *
+     * @param descriptor the feature and its code.
+     * @throws UnsupportedOperationException for the registry of the built-in features.
+     */
+    public synchronized void register(FeatureDescriptor descriptor) {
+        if (readOnly) {
+            throw new UnsupportedOperationException("The built-in features can't be changed, use the registry of the core.");
+        }
+        String code = descriptor.getCode();
+        FeatureDescriptor replaced = codeToDescriptor.put(code, descriptor);
+        if (replaced != null && classToDescriptor.get(replaced.getFeatureClass()) == replaced) {
+            classToDescriptor.remove(replaced.getFeatureClass());
+        }
         // -----< caches to be filled >----------------
+        hashFieldToDescriptor.put(code + hashFieldPostfix, descriptor);
+        featureFieldToDescriptor.put(code + featureFieldPostfix, descriptor);
+        hashFieldToFeatureField.put(code + hashFieldPostfix, code + featureFieldPostfix);
+        classToDescriptor.put(descriptor.getFeatureClass(), descriptor);
+    }
 
-        for (Iterator<String> iterator = codeToClass.keySet().iterator(); iterator.hasNext(); ) {
-            String code = iterator.next();
-            hashFieldToClass.put(code + hashFieldPostfix, codeToClass.get(code));
-            featureFieldToClass.put(code + featureFieldPostfix, codeToClass.get(code));
-            hashFieldToFeatureField.put(code + hashFieldPostfix, code + featureFieldPostfix);
-            classToCode.put(codeToClass.get(code), code);
+    /**
+     * Registers the features of a <code>&lt;lst name="features"&gt;</code> in solrconfig.xml, see the class
+     * comment for the format.
+     *
+     * @param features the list of features, one list per code.
+     * @param loader   loads the classes, e.g. from the lib directories of the core.
+     */
+    @SuppressWarnings("unchecked")
+    public void configure(NamedList<?> features, SolrResourceLoader loader) {
+        for (Map.Entry<String, ?> entry : features) {
+            String code = entry.getKey();
+            if (!(entry.getValue() instanceof NamedList)) {
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                        "Feature " + code + " needs a list with class or factory, e.g. <lst name=\"" + code + "\"><str name=\"class\">...</str></lst>");
+            }
+            NamedList<Object> config = (NamedList<Object>) entry.getValue();
+            Object className = config.get("class");
+            Object factoryName = config.get("factory");
+            try {
+                Supplier<? extends GlobalFeature> factory;
+                Class<? extends GlobalFeature> featureClass;
+                if (factoryName != null) {
+                    factory = loader.newInstance(factoryName.toString(), Supplier.class);
+                    featureClass = factory.get().getClass();
+                } else if (className != null) {
+                    featureClass = loader.findClass(className.toString(), GlobalFeature.class);
+                    factory = FeatureDescriptor.constructorFactory(featureClass);
+                } else {
+                    throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Feature " + code + " has neither class nor factory.");
+                }
+                register(new FeatureDescriptor(code, featureClass, factory,
+                        getInt(config, "dimensions"), getInt(config, "byteWidth"),
+                        getString(config, "distance"), getString(config, "codec")));
+            } catch (ClassCastException | IllegalArgumentException e) {
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Could not register feature " + code + ": " + e.getMessage(), e);
+            }
         }
     }
 
+    private static int getInt(NamedList<Object> config, String name) {
+        Object value = config.get(name);
+        return value == null ? 0 : Integer.parseInt(value.toString());
+    }
+
+    private static String getString(NamedList<Object> config, String name) {
+        Object value = config.get(name);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * @param hashFieldName the name of the hash field
+     * @return the descriptor of the feature or null if not registered.
+     */
+    public FeatureDescriptor getDescriptorForHashField(String hashFieldName) {
+        return hashFieldName == null ? null : hashFieldToDescriptor.get(hashFieldName);
+    }
+
+    /**
+     * @param featureFieldName the name of the field containing the histogram
+     * @return the descriptor of the feature or null if not registered.
+     */
+    public FeatureDescriptor getDescriptorForFeatureField(String featureFieldName) {
+        return featureFieldName == null ? null : featureFieldToDescriptor.get(featureFieldName);
+    }
+
+    /**
+     * @param featureClass the class of the feature
+     * @return the descriptor of the feature or null if not registered.
+     */
+    public FeatureDescriptor getDescriptorForClass(Class<? extends GlobalFeature> featureClass) {
+        return featureClass == null ? null : classToDescriptor.get(featureClass);
+    }
+
+    /**
+     * @return the codes of all registered features, e.g. cl, eh, ...
+     */
+    public Set<String> getCodes() {
+        return Collections.unmodifiableSet(codeToDescriptor.keySet());
+    }
+
     /**
      * Used to retrieve a registered class for a given hash field name.
      * @param hashFieldName the name of the hash field
      * @return the class for the given field or null if not registered.
      */
-    public static Class getClassForHashField(String hashFieldName) {
-        return hashFieldToClass.get(hashFieldName);
+    public Class getClassForHashField(String hashFieldName) {
+        FeatureDescriptor descriptor = getDescriptorForHashField(hashFieldName);
+        return descriptor == null ? null : descriptor.getFeatureClass();
     }
 
 
@@ -92,8 +252,9 @@ public class FeatureRegistry {
      * @param featureFieldName the name of the field containing the histogram
      * @return the class for the given field or null if not registered.
      */
-    public static Class getClassForFeatureField(String featureFieldName) {
-        return featureFieldToClass.get(featureFieldName);
+    public Class getClassForFeatureField(String featureFieldName) {
+        FeatureDescriptor descriptor = getDescriptorForFeatureField(featureFieldName);
+        return descriptor == null ? null : descriptor.getFeatureClass();
     }
 
     /**
@@ -101,35 +262,46 @@ public class FeatureRegistry {
      * @param hashFieldName the name of the hash field
      * @return the name or null if the feature is not registered.
      */
-    public static String getFeatureFieldName(String hashFieldName) {
-        return hashFieldToFeatureField.get(hashFieldName);
+    public String getFeatureFieldName(String hashFieldName) {
+        return hashFieldName == null ? null : hashFieldToFeatureField.get(hashFieldName);
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Registered features:\n");
-        sb.append("code\thash field\tfeature field\tclass\n");
-        for (Iterator<String> iterator = codeToClass.keySet().iterator(); iterator.hasNext(); ) {
+        sb.append("code\thash field\tfeature field\tclass\tdimensions\tbyte width\tdistance\tcodec\n");
+        for (Iterator<String> iterator = codeToDescriptor.keySet().iterator(); iterator.hasNext(); ) {
             String code = iterator.next();
+            FeatureDescriptor descriptor = codeToDescriptor.get(code);
             sb.append(code);
             sb.append('\t');
             sb.append(code + hashFieldPostfix);
             sb.append('\t');
             sb.append(code+featureFieldPostfix);
             sb.append('\t');
-            sb.append(codeToClass.get(code).getName());
+            sb.append(descriptor.getFeatureClass().getName());
+            sb.append('\t');
+            sb.append(descriptor.getDimensions());
+            sb.append('\t');
+            sb.append(descriptor.getByteWidth());
+            sb.append('\t');
+            sb.append(descriptor.getDistance());
+            sb.append('\t');
+            sb.append(descriptor.getCodec());
             sb.append('\n');
         }
         return sb.toString();
     }
 
-    public static String getCodeForClass(Class<? extends GlobalFeature> featureClass) {
-        return classToCode.get(featureClass);
+    public String getCodeForClass(Class<? extends GlobalFeature> featureClass) {
+        FeatureDescriptor descriptor = getDescriptorForClass(featureClass);
+        return descriptor == null ? null : descriptor.getCode();
     }
 
-    public static Class getClassForCode(String code) {
-        return codeToClass.get(code);
+    public Class getClassForCode(String code) {
+        FeatureDescriptor descriptor = code == null ? null : codeToDescriptor.get(code);
+        return descriptor == null ? null : descriptor.getFeatureClass();
     }
 
     public static String codeToHashField(String code) {
@@ -143,4 +315,16 @@ public class FeatureRegistry {
     public static String codeToFeatureField(String code) {
         return code + featureFieldPostfix;
     }
+
+    /**
+     * Returns the field with the packed pivot distances for a given feature field, e.g. cl_pv for cl_hi.
+     * @param featureFieldName the name of the field containing the histogram
+     * @return the name of the pivot field.
+     */
+    public static String getPivotFieldName(String featureFieldName) {
+        if (featureFieldName.endsWith(featureFieldPostfix)) {
+            return featureFieldName.substring(0, featureFieldName.length() - featureFieldPostfix.length()) + pivotFieldPostfix;
+        }
+        return featureFieldName + pivotFieldPostfix;
+    }
 }
@@ -39,8 +39,9 @@ public class HashTermStatistics {
     }
 
     public static int docFreq(String field, String term) {
-        if (termstats.get(field).get(term)!=null)
-            return termstats.get(field).get(term);
+        HashMap<String, Integer> fieldStats = termstats.get(field);
+        if (fieldStats != null && fieldStats.get(term)!=null)
+            return fieldStats.get(term);
         else
             return 0;
     }
@@ -1,38 +1,205 @@
 package net.semanticmetadata.lire.solr;
 
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.indexers.hashing.BitSampling;
-import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
+import net.semanticmetadata.lire.solr.hashing.BitSamplingFunctions;
+import net.semanticmetadata.lire.solr.hashing.HashingDataSource;
+import net.semanticmetadata.lire.solr.hashing.ReferencePoints;
+import org.apache.solr.core.SolrResourceLoader;
 
 import java.io.IOException;
-import java.util.zip.GZIPInputStream;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Combining init and management code for the MetricSpaces indexing methods.
+ * <p>Combining init and management code for the MetricSpaces and BitSampling indexing methods. The reference points
+ * and the hash functions are loaded lazily, the reference points per feature class, so a core or a command line
+ * tool only pays for the data it actually uses. The data is read from the binary formats of {@link ReferencePoints}
+ * and {@link BitSamplingFunctions}.</p>
+ *
+ * <p>A core may bring its own data in its conf directory, with the same names as the data on the class path:
+ * <code>metricspaces/&lt;simple class name&gt;.lrp</code>, e.g. <code>metricspaces/CEDD.lrp</code>, and
+ * <code>lsh/LshBitSampling.lbs</code>. Files in the conf directory are memory mapped, whatever is not found there
+ * is taken from the class path. Documents have to be indexed with the same data used for searching.</p>
+ *
+ * <p>A hash field may have its own LSH layout, i.e. its own number of tables and bits per table, in
+ * <code>lsh/&lt;hash field&gt;.lbs</code>, e.g. <code>lsh/cl_ha.lbs</code>. Fields without one use
+ * <code>lsh/LshBitSampling.lbs</code>. The command line tools read the data from the class path, or from the
+ * directory given by the system property <code>lire.hashing.conf</code> first.</p>
  *
  * @author Mathias Lux, 19.12.2016.
  */
 public class HashingMetricSpacesManager {
+    public static final String BIT_SAMPLING_RESOURCE = "lsh/LshBitSampling.lbs";
+    // the serialized functions loaded up to now, still read if there is no binary file.
+    private static final String SERIALIZED_BIT_SAMPLING_RESOURCE = "lsh/LshBitSampling_2048.obj";
+
+    public static final String CONF_PROPERTY = "lire.hashing.conf";
+
+    private static final HashingMetricSpacesManager classpathManager =
+            new HashingMetricSpacesManager(HashingDataSource.classpath(HashingMetricSpacesManager.class.getClassLoader()), null);
+    private static final HashingMetricSpacesManager defaultManager = System.getProperty(CONF_PROPERTY) != null
+            ? forDirectory(Paths.get(System.getProperty(CONF_PROPERTY))) : classpathManager;
+
+    private final HashingDataSource source;
+    private final HashingMetricSpacesManager parent;
+    private final ConcurrentHashMap<Class<?>, Optional<ReferencePoints>> referencePoints = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Optional<BitSamplingFunctions>> fieldBitSampling = new ConcurrentHashMap<>();
+    private volatile BitSamplingFunctions bitSampling = null;
+
+    /**
+     * @param source where the data is read from.
+     * @param parent used for the data not found in the source, null for none.
+     */
+    public HashingMetricSpacesManager(HashingDataSource source, HashingMetricSpacesManager parent) {
+        this.source = source;
+        this.parent = parent;
+    }
+
+    /**
+     * @return the manager for the data on the class path, or in the directory given by the system property
+     * <code>lire.hashing.conf</code>, used by the command line tools.
+     */
+    public static HashingMetricSpacesManager getDefault() {
+        return defaultManager;
+    }
+
     /**
-     * Pre-load the static members of MetricSpaces to make sure hash generation is on time.
+     * @return a manager reading the data from the conf directory of the core first.
      */
+    public static HashingMetricSpacesManager forCore(SolrResourceLoader loader) {
+        return forDirectory(loader.getInstancePath().resolve("conf"));
+    }
+
+    public static HashingMetricSpacesManager forDirectory(Path directory) {
+        return new HashingMetricSpacesManager(HashingDataSource.directory(directory), classpathManager);
+    }
+
+    /**
+     * @deprecated the data is loaded on first use, there is nothing to initialize.
+     */
+    @Deprecated
     public static void init() {
-        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+    }
+
+    public static String getReferencePointsResource(Class<? extends GlobalFeature> featureClass) {
+        return "metricspaces/" + featureClass.getSimpleName() + ".lrp";
+    }
+
+    public static String getBitSamplingResource(String hashField) {
+        return "lsh/" + hashField + ".lbs";
+    }
+
+    /**
+     * @return the reference points for the feature class, null if the MetricSpaces hashing doesn't support it.
+     */
+    public ReferencePoints getReferencePoints(Class<? extends GlobalFeature> featureClass) {
+        Optional<ReferencePoints> points = referencePoints.computeIfAbsent(featureClass, c -> Optional.ofNullable(load(featureClass)));
+        if (points.isPresent()) return points.get();
+        return parent != null ? parent.getReferencePoints(featureClass) : null;
+    }
+
+    private ReferencePoints load(Class<? extends GlobalFeature> featureClass) {
+        String resource = getReferencePointsResource(featureClass);
         try {
-            MetricSpaces.loadReferencePoints(new GZIPInputStream(classloader.getResourceAsStream("metricspaces/logos-ca-ee_CEDD.msd.gz")));
-            MetricSpaces.loadReferencePoints(new GZIPInputStream(classloader.getResourceAsStream("metricspaces/logos-ca-ee_ColorLayout.msd.gz")));
-            MetricSpaces.loadReferencePoints(new GZIPInputStream(classloader.getResourceAsStream("metricspaces/logos-ca-ee_EdgeHistogram.msd.gz")));
-            MetricSpaces.loadReferencePoints(new GZIPInputStream(classloader.getResourceAsStream("metricspaces/logos-ca-ee_FCTH.msd.gz")));
-            MetricSpaces.loadReferencePoints(new GZIPInputStream(classloader.getResourceAsStream("metricspaces/logos-ca-ee_OpponentHistogram.msd.gz")));
-            MetricSpaces.loadReferencePoints(new GZIPInputStream(classloader.getResourceAsStream("metricspaces/logos-ca-ee_PHOG.msd.gz")));
-            MetricSpaces.loadReferencePoints(new GZIPInputStream(classloader.getResourceAsStream("metricspaces/jpg_us_filter_JCD.msd.gz")));
-        } catch (Exception e) {
-            e.printStackTrace();
+            ByteBuffer buffer = source.open(resource);
+            if (buffer == null) return null;
+            ReferencePoints points = ReferencePoints.read(buffer);
+            if (points.getFeatureClass() != featureClass)
+                throw new IOException(resource + " holds reference points for " + points.getFeatureClass().getName());
+            return points;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not load reference points from " + resource, e);
         }
+    }
+
+    /**
+     * @return the BitSampling hash functions, loaded on first use.
+     */
+    public BitSamplingFunctions getBitSampling() {
+        BitSamplingFunctions result = bitSampling;
+        if (result == null) {
+            synchronized (this) {
+                if (bitSampling == null) bitSampling = loadBitSampling();
+                result = bitSampling;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the hash functions of the field's own LSH layout, or {@link #getBitSampling()} if it has none.
+     */
+    public BitSamplingFunctions getBitSampling(String hashField) {
+        Optional<BitSamplingFunctions> functions = fieldBitSampling.computeIfAbsent(hashField, field -> {
+            String resource = getBitSamplingResource(field);
+            try {
+                ByteBuffer buffer = source.open(resource);
+                return Optional.ofNullable(buffer != null ? BitSamplingFunctions.read(buffer) : null);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not load the BitSampling functions from " + resource, e);
+            }
+        });
+        return functions.orElseGet(this::getBitSampling);
+    }
+
+    private BitSamplingFunctions loadBitSampling() {
         try {
-            BitSampling.readHashFunctions(classloader.getResourceAsStream("lsh/LshBitSampling_2048.obj")); // load BitSampling data from disk.
+            ByteBuffer buffer = source.open(BIT_SAMPLING_RESOURCE);
+            if (buffer != null) return BitSamplingFunctions.read(buffer);
+            if (parent != null) return parent.getBitSampling();
+            // the jar ships the binary file, the serialized functions are only read if it has been left out.
+            ClassLoader classLoader = HashingMetricSpacesManager.class.getClassLoader();
+            InputStream in = classLoader.getResourceAsStream(SERIALIZED_BIT_SAMPLING_RESOURCE);
+            if (in == null) in = BitSampling.class.getResourceAsStream("LshBitSampling.obj");
+            return BitSamplingFunctions.readSerialized(in);
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException("Could not load the BitSampling functions", e);
         }
+    }
+
+    public boolean supportsFeature(GlobalFeature feature) {
+        return getReferencePoints(feature.getClass()) != null;
+    }
+
+    /**
+     * @return the length of the posting list or -1 if the feature is not supported.
+     */
+    public int getPostingListLength(GlobalFeature feature) {
+        ReferencePoints points = getReferencePoints(feature.getClass());
+        return points != null ? points.getPostingListLength() : -1;
+    }
+
+    public String generateHashString(GlobalFeature feature) {
+        return getReferencePoints(feature.getClass()).generateHashString(feature);
+    }
+
+    public List<String> generateHashList(GlobalFeature feature) {
+        return getReferencePoints(feature.getClass()).generateHashList(feature);
+    }
 
+    public String generateBoostedQuery(GlobalFeature feature, int queryLength) {
+        return getReferencePoints(feature.getClass()).generateBoostedQuery(feature, queryLength);
+    }
+
+    public int[] generateHashes(double[] featureVector) {
+        return getBitSampling().generateHashes(featureVector);
+    }
+
+    public int[] generateHashes(String hashField, double[] featureVector) {
+        return getBitSampling(hashField).generateHashes(featureVector);
+    }
+
+    /**
+     * @see BitSamplingFunctions#generateProbes(double[], int)
+     */
+    public int[] generateProbes(String hashField, double[] featureVector, int probes) {
+        return getBitSampling(hashField).generateProbes(featureVector, probes);
     }
 }
@@ -0,0 +1,108 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.tools.Utilities;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * <p>Computes the BitSampling hashes of the *_ha fields from the features in the *_hi fields of each document, with
+ * the hash functions of the core, see {@link HashingMetricSpacesManager}. Documents are then hashed with the same
+ * functions used for searching, including the learned or per-field functions in the conf directory, no matter which
+ * client sends them:</p>
+ * <pre>
+ * &lt;updateRequestProcessorChain name="lire-hashes"&gt;
+ *   &lt;processor class="net.semanticmetadata.lire.solr.HashingUpdateProcessorFactory"&gt;
+ *     &lt;arr name="fields"&gt;&lt;str&gt;sf_ha&lt;/str&gt;&lt;/arr&gt;
+ *   &lt;/processor&gt;
+ *   &lt;processor class="solr.LogUpdateProcessorFactory"/&gt;
+ *   &lt;processor class="solr.RunUpdateProcessorFactory"/&gt;
+ * &lt;/updateRequestProcessorChain&gt;
+ * </pre>
+ * <p>The MetricSpaces hashes of the *_ms fields are computed as well for features with reference points, unless
+ * <code>&lt;bool name="ms"&gt;false&lt;/bool&gt;</code> is given. Hashes sent with the document are replaced.</p>
+ */
+public class HashingUpdateProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware {
+    private final List<String> hashFields = new ArrayList<>();
+    private boolean metricSpaces = true;
+    private HashingMetricSpacesManager hashing = HashingMetricSpacesManager.getDefault();
+    private FeatureRegistry registry = FeatureRegistry.getDefault();
+
+    @Override
+    public void init(NamedList args) {
+        Object fields = args.get("fields");
+        if (fields instanceof Collection) {
+            for (Object field : (Collection<?>) fields) {
+                hashFields.add(toHashField(field.toString()));
+            }
+        } else if (fields != null) {
+            for (String field : fields.toString().split("[,\\s]+")) {
+                if (!field.isEmpty()) hashFields.add(toHashField(field));
+            }
+        }
+        Object ms = args.get("ms");
+        if (ms != null) metricSpaces = Boolean.parseBoolean(ms.toString());
+        if (hashFields.isEmpty()) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    "HashingUpdateProcessorFactory needs a list of hash fields, e.g. <arr name=\"fields\"><str>sf_ha</str></arr>");
+        }
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        hashing = HashingMetricSpacesManager.forCore(core.getResourceLoader());
+        registry = FeatureRegistry.forCore(core);
+        for (String hashField : hashFields) {
+            if (registry.getDescriptorForHashField(hashField) == null) {
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Field " + hashField + " has no registered feature.");
+            }
+        }
+    }
+
+    @Override
+    public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
+        return new UpdateRequestProcessor(next) {
+            @Override
+            public void processAdd(AddUpdateCommand cmd) throws IOException {
+                SolrInputDocument doc = cmd.getSolrInputDocument();
+                for (String hashField : hashFields) {
+                    byte[] bytes = PivotDistanceUpdateProcessorFactory.getBytes(doc.getField(registry.getFeatureFieldName(hashField)));
+                    if (bytes == null) continue;
+                    GlobalFeature feature = registry.getDescriptorForHashField(hashField).getScratchFeature();
+                    feature.setByteArrayRepresentation(bytes);
+                    try {
+                        doc.setField(hashField, Utilities.hashesArrayToString(hashing.generateHashes(hashField, feature.getFeatureVector())));
+                        if (metricSpaces && hashing.supportsFeature(feature)) {
+                            doc.setField(toMetricSpacesField(hashField), hashing.generateHashString(feature));
+                        }
+                    } catch (IllegalArgumentException e) {
+                        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                                "Could not hash " + hashField + " of document " + doc.getFieldValue("id") + ": " + e.getMessage(), e);
+                    }
+                }
+                super.processAdd(cmd);
+            }
+        };
+    }
+
+    private static String toHashField(String field) {
+        return field.endsWith(FeatureRegistry.hashFieldPostfix) ? field : field + FeatureRegistry.hashFieldPostfix;
+    }
+
+    private static String toMetricSpacesField(String hashField) {
+        return FeatureRegistry.codeToMetricSpacesField(hashField.substring(0, hashField.length() - FeatureRegistry.hashFieldPostfix.length()));
+    }
+}
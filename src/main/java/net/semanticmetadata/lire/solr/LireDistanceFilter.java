@@ -0,0 +1,143 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.ExtendedQueryBase;
+import org.apache.solr.search.PostFilter;
+
+import java.io.IOException;
+
+/**
+ * Filters documents by the distance of their feature to the feature of a {@link LireValueSource}. With the
+ * default cost of 200 and cache=false it is a PostFilter, so the distance is only computed for the documents
+ * matching the main query and all other filters. With a cost below 100 it is applied as a regular filter,
+ * which only checks documents having the feature field. Created by the {@link LireFilterQParserPlugin}.
+ */
+public class LireDistanceFilter extends ExtendedQueryBase implements PostFilter {
+    public static final int DEFAULT_COST = 200;
+
+    private final LireValueSource valueSource;
+    private final double lowerDistance;
+    private final double upperDistance;
+
+    /**
+     * @param valueSource   the lirefunc giving the field and the query feature.
+     * @param lowerDistance documents with a smaller distance are filtered out.
+     * @param upperDistance documents with a larger distance are filtered out.
+     */
+    public LireDistanceFilter(LireValueSource valueSource, double lowerDistance, double upperDistance) {
+        this.valueSource = valueSource;
+        this.lowerDistance = lowerDistance;
+        this.upperDistance = upperDistance;
+        setCache(false);
+        setCost(DEFAULT_COST);
+    }
+
+    /**
+     * Checks the distances of the documents of a single leaf.
+     */
+    private class LeafMatcher {
+        private final BinaryDocValues binaryValues;
+        private final BinaryDocValues pivotValues;
+
+        LeafMatcher(LeafReaderContext context) throws IOException {
+            binaryValues = DocValues.getBinary(context.reader(), valueSource.field);
+            pivotValues = valueSource.getPivotValues(context);
+        }
+
+        /**
+         * @return true if the current document of the DocValues is within the distance range.
+         */
+        boolean matchesCurrent() throws IOException {
+            if (valueSource.exceedsLowerBound(pivotValues, binaryValues.docID(), upperDistance)) return false;
+            BytesRef bytesRef = binaryValues.binaryValue();
+            if (bytesRef.length == 0 || valueSource.feature == null) return false;
+            double distance = valueSource.getDistance(bytesRef, upperDistance);
+            return distance >= lowerDistance && distance <= upperDistance;
+        }
+
+        boolean matches(int doc) throws IOException {
+            return binaryValues.advanceExact(doc) && matchesCurrent();
+        }
+    }
+
+    @Override
+    public DelegatingCollector getFilterCollector(IndexSearcher searcher) {
+        return new DelegatingCollector() {
+            LeafMatcher matcher;
+
+            @Override
+            protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                super.doSetNextReader(context);
+                matcher = new LeafMatcher(context);
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                if (matcher.matches(doc)) {
+                    super.collect(doc);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        return new ConstantScoreWeight(this, boost) {
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                LeafMatcher matcher = new LeafMatcher(context);
+                // only documents with a feature are candidates, the distance is checked in the second phase.
+                TwoPhaseIterator twoPhase = new TwoPhaseIterator(matcher.binaryValues) {
+                    @Override
+                    public boolean matches() throws IOException {
+                        return matcher.matchesCurrent();
+                    }
+
+                    @Override
+                    public float matchCost() {
+                        return 100f; // decoding the feature and computing the distance.
+                    }
+                };
+                return new ConstantScoreScorer(this, score(), scoreMode, twoPhase);
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext context) {
+                return DocValues.isCacheable(context, valueSource.field);
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return sameClassAs(o) &&
+                valueSource.equals(((LireDistanceFilter) o).valueSource) &&
+                lowerDistance == ((LireDistanceFilter) o).lowerDistance &&
+                upperDistance == ((LireDistanceFilter) o).upperDistance;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = classHash();
+        h = 31 * h + valueSource.hashCode();
+        h = 31 * h + Double.hashCode(lowerDistance);
+        h = 31 * h + Double.hashCode(upperDistance);
+        return h;
+    }
+
+    @Override
+    public String toString(String field) {
+        return "lirefilter(" + valueSource.field + ",l=" + lowerDistance + ",u=" + upperDistance + ")" + getOptions();
+    }
+}
@@ -3,7 +3,6 @@ package net.semanticmetadata.lire.solr;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.*;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
 import net.semanticmetadata.lire.solr.indexing.ParallelSolrIndexer;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.solr.handler.dataimport.Context;
@@ -75,7 +74,7 @@ public class LireEntityProcessor extends EntityProcessorBase {
                 String histogramField = classToPrefix.get(feature.getClass()) + "_hi";
                 String hashesField = classToPrefix.get(feature.getClass()) + "_ha";
                 row.put(histogramField, Base64.encodeBase64String(feature.getByteArrayRepresentation()));
-                row.put(hashesField, ParallelSolrIndexer.arrayToString(BitSampling.generateHashes(((GlobalFeature) feature).getFeatureVector())));
+                row.put(hashesField, ParallelSolrIndexer.arrayToString(HashingMetricSpacesManager.getDefault().generateHashes(hashesField, ((GlobalFeature) feature).getFeatureVector())));
             }
         } catch (IOException e) {
             wrapAndThrow(SEVERE, e, "Error loading image or extracting features.");
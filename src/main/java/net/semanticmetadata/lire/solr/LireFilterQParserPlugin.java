@@ -0,0 +1,42 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.queries.function.FunctionQuery;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.FunctionQParserPlugin;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.SyntaxError;
+
+/**
+ * <p>Parses a distance filter on a lirefunc, similar to frange. Register it in the solrconfig.xml:</p>
+ * <pre>&lt;queryParser name="lirefilter" class="net.semanticmetadata.lire.solr.LireFilterQParserPlugin" /&gt;</pre>
+ * <p>and use it in a filter query, e.g. for all images with a distance of at most 0.2:</p>
+ * <pre>fq={!lirefilter u=0.2}lirefunc(cl,"FQY5DhMYDg0ODg0PEBEPDg4ODg8QEgsgEBAQEBAgEBAQEBA=")</pre>
+ * <p>The lower bound l defaults to 0. By default the filter is run as PostFilter, so the distance is only
+ * computed for the documents passing the main query and all other filters. Set cost below 100 to use it as
+ * a regular, but still uncached filter.</p>
+ */
+public class LireFilterQParserPlugin extends QParserPlugin {
+    public static final String NAME = "lirefilter";
+
+    @Override
+    public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+        return new QParser(qstr, localParams, params, req) {
+            @Override
+            public Query parse() throws SyntaxError {
+                QParser funcParser = subQuery(qstr, FunctionQParserPlugin.NAME);
+                Query funcQuery = funcParser.getQuery();
+                ValueSource valueSource = (funcQuery instanceof FunctionQuery) ? ((FunctionQuery) funcQuery).getValueSource() : null;
+                if (!(valueSource instanceof LireValueSource)) {
+                    throw new SyntaxError("lirefilter needs a lirefunc, e.g. {!lirefilter u=0.2}lirefunc(cl,\"...\"), but got " + qstr);
+                }
+                double lower = localParams.getDouble("l", 0d);
+                double upper = localParams.getDouble("u", Double.MAX_VALUE);
+                return new LireDistanceFilter((LireValueSource) valueSource, lower, upper);
+            }
+        };
+    }
+}
@@ -0,0 +1,134 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the statistics of a single LIRE search for the debug=true output of the {@link LireRequestHandler}.
+ * It follows the candidate funnel from the selected hash terms over the candidates found in each segment
+ * down to the documents that made it into the re-ranked result list. One instance is created per request,
+ * so it is not thread safe.
+ */
+public class LireQueryProfile {
+    private final List<String> hashTerms = new ArrayList<>();
+    private final List<Integer> hashDocFreqs = new ArrayList<>();
+    private final List<Integer> hashPostings = new ArrayList<>();
+    private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+    private int[] candidatesPerSegment = null;
+    private long candidates = 0;
+    private long pruned = 0;
+    private long missing = 0;
+    private long distances = 0;
+    private long abandoned = 0;
+    private long heapInserts = 0;
+    private long heapReplacements = 0;
+    private long docValuesResets = 0;
+
+    /**
+     * Adds a hash term used in the candidate query.
+     *
+     * @param term    the term as it is found in the index.
+     * @param docFreq the document frequency from the cached {@link HashTermStatistics} used for ordering.
+     */
+    public void addHash(String term, int docFreq) {
+        hashTerms.add(term);
+        hashDocFreqs.add(docFreq);
+    }
+
+    public boolean hasHashes() {
+        return !hashTerms.isEmpty();
+    }
+
+    /**
+     * Looks up the actual postings list sizes of the hashes in the current reader. They might differ from
+     * the cached document frequencies if the index has changed after the statistics have been cached.
+     *
+     * @param reader the reader of the current searcher
+     * @param field  the field the hash terms are searched in
+     * @throws IOException
+     */
+    public void readPostingsSizes(IndexReader reader, String field) throws IOException {
+        hashPostings.clear();
+        for (String term : hashTerms) {
+            hashPostings.add(reader.docFreq(new Term(field, term)));
+        }
+    }
+
+    /**
+     * Adds the time spent in a stage of the search, multiple calls for the same stage are summed up.
+     */
+    public void addStageTime(String stage, long nanos) {
+        stageNanos.merge(stage, nanos, Long::sum);
+    }
+
+    public void setNumberOfSegments(int numberOfSegments) {
+        candidatesPerSegment = new int[numberOfSegments];
+    }
+
+    public void countCandidate(int segment) {
+        candidates++;
+        if (candidatesPerSegment != null) candidatesPerSegment[segment]++;
+    }
+
+    /**
+     * Adds the counts of the re-ranking.
+     *
+     * @param counts what happened to the candidates, see {@link BoundedDistance#reRank}.
+     * @param heap   the heap the results have been collected in.
+     */
+    public void addReRankCounts(BoundedDistance.ReRankCounts counts, ResultHeap heap) {
+        pruned += counts.pruned;
+        missing += counts.missing;
+        distances += counts.distances;
+        abandoned += counts.abandoned;
+        heapInserts += heap.getInserts();
+        heapReplacements += heap.getReplacements();
+    }
+
+    public void addDocValuesResets(long resets) {
+        docValuesResets += resets;
+    }
+
+    public NamedList<Object> toNamedList() {
+        SimpleOrderedMap<Object> result = new SimpleOrderedMap<>();
+        List<Object> hashes = new ArrayList<>(hashTerms.size());
+        for (int i = 0; i < hashTerms.size(); i++) {
+            SimpleOrderedMap<Object> hash = new SimpleOrderedMap<>();
+            hash.add("term", hashTerms.get(i));
+            hash.add("docFreq", hashDocFreqs.get(i));
+            if (i < hashPostings.size()) hash.add("postings", hashPostings.get(i));
+            hashes.add(hash);
+        }
+        result.add("hashes", hashes);
+        SimpleOrderedMap<Object> funnel = new SimpleOrderedMap<>();
+        funnel.add("candidates", candidates);
+        if (candidatesPerSegment != null) {
+            List<Integer> perSegment = new ArrayList<>(candidatesPerSegment.length);
+            for (int c : candidatesPerSegment) perSegment.add(c);
+            funnel.add("candidatesPerSegment", perSegment);
+        }
+        funnel.add("pruned", pruned);
+        funnel.add("missing", missing);
+        funnel.add("distances", distances);
+        funnel.add("abandoned", abandoned);
+        funnel.add("abandonedShare", distances > 0 ? (double) abandoned / distances : 0d);
+        funnel.add("heapInserts", heapInserts);
+        funnel.add("heapReplacements", heapReplacements);
+        funnel.add("docValuesResets", docValuesResets);
+        result.add("funnel", funnel);
+        SimpleOrderedMap<Object> timing = new SimpleOrderedMap<>();
+        for (Map.Entry<String, Long> entry : stageNanos.entrySet()) {
+            timing.add(entry.getKey(), entry.getValue());
+        }
+        result.add("nanos", timing);
+        return result;
+    }
+}
@@ -0,0 +1,249 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Rescorer;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.AbstractReRankQuery;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.QueryCommand;
+import org.apache.solr.search.SyntaxError;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>Re-ranks the top documents of any query by the distance of their image feature to a given feature, like the
+ * ReRankQParserPlugin of Solr does with a second query. As a RankQuery it works with the /select handler, so
+ * the results are cached in the queryResultCache and faceting, highlighting, timeAllowed and distributed search
+ * work as usual. Register it in the solrconfig.xml:</p>
+ * <pre>&lt;queryParser name="lire" class="net.semanticmetadata.lire.solr.LireReRankQParserPlugin" /&gt;</pre>
+ * <p>and use it with the rq param, e.g. re-ranking the candidates of a hash query:</p>
+ * <pre>q=cl_ha:(e5e0bb21 f4e2fb85 ...)&amp;rq={!lire field=cl feature=$f reRankDocs=1000}&amp;f=&lt;Base64 feature&gt;</pre>
+ * <p>The score of a re-ranked document is 1/(1+d) with d being the distance, so the nearest document gets
+ * the highest score. Documents without feature get a score of 0. The score of the main query isn't comparable to
+ * that, so documents after the first reRankDocs, e.g. if rows is larger, get a score of 0 as well. On a single shard
+ * they stay in the order of the main query after the re-ranked ones. When the results of several shards are merged by
+ * score, they all tie at 0, so their order is unspecified.</p>
+ */
+public class LireReRankQParserPlugin extends QParserPlugin {
+    public static final String NAME = "lire";
+    public static final String FIELD = "field";
+    public static final String FEATURE = "feature";
+    public static final String RERANK_DOCS = "reRankDocs";
+    public static final int RERANK_DOCS_DEFAULT = 200;
+
+    @Override
+    public QParser createParser(String query, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+        return new LireReRankQParser(query, localParams, params, req);
+    }
+
+    private static class LireReRankQParser extends QParser {
+
+        public LireReRankQParser(String query, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+            super(query, localParams, params, req);
+        }
+
+        @Override
+        public Query parse() throws SyntaxError {
+            String field = localParams.get(FIELD, "cl_hi");
+            if (!field.endsWith("_hi")) {
+                field += "_hi";
+            }
+            String featureString = localParams.get(FEATURE);
+            if (featureString == null) {
+                throw new SyntaxError("LIRE re-rank query needs a Base64 encoded feature, e.g. {!lire field=cl feature=...}");
+            }
+            FeatureDescriptor descriptor = FeatureRegistry.forCore(req.getCore()).getDescriptorForFeatureField(field);
+            if (descriptor == null) {
+                throw new SyntaxError("Feature " + field + " is not registered.");
+            }
+            int reRankDocs = localParams.getInt(RERANK_DOCS, RERANK_DOCS_DEFAULT);
+            if (reRankDocs <= 0) {
+                throw new SyntaxError("Invalid " + RERANK_DOCS + " parameter: " + reRankDocs + ". It must be greater than 0");
+            }
+            return new LireReRankQuery(field, descriptor, Base64.decodeBase64(featureString), reRankDocs);
+        }
+    }
+
+    private static final class LireReRankQuery extends AbstractReRankQuery {
+        private final String field;
+        private final FeatureDescriptor descriptor;
+        private final byte[] feature;
+
+        LireReRankQuery(String field, FeatureDescriptor descriptor, byte[] feature, int reRankDocs) {
+            super(new MatchAllDocsQuery(), reRankDocs, new LireRescorer(field, descriptor, feature));
+            this.field = field;
+            this.descriptor = descriptor;
+            this.feature = feature;
+        }
+
+        @Override
+        protected Query rewrite(Query rewrittenMainQuery) throws IOException {
+            return new LireReRankQuery(field, descriptor, feature, reRankDocs).wrap(rewrittenMainQuery);
+        }
+
+        @Override
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        public TopDocsCollector getTopDocsCollector(int len, QueryCommand cmd, IndexSearcher searcher) throws IOException {
+            return new NotReRankedScores(super.getTopDocsCollector(len, cmd, searcher), reRankDocs);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return sameClassAs(o) && equalsTo(getClass().cast(o));
+        }
+
+        private boolean equalsTo(LireReRankQuery rrq) {
+            return mainQuery.equals(rrq.mainQuery) &&
+                    field.equals(rrq.field) &&
+                    reRankDocs == rrq.reRankDocs &&
+                    Arrays.equals(feature, rrq.feature);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = classHash();
+            h = 31 * h + mainQuery.hashCode();
+            h = 31 * h + field.hashCode();
+            h = 31 * h + reRankDocs;
+            h = 31 * h + Arrays.hashCode(feature);
+            return h;
+        }
+
+        @Override
+        public String toString(String s) {
+            return "{!" + NAME +
+                    " mainQuery='" + mainQuery.toString() +
+                    "' " + FIELD + "=" + field +
+                    " " + FEATURE + "=" + Base64.encodeBase64String(feature) +
+                    " " + RERANK_DOCS + "=" + reRankDocs + "}";
+        }
+    }
+
+    /**
+     * Sets the scores of the hits after the re-ranked ones to 0, they are scores of the main query otherwise.
+     */
+    private static final class NotReRankedScores extends TopDocsCollector<ScoreDoc> {
+        private final TopDocsCollector<ScoreDoc> collector;
+        private final int reRankDocs;
+
+        NotReRankedScores(TopDocsCollector<ScoreDoc> collector, int reRankDocs) {
+            super(null);
+            this.collector = collector;
+            this.reRankDocs = reRankDocs;
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            return collector.getLeafCollector(context);
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return collector.scoreMode();
+        }
+
+        @Override
+        public int getTotalHits() {
+            return collector.getTotalHits();
+        }
+
+        @Override
+        public TopDocs topDocs(int start, int howMany) {
+            TopDocs topDocs = collector.topDocs(start, howMany);
+            for (int i = Math.max(0, reRankDocs - start); i < topDocs.scoreDocs.length; i++) {
+                topDocs.scoreDocs[i].score = 0f;
+            }
+            return topDocs;
+        }
+    }
+
+    /**
+     * Scores the first pass hits based on the feature distance. The features are read from the DocValues in
+     * docId order, segment by segment.
+     */
+    private static final class LireRescorer extends Rescorer {
+        private final String field;
+        private final GlobalFeature queryFeature;
+
+        private final FeatureDescriptor descriptor;
+
+        LireRescorer(String field, FeatureDescriptor descriptor, byte[] feature) {
+            this.field = field;
+            this.descriptor = descriptor;
+            this.queryFeature = descriptor.newFeature();
+            queryFeature.setByteArrayRepresentation(feature);
+        }
+
+        @Override
+        public TopDocs rescore(IndexSearcher searcher, TopDocs firstPassTopDocs, int topN) throws IOException {
+            ScoreDoc[] hits = firstPassTopDocs.scoreDocs.clone();
+            Arrays.sort(hits, Comparator.comparingInt(hit -> hit.doc));
+            List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+            GlobalFeature tmpFeature = descriptor.getScratchFeature();
+            LeafReaderContext leaf = null;
+            BinaryDocValues binaryValues = null;
+            int endDoc = 0;
+            for (ScoreDoc hit : hits) {
+                if (leaf == null || hit.doc >= endDoc) {
+                    leaf = leaves.get(ReaderUtil.subIndex(hit.doc, leaves));
+                    endDoc = leaf.docBase + leaf.reader().maxDoc();
+                    binaryValues = DocValues.getBinary(leaf.reader(), field);
+                }
+                hit.score = score(binaryValues, hit.doc - leaf.docBase, tmpFeature);
+            }
+            Arrays.sort(hits, (a, b) -> {
+                // sort by score descending, then docID ascending
+                if (a.score > b.score) return -1;
+                else if (a.score < b.score) return 1;
+                else return a.doc - b.doc;
+            });
+            if (topN < hits.length) {
+                hits = Arrays.copyOf(hits, topN);
+            }
+            return new TopDocs(firstPassTopDocs.totalHits, hits);
+        }
+
+        private float score(BinaryDocValues binaryValues, int doc, GlobalFeature tmpFeature) throws IOException {
+            if (binaryValues.advanceExact(doc)) {
+                BytesRef bytesRef = binaryValues.binaryValue();
+                if (bytesRef.length > 0) {
+                    tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                    return (float) (1d / (1d + queryFeature.getDistance(tmpFeature)));
+                }
+            }
+            return 0f;
+        }
+
+        @Override
+        public Explanation explain(IndexSearcher searcher, Explanation firstPassExplanation, int docID) throws IOException {
+            List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+            LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docID, leaves));
+            float score = score(DocValues.getBinary(leaf.reader(), field), docID - leaf.docBase, descriptor.getScratchFeature());
+            if (score == 0f) {
+                return Explanation.match(0f, "no feature in " + field, firstPassExplanation);
+            }
+            return Explanation.match(score, "1/(1+d) of the LIRE distance d=" + (1d / score - 1d) + " in " + field,
+                    firstPassExplanation);
+        }
+    }
+}
@@ -44,11 +44,12 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Random;
+import java.util.Set;
 import java.util.TreeSet;
 
 import javax.imageio.ImageIO;
@@ -59,41 +60,46 @@ import net.semanticmetadata.lire.solr.tools.EncodeAndHashCSV;
 import net.semanticmetadata.lire.solr.tools.Utilities;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.BinaryDocValues;
-import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
 import org.apache.lucene.search.Sort;
-import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
 import org.apache.lucene.util.BytesRef;
-import org.apache.solr.common.SolrDocument;
-import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.RequestHandlerBase;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.BasicResultContext;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocList;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.DocSlice;
 import org.apache.solr.search.QParser;
+import org.apache.solr.search.ReturnFields;
 import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SolrReturnFields;
 import org.apache.solr.search.SyntaxError;
+import org.apache.solr.util.plugin.SolrCoreAware;
 import org.apache.solr.common.util.ContentStream;
 import java.io.InputStream;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
-import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
+import net.semanticmetadata.lire.searchers.SimpleResult;
 import net.semanticmetadata.lire.solr.tools.RandomAccessBinaryDocValues;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.StatsUtils;
@@ -105,39 +111,58 @@ import net.semanticmetadata.lire.utils.StatsUtils;
  * @author Mathias Lux, mathias@juggle.at, 07.07.13
  */
 
-public class LireRequestHandler extends RequestHandlerBase {
+public class LireRequestHandler extends RequestHandlerBase implements SolrCoreAware {
     //    private static HashMap<String, Class> fieldToClass = new HashMap<String, Class>(5);
-    private long time = 0;
     private int defaultNumberOfResults = 60;
     /**
      * number of candidate results retrieved from the index. The higher this number, the slower,
      * the but more accurate the retrieval will be. 10k is a good value for starters.
      */
-    private int numberOfCandidateResults = 10000;
-    private static final int DEFAULT_NUMBER_OF_CANDIDATES = 10000;
+    private static final int DEFAULT_NUMBER_OF_CANDIDATES = CandidateSearch.DEFAULT_NUMBER_OF_CANDIDATES;
 
     /**
      * The number of query terms that go along with the TermsFilter search. We need some to get a
      * score, the less the faster. I put down a minimum of three in the method, this value gives
      * the percentage of the overall number used (selected randomly).
      */
-    private double numberOfQueryTerms = 0.33;
-    private static final double DEFAULT_NUMBER_OF_QUERY_TERMS = 0.33;
+    private static final double DEFAULT_NUMBER_OF_QUERY_TERMS = CandidateSearch.DEFAULT_NUMBER_OF_QUERY_TERMS;
 
     /**
      * If metric spaces should be used instead of BitSampling.
      */
-    private boolean useMetricSpaces = false;
-    private static final boolean DEFAULT_USE_METRIC_SPACES = false;
+    private static final boolean DEFAULT_USE_METRIC_SPACES = CandidateSearch.DEFAULT_USE_METRIC_SPACES;
 
-    static {
-        HashingMetricSpacesManager.init(); // load reference points from disk.
-    }
+    /**
+     * The number of multi-probe buckets added to the BitSampling query, see
+     * {@link net.semanticmetadata.lire.solr.hashing.BitSamplingFunctions#generateProbes(double[], int)}.
+     */
+    private static final int DEFAULT_NUMBER_OF_PROBES = CandidateSearch.DEFAULT_NUMBER_OF_PROBES;
+
+    // reference points and hash functions, from the conf directory of the core if there are any.
+    private HashingMetricSpacesManager hashing = HashingMetricSpacesManager.getDefault();
+    private CandidateSearch candidateSearch = new CandidateSearch(hashing);
+    private FeatureRegistry registry = FeatureRegistry.getDefault();
 
+    // features registered in solrconfig.xml, null if there are none.
+    private NamedList<?> features = null;
 
     @Override
     public void init(NamedList args) {
         super.init(args);
+        Object features = args.get("features");
+        if (features instanceof NamedList) {
+            this.features = (NamedList<?>) features;
+        }
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        hashing = HashingMetricSpacesManager.forCore(core.getResourceLoader());
+        candidateSearch = new CandidateSearch(hashing);
+        registry = FeatureRegistry.forCore(core);
+        if (features != null) {
+            registry.configure(features, core.getResourceLoader());
+        }
     }
 
     /**
@@ -190,20 +215,20 @@ public class LireRequestHandler extends RequestHandlerBase {
                 tmpParamField += "_ha";
             }
             final String paramField = tmpParamField;
-            numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
-            numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
-            useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+            double numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
+            boolean useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
             int paramRows = req.getParams().getInt("rows", defaultNumberOfResults);
+            LireQueryProfile profile = createProfile(req);
 
-            GlobalFeature queryFeature = (GlobalFeature) FeatureRegistry.getClassForHashField(paramField).newInstance();
+            GlobalFeature queryFeature = registry.getDescriptorForHashField(paramField).newFeature();
             rsp.add("QueryField", paramField);
             rsp.add("QueryFeature", queryFeature.getClass().getName());
             if (queryDocId > -1) {
                 // Using DocValues to get the actual data from the index.
-//              BinaryDocValues binaryValues = MultiDocValues.getBinaryValues(searcher.getIndexReader(), FeatureRegistry.getFeatureFieldName(paramField));
+//              BinaryDocValues binaryValues = MultiDocValues.getBinaryValues(searcher.getIndexReader(), registry.getFeatureFieldName(paramField));
                 BinaryDocValues binaryValues = new RandomAccessBinaryDocValues(() -> {
                     try {
-                        return MultiDocValues.getBinaryValues(searcher.getIndexReader(), FeatureRegistry.getFeatureFieldName(paramField));
+                        return MultiDocValues.getBinaryValues(searcher.getIndexReader(), registry.getFeatureFieldName(paramField));
                     } catch (IOException e) {
                         throw new RuntimeException("BinaryDocValues problem.", e);
                     }
@@ -227,12 +252,12 @@ public class LireRequestHandler extends RequestHandlerBase {
                         // check singleton cache if the term stats can be cached.
                         HashTermStatistics.addToStatistics(searcher, paramField);
                         // Re-generating the hashes to save space (instead of storing them in the index)
-                        int[] hashes = BitSampling.generateHashes(queryFeature.getFeatureVector());
-                        query = createQuery(hashes, paramField, numberOfQueryTerms);
-                    } else if (MetricSpaces.supportsFeature(queryFeature)) {
+                        query = createQuery(queryFeature, paramField, numberOfQueryTerms,
+                                req.getParams().getInt("probes", DEFAULT_NUMBER_OF_PROBES), profile);
+                    } else if (hashing.supportsFeature(queryFeature)) {
                         // ----< Metric Spaces >-----
-                        int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * MetricSpaces.getPostingListLength(queryFeature), 3, MetricSpaces.getPostingListLength(queryFeature));
-                        String msQuery = MetricSpaces.generateBoostedQuery(queryFeature, queryLength);
+                        int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * hashing.getPostingListLength(queryFeature), 3, hashing.getPostingListLength(queryFeature));
+                        String msQuery = hashing.generateBoostedQuery(queryFeature, queryLength);
                         QueryParser qp = new QueryParser(paramField.replace("_ha", "_ms"), new WhitespaceAnalyzer());
                         query = qp.parse(msQuery);
                     } else {
@@ -240,7 +265,7 @@ public class LireRequestHandler extends RequestHandlerBase {
                         rsp.add("Error", "Feature not supported by MetricSpaces: " + queryFeature.getClass().getSimpleName());
                     }
                 }
-                doSearch(req, rsp, searcher, paramField, paramRows, getFilterQueries(req), query, queryFeature);
+                doSearch(req, rsp, searcher, paramField, paramRows, getFilterQueries(req), query, queryFeature, profile);
             } else {
                 rsp.add("Error", "Did not find an image with the given id " + req.getParams().get("id"));
             }
@@ -257,7 +282,7 @@ public class LireRequestHandler extends RequestHandlerBase {
      * @param req
      * @return either a query from the QueryParser or null
      */
-    private List<Query> getFilterQueries(SolrQueryRequest req) {
+    static List<Query> getFilterQueries(SolrQueryRequest req) {
         List<Query> filters = null;
 
         String[] fqs = req.getParams().getParams("fq");
@@ -283,7 +308,27 @@ public class LireRequestHandler extends RequestHandlerBase {
     }
 
     /**
-     * Returns a random set of documents from the index. Mainly for testing purposes.
+     * Adds the documents as response, so the standard response writers fetch the fields given by the fl
+     * param (id and title by default) and apply the doc transformers.
+     *
+     * @param req
+     * @param rsp
+     * @param searcher
+     * @param docs        the result documents, in the order they are returned.
+     * @param query       the query the documents were found with, used by transformers like [explain].
+     * @param extraFields additional fields or transformers appended to the fl param.
+     */
+    static void addResponse(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher,
+                            DocList docs, Query query, String extraFields) {
+        ReturnFields returnFields = new SolrReturnFields(req.getParams().get(CommonParams.FL, "id,title") + extraFields, req);
+        rsp.setReturnFields(returnFields);
+        rsp.addResponse(new BasicResultContext(docs, returnFields, searcher, query, req));
+    }
+
+    /**
+     * Returns a random set of documents from the index. Mainly for testing purposes. The documents are
+     * drawn uniformly from all live documents, or from the ones matching the fq params, if given. Use the
+     * seed param to get the same sample again, as long as the index has not changed.
      *
      * @param req
      * @param rsp
@@ -291,24 +336,19 @@ public class LireRequestHandler extends RequestHandlerBase {
      */
     private void handleRandomSearch(SolrQueryRequest req, SolrQueryResponse rsp) throws IOException {
         SolrIndexSearcher searcher = req.getSearcher();
-        Query query = new MatchAllDocsQuery();
-        DocList docList = searcher.getDocList(query, getFilterQueries(req), Sort.RELEVANCE, 0, numberOfCandidateResults, 0);
-        int paramRows = Math.min(req.getParams().getInt("rows", defaultNumberOfResults), docList.size());
-        if (docList.size() < 1) {
+        int paramRows = req.getParams().getInt("rows", defaultNumberOfResults);
+        Long seed = req.getParams().getLong("seed");
+        Random random = (seed != null) ? new Random(seed) : new Random();
+        List<Query> filterQueries = getFilterQueries(req);
+        DocSet filter = (filterQueries != null) ? searcher.getDocSet(filterQueries) : null;
+        int[] docIds = RandomDocumentSampler.sample(searcher.maxDoc(), searcher.numDocs(),
+                searcher.getSlowAtomicReader().getLiveDocs(), filter, paramRows, random);
+        if (docIds.length < 1) {
             rsp.add("Error", "No documents in index");
         } else {
-            LinkedList list = new LinkedList();
-            while (list.size() < paramRows) {
-                DocList auxList = docList.subset((int) (Math.random() * docList.size()), 1);
-                Document doc = null;
-                for (DocIterator it = auxList.iterator(); it.hasNext(); ) {
-                    doc = searcher.doc(it.nextDoc());
-                }
-                if (!list.contains(doc)) {
-                    list.add(doc);
-                }
-            }
-            rsp.addResponse(list);
+            long numFound = (filter != null) ? filter.size() : searcher.numDocs();
+            DocSlice docSlice = new DocSlice(0, docIds.length, docIds, null, numFound, 0f, TotalHits.Relation.EQUAL_TO);
+            addResponse(req, rsp, searcher, docSlice, new MatchAllDocsQuery(), "");
         }
     }
 
@@ -330,35 +370,33 @@ public class LireRequestHandler extends RequestHandlerBase {
             paramField += "_ha";
         }
         int paramRows = params.getInt("rows", defaultNumberOfResults);
-        numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
-        numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
-        useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
-
+        double numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
+        boolean useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        LireQueryProfile profile = createProfile(req);
 
         GlobalFeature feat = null;
-        int[] hashes = null;
         Query query = null;
         // wrapping the whole part in the try
         try {
             ImageIO.setUseCache(false);
             BufferedImage img = ImageIO.read(new URL(paramUrl).openStream());
             // getting the right feature per field:
-            if (FeatureRegistry.getClassForHashField(paramField) == null) {
+            if (registry.getClassForHashField(paramField) == null) {
                 feat = new ColorLayout();
             } else {
-                feat = (GlobalFeature) FeatureRegistry.getClassForHashField(paramField).newInstance();
+                feat = registry.getDescriptorForHashField(paramField).newFeature();
             }
             feat.extract(img);
 
             if (!useMetricSpaces) {
                 // Re-generating the hashes to save space (instead of storing them in the index)
                 HashTermStatistics.addToStatistics(req.getSearcher(), paramField);
-                hashes = BitSampling.generateHashes(feat.getFeatureVector());
-                query = createQuery(hashes, paramField, numberOfQueryTerms);
-            } else if (MetricSpaces.supportsFeature(feat)) {
+                query = createQuery(feat, paramField, numberOfQueryTerms,
+                        params.getInt("probes", DEFAULT_NUMBER_OF_PROBES), profile);
+            } else if (hashing.supportsFeature(feat)) {
                 // ----< Metric Spaces >-----
-                int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * MetricSpaces.getPostingListLength(feat), 3, MetricSpaces.getPostingListLength(feat));
-                String msQuery = MetricSpaces.generateBoostedQuery(feat, queryLength);
+                int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * hashing.getPostingListLength(feat), 3, hashing.getPostingListLength(feat));
+                String msQuery = hashing.generateBoostedQuery(feat, queryLength);
                 QueryParser qp = new QueryParser(paramField.replace("_ha", "_ms"), new WhitespaceAnalyzer());
                 query = qp.parse(msQuery);
             } else {
@@ -372,7 +410,7 @@ public class LireRequestHandler extends RequestHandlerBase {
         }
         // search if the feature has been extracted and query is there.
         if (feat != null && query != null) {
-            doSearch(req, rsp, req.getSearcher(), paramField, paramRows, getFilterQueries(req), query, feat);
+            doSearch(req, rsp, req.getSearcher(), paramField, paramRows, getFilterQueries(req), query, feat, profile);
         }
     }
 
@@ -394,9 +432,9 @@ public class LireRequestHandler extends RequestHandlerBase {
             paramField += "_ha";
         }
         int paramRows = params.getInt("rows", defaultNumberOfResults);
-        numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
-        numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
-        useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        double numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
+        boolean useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        LireQueryProfile profile = createProfile(req);
 
         InputStream stream = null;
         Iterable<ContentStream> streams = req.getContentStreams();
@@ -411,7 +449,6 @@ public class LireRequestHandler extends RequestHandlerBase {
         }
 
         GlobalFeature feat = null;
-        int[] hashes = null;
         Query query = null;
         // wrapping the whole part in the try
         try {
@@ -419,22 +456,22 @@ public class LireRequestHandler extends RequestHandlerBase {
             BufferedImage img = ImageIO.read(stream);
             stream.close();
             // getting the right feature per field:
-            if (FeatureRegistry.getClassForHashField(paramField) == null) {
+            if (registry.getClassForHashField(paramField) == null) {
                 feat = new ColorLayout();
             } else {
-                feat = (GlobalFeature) FeatureRegistry.getClassForHashField(paramField).newInstance();
+                feat = registry.getDescriptorForHashField(paramField).newFeature();
             }
             feat.extract(img);
 
             if (!useMetricSpaces) {
                 // Re-generating the hashes to save space (instead of storing them in the index)
                 HashTermStatistics.addToStatistics(req.getSearcher(), paramField);
-                hashes = BitSampling.generateHashes(feat.getFeatureVector());
-                query = createQuery(hashes, paramField, numberOfQueryTerms);
-            } else if (MetricSpaces.supportsFeature(feat)) {
+                query = createQuery(feat, paramField, numberOfQueryTerms,
+                        params.getInt("probes", DEFAULT_NUMBER_OF_PROBES), profile);
+            } else if (hashing.supportsFeature(feat)) {
                 // ----< Metric Spaces >-----
-                int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * MetricSpaces.getPostingListLength(feat), 3, MetricSpaces.getPostingListLength(feat));
-                String msQuery = MetricSpaces.generateBoostedQuery(feat, queryLength);
+                int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * hashing.getPostingListLength(feat), 3, hashing.getPostingListLength(feat));
+                String msQuery = hashing.generateBoostedQuery(feat, queryLength);
                 QueryParser qp = new QueryParser(paramField.replace("_ha", "_ms"), new WhitespaceAnalyzer());
                 query = qp.parse(msQuery);
             } else {
@@ -448,7 +485,7 @@ public class LireRequestHandler extends RequestHandlerBase {
         }
         // search if the feature has been extracted and query is there.
         if (feat != null && query != null) {
-            doSearch(req, rsp, req.getSearcher(), paramField, paramRows, getFilterQueries(req), query, feat);
+            doSearch(req, rsp, req.getSearcher(), paramField, paramRows, getFilterQueries(req), query, feat, profile);
         }
     }
     
@@ -469,7 +506,7 @@ public class LireRequestHandler extends RequestHandlerBase {
             paramField += "_ha";
         }
         Boolean useOrderHashes = req.getParams().getBool("oh", true);
-        useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        boolean useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
         double accuracy = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
         GlobalFeature feat;
         // wrapping the whole part in the try
@@ -478,10 +515,10 @@ public class LireRequestHandler extends RequestHandlerBase {
                 ImageIO.setUseCache(false);
                 BufferedImage img = ImageIO.read(new URL(paramUrl).openStream());
                 // getting the right feature per field:
-                if (FeatureRegistry.getClassForHashField(paramField) == null) {
+                if (registry.getClassForHashField(paramField) == null) {
                     feat = new ColorLayout();
                 } else {
-                    feat = (GlobalFeature) FeatureRegistry.getClassForHashField(paramField).newInstance();
+                    feat = registry.getDescriptorForHashField(paramField).newFeature();
                 }
                 feat.extract(img);
             } else {
@@ -499,7 +536,7 @@ public class LireRequestHandler extends RequestHandlerBase {
             rsp.add("histogram", Base64.encodeBase64String(feat.getByteArrayRepresentation()));
             if (!useMetricSpaces || true) { // select the most distinguishing hashes and deliver them back.
                 HashTermStatistics.addToStatistics(req.getSearcher(), paramField);
-                int[] hashes = BitSampling.generateHashes(feat.getFeatureVector());
+                int[] hashes = hashing.generateHashes(paramField, feat.getFeatureVector());
                 List<String> hashStrings;
                 List<String> hashQuery;
                 if (useOrderHashes) {
@@ -513,12 +550,16 @@ public class LireRequestHandler extends RequestHandlerBase {
                 3, hashQuery.size());
                 rsp.add("bs_list", hashStrings);
                 rsp.add("bs_query", String.join(" ", hashQuery.subList(0, queryLength)));
+                int probes = req.getParams().getInt("probes", DEFAULT_NUMBER_OF_PROBES);
+                if (probes > 0) {
+                    rsp.add("bs_probes", arrayToListString(hashing.generateProbes(paramField, feat.getFeatureVector(), probes)));
+                }
             }
-            if (MetricSpaces.supportsFeature(feat)) {
-                rsp.add("ms_list", MetricSpaces.generateHashList(feat));
-                int queryLength = (int) StatsUtils.clamp(accuracy * MetricSpaces.getPostingListLength(feat),
-                        3, MetricSpaces.getPostingListLength(feat));
-                rsp.add("ms_query", MetricSpaces.generateBoostedQuery(feat, queryLength));
+            if (hashing.supportsFeature(feat)) {
+                rsp.add("ms_list", hashing.generateHashList(feat));
+                int queryLength = (int) StatsUtils.clamp(accuracy * hashing.getPostingListLength(feat),
+                        3, hashing.getPostingListLength(feat));
+                rsp.add("ms_query", hashing.generateBoostedQuery(feat, queryLength));
             }
         } catch (Exception e) {
             rsp.add("Error", "Error reading image from URL: " + paramUrl + ": " + e.getMessage());
@@ -553,13 +594,11 @@ public class LireRequestHandler extends RequestHandlerBase {
             paramField += "_ha";
         }
         int paramRows = params.getInt("rows", defaultNumberOfResults);
-        numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
-        numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
-        useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        double numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
+        boolean useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
 
         // query feature
-        GlobalFeature queryFeature = (GlobalFeature)
-                FeatureRegistry.getClassForHashField(paramField).newInstance();
+        GlobalFeature queryFeature = registry.getDescriptorForHashField(paramField).newFeature();
         queryFeature.setByteArrayRepresentation(featureVector);
 
         if (!useMetricSpaces) {
@@ -572,10 +611,10 @@ public class LireRequestHandler extends RequestHandlerBase {
             // we have to create the hashes first ...
             if (!useMetricSpaces) {
 
-            } else if (MetricSpaces.supportsFeature(queryFeature)) {
-                int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * MetricSpaces.getPostingListLength(queryFeature),
-                        3, MetricSpaces.getPostingListLength(queryFeature));
-                queryString = MetricSpaces.generateBoostedQuery(queryFeature, queryLength);
+            } else if (hashing.supportsFeature(queryFeature)) {
+                int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * hashing.getPostingListLength(queryFeature),
+                        3, hashing.getPostingListLength(queryFeature));
+                queryString = hashing.generateBoostedQuery(queryFeature, queryLength);
             } else {
                 queryString = "*:*";
             }
@@ -597,7 +636,7 @@ public class LireRequestHandler extends RequestHandlerBase {
         }
 
         // get results:
-        doSearch(req, rsp, searcher, paramField, paramRows, getFilterQueries(req), query, queryFeature);
+        doSearch(req, rsp, searcher, paramField, paramRows, getFilterQueries(req), query, queryFeature, createProfile(req));
     }
 
     /**
@@ -611,21 +650,23 @@ public class LireRequestHandler extends RequestHandlerBase {
      * @param filterQueries can be null
      * @param query         the (Boolean) query for querying the candidates from the IndexSearcher
      * @param queryFeature  the image feature used for re-ranking the results
+     * @param profile       collects the debug statistics, null if debugging is not requested.
      * @throws IOException
      * @throws IllegalAccessException
      * @throws InstantiationException
      */
     private void doSearch(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher, String hashFieldName,
-                          int maximumHits, List<Query> filterQueries, Query query, GlobalFeature queryFeature)
+                          int maximumHits, List<Query> filterQueries, Query query, GlobalFeature queryFeature,
+                          LireQueryProfile profile)
             throws IOException, IllegalAccessException, InstantiationException {
-        // temp feature instance
-        GlobalFeature tmpFeature = queryFeature.getClass().newInstance();
+        int numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
         // Taking the time of search for statistical purposes.
-        time = System.currentTimeMillis();
+        long time = System.currentTimeMillis();
+        long nanos = System.nanoTime();
 
-        String featureFieldName = FeatureRegistry.getFeatureFieldName(hashFieldName);
+        String featureFieldName = registry.getFeatureFieldName(hashFieldName);
 //        BinaryDocValues binaryValues = MultiDocValues.getBinaryValues(searcher.getIndexReader(), featureFieldName);
-        BinaryDocValues binaryValues = new RandomAccessBinaryDocValues(() -> {
+        RandomAccessBinaryDocValues binaryValues = new RandomAccessBinaryDocValues(() -> {
             try {
                 return MultiDocValues.getBinaryValues(searcher.getIndexReader(), featureFieldName);
             } catch (IOException e) {
@@ -635,124 +676,130 @@ public class LireRequestHandler extends RequestHandlerBase {
 
         time = System.currentTimeMillis() - time;
         rsp.add("DocValuesOpenTime", time + "");
+        if (profile != null) {
+            profile.addStageTime("docValuesOpen", System.nanoTime() - nanos);
+        }
 
-        Iterator<Integer> docIterator;
+        int[] candidates;
         long numberOfResults = 0;
         time = System.currentTimeMillis();
+        nanos = System.nanoTime();
         if (filterQueries != null) {
             DocList docList = searcher.getDocList(query, filterQueries, Sort.RELEVANCE, 0, numberOfCandidateResults, 0);
             numberOfResults = docList.size();
-            docIterator = docList.iterator();
+            candidates = getDocIds(docList);
         } else {
             TopDocs docs = searcher.search(query, numberOfCandidateResults);
             numberOfResults = docs.totalHits.value;
-            docIterator = new TopDocsIterator(docs);
+            candidates = getDocIds(docs);
         }
         time = System.currentTimeMillis() - time;
         rsp.add("RawDocsCount", numberOfResults + "");
         rsp.add("RawDocsSearchTime", time + "");
+        if (profile != null) {
+            profile.addStageTime("candidateSearch", System.nanoTime() - nanos);
+        }
         time = System.currentTimeMillis();
-        TreeSet<CachingSimpleResult> resultScoreDocs = getReRankedResults(
-                docIterator, binaryValues, queryFeature, tmpFeature,
-                maximumHits, searcher);
+        nanos = System.nanoTime();
+        PivotDistances pivots = PivotDistances.get(req.getCore(), featureFieldName);
+        PivotDistances.QueryDistances queryPivotDistances = pivots != null ? pivots.queryDistances(queryFeature) : null;
+        BinaryDocValues pivotValues = queryPivotDistances != null ?
+                PivotDistances.getPivotValues(searcher.getIndexReader(), featureFieldName) : null;
+        TreeSet<SimpleResult> resultScoreDocs = getReRankedResults(
+                candidates, binaryValues, queryFeature, registry.getDescriptorForHashField(hashFieldName),
+                maximumHits, searcher, profile, pivotValues, queryPivotDistances);
 
         // Creating response ...
         time = System.currentTimeMillis() - time;
         rsp.add("ReRankSearchTime", time + "");
-        // replaced with SolrDocumentList for consistency.
-//      LinkedList list = new LinkedList();
-        SolrDocumentList list = new SolrDocumentList();
-        for (CachingSimpleResult result : resultScoreDocs) {
-            HashMap m = new HashMap(2);
-            m.put("d", result.getDistance());
-            // add fields as requested:
-            if (req.getParams().get("fl") == null) {
-                m.put("id", result.getDocument().get("id"));
-                if (result.getDocument().get("title") != null) {
-                    m.put("title", result.getDocument().get("title"));
-                }
-            } else {
-                String fieldsRequested = req.getParams().get("fl");
-                if (fieldsRequested.contains("score")) {
-                    m.put("score", result.getDistance());
+        if (profile != null) {
+            profile.addStageTime("reRank", System.nanoTime() - nanos);
+            profile.addDocValuesResets(binaryValues.getResetCount());
+            nanos = System.nanoTime();
+        }
+        // The documents are not loaded during re-ranking, the response writer fetches only the requested
+        // fields, using DocValues where possible. The distance is handed over as score and written as d.
+        int[] docIds = new int[resultScoreDocs.size()];
+        float[] distances = new float[resultScoreDocs.size()];
+        int i = 0;
+        for (SimpleResult result : resultScoreDocs) {
+            docIds[i] = result.getIndexNumber();
+            distances[i] = (float) result.getDistance();
+            i++;
+        }
+        DocSlice docSlice = new DocSlice(0, docIds.length, docIds, distances, docIds.length,
+                docIds.length > 0 ? distances[docIds.length - 1] : 0f, TotalHits.Relation.EQUAL_TO);
+        addResponse(req, rsp, searcher, docSlice, query, ",d:score");
+        if (profile != null) {
+            profile.addStageTime("response", System.nanoTime() - nanos);
+            if (!profile.hasHashes()) {
+                // metric spaces or given hashes, so we take the terms from the query.
+                Set<Term> terms = new HashSet<>();
+                query.visit(QueryVisitor.termCollector(terms));
+                for (Term term : terms) {
+                    profile.addHash(term.text(), HashTermStatistics.docFreq(term.field(), term.text()));
                 }
-                if (fieldsRequested.contains("*")) {
-                    // all fields
-                    for (IndexableField field : result.getDocument().getFields()) {
-                        String tmpField = field.name();
-
-                        if (result.getDocument().getFields(tmpField).length > 1) {
-                            m.put(result.getDocument().getFields(tmpField)[0].name(), result.getDocument().getValues(tmpField));
-                        } else if (result.getDocument().getFields(tmpField).length > 0) {
-                            m.put(result.getDocument().getFields(tmpField)[0].name(), result.getDocument().getFields(tmpField)[0].stringValue());
-                        }
-                    }
-                } else {
-                    StringTokenizer st;
-                    if (fieldsRequested.contains(",")) {
-                        st = new StringTokenizer(fieldsRequested, ",");
-                    } else {
-                        st = new StringTokenizer(fieldsRequested, " ");
-                    }
-                    while (st.hasMoreElements()) {
-                        String tmpField = st.nextToken();
-                        if (result.getDocument().getFields(tmpField).length > 1) {
-                            m.put(result.getDocument().getFields(tmpField)[0].name(), result.getDocument().getValues(tmpField));
-                        } else if (result.getDocument().getFields(tmpField).length > 0) {
-                            m.put(result.getDocument().getFields(tmpField)[0].name(), result.getDocument().getFields(tmpField)[0].stringValue());
-                        }
-                    }
+                if (!terms.isEmpty()) {
+                    profile.readPostingsSizes(searcher.getIndexReader(), terms.iterator().next().field());
                 }
+            } else {
+                profile.readPostingsSizes(searcher.getIndexReader(), hashFieldName);
             }
-//            m.put(field, result.getDocument().get(field));
-//            m.put(field.replace("_ha", "_hi"), result.getDocument().getBinaryValue(field));
-            //list.add(m);
-            list.add(new SolrDocument(m));
+            rsp.add("debug", profile.toNamedList());
         }
-
-        // Format results to be similar to regular response
-        rsp.add("response", list);
-        //rsp.add("docs", list);
-        // rsp.add("Test-name", "Test-val");
     }
 
-    private TreeSet<CachingSimpleResult> getReRankedResults(
-            Iterator<Integer> docIterator, BinaryDocValues binaryValues,
-            GlobalFeature queryFeature, GlobalFeature tmpFeature,
-            int maximumHits, IndexSearcher searcher) throws IOException {
-
-        TreeSet<CachingSimpleResult> resultScoreDocs = new TreeSet<>();
-        double maxDistance = -1f;
-        double tmpScore;
-        BytesRef bytesRef;
-        CachingSimpleResult tmpResult;
-        while (docIterator.hasNext()) {
-            // using DocValues to retrieve the field values ...
-            int doc = docIterator.next();
-
-//            bytesRef = binaryValues.get(doc);
-            bytesRef = getBytesRef(binaryValues, doc);
-            tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
-            // Getting the document from the index.
-            // This is the slow step based on the field compression of stored fields.
-//            tmpFeature.setByteArrayRepresentation(d.getBinaryValue(name).bytes, d.getBinaryValue(name).offset, d.getBinaryValue(name).length);
-            tmpScore = queryFeature.getDistance(tmpFeature);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new CachingSimpleResult(tmpScore, searcher.doc(doc), doc));
-                maxDistance = resultScoreDocs.last().getDistance();
-            } else if (tmpScore < maxDistance) {
-                // if it is nearer to the sample than at least one of the current set:
-                // remove the last one ...
-                tmpResult = resultScoreDocs.last();
-                resultScoreDocs.remove(tmpResult);
-                // set it with new values and re-insert.
-                tmpResult.set(tmpScore, searcher.doc(doc), doc);
-                resultScoreDocs.add(tmpResult);
-                // and set our new distance border ...
-                maxDistance = resultScoreDocs.last().getDistance();
+    /**
+     * Re-ranks the candidates by their distance to the query feature and keeps the nearest ones. If pivot
+     * distances are given, candidates with a lower bound above the current k-th best distance are skipped
+     * without decoding their feature. The loop over the candidates is run by the {@link BoundedDistance} of the
+     * query feature, so it is specialized for the feature type.
+     *
+     * @param docs                the top level docIds of the candidates.
+     * @param descriptor          the descriptor of the query feature, can be null.
+     * @param pivotValues         the packed pivot distances of the documents, can be null.
+     * @param queryPivotDistances the distances of the query to the pivots, can be null.
+     */
+    static TreeSet<SimpleResult> getReRankedResults(
+            int[] docs, BinaryDocValues binaryValues, GlobalFeature queryFeature, FeatureDescriptor descriptor,
+            int maximumHits, IndexSearcher searcher, LireQueryProfile profile,
+            BinaryDocValues pivotValues, PivotDistances.QueryDistances queryPivotDistances) throws IOException {
+        if (maximumHits <= 0) return new TreeSet<>();
+        if (profile != null) {
+            List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+            profile.setNumberOfSegments(leaves.size());
+            for (int doc : docs) {
+                profile.countCandidate(ReaderUtil.subIndex(doc, leaves));
             }
         }
-        return resultScoreDocs;
+        BoundedDistance distance = BoundedDistance.forReRanking(queryFeature, descriptor);
+        ResultHeap heap = new ResultHeap(maximumHits);
+        BoundedDistance.ReRankCounts counts = new BoundedDistance.ReRankCounts();
+        distance.reRank(docs, binaryValues, heap, pivotValues, queryPivotDistances, counts);
+        if (profile != null) {
+            profile.addReRankCounts(counts, heap);
+        }
+        return heap.toResults();
+    }
+
+    /**
+     * @return the docIds of the candidates in the order they have been found.
+     */
+    static int[] getDocIds(DocList docList) {
+        int[] docs = new int[docList.size()];
+        DocIterator iterator = docList.iterator();
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = iterator.nextDoc();
+        }
+        return docs;
+    }
+
+    static int[] getDocIds(TopDocs topDocs) {
+        int[] docs = new int[topDocs.scoreDocs.length];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = topDocs.scoreDocs[i].doc;
+        }
+        return docs;
     }
 
     @Override
@@ -774,34 +821,52 @@ public class LireRequestHandler extends RequestHandlerBase {
 //    }
 
     /**
-     * Makes a Boolean query out of a list of hashes by ordering them ascending using their docFreq and
-     * then only using the most distinctive ones, defined by size in [0, 1], size=1 takes all.
+     * Makes a Boolean query out of the hashes of the feature by ordering them ascending using their docFreq and
+     * then only using the most distinctive ones, defined by size in [0, 1], size=1 takes all. The multi-probe
+     * buckets are added on top, as far as they are in the index. See {@link CandidateSearch#selectHashTerms}.
      *
-     * @param hashes
+     * @param queryFeature
      * @param paramField
      * @param size       in [0, 1]
+     * @param probes     the number of probed buckets, not counted for the size.
+     * @param profile    takes the selected hashes if not null.
      * @return
      */
-    private BooleanQuery createQuery(int[] hashes, String paramField, double size) {
-        size = Math.max(0, Math.min(size, 1d)); // clamp size.
-        List<String> hList = orderHashes(hashes, paramField, true);
-        int numHashes = (int) Math.min(hList.size(), Math.floor(hashes.length * size));
-        // a minimum of 1 hashes ...
-        if (numHashes < 1) {
-            numHashes = 1;
-        }
-
-        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
-        for (int i = 0; i < numHashes; i++) {
-            // be aware that the hashFunctionsFileName of the field must match the one you put the hashes in before.
-            queryBuilder.add(new BooleanClause(new TermQuery(new Term(paramField, hList.get(i))), BooleanClause.Occur.SHOULD));
+    private BooleanQuery createQuery(GlobalFeature queryFeature, String paramField, double size, int probes, LireQueryProfile profile) {
+        long nanos = System.nanoTime();
+        List<String> terms = candidateSearch.selectHashTerms(queryFeature, paramField, size, probes,
+                term -> (long) HashTermStatistics.docFreq(paramField, term));
+        if (profile != null) {
+            for (String term : terms) {
+                profile.addHash(term, HashTermStatistics.docFreq(paramField, term));
+            }
         }
         // this query is just for boosting the results with more matching hashes. We'd need to match it to all docs.
         //queryBuilder.add(new BooleanClause(new MatchAllDocsQuery(), BooleanClause.Occur.SHOULD));
-        BooleanQuery query = queryBuilder.build();
+        BooleanQuery query = CandidateSearch.createHashQuery(paramField, terms);
+        if (profile != null) {
+            profile.addStageTime("createQuery", System.nanoTime() - nanos);
+        }
         return query;
     }
 
+    /**
+     * Checks for debug=true (or debugQuery=true) and creates a profile for collecting the search statistics.
+     *
+     * @param req the current request
+     * @return the profile or null if debugging is not requested.
+     */
+    private LireQueryProfile createProfile(SolrQueryRequest req) {
+        String[] debug = req.getParams().getParams(CommonParams.DEBUG);
+        boolean isDebug = req.getParams().getBool(CommonParams.DEBUG_QUERY, false);
+        if (debug != null) {
+            for (String d : debug) {
+                if (!"false".equals(d)) isDebug = true;
+            }
+        }
+        return isDebug ? new LireQueryProfile() : null;
+    }
+
     /**
      * Convert int hashes to a string list
      *
@@ -876,7 +941,7 @@ public class LireRequestHandler extends RequestHandlerBase {
         return termFilter;
     }
 
-    private BytesRef getBytesRef(BinaryDocValues bdv, int docId)
+    static BytesRef getBytesRef(BinaryDocValues bdv, int docId)
             throws IOException {
         if (bdv != null && bdv.advance(docId) == docId) {
 //        if (bdv != null && bdv.docID() < docId && bdv.advance(docId) == docId) {
@@ -0,0 +1,506 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.searchers.SimpleResult;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.handler.component.ShardRequest;
+import org.apache.solr.handler.component.ShardResponse;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SolrReturnFields;
+import org.apache.solr.util.plugin.SolrCoreAware;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * <p>A SearchComponent running LIRE searches on a single core as well as on a sharded SolrCloud collection.
+ * It takes the same parameters as the {@link LireRequestHandler} for searching by id or by feature, i.e. id or
+ * feature (Base64), field, rows, accuracy, candidates, ms, probes, fq and fl, and returns the hits with their
+ * distance d.</p>
+ *
+ * <p>In a distributed search the coordinating node works in stages:</p>
+ * <ol>
+ * <li>if searched by id, the feature of the query image is looked up on all shards,</li>
+ * <li>the document frequencies of the hash terms are summed up over all shards, so every shard uses the
+ * same hashes for retrieving candidates,</li>
+ * <li>every shard re-ranks its candidates and returns its top (id, distance) pairs, which are merged,</li>
+ * <li>the fields are fetched for the final hits only, each from the shard the hit was found on.</li>
+ * </ol>
+ *
+ * <p>Register it in the solrconfig.xml and use it as the only component of a SearchHandler:</p>
+ * <pre>
+ * &lt;searchComponent name="lire" class="net.semanticmetadata.lire.solr.LireSearchComponent" /&gt;
+ * &lt;requestHandler name="/lire" class="solr.SearchHandler"&gt;
+ *   &lt;arr name="components"&gt;&lt;str&gt;lire&lt;/str&gt;&lt;/arr&gt;
+ * &lt;/requestHandler&gt;
+ * </pre>
+ * <p>Additional features can be registered with a <code>&lt;lst name="features"&gt;</code> like for the
+ * {@link LireRequestHandler}, see {@link FeatureRegistry}.</p>
+ */
+public class LireSearchComponent extends SearchComponent implements SolrCoreAware {
+    public static final String COMPONENT_NAME = "lire";
+
+    /**
+     * Internal parameters of the shard requests.
+     */
+    static final String PARAM_STAGE = "lire.stage";
+    static final String PARAM_TERMS = "lire.terms";
+    static final String PARAM_IDS = "lire.ids";
+
+    private static final String SHARD_STAGE_FEATURE = "feature";
+    private static final String SHARD_STAGE_TERM_STATS = "termstats";
+    private static final String SHARD_STAGE_TOP_IDS = "topids";
+    private static final String SHARD_STAGE_FIELDS = "fields";
+
+    private static final int STAGE_GET_FEATURE = ResponseBuilder.STAGE_PARSE_QUERY;
+    private static final int STAGE_TERM_STATS = ResponseBuilder.STAGE_PARSE_QUERY + 100;
+    private static final int STAGE_TOP_IDS = ResponseBuilder.STAGE_EXECUTE_QUERY;
+    private static final int STAGE_GET_FIELDS = ResponseBuilder.STAGE_GET_FIELDS;
+
+    private static final String CONTEXT_KEY = LireSearchComponent.class.getName();
+
+    private static final int DEFAULT_NUMBER_OF_RESULTS = 60;
+    private static final int DEFAULT_NUMBER_OF_CANDIDATES = CandidateSearch.DEFAULT_NUMBER_OF_CANDIDATES;
+    private static final double DEFAULT_NUMBER_OF_QUERY_TERMS = CandidateSearch.DEFAULT_NUMBER_OF_QUERY_TERMS;
+    private static final boolean DEFAULT_USE_METRIC_SPACES = CandidateSearch.DEFAULT_USE_METRIC_SPACES;
+    private static final int DEFAULT_NUMBER_OF_PROBES = CandidateSearch.DEFAULT_NUMBER_OF_PROBES;
+
+    // reference points and hash functions, from the conf directory of the core if there are any.
+    private CandidateSearch candidateSearch = new CandidateSearch(HashingMetricSpacesManager.getDefault());
+    private FeatureRegistry registry = FeatureRegistry.getDefault();
+
+    // features registered in solrconfig.xml, null if there are none.
+    private NamedList<?> features = null;
+
+    @Override
+    public void init(NamedList args) {
+        super.init(args);
+        Object features = args.get("features");
+        if (features instanceof NamedList) {
+            this.features = (NamedList<?>) features;
+        }
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        candidateSearch = new CandidateSearch(HashingMetricSpacesManager.forCore(core.getResourceLoader()));
+        registry = FeatureRegistry.forCore(core);
+        if (features != null) {
+            registry.configure(features, core.getResourceLoader());
+        }
+    }
+
+    @Override
+    public void prepare(ResponseBuilder rb) throws IOException {
+        // nothing to do, the parameters are read in process(...) and distributedProcess(...)
+    }
+
+    // ---< local search, used for non-distributed requests and on the shards >---
+
+    @Override
+    public void process(ResponseBuilder rb) throws IOException {
+        SolrParams params = rb.req.getParams();
+        SolrIndexSearcher searcher = rb.req.getSearcher();
+        String stage = params.get(PARAM_STAGE);
+        String hashField = getHashField(params);
+        String keyField = rb.req.getSchema().getUniqueKeyField().getName();
+        NamedList<Object> lire = new SimpleOrderedMap<>();
+        try {
+            if (SHARD_STAGE_FEATURE.equals(stage)) {
+                byte[] feature = lookupFeature(rb, params.get("id"), hashField);
+                if (feature != null) lire.add("feature", feature);
+                rb.rsp.add(COMPONENT_NAME, lire);
+            } else if (SHARD_STAGE_TERM_STATS.equals(stage)) {
+                NamedList<Object> docFreqs = new SimpleOrderedMap<>();
+                IndexReader reader = searcher.getIndexReader();
+                for (String term : splitTerms(params.get(PARAM_TERMS))) {
+                    docFreqs.add(term, reader.docFreq(new Term(hashField, term)));
+                }
+                lire.add("docFreq", docFreqs);
+                rb.rsp.add(COMPONENT_NAME, lire);
+            } else if (SHARD_STAGE_FIELDS.equals(stage)) {
+                String[] ids = params.getParams(PARAM_IDS);
+                SchemaField key = rb.req.getSchema().getUniqueKeyField();
+                int[] docIds = new int[ids == null ? 0 : ids.length];
+                int found = 0;
+                for (int i = 0; i < docIds.length; i++) {
+                    int docId = searcher.getFirstMatch(new Term(keyField, key.getType().readableToIndexed(ids[i])));
+                    if (docId > -1) docIds[found++] = docId;
+                }
+                DocSlice docSlice = new DocSlice(0, found, docIds, null, found, 0f, TotalHits.Relation.EQUAL_TO);
+                LireRequestHandler.addResponse(rb.req, rb.rsp, searcher, docSlice, new MatchAllDocsQuery(), "");
+            } else {
+                // a complete search on the local index or the top ids of a shard.
+                GlobalFeature queryFeature = registry.getDescriptorForHashField(hashField).newFeature();
+                byte[] featureBytes = (params.get("feature") != null)
+                        ? Base64.decodeBase64(params.get("feature")) : lookupFeature(rb, params.get("id"), hashField);
+                if (featureBytes == null) {
+                    rb.rsp.add("Error", "Did not find an image with the given id " + params.get("id"));
+                    return;
+                }
+                queryFeature.setByteArrayRepresentation(featureBytes);
+                List<String> terms;
+                if (params.get(PARAM_TERMS) != null) {
+                    terms = splitTerms(params.get(PARAM_TERMS));
+                } else {
+                    terms = selectHashTerms(queryFeature, hashField, params, term -> {
+                        try {
+                            return (long) searcher.getIndexReader().docFreq(new Term(hashField, term));
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                }
+                Query query = createQuery(queryFeature, hashField, terms, params);
+                TreeSet<SimpleResult> results = search(searcher, hashField, queryFeature, query,
+                        LireRequestHandler.getFilterQueries(rb.req), params);
+                if (SHARD_STAGE_TOP_IDS.equals(stage)) {
+                    List<Object> hits = new ArrayList<>(results.size());
+                    HashSet<String> keyFields = new HashSet<>(1);
+                    keyFields.add(keyField);
+                    for (SimpleResult result : results) {
+                        SimpleOrderedMap<Object> hit = new SimpleOrderedMap<>();
+                        hit.add("id", searcher.doc(result.getIndexNumber(), keyFields).get(keyField));
+                        hit.add("d", result.getDistance());
+                        hits.add(hit);
+                    }
+                    lire.add("hits", hits);
+                    rb.rsp.add(COMPONENT_NAME, lire);
+                } else {
+                    int[] docIds = new int[results.size()];
+                    float[] distances = new float[results.size()];
+                    int i = 0;
+                    for (SimpleResult result : results) {
+                        docIds[i] = result.getIndexNumber();
+                        distances[i] = (float) result.getDistance();
+                        i++;
+                    }
+                    DocSlice docSlice = new DocSlice(0, docIds.length, docIds, distances, docIds.length,
+                            docIds.length > 0 ? distances[docIds.length - 1] : 0f, TotalHits.Relation.EQUAL_TO);
+                    LireRequestHandler.addResponse(rb.req, rb.rsp, searcher, docSlice, query, ",d:score");
+                }
+            }
+        } catch (ParseException e) {
+            e.printStackTrace();
+            rb.rsp.add("Error", "There was an error with your search: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the feature of the document with the given id from the DocValues of the local index.
+     *
+     * @return the byte[] representation of the feature or null if there is no such document.
+     */
+    private byte[] lookupFeature(ResponseBuilder rb, String id, String hashField) throws IOException {
+        if (id == null) return null;
+        SolrIndexSearcher searcher = rb.req.getSearcher();
+        SchemaField key = rb.req.getSchema().getUniqueKeyField();
+        int docId = searcher.getFirstMatch(new Term(key.getName(), key.getType().readableToIndexed(id)));
+        if (docId < 0) return null;
+        BinaryDocValues binaryValues = MultiDocValues.getBinaryValues(searcher.getIndexReader(), registry.getFeatureFieldName(hashField));
+        BytesRef bytesRef = LireRequestHandler.getBytesRef(binaryValues, docId);
+        if (bytesRef.length == 0) return null;
+        return BytesRef.deepCopyOf(bytesRef).bytes;
+    }
+
+    /**
+     * Retrieves the candidates and re-ranks them based on the feature distance.
+     */
+    private TreeSet<SimpleResult> search(SolrIndexSearcher searcher, String hashField, GlobalFeature queryFeature,
+                                         Query query, List<Query> filterQueries, SolrParams params)
+            throws IOException {
+        int rows = params.getInt(CommonParams.ROWS, DEFAULT_NUMBER_OF_RESULTS);
+        int candidates = params.getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
+        int[] docs;
+        if (filterQueries != null) {
+            docs = LireRequestHandler.getDocIds(searcher.getDocList(query, filterQueries, Sort.RELEVANCE, 0, candidates, 0));
+        } else {
+            docs = LireRequestHandler.getDocIds(searcher.search(query, candidates));
+        }
+        PivotDistances pivots = PivotDistances.get(searcher.getCore(), registry.getFeatureFieldName(hashField));
+        return CandidateSearch.reRank(searcher, registry.getDescriptorForHashField(hashField), queryFeature, pivots, docs, rows, null);
+    }
+
+    /**
+     * Creates the candidate query, either from the given hash terms, from the metric spaces reference
+     * points or a MatchAllDocsQuery for accuracy &gt;= 0.9.
+     */
+    private Query createQuery(GlobalFeature queryFeature, String hashField, List<String> terms, SolrParams params) throws ParseException {
+        return candidateSearch.createQuery(queryFeature, hashField, terms,
+                params.getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS), params.getBool("ms", DEFAULT_USE_METRIC_SPACES));
+    }
+
+    /**
+     * Orders the BitSampling hashes of the feature ascending by document frequency, removes those not in the
+     * index (leaving at least three) and takes the share given by the accuracy param, at least one. The
+     * multi-probe buckets requested by the probes param are added if they are in the index.
+     *
+     * @param docFreq gives the document frequency of a term, local or summed up over all shards.
+     * @return the terms or an empty list if no hash terms are used.
+     */
+    private List<String> selectHashTerms(GlobalFeature queryFeature, String hashField, SolrParams params, Function<String, Long> docFreq) {
+        double accuracy = params.getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
+        if (params.getBool("ms", DEFAULT_USE_METRIC_SPACES) || CandidateSearch.isExhaustive(accuracy)) return Collections.emptyList();
+        return candidateSearch.selectHashTerms(queryFeature, hashField, accuracy,
+                params.getInt("probes", DEFAULT_NUMBER_OF_PROBES), docFreq);
+    }
+
+    private static List<String> splitTerms(String terms) {
+        List<String> result = new ArrayList<>();
+        if (terms == null) return result;
+        for (String term : terms.trim().split("\\s+")) {
+            if (term.length() > 0) result.add(term);
+        }
+        return result;
+    }
+
+    private static String getHashField(SolrParams params) {
+        String hashField = params.get("field", "cl_ha").replace("_ms", "");
+        if (!hashField.endsWith("_ha")) {
+            hashField += "_ha";
+        }
+        return hashField;
+    }
+
+    // ---< distributed search on the coordinating node >---
+
+    /**
+     * State of a distributed search, kept in the request context between the stages.
+     */
+    private static class DistributedSearch {
+        String hashField;
+        byte[] feature;
+        GlobalFeature queryFeature;
+        Map<String, Long> docFreqs = new HashMap<>();
+        List<String> terms = Collections.emptyList();
+        List<ShardHit> hits = new ArrayList<>();
+    }
+
+    private static class ShardHit {
+        final String id;
+        final double distance;
+        final String shard;
+        SolrDocument document;
+
+        ShardHit(String id, double distance, String shard) {
+            this.id = id;
+            this.distance = distance;
+            this.shard = shard;
+        }
+    }
+
+    private DistributedSearch getDistributedSearch(ResponseBuilder rb) {
+        DistributedSearch search = (DistributedSearch) rb.req.getContext().get(CONTEXT_KEY);
+        if (search == null) {
+            search = new DistributedSearch();
+            search.hashField = getHashField(rb.req.getParams());
+            if (rb.req.getParams().get("feature") != null) {
+                search.feature = Base64.decodeBase64(rb.req.getParams().get("feature"));
+            }
+            rb.req.getContext().put(CONTEXT_KEY, search);
+        }
+        return search;
+    }
+
+    @Override
+    public int distributedProcess(ResponseBuilder rb) throws IOException {
+        DistributedSearch search = getDistributedSearch(rb);
+        if (rb.stage < STAGE_GET_FEATURE) {
+            return STAGE_GET_FEATURE;
+        }
+        if (rb.stage == STAGE_GET_FEATURE) {
+            if (search.feature == null) {
+                rb.addRequest(this, createShardRequest(rb, SHARD_STAGE_FEATURE));
+            }
+            return STAGE_TERM_STATS;
+        }
+        if (rb.stage == STAGE_TERM_STATS) {
+            if (search.feature == null) {
+                rb.rsp.add("Error", "Did not find an image with the given id " + rb.req.getParams().get("id"));
+                return ResponseBuilder.STAGE_DONE;
+            }
+            search.queryFeature = registry.getDescriptorForHashField(search.hashField).newFeature();
+            search.queryFeature.setByteArrayRepresentation(search.feature);
+            double accuracy = rb.req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
+            if (!rb.req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES) && accuracy < 0.90) {
+                ShardRequest sreq = createShardRequest(rb, SHARD_STAGE_TERM_STATS);
+                sreq.params.set(PARAM_TERMS, String.join(" ", new HashSet<>(candidateSearch.hashTerms(search.queryFeature, search.hashField,
+                        rb.req.getParams().getInt("probes", DEFAULT_NUMBER_OF_PROBES)))));
+                rb.addRequest(this, sreq);
+            }
+            return STAGE_TOP_IDS;
+        }
+        if (rb.stage == STAGE_TOP_IDS) {
+            ShardRequest sreq = createShardRequest(rb, SHARD_STAGE_TOP_IDS);
+            sreq.params.set("feature", Base64.encodeBase64String(search.feature));
+            sreq.params.remove("id");
+            if (!search.terms.isEmpty()) {
+                sreq.params.set(PARAM_TERMS, String.join(" ", search.terms));
+            }
+            rb.addRequest(this, sreq);
+            return STAGE_GET_FIELDS;
+        }
+        if (rb.stage == STAGE_GET_FIELDS) {
+            Map<String, List<String>> idsByShard = new LinkedHashMap<>();
+            for (ShardHit hit : search.hits) {
+                idsByShard.computeIfAbsent(hit.shard, s -> new ArrayList<>()).add(hit.id);
+            }
+            String keyField = rb.req.getSchema().getUniqueKeyField().getName();
+            for (Map.Entry<String, List<String>> entry : idsByShard.entrySet()) {
+                ShardRequest sreq = createShardRequest(rb, SHARD_STAGE_FIELDS);
+                sreq.shards = new String[]{entry.getKey()};
+                sreq.params.set(PARAM_IDS, entry.getValue().toArray(new String[0]));
+                sreq.params.set(CommonParams.FL, rb.req.getParams().get(CommonParams.FL, "id,title") + "," + keyField);
+                rb.addRequest(this, sreq);
+            }
+            return ResponseBuilder.STAGE_DONE;
+        }
+        return ResponseBuilder.STAGE_DONE;
+    }
+
+    private ShardRequest createShardRequest(ResponseBuilder rb, String stage) {
+        ShardRequest sreq = new ShardRequest();
+        sreq.purpose = ShardRequest.PURPOSE_PRIVATE;
+        sreq.params = new ModifiableSolrParams(rb.req.getParams());
+        sreq.params.set(PARAM_STAGE, stage);
+        return sreq;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void handleResponses(ResponseBuilder rb, ShardRequest sreq) {
+        String stage = sreq.params.get(PARAM_STAGE);
+        if (stage == null) return;
+        DistributedSearch search = getDistributedSearch(rb);
+        for (ShardResponse srsp : sreq.responses) {
+            NamedList<Object> response = srsp.getSolrResponse() == null ? null : srsp.getSolrResponse().getResponse();
+            // a failed shard of a shards.tolerant request has an exception and no response.
+            if (srsp.getException() != null || response == null) {
+                setPartialResults(rb);
+                continue;
+            }
+            NamedList<Object> lire = (NamedList<Object>) response.get(COMPONENT_NAME);
+            if (SHARD_STAGE_FEATURE.equals(stage)) {
+                if (search.feature == null && lire != null && lire.get("feature") != null) {
+                    search.feature = (byte[]) lire.get("feature");
+                }
+            } else if (SHARD_STAGE_TERM_STATS.equals(stage)) {
+                NamedList<Object> docFreqs = lire == null ? null : (NamedList<Object>) lire.get("docFreq");
+                if (docFreqs == null) {
+                    setPartialResults(rb);
+                    continue;
+                }
+                for (Map.Entry<String, Object> entry : docFreqs) {
+                    search.docFreqs.merge(entry.getKey(), ((Number) entry.getValue()).longValue(), Long::sum);
+                }
+            } else if (SHARD_STAGE_TOP_IDS.equals(stage)) {
+                List<Object> hits = lire == null ? null : (List<Object>) lire.get("hits");
+                if (hits == null) {
+                    setPartialResults(rb);
+                    continue;
+                }
+                for (Object o : hits) {
+                    NamedList<Object> hit = (NamedList<Object>) o;
+                    search.hits.add(new ShardHit(hit.get("id").toString(), ((Number) hit.get("d")).doubleValue(), srsp.getShard()));
+                }
+            } else if (SHARD_STAGE_FIELDS.equals(stage)) {
+                SolrDocumentList docs = (SolrDocumentList) response.get("response");
+                if (docs == null) {
+                    setPartialResults(rb);
+                    continue;
+                }
+                String keyField = rb.req.getSchema().getUniqueKeyField().getName();
+                Map<String, SolrDocument> byId = new HashMap<>(docs.size());
+                for (SolrDocument doc : docs) {
+                    byId.put(doc.getFieldValue(keyField).toString(), doc);
+                }
+                for (ShardHit hit : search.hits) {
+                    if (hit.shard.equals(srsp.getShard()) && byId.containsKey(hit.id)) {
+                        hit.document = byId.get(hit.id);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the response as partial, like SearchHandler does for shards that failed in a shards.tolerant request.
+     */
+    private static void setPartialResults(ResponseBuilder rb) {
+        NamedList<Object> header = rb.rsp.getResponseHeader();
+        if (header != null && header.get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY) == null) {
+            header.add(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void finishStage(ResponseBuilder rb) {
+        DistributedSearch search = getDistributedSearch(rb);
+        if (rb.stage == STAGE_TERM_STATS && search.queryFeature != null) {
+            search.terms = selectHashTerms(search.queryFeature, search.hashField, rb.req.getParams(),
+                    term -> search.docFreqs.getOrDefault(term, 0L));
+        } else if (rb.stage == STAGE_TOP_IDS) {
+            // merge the shard results, the same image might be indexed in more than one shard.
+            int rows = rb.req.getParams().getInt(CommonParams.ROWS, DEFAULT_NUMBER_OF_RESULTS);
+            search.hits.sort(Comparator.comparingDouble((ShardHit h) -> h.distance).thenComparing(h -> h.id));
+            List<ShardHit> merged = new ArrayList<>(Math.min(rows, search.hits.size()));
+            HashSet<String> ids = new HashSet<>();
+            for (ShardHit hit : search.hits) {
+                if (merged.size() >= rows) break;
+                if (ids.add(hit.id)) merged.add(hit);
+            }
+            search.hits = merged;
+        } else if (rb.stage == STAGE_GET_FIELDS) {
+            SolrReturnFields returnFields = new SolrReturnFields(rb.req.getParams().get(CommonParams.FL, "id,title"), rb.req);
+            String keyField = rb.req.getSchema().getUniqueKeyField().getName();
+            SolrDocumentList list = new SolrDocumentList();
+            list.setNumFound(search.hits.size());
+            list.setStart(0);
+            for (ShardHit hit : search.hits) {
+                if (hit.document == null) continue;
+                if (!returnFields.wantsField(keyField)) hit.document.removeFields(keyField);
+                if (returnFields.wantsScore()) hit.document.setField("score", (float) hit.distance);
+                hit.document.setField("d", (float) hit.distance);
+                list.add(hit.document);
+            }
+            rb.rsp.addResponse(list);
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "LIRE SearchComponent for searching images by id or feature on a single core or a sharded collection.";
+    }
+}
@@ -41,7 +41,11 @@ package net.semanticmetadata.lire.solr;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.carrotsearch.hppc.IntDoubleHashMap;
 
 import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.DocValues;
@@ -51,8 +55,14 @@ import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.queries.function.FunctionValues;
 import org.apache.lucene.queries.function.ValueSource;
 import org.apache.lucene.queries.function.docvalues.DocTermsIndexDocValues;
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.FieldComparatorSource;
+import org.apache.lucene.search.SimpleFieldComparator;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.StringHelper;
+import org.apache.solr.request.SolrRequestInfo;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
@@ -68,9 +78,17 @@ import net.semanticmetadata.lire.solr.tools.RandomAccessBinaryDocValues;
 public class LireValueSource extends ValueSource {
     String field = "cl_hi";  // default field
     byte[] histogramData;
-    GlobalFeature feature, tmpFeature;
+    GlobalFeature feature;
+    FeatureDescriptor descriptor; // null if the feature is not registered.
     double maxDistance = Double.MAX_VALUE;
-    String objectHashBase = null; // used to store the combination of parameters to create a way to counter caching of functions with different function values.
+    PivotDistances.QueryDistances queryPivotDistances; // null if there are no pivots for the field.
+    BoundedDistance boundedDistance; // null if the feature does not support early abandoning.
+    private final int hashCode; // the parameters define the function, needed for caching functions with different values.
+
+    /**
+     * Returned for documents without value, never to be changed.
+     */
+    private static final BytesRef EMPTY_BYTES_REF = new BytesRef(BytesRef.EMPTY_BYTES);
 
     /**
      * @param featureField the field of the feature used for sorting.
@@ -78,6 +96,14 @@ public class LireValueSource extends ValueSource {
      * @param maxDistance  the distance value returned if there is no distance calculation possible.
      */
     public LireValueSource(String featureField, byte[] hist, double maxDistance) {
+        this(featureField, hist, maxDistance, FeatureRegistry.getDefault(), null);
+    }
+
+    /**
+     * @param registry the features of the core.
+     * @param pivots   the pivots of the field in the core, null if there are none.
+     */
+    public LireValueSource(String featureField, byte[] hist, double maxDistance, FeatureRegistry registry, PivotDistances pivots) {
         if (featureField != null) {
             field = featureField;
         }
@@ -90,26 +116,26 @@ public class LireValueSource extends ValueSource {
         // get the feature from the feature registry.
         if (field == null) {
             feature = new ColorLayout();
-            tmpFeature = new ColorLayout();
         } else {
-            try {
-                if (FeatureRegistry.getClassForFeatureField(field) != null) {// check if feature is registered.
-                    feature = (GlobalFeature) FeatureRegistry.getClassForFeatureField(field).newInstance();
-                    tmpFeature = (GlobalFeature) FeatureRegistry.getClassForFeatureField(field).newInstance();
-                } else {
-                    System.err.println("Feature " + field + " is not registered.");
-                }
-            } catch (InstantiationException | IllegalAccessException e) {
-                e.printStackTrace();
+            descriptor = registry.getDescriptorForFeatureField(field);
+            if (descriptor != null) {// check if feature is registered.
+                feature = descriptor.newFeature();
+            } else {
+                System.err.println("Feature " + field + " is not registered.");
             }
         }
 
         // debug ...
         // System.out.println("Setting " + feature.getClass().getName() + " to " + Base64.byteArrayToBase64(hist, 0, hist.length));
 
-        // adding all parameters to a string to create a hash.
-        objectHashBase = field + Arrays.toString(hist) + maxDistance;
+        // combining all parameters to a hash, the histogram is digested with murmur3.
+        int h = field.hashCode();
+        h = 31 * h + (hist == null ? 0 : StringHelper.murmurhash3_x86_32(hist, 0, hist.length, StringHelper.GOOD_FAST_HASH_SEED));
+        h = 31 * h + Double.hashCode(maxDistance);
+        hashCode = h;
         feature.setByteArrayRepresentation(hist);
+        queryPivotDistances = pivots != null ? pivots.queryDistances(feature) : null;
+        boundedDistance = BoundedDistance.forQuery(feature, descriptor);
     }
 
     /*
@@ -206,6 +232,10 @@ public class LireValueSource extends ValueSource {
 
 
 
+            // distances already computed for sorting by this function in the current request.
+            final List<DistanceComparator> sortDistances = getSortDistances(false);
+            final int docBase = readerContext.docBase;
+
             return new FunctionValues() {
                 @Override
                 public boolean exists(int doc) throws IOException {
@@ -218,13 +248,7 @@ public class LireValueSource extends ValueSource {
                         throws IOException {
 //                    target.copyBytes(binaryValues.get(doc));
 //                    return target.length() > 0;
-                    BytesRef bytesRef;
-                    if (binaryValues.advance(doc) == doc) {
-                        bytesRef = binaryValues.binaryValue();
-                    } else {
-                        bytesRef = new BytesRef(BytesRef.EMPTY_BYTES);
-                    }
-                    target.copyBytes(bytesRef);
+                    target.copyBytes(getBytesRef(binaryValues, doc));
                     return target.length() > 0;
 
                 }
@@ -262,14 +286,17 @@ public class LireValueSource extends ValueSource {
 
                 @Override
                 public double doubleVal(int doc) throws IOException {
+                    if (sortDistances != null) {
+                        for (DistanceComparator comparator : sortDistances) {
+                            IntDoubleHashMap distances = comparator.getDistances();
+                            int index = distances.indexOf(docBase + doc);
+                            if (distances.indexExists(index)) return distances.indexGet(index);
+                        }
+                    }
                     BytesRef bytesRef = getBytesRef(binaryValues, doc);
                     if (bytesRef.length > 0) {
-                        tmpFeature.setByteArrayRepresentation(
-                                bytesRef.bytes,
-                                bytesRef.offset,
-                                bytesRef.length);
 //                        tmpFeature.setByteArrayRepresentation(binaryValues.get(doc).bytes, binaryValues.get(doc).offset, binaryValues.get(doc).length);
-                        return tmpFeature.getDistance(feature);
+                        return getDistance(bytesRef, Double.MAX_VALUE);
                     }
                     else {
                         return maxDistance; // make sure max distance is returned for those without value
@@ -303,6 +330,46 @@ public class LireValueSource extends ValueSource {
         }
     }
 
+    /**
+     * Opens the packed pivot distances of a leaf.
+     *
+     * @return the DocValues or null if there are no pivots for the field.
+     */
+    BinaryDocValues getPivotValues(LeafReaderContext context) throws IOException {
+        if (queryPivotDistances == null) return null;
+        return DocValues.getBinary(context.reader(), FeatureRegistry.getPivotFieldName(field));
+    }
+
+    /**
+     * Checks the lower bound of the distance given by the pivot distances, so the feature does not need to be decoded.
+     *
+     * @param pivotValues the pivot distances of the leaf, see {@link #getPivotValues(LeafReaderContext)}, may be null.
+     * @param doc         the docId within the leaf
+     * @param threshold   the distance a document has to beat.
+     * @return true if the distance of the document is surely larger than the threshold.
+     */
+    boolean exceedsLowerBound(BinaryDocValues pivotValues, int doc, double threshold) throws IOException {
+        return pivotValues != null && pivotValues.advanceExact(doc)
+                && PivotDistances.exceeds(queryPivotDistances.lowerBound(pivotValues.binaryValue()), threshold);
+    }
+
+    /**
+     * Computes the distance of a serialized feature to the query feature.
+     *
+     * @param bytesRef   the byte[] representation of the feature, not empty.
+     * @param bound      the distance a document has to beat.
+     * @return the distance or {@link BoundedDistance#ABANDONED} if it is surely larger than the bound.
+     */
+    double getDistance(BytesRef bytesRef, double bound) {
+        if (boundedDistance != null) {
+            return boundedDistance.getDistance(bytesRef, bound);
+        }
+        // decoded into the feature of the current thread, as segments might be searched in parallel.
+        GlobalFeature tmpFeature = descriptor.getScratchFeature();
+        tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+        return tmpFeature.getDistance(feature);
+    }
+
 	// TODO: Check for a workaround to not introduce variables for runtime performance (or check if this is necessary first).
     private BytesRef getBytesRef(BinaryDocValues bdv, int docId)
             throws IOException {
@@ -311,14 +378,203 @@ public class LireValueSource extends ValueSource {
 //        if (bdv != null && bdv.advanceExact(docId)) {
             return bdv.binaryValue();
         }
-        return new BytesRef(BytesRef.EMPTY_BYTES);
+        return EMPTY_BYTES_REF;
+    }
+
+    /**
+     * Gets the sort comparators of this function in the current request, which have the distances of their
+     * queues. Each comparator adds itself, so comparators of parallel searches do not share their distances.
+     *
+     * @param create if the list should be created if it does not exist yet.
+     * @return the list of comparators or null if there is none or no current request.
+     */
+    @SuppressWarnings("unchecked")
+    private List<DistanceComparator> getSortDistances(boolean create) {
+        SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+        if (requestInfo == null) return null;
+        Map<Object, Object> requestContext = requestInfo.getReq().getContext();
+        SortDistancesKey key = new SortDistancesKey(this);
+        synchronized (requestContext) {
+            List<DistanceComparator> list = (List<DistanceComparator>) requestContext.get(key);
+            if (list == null && create) {
+                list = new CopyOnWriteArrayList<>();
+                requestContext.put(key, list);
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Sorting by the distance computes the distance of each document once, instead of calling
+     * {@link FunctionValues#doubleVal(int)} for comparing and copying. The distances of the documents left in the
+     * sort queue are kept for the request, so the same lirefunc in the fl param does not need to compute them again.
+     */
+    @Override
+    public SortField getSortField(boolean reverse) {
+        return new SortField(description(), new DistanceComparatorSource(), reverse);
+    }
+
+    private class DistanceComparatorSource extends FieldComparatorSource {
+        @Override
+        public FieldComparator<?> newComparator(String fieldname, int numHits, int sortPos, boolean reversed) {
+            return new DistanceComparator(numHits, reversed);
+        }
+
+        private LireValueSource getValueSource() {
+            return LireValueSource.this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof DistanceComparatorSource && LireValueSource.this.equals(((DistanceComparatorSource) o).getValueSource());
+        }
+
+        @Override
+        public int hashCode() {
+            return LireValueSource.this.hashCode();
+        }
+    }
+
+    private class DistanceComparator extends SimpleFieldComparator<Double> {
+        private final double[] values;
+        // the global docIds of the slots, the slots in use are 0 to slots - 1.
+        private final int[] docs;
+        private int slots = 0;
+        // the distances by global docId, built from the slots when they are looked up after the search.
+        private IntDoubleHashMap distances;
+        private final boolean reversed;
+        private double bottom, top;
+        private BinaryDocValues binaryValues;
+        private BinaryDocValues pivotValues;
+        private int docBase;
+        // the last computed distance, compareBottom(doc) is followed by copy(slot, doc) for competitive documents.
+        private int lastDoc = -1;
+        private double lastDistance;
+
+        DistanceComparator(int numHits, boolean reversed) {
+            values = new double[numHits];
+            docs = new int[numHits];
+            this.reversed = reversed;
+            List<DistanceComparator> sortDistances = getSortDistances(true);
+            if (sortDistances != null) sortDistances.add(this);
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            binaryValues = DocValues.getBinary(context.reader(), field);
+            // the lower bound only helps if the nearest documents are kept.
+            pivotValues = reversed ? null : getPivotValues(context);
+            docBase = context.docBase;
+            lastDoc = -1;
+        }
+
+        private double distance(int doc) throws IOException {
+            return distance(doc, Double.MAX_VALUE);
+        }
+
+        /**
+         * @param bound the distance to beat, abandoned distances are not kept for {@link #copy(int, int)}.
+         */
+        private double distance(int doc, double bound) throws IOException {
+            if (doc != lastDoc) {
+                double distance = maxDistance;
+                if (feature != null && binaryValues.advanceExact(doc)) {
+                    BytesRef bytesRef = binaryValues.binaryValue();
+                    if (bytesRef.length > 0) {
+                        distance = getDistance(bytesRef, bound);
+                        if (distance == BoundedDistance.ABANDONED) return distance;
+                    }
+                }
+                lastDoc = doc;
+                lastDistance = distance;
+            }
+            return lastDistance;
+        }
+
+        @Override
+        public int compare(int slot1, int slot2) {
+            return Double.compare(values[slot1], values[slot2]);
+        }
+
+        @Override
+        public void setBottom(int slot) {
+            bottom = values[slot];
+        }
+
+        @Override
+        public void setTopValue(Double value) {
+            top = value;
+        }
+
+        @Override
+        public int compareBottom(int doc) throws IOException {
+            if (exceedsLowerBound(pivotValues, doc, bottom)) return -1;
+            // stopping early only helps if the nearest documents are kept.
+            return Double.compare(bottom, distance(doc, reversed ? Double.MAX_VALUE : bottom));
+        }
+
+        @Override
+        public int compareTop(int doc) throws IOException {
+            return Double.compare(top, distance(doc));
+        }
+
+        @Override
+        public void copy(int slot, int doc) throws IOException {
+            values[slot] = distance(doc);
+            docs[slot] = docBase + doc;
+            slots = Math.max(slots, slot + 1);
+            distances = null;
+        }
+
+        @Override
+        public Double value(int slot) {
+            return values[slot];
+        }
+
+        /**
+         * @return the distances of the documents in the queue by global docId, not the ones pushed out of it.
+         */
+        IntDoubleHashMap getDistances() {
+            if (distances == null) {
+                IntDoubleHashMap map = new IntDoubleHashMap(slots);
+                for (int slot = 0; slot < slots; slot++) {
+                    map.put(docs[slot], values[slot]);
+                }
+                distances = map;
+            }
+            return distances;
+        }
+    }
+
+    /**
+     * Key of the sort distances in the request context, equal for equal functions.
+     */
+    private static final class SortDistancesKey {
+        private final LireValueSource valueSource;
+
+        SortDistancesKey(LireValueSource valueSource) {
+            this.valueSource = valueSource;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SortDistancesKey && valueSource.equals(((SortDistancesKey) o).valueSource);
+        }
+
+        @Override
+        public int hashCode() {
+            return valueSource.hashCode();
+        }
     }
 
     @Override
     public boolean equals(Object o) {
         if (o instanceof LireValueSource) {
             // check if the function has had the same parameters.
-            return objectHashBase.equals(((LireValueSource) o).objectHashBase);
+            LireValueSource other = (LireValueSource) o;
+            return hashCode == other.hashCode && field.equals(other.field)
+                    && Double.compare(maxDistance, other.maxDistance) == 0
+                    && Arrays.equals(histogramData, other.histogramData);
         } else {
             return false;
         }
@@ -326,11 +582,11 @@ public class LireValueSource extends ValueSource {
 
     @Override
     public int hashCode() {
-        return objectHashBase.hashCode();
+        return hashCode;
     }
 
     @Override
     public String description() {
-        return "distance to a given feature vector";
+        return "lirefunc(" + field + ")";
     }
 }
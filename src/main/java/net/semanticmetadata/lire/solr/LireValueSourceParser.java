@@ -42,6 +42,7 @@ package net.semanticmetadata.lire.solr;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.lucene.queries.function.ValueSource;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.search.FunctionQParser;
 import org.apache.solr.search.SyntaxError;
 import org.apache.solr.search.ValueSourceParser;
@@ -76,6 +77,8 @@ public class LireValueSourceParser extends ValueSourceParser {
         if (fp.hasMoreArguments()) {                           // if there is a third argument, it's the max value to return if there is none. Note the query cache is not updated upon parameter change.
             maxDistance = Double.parseDouble(fp.parseArg());
         }
-        return new LireValueSource(field, hist, maxDistance);
+        String featureField = field == null || field.endsWith(FeatureRegistry.featureFieldPostfix) ? field : field + FeatureRegistry.featureFieldPostfix;
+        SolrCore core = fp.getReq().getCore();
+        return new LireValueSource(field, hist, maxDistance, FeatureRegistry.forCore(core), PivotDistances.get(core, featureField));
     }
 }
@@ -0,0 +1,129 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Adds the distances of the feature to the pivots of its field to each document, so the re-ranking can skip
+ * documents by their lower bound, see {@link PivotDistances}. The pivot files are created with
+ * {@link net.semanticmetadata.lire.solr.tools.PivotSelection} and put into the conf directory of the core:</p>
+ * <pre>
+ * &lt;updateRequestProcessorChain name="lire-pivots"&gt;
+ *   &lt;processor class="net.semanticmetadata.lire.solr.PivotDistanceUpdateProcessorFactory"&gt;
+ *     &lt;lst name="pivots"&gt;
+ *       &lt;str name="cl_hi"&gt;pivots/cl_hi.pivots&lt;/str&gt;
+ *     &lt;/lst&gt;
+ *   &lt;/processor&gt;
+ *   &lt;processor class="solr.LogUpdateProcessorFactory"/&gt;
+ *   &lt;processor class="solr.RunUpdateProcessorFactory"/&gt;
+ * &lt;/updateRequestProcessorChain&gt;
+ * </pre>
+ * <p>Only the metric features ColorLayout, EdgeHistogram and JCD are supported. The pivots are also used at query
+ * time by the searches of the same core. If the pivot file changes, documents indexed with the old pivots are not
+ * pruned any more until they are re-indexed.</p>
+ */
+public class PivotDistanceUpdateProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware {
+    private final Map<String, String> pivotFiles = new LinkedHashMap<>();
+    private final Map<String, PivotDistances> fieldToPivots = new LinkedHashMap<>();
+    private FeatureRegistry registry = FeatureRegistry.getDefault();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void init(NamedList args) {
+        Object pivots = args.get("pivots");
+        if (!(pivots instanceof NamedList)) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    "PivotDistanceUpdateProcessorFactory needs a list of pivot files, e.g. <lst name=\"pivots\"><str name=\"cl_hi\">pivots/cl_hi.pivots</str></lst>");
+        }
+        for (Map.Entry<String, Object> entry : (NamedList<Object>) pivots) {
+            String field = entry.getKey();
+            if (!field.endsWith(FeatureRegistry.featureFieldPostfix)) {
+                field += FeatureRegistry.featureFieldPostfix;
+            }
+            pivotFiles.put(field, entry.getValue().toString());
+        }
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        registry = FeatureRegistry.forCore(core);
+        for (Map.Entry<String, String> entry : pivotFiles.entrySet()) {
+            String field = entry.getKey();
+            try (InputStream in = core.getResourceLoader().openResource(entry.getValue())) {
+                PivotDistances pivotDistances = PivotDistances.read(in);
+                if (!PivotDistances.isMetric(pivotDistances.getFeatureClass())) {
+                    throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                            "Pivot distances are only supported for metric features, not " + pivotDistances.getFeatureClass().getName());
+                }
+                if (pivotDistances.getFeatureClass() != registry.getClassForFeatureField(field)) {
+                    throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                            "The pivots in " + entry.getValue() + " do not match the feature of field " + field);
+                }
+                fieldToPivots.put(field, pivotDistances);
+                PivotDistances.register(core, field, pivotDistances);
+            } catch (IOException e) {
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Could not load pivots from " + entry.getValue(), e);
+            }
+        }
+    }
+
+    @Override
+    public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
+        return new UpdateRequestProcessor(next) {
+            @Override
+            public void processAdd(AddUpdateCommand cmd) throws IOException {
+                SolrInputDocument doc = cmd.getSolrInputDocument();
+                for (Map.Entry<String, PivotDistances> entry : fieldToPivots.entrySet()) {
+                    byte[] bytes = getBytes(doc.getField(entry.getKey()));
+                    if (bytes == null) continue;
+                    PivotDistances pivotDistances = entry.getValue();
+                    // the pivots have the class registered for the field, checked in inform(...)
+                    GlobalFeature feature = registry.getDescriptorForFeatureField(entry.getKey()).getScratchFeature();
+                    feature.setByteArrayRepresentation(bytes);
+                    doc.setField(FeatureRegistry.getPivotFieldName(entry.getKey()),
+                            pivotDistances.pack(pivotDistances.distances(feature)));
+                }
+                super.processAdd(cmd);
+            }
+        };
+    }
+
+    /**
+     * @return the feature bytes of the field, given as byte[], ByteBuffer, BytesRef or Base64 String.
+     */
+    static byte[] getBytes(SolrInputField field) {
+        if (field == null) return null;
+        Object value = field.getFirstValue();
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        } else if (value instanceof ByteBuffer) {
+            ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        } else if (value instanceof BytesRef) {
+            return BytesRef.deepCopyOf((BytesRef) value).bytes;
+        } else if (value instanceof CharSequence && ((CharSequence) value).length() > 0) {
+            return Base64.decodeBase64(value.toString());
+        }
+        return null;
+    }
+}
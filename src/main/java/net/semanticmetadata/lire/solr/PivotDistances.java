@@ -0,0 +1,241 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.imageanalysis.features.global.EdgeHistogram;
+import net.semanticmetadata.lire.imageanalysis.features.global.JCD;
+import net.semanticmetadata.lire.solr.tools.RandomAccessBinaryDocValues;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.core.SolrCore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A small set of pivot images for a feature. The distances of each image to the pivots are stored at index time
+ * in the *_pv field as packed floats. For metric distances the triangle inequality gives
+ * |d(q,p) - d(x,p)| &lt;= d(q,x) for every pivot p, so the maximum over all pivots is a lower bound of the
+ * distance between query q and candidate x, computed without decoding the feature of x.</p>
+ *
+ * <p>The packed distances start with the checksum of the pivots they were computed with. A candidate with distances
+ * of other pivots, e.g. indexed before the pivot file was changed, gets no lower bound and is never pruned, it has
+ * to be re-indexed to be pruned again.</p>
+ *
+ * <p>The pivot file is a text file with the feature class name in the first line, followed by one Base64 encoded
+ * feature per line. Lines starting with # are comments. It is created by
+ * {@link net.semanticmetadata.lire.solr.tools.PivotSelection}.</p>
+ */
+public class PivotDistances {
+    /**
+     * Pivots per core and feature field, registered by the {@link PivotDistanceUpdateProcessorFactory}.
+     */
+    private static final CoreScoped<Map<String, PivotDistances>> corePivots = new CoreScoped<>(ConcurrentHashMap::new);
+
+    /**
+     * Relative tolerance for the float precision of the stored distances.
+     */
+    private static final double EPSILON = 1e-5;
+
+    private final Class<? extends GlobalFeature> featureClass;
+    private final GlobalFeature[] pivots;
+    private final int checksum;
+
+    public PivotDistances(Class<? extends GlobalFeature> featureClass, List<GlobalFeature> pivots) {
+        this.featureClass = featureClass;
+        this.pivots = pivots.toArray(new GlobalFeature[0]);
+        CRC32 crc = new CRC32();
+        crc.update(featureClass.getName().getBytes(StandardCharsets.UTF_8));
+        for (GlobalFeature pivot : this.pivots) {
+            crc.update(pivot.getByteArrayRepresentation());
+        }
+        checksum = (int) crc.getValue();
+    }
+
+    /**
+     * Only for features with a metric distance the lower bound holds.
+     */
+    public static boolean isMetric(Class<?> featureClass) {
+        return featureClass == ColorLayout.class || featureClass == EdgeHistogram.class || featureClass == JCD.class;
+    }
+
+    public static void register(SolrCore core, String featureField, PivotDistances pivotDistances) {
+        corePivots.get(core).put(featureField, pivotDistances);
+    }
+
+    /**
+     * @param featureField the field of the feature, e.g. cl_hi
+     * @return the pivots of the core or null if there are none for the field.
+     */
+    public static PivotDistances get(SolrCore core, String featureField) {
+        return featureField == null ? null : corePivots.get(core).get(featureField);
+    }
+
+    /**
+     * Computes the distances of the query to the pivots.
+     *
+     * @param queryFeature the query feature
+     * @return the distances or null if there are no pivots or the feature is not the metric feature of the pivots.
+     */
+    public QueryDistances queryDistances(GlobalFeature queryFeature) {
+        if (pivots.length == 0 || featureClass != queryFeature.getClass() || !isMetric(featureClass)) {
+            return null;
+        }
+        return new QueryDistances(checksum, distances(queryFeature));
+    }
+
+    /**
+     * Opens the packed pivot distances of the whole index for the feature field.
+     */
+    public static BinaryDocValues getPivotValues(IndexReader reader, String featureField) {
+        String pivotFieldName = FeatureRegistry.getPivotFieldName(featureField);
+        return new RandomAccessBinaryDocValues(() -> {
+            try {
+                return MultiDocValues.getBinaryValues(reader, pivotFieldName);
+            } catch (IOException e) {
+                throw new RuntimeException("BinaryDocValues problem.", e);
+            }
+        });
+    }
+
+    public Class<? extends GlobalFeature> getFeatureClass() {
+        return featureClass;
+    }
+
+    public int size() {
+        return pivots.length;
+    }
+
+    /**
+     * @return the checksum of the feature class and the pivots, stored with the packed distances.
+     */
+    public int getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Computes the distances of a feature to all pivots.
+     */
+    public double[] distances(GlobalFeature feature) {
+        double[] result = new double[pivots.length];
+        for (int i = 0; i < pivots.length; i++) {
+            result[i] = feature.getDistance(pivots[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Packs the checksum of the pivots and the distances as floats for storing them in a binary DocValues field.
+     */
+    public byte[] pack(double[] distances) {
+        byte[] result = new byte[4 + distances.length * 4];
+        putInt(result, 0, checksum);
+        for (int i = 0; i < distances.length; i++) {
+            putInt(result, 4 + i * 4, Float.floatToIntBits((float) distances[i]));
+        }
+        return result;
+    }
+
+    private static void putInt(byte[] b, int o, int value) {
+        b[o] = (byte) (value >>> 24);
+        b[o + 1] = (byte) (value >>> 16);
+        b[o + 2] = (byte) (value >>> 8);
+        b[o + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] b, int o) {
+        return ((b[o] & 0xFF) << 24) | ((b[o + 1] & 0xFF) << 16) | ((b[o + 2] & 0xFF) << 8) | (b[o + 3] & 0xFF);
+    }
+
+    /**
+     * The distances of a query to the pivots, giving the lower bounds of the candidates packed with the same pivots.
+     */
+    public static final class QueryDistances {
+        private final int checksum;
+        private final double[] distances;
+
+        QueryDistances(int checksum, double[] distances) {
+            this.checksum = checksum;
+            this.distances = distances;
+        }
+
+        /**
+         * Computes the lower bound of the distance between query and candidate.
+         *
+         * @param packed the packed distances of the candidate, see {@link #pack(double[])}
+         * @return the lower bound or 0 if the candidate has no pivot distances or ones of other pivots.
+         */
+        public double lowerBound(BytesRef packed) {
+            if (packed.length != 4 + distances.length * 4) return 0;
+            byte[] b = packed.bytes;
+            if (getInt(b, packed.offset) != checksum) return 0;
+            double max = 0;
+            for (int i = 0, o = packed.offset + 4; i < distances.length; i++, o += 4) {
+                double d = Math.abs(distances[i] - Float.intBitsToFloat(getInt(b, o)));
+                if (d > max) max = d;
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Checks if a candidate can be skipped, taking the float precision of the stored distances into account.
+     *
+     * @param lowerBound the lower bound from {@link QueryDistances#lowerBound(BytesRef)}
+     * @param threshold  the distance a candidate has to beat.
+     * @return true if the distance of the candidate is surely larger than the threshold.
+     */
+    public static boolean exceeds(double lowerBound, double threshold) {
+        return lowerBound - EPSILON * Math.max(1d, lowerBound) > threshold;
+    }
+
+    public static PivotDistances read(InputStream in) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        Class<? extends GlobalFeature> featureClass = null;
+        List<GlobalFeature> pivots = new ArrayList<>();
+        try {
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                if (featureClass == null) {
+                    featureClass = Class.forName(line).asSubclass(GlobalFeature.class);
+                } else {
+                    GlobalFeature pivot = featureClass.newInstance();
+                    pivot.setByteArrayRepresentation(Base64.decodeBase64(line));
+                    pivots.add(pivot);
+                }
+            }
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+            throw new IOException("Could not read pivots: " + e.getMessage(), e);
+        }
+        if (featureClass == null) throw new IOException("No feature class given in the pivot file.");
+        return new PivotDistances(featureClass, pivots);
+    }
+
+    public void write(OutputStream out) throws IOException {
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        bw.write("# " + pivots.length + " pivots\n");
+        bw.write(featureClass.getName());
+        bw.write('\n');
+        for (GlobalFeature pivot : pivots) {
+            bw.write(Base64.encodeBase64String(pivot.getByteArrayRepresentation()));
+            bw.write('\n');
+        }
+        bw.flush();
+    }
+}
@@ -0,0 +1,84 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.util.Bits;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Picks uniformly distributed random documents from the whole index, i.e. over all segments, or from the
+ * documents matching a filter. As long as the matching documents are not too sparse, random doc ids are
+ * drawn and checked, so the cost depends on the number of documents requested and not on the size of the
+ * index. For sparse filters the matching doc ids are enumerated and shuffled partially.
+ */
+public class RandomDocumentSampler {
+    /**
+     * If less than one in this many doc ids is eligible, the eligible doc ids are enumerated instead of guessed.
+     */
+    private static final int MAX_REJECTION_RATIO = 16;
+
+    /**
+     * Draws distinct random doc ids.
+     *
+     * @param maxDoc       the maximum doc id (exclusive) of the index
+     * @param numDocs      the number of live documents in the index
+     * @param liveDocs     the live docs of the whole index, null if there are no deletions
+     * @param filter       only documents in this set are eligible, null for all live documents
+     * @param numberOfDocs the number of doc ids to return
+     * @param random       the source of randomness, seed it to get reproducible samples.
+     * @return distinct doc ids, less than numberOfDocs only if there are not enough eligible documents.
+     */
+    public static int[] sample(int maxDoc, int numDocs, Bits liveDocs, DocSet filter, int numberOfDocs, Random random) {
+        int eligible = (filter != null) ? filter.size() : numDocs;
+        int count = Math.max(0, Math.min(numberOfDocs, eligible));
+        int[] result = new int[count];
+        if (count == 0) return result;
+        if (count * 2 > eligible || (long) eligible * MAX_REJECTION_RATIO < maxDoc) {
+            // enumerate the eligible documents and do a partial Fisher-Yates shuffle.
+            int[] docs = enumerate(maxDoc, liveDocs, filter, eligible);
+            for (int i = 0; i < count; i++) {
+                int j = i + random.nextInt(docs.length - i);
+                int tmp = docs[i];
+                docs[i] = docs[j];
+                docs[j] = tmp;
+                result[i] = docs[i];
+            }
+            return result;
+        }
+        // rejection sampling, at least one in MAX_REJECTION_RATIO ids hits and not more than every second
+        // eligible document is taken, so the expected number of draws is linear in count.
+        HashSet<Integer> taken = new HashSet<>(count * 2);
+        int found = 0;
+        while (found < count) {
+            int doc = random.nextInt(maxDoc);
+            if (liveDocs != null && !liveDocs.get(doc)) continue;
+            if (filter != null && !filter.exists(doc)) continue;
+            if (taken.add(doc)) {
+                result[found++] = doc;
+            }
+        }
+        return result;
+    }
+
+    private static int[] enumerate(int maxDoc, Bits liveDocs, DocSet filter, int eligible) {
+        int[] docs = new int[eligible];
+        int i = 0;
+        if (filter != null) {
+            for (DocIterator it = filter.iterator(); it.hasNext() && i < docs.length; ) {
+                docs[i++] = it.nextDoc();
+            }
+        } else {
+            for (int doc = 0; doc < maxDoc && i < docs.length; doc++) {
+                if (liveDocs == null || liveDocs.get(doc)) docs[i++] = doc;
+            }
+        }
+        if (i < docs.length) {
+            int[] tmp = new int[i];
+            System.arraycopy(docs, 0, tmp, 0, i);
+            docs = tmp;
+        }
+        return docs;
+    }
+}
@@ -0,0 +1,100 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.searchers.SimpleResult;
+
+import java.util.TreeSet;
+
+/**
+ * Keeps the k nearest documents of the re-ranking in a max heap on primitive arrays, so the re-rank loop neither
+ * allocates nor re-balances a tree for each candidate. The order is the one of {@link SimpleResult}: by distance,
+ * then by docId. Not thread safe.
+ */
+public final class ResultHeap {
+    private final int capacity;
+    private final double[] distances;
+    private final int[] docs;
+    private int size = 0;
+    private long inserts = 0;
+    private long replacements = 0;
+
+    public ResultHeap(int capacity) {
+        this.capacity = Math.max(capacity, 0);
+        this.distances = new double[this.capacity];
+        this.docs = new int[this.capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return the distance a candidate has to beat, Double.MAX_VALUE as long as the heap is not full.
+     */
+    public double bound() {
+        return size < capacity || capacity == 0 ? Double.MAX_VALUE : distances[0];
+    }
+
+    /**
+     * Adds a document if the heap is not full yet or if it is nearer than the farthest document in the heap.
+     */
+    public void offer(int doc, double distance) {
+        if (size < capacity) {
+            int i = size++;
+            // sift up
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!greater(distance, doc, distances[parent], docs[parent])) break;
+                distances[i] = distances[parent];
+                docs[i] = docs[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            docs[i] = doc;
+            inserts++;
+        } else if (capacity > 0 && distance < distances[0]) {
+            // replace the root and sift down
+            int i = 0;
+            while (true) {
+                int child = (i << 1) + 1;
+                if (child >= size) break;
+                if (child + 1 < size && greater(distances[child + 1], docs[child + 1], distances[child], docs[child])) {
+                    child++;
+                }
+                if (!greater(distances[child], docs[child], distance, doc)) break;
+                distances[i] = distances[child];
+                docs[i] = docs[child];
+                i = child;
+            }
+            distances[i] = distance;
+            docs[i] = doc;
+            replacements++;
+        }
+    }
+
+    private static boolean greater(double distance1, int doc1, double distance2, int doc2) {
+        return distance1 > distance2 || (distance1 == distance2 && doc1 > doc2);
+    }
+
+    public long getInserts() {
+        return inserts;
+    }
+
+    public long getReplacements() {
+        return replacements;
+    }
+
+    /**
+     * @return the documents sorted by distance.
+     */
+    public TreeSet<SimpleResult> toResults() {
+        TreeSet<SimpleResult> results = new TreeSet<>();
+        for (int i = 0; i < size; i++) {
+            results.add(new SimpleResult(distances[i], docs[i]));
+        }
+        return results;
+    }
+}
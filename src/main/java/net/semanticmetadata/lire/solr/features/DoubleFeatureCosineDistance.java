@@ -2,7 +2,7 @@ package net.semanticmetadata.lire.solr.features;
 
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalDoubleFeature;
-import net.semanticmetadata.lire.utils.MetricsUtils;
+import net.semanticmetadata.lire.solr.kernels.DistanceKernels;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
 import java.util.Arrays;
@@ -15,7 +15,7 @@ import java.util.LinkedList;
 public class DoubleFeatureCosineDistance extends GenericGlobalDoubleFeature {
     @Override
     public double getDistance(LireFeature feature) {
-        return MetricsUtils.cosineDistance(getFeatureVector(), feature.getFeatureVector());
+        return DistanceKernels.get().cosineDistance(getFeatureVector(), feature.getFeatureVector());
     }
 
     @Override
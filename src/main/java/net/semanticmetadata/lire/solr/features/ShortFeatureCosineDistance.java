@@ -3,6 +3,7 @@ package net.semanticmetadata.lire.solr.features;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalDoubleFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalShortFeature;
+import net.semanticmetadata.lire.solr.kernels.DistanceKernels;
 import net.semanticmetadata.lire.utils.MetricsUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 import org.apache.lucene.util.BytesRef;
@@ -19,6 +20,10 @@ import java.util.LinkedList;
 public class ShortFeatureCosineDistance extends GenericGlobalShortFeature {
     @Override
     public double getDistance(LireFeature feature) {
+        if (feature instanceof ShortFeatureCosineDistance) {
+            // directly on the short values, without converting them to double[] first.
+            return DistanceKernels.get().cosineDistance(data, ((ShortFeatureCosineDistance) feature).data);
+        }
         return MetricsUtils.cosineDistance(getFeatureVector(), feature.getFeatureVector());
     }
 
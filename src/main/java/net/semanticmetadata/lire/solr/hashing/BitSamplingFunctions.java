@@ -0,0 +1,324 @@
+package net.semanticmetadata.lire.solr.hashing;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p>The hash functions of the BitSampling hashing. Hashes are the same as the ones of LIRE's
+ * {@link net.semanticmetadata.lire.indexers.hashing.BitSampling}, but the functions are read from a binary file
+ * that can be memory mapped and are used in place, so there is no deserialization of a double[][][].</p>
+ *
+ * <p>Each function bundle is one LSH table of {@link #getBits()} random hyperplanes. LIRE's functions hash all
+ * tables into the same range of values, so a bucket of one table also matches documents in the same bucket of
+ * any other table. Functions created with {@link #generate(int, int, int, Random)} put the number of the table
+ * into the hash instead, see {@link #isTableInHash()}, so layouts with few bits per table stay selective.
+ * Functions learned from the data, see {@link IterativeQuantization}, have hyperplanes that don't pass through the
+ * origin, given by a threshold per function, see {@link #hasThresholds()}.</p>
+ *
+ * <p>The binary file starts with the magic number and the version, followed by the flags (since version 2), the
+ * number of function bundles, the number of bits per bundle and the number of dimensions. The functions follow as
+ * floats, ordered by bundle, bit and dimension, then the thresholds, if any, ordered by bundle and bit. All values
+ * are big endian. LIRE's serialized functions are
+ * converted with {@link net.semanticmetadata.lire.solr.tools.ConvertHashingData}.</p>
+ */
+public class BitSamplingFunctions {
+    public static final int MAGIC = 0x4c425346; // LBSF
+    public static final int VERSION = 2;
+    public static final int FLAG_TABLE_IN_HASH = 1;
+    public static final int FLAG_THRESHOLDS = 2;
+
+    private final int numberOfFunctionBundles;
+    private final int bits;
+    private final int dimensions;
+    private final int flags;
+    private final FloatBuffer functions;
+    private final FloatBuffer thresholds;
+    // the lengths of the hyperplane normals, computed on the first probe.
+    private volatile float[] norms = null;
+
+    private BitSamplingFunctions(int numberOfFunctionBundles, int bits, int dimensions, int flags, FloatBuffer functions) {
+        this.numberOfFunctionBundles = numberOfFunctionBundles;
+        this.bits = bits;
+        this.dimensions = dimensions;
+        this.flags = flags;
+        this.functions = functions;
+        if ((flags & FLAG_THRESHOLDS) != 0) {
+            FloatBuffer buffer = functions.duplicate();
+            buffer.position(buffer.position() + numberOfFunctionBundles * bits * dimensions);
+            this.thresholds = buffer.slice();
+        } else {
+            this.thresholds = null;
+        }
+    }
+
+    /**
+     * Creates functions from given hyperplanes, the table is part of the hash. A bit is set if the dot product of the
+     * vector and the function is at least the threshold.
+     *
+     * @param functions  the hyperplane normals, ordered by table, bit and dimension.
+     * @param thresholds one per function, ordered by table and bit.
+     */
+    public static BitSamplingFunctions create(int tables, int bits, int dimensions, float[] functions, float[] thresholds) throws IOException {
+        checkParameters(tables, bits, dimensions, FLAG_TABLE_IN_HASH | FLAG_THRESHOLDS);
+        if (functions.length != tables * bits * dimensions || thresholds.length != tables * bits)
+            throw new IllegalArgumentException("Expected " + tables * bits + " functions of " + dimensions + " dimensions.");
+        float[] data = Arrays.copyOf(functions, functions.length + thresholds.length);
+        System.arraycopy(thresholds, 0, data, functions.length, thresholds.length);
+        return new BitSamplingFunctions(tables, bits, dimensions, FLAG_TABLE_IN_HASH | FLAG_THRESHOLDS, FloatBuffer.wrap(data));
+    }
+
+    /**
+     * Creates new random hyperplanes through the origin, with normally distributed components, for an LSH layout of
+     * the given number of tables and bits per table. The table is part of the hash.
+     */
+    public static BitSamplingFunctions generate(int tables, int bits, int dimensions, Random random) throws IOException {
+        checkParameters(tables, bits, dimensions, FLAG_TABLE_IN_HASH);
+        float[] functions = new float[tables * bits * dimensions];
+        for (int i = 0; i < functions.length; i++) {
+            functions[i] = (float) random.nextGaussian();
+        }
+        return new BitSamplingFunctions(tables, bits, dimensions, FLAG_TABLE_IN_HASH, FloatBuffer.wrap(functions));
+    }
+
+    /**
+     * Reads the binary format. The functions are read from the buffer on each call of
+     * {@link #generateHashes(double[])}, so it may be a memory mapped file.
+     */
+    public static BitSamplingFunctions read(ByteBuffer buffer) throws IOException {
+        try {
+            ByteBuffer header = buffer.duplicate();
+            if (header.getInt() != MAGIC) throw new IOException("Not a BitSampling file.");
+            int version = header.getInt();
+            if (version < 1 || version > VERSION) throw new IOException("Unsupported BitSampling version " + version);
+            int flags = version > 1 ? header.getInt() : 0;
+            int numberOfFunctionBundles = header.getInt();
+            int bits = header.getInt();
+            int dimensions = header.getInt();
+            checkParameters(numberOfFunctionBundles, bits, dimensions, flags);
+            FloatBuffer functions = header.slice().asFloatBuffer();
+            int thresholds = (flags & FLAG_THRESHOLDS) != 0 ? numberOfFunctionBundles * bits : 0;
+            if (functions.remaining() < numberOfFunctionBundles * bits * dimensions + thresholds)
+                throw new IOException("The BitSampling file is truncated.");
+            return new BitSamplingFunctions(numberOfFunctionBundles, bits, dimensions, flags, functions);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("The BitSampling file is truncated.", e);
+        }
+    }
+
+    /**
+     * Reads the gzipped, serialized functions as written by LIRE's
+     * {@link net.semanticmetadata.lire.indexers.hashing.BitSampling}.
+     */
+    public static BitSamplingFunctions readSerialized(InputStream in) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(in))) {
+            int bits = ois.readInt();
+            int dimensions = ois.readInt();
+            int numberOfFunctionBundles = ois.readInt();
+            checkParameters(numberOfFunctionBundles, bits, dimensions, 0);
+            float[] functions = new float[numberOfFunctionBundles * bits * dimensions];
+            for (int i = 0; i < functions.length; i++) {
+                functions[i] = ois.readFloat();
+            }
+            return new BitSamplingFunctions(numberOfFunctionBundles, bits, dimensions, 0, FloatBuffer.wrap(functions));
+        }
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(flags);
+        dos.writeInt(numberOfFunctionBundles);
+        dos.writeInt(bits);
+        dos.writeInt(dimensions);
+        for (int i = 0; i < numberOfFunctionBundles * bits * dimensions; i++) {
+            dos.writeFloat(functions.get(i));
+        }
+        if (thresholds != null) {
+            for (int i = 0; i < numberOfFunctionBundles * bits; i++) {
+                dos.writeFloat(thresholds.get(i));
+            }
+        }
+        dos.flush();
+    }
+
+    public int getNumberOfFunctionBundles() {
+        return numberOfFunctionBundles;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return true if the number of the table is in the upper bits of the hash, false for LIRE's hashes.
+     */
+    public boolean isTableInHash() {
+        return (flags & FLAG_TABLE_IN_HASH) != 0;
+    }
+
+    /**
+     * @return true if the hyperplanes have thresholds, false if they pass through the origin.
+     */
+    public boolean hasThresholds() {
+        return thresholds != null;
+    }
+
+    /**
+     * @param vector the feature vector, at most {@link #getDimensions()} long.
+     * @return one hash per function bundle.
+     */
+    public int[] generateHashes(double[] vector) {
+        return toHashes(products(vector));
+    }
+
+    /**
+     * <p>Multi-probe LSH: the hashes of the buckets next to the ones of the vector, which likely hold near neighbours
+     * that ended up on the other side of a hyperplane. A probe flips the bits of the hyperplanes nearest to the
+     * vector, and probes are returned in ascending order of the sum of the squared distances of the flipped
+     * hyperplanes, over all tables. With a few probes per table, fewer tables give the same recall.</p>
+     *
+     * <p>The perturbation sets of a table are enumerated with the shift and expand operations of Lv et al.,
+     * "Multi-Probe LSH: Efficient Indexing for High-Dimensional Similarity Search", VLDB 2007.</p>
+     *
+     * @param vector the feature vector, at most {@link #getDimensions()} long.
+     * @param probes the maximum number of probes returned.
+     * @return the hashes of the probed buckets, not including the ones of {@link #generateHashes(double[])}.
+     */
+    public int[] generateProbes(double[] vector, int probes) {
+        if (probes < 1) return new int[0];
+        double[] products = products(vector);
+        int[] hashes = toHashes(products);
+        float[] norms = getNorms();
+        // per table the bits ordered by the squared distance of the vector to their hyperplane.
+        int[][] order = new int[numberOfFunctionBundles][];
+        double[][] distances = new double[numberOfFunctionBundles][];
+        PriorityQueue<Perturbation> queue = new PriorityQueue<>();
+        for (int i = 0; i < numberOfFunctionBundles; i++) {
+            double[] d = new double[bits];
+            for (int j = 0; j < bits; j++) {
+                int function = i * bits + j;
+                d[j] = norms[function] > 0 ? products[function] * products[function] / (norms[function] * norms[function]) : Double.MAX_VALUE;
+            }
+            Integer[] bitOrder = new Integer[bits];
+            for (int j = 0; j < bits; j++) bitOrder[j] = j;
+            Arrays.sort(bitOrder, (a, b) -> Double.compare(d[a], d[b]));
+            order[i] = new int[bits];
+            distances[i] = new double[bits];
+            for (int j = 0; j < bits; j++) {
+                order[i][j] = bitOrder[j];
+                distances[i][j] = d[bitOrder[j]];
+            }
+            queue.add(new Perturbation(i, new int[]{0}, distances[i][0]));
+        }
+        // each table has 2^bits - 1 perturbation sets.
+        int[] result = new int[(int) Math.min(probes, numberOfFunctionBundles * ((1L << bits) - 1))];
+        int count = 0;
+        while (count < result.length && !queue.isEmpty()) {
+            Perturbation p = queue.poll();
+            int hash = hashes[p.table];
+            for (int position : p.positions) {
+                hash ^= 1 << order[p.table][position];
+            }
+            result[count++] = hash;
+            int last = p.positions[p.positions.length - 1];
+            if (last + 1 < bits) {
+                double[] d = distances[p.table];
+                // shift: replace the last bit by the next one.
+                int[] shifted = p.positions.clone();
+                shifted[shifted.length - 1] = last + 1;
+                queue.add(new Perturbation(p.table, shifted, p.score - d[last] + d[last + 1]));
+                // expand: add the next bit.
+                int[] expanded = Arrays.copyOf(p.positions, p.positions.length + 1);
+                expanded[expanded.length - 1] = last + 1;
+                queue.add(new Perturbation(p.table, expanded, p.score + d[last + 1]));
+            }
+        }
+        return result;
+    }
+
+    private double[] products(double[] vector) {
+        if (vector.length > dimensions)
+            throw new IllegalArgumentException("The feature vector has " + vector.length + " dimensions, the hash functions only " + dimensions);
+        double[] products = new double[numberOfFunctionBundles * bits];
+        int offset = 0;
+        for (int i = 0; i < products.length; i++) {
+            double product = 0;
+            for (int k = 0; k < vector.length; k++) {
+                product += functions.get(offset + k) * vector[k];
+            }
+            products[i] = thresholds != null ? product - thresholds.get(i) : product;
+            offset += dimensions;
+        }
+        return products;
+    }
+
+    private int[] toHashes(double[] products) {
+        int[] hashes = new int[numberOfFunctionBundles];
+        for (int i = 0; i < numberOfFunctionBundles; i++) {
+            if (isTableInHash()) hashes[i] = i << bits;
+            for (int j = 0; j < bits; j++) {
+                // NaN counts as positive, like in LIRE.
+                if (!(products[i * bits + j] < 0)) hashes[i] += 1 << j;
+            }
+        }
+        return hashes;
+    }
+
+    private float[] getNorms() {
+        float[] result = norms;
+        if (result == null) {
+            result = new float[numberOfFunctionBundles * bits];
+            for (int i = 0; i < result.length; i++) {
+                double sum = 0;
+                for (int k = 0; k < dimensions; k++) {
+                    float value = functions.get(i * dimensions + k);
+                    sum += value * value;
+                }
+                result[i] = (float) Math.sqrt(sum);
+            }
+            // computing them twice in parallel does no harm.
+            norms = result;
+        }
+        return result;
+    }
+
+    private static void checkParameters(int numberOfFunctionBundles, int bits, int dimensions, int flags) throws IOException {
+        if (numberOfFunctionBundles < 1 || bits < 1 || bits > 31 || dimensions < 1
+                || ((flags & FLAG_TABLE_IN_HASH) != 0 && ((long) numberOfFunctionBundles << bits) > 1L << 31))
+            throw new IOException("Invalid BitSampling parameters: " + numberOfFunctionBundles + " bundles of "
+                    + bits + " bits with " + dimensions + " dimensions.");
+    }
+
+    private static class Perturbation implements Comparable<Perturbation> {
+        final int table;
+        // positions in the table's bit order, ascending.
+        final int[] positions;
+        final double score;
+
+        Perturbation(int table, int[] positions, double score) {
+            this.table = table;
+            this.positions = positions;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Perturbation o) {
+            return Double.compare(score, o.score);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package net.semanticmetadata.lire.solr.hashing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Where the binary hashing data is read from, by resource names like <code>metricspaces/CEDD.lrp</code>.
+ */
+@FunctionalInterface
+public interface HashingDataSource {
+    /**
+     * @return the content of the resource or null if there is no such resource.
+     */
+    ByteBuffer open(String name) throws IOException;
+
+    /**
+     * Files in a directory, e.g. the conf directory of a core. They are memory mapped, so they are paged in by the
+     * operating system on use and shared by all processes reading them.
+     */
+    static HashingDataSource directory(Path directory) {
+        return name -> {
+            Path file = directory.resolve(name);
+            if (!Files.isRegularFile(file)) return null;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        };
+    }
+
+    /**
+     * Resources on the class path. They may be packed in a jar, so they are read into the heap.
+     */
+    static HashingDataSource classpath(ClassLoader classLoader) {
+        return name -> {
+            try (InputStream in = classLoader.getResourceAsStream(name)) {
+                if (in == null) return null;
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+                return ByteBuffer.wrap(out.toByteArray());
+            }
+        };
+    }
+}
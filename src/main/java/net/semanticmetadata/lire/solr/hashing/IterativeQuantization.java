@@ -0,0 +1,263 @@
+package net.semanticmetadata.lire.solr.hashing;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>Learns BitSampling functions from a sample of feature vectors with PCA and iterative quantization (ITQ), see
+ * Gong and Lazebnik, "Iterative Quantization: A Procrustean Approach to Learning Binary Codes", CVPR 2011. The
+ * vectors are centered and projected onto their principal components, so every bit splits the data along a
+ * direction it actually varies in. The projection is then rotated to minimize the quantization error of the
+ * binary codes, which balances the variance over the bits.</p>
+ *
+ * <p>Random hyperplanes through the origin carry little information for tightly clustered features, like the deep
+ * features in <code>sf</code> and <code>df</code>, as most of the data falls on the same side of them. The learned
+ * functions are written like any other {@link BitSamplingFunctions}, with the thresholds given by the mean of the
+ * sample, and used per field, see {@link net.semanticmetadata.lire.solr.HashingMetricSpacesManager}.</p>
+ */
+public class IterativeQuantization {
+    public static final int DEFAULT_ITERATIONS = 50;
+    // subspace iterations of the PCA and extra dimensions of the subspace for its convergence.
+    private static final int SUBSPACE_ITERATIONS = 6;
+    private static final int OVERSAMPLING = 8;
+
+    /**
+     * @param sample     the feature vectors, shorter ones are padded with zeros.
+     * @param tables     the number of hash tables.
+     * @param bits       the bits per table, tables * bits must not be larger than the dimensions or the sample.
+     * @param iterations the number of ITQ iterations.
+     */
+    public static BitSamplingFunctions train(List<double[]> sample, int tables, int bits, int iterations, Random random) throws IOException {
+        int dimensions = 0;
+        for (double[] vector : sample) {
+            dimensions = Math.max(dimensions, vector.length);
+        }
+        int components = tables * bits;
+        if (components > dimensions || components > sample.size())
+            throw new IllegalArgumentException("Cannot learn " + components + " bits from " + sample.size()
+                    + " vectors of " + dimensions + " dimensions.");
+        int n = sample.size();
+        double[] mean = new double[dimensions];
+        for (double[] vector : sample) {
+            for (int k = 0; k < vector.length; k++) mean[k] += vector[k];
+        }
+        for (int k = 0; k < dimensions; k++) mean[k] /= n;
+        double[][] x = new double[n][dimensions];
+        for (int i = 0; i < n; i++) {
+            double[] vector = sample.get(i);
+            for (int k = 0; k < dimensions; k++) x[i][k] = (k < vector.length ? vector[k] : 0) - mean[k];
+        }
+
+        double[][] pca = principalComponents(x, components, random);
+        double[][] v = multiply(x, pca);
+        double[][] rotation = rotate(v, iterations, random);
+        double[][] hyperplanes = multiply(pca, rotation);
+
+        float[] functions = new float[components * dimensions];
+        float[] thresholds = new float[components];
+        for (int j = 0; j < components; j++) {
+            double threshold = 0;
+            for (int k = 0; k < dimensions; k++) {
+                functions[j * dimensions + k] = (float) hyperplanes[k][j];
+                threshold += hyperplanes[k][j] * mean[k];
+            }
+            thresholds[j] = (float) threshold;
+        }
+        return BitSamplingFunctions.create(tables, bits, dimensions, functions, thresholds);
+    }
+
+    /**
+     * The leading principal components of the centered data by subspace iteration and a Rayleigh-Ritz step, so the
+     * covariance matrix is never built.
+     *
+     * @return a dimensions x components matrix with orthonormal columns.
+     */
+    static double[][] principalComponents(double[][] x, int components, Random random) {
+        int dimensions = x[0].length;
+        int p = Math.min(dimensions, components + OVERSAMPLING);
+        double[][] q = new double[dimensions][p];
+        for (double[] row : q) {
+            for (int j = 0; j < p; j++) row[j] = random.nextGaussian();
+        }
+        orthonormalize(q);
+        for (int iteration = 0; iteration < SUBSPACE_ITERATIONS; iteration++) {
+            q = multiplyTransposed(x, multiply(x, q));
+            orthonormalize(q);
+        }
+        double[][] z = multiply(x, q);
+        double[][] t = multiplyTransposed(z, z);
+        double[][] eigenvectors = new double[p][p];
+        double[] eigenvalues = eigen(t, eigenvectors);
+        // the eigenvectors of the largest eigenvalues, eigen(...) sorts them descending.
+        double[][] leading = new double[p][components];
+        for (int i = 0; i < p; i++) {
+            System.arraycopy(eigenvectors[i], 0, leading[i], 0, components);
+        }
+        return multiply(q, leading);
+    }
+
+    /**
+     * ITQ: alternates between the binary codes B = sgn(VR) and the rotation R maximizing tr(B'VR), which is the
+     * orthogonal polar factor of V'B.
+     */
+    static double[][] rotate(double[][] v, int iterations, Random random) {
+        int c = v[0].length;
+        double[][] r = new double[c][c];
+        for (double[] row : r) {
+            for (int j = 0; j < c; j++) row[j] = random.nextGaussian();
+        }
+        orthonormalize(r);
+        double[][] b = new double[v.length][c];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            double[][] u = multiply(v, r);
+            for (int i = 0; i < u.length; i++) {
+                for (int j = 0; j < c; j++) b[i][j] = u[i][j] < 0 ? -1 : 1;
+            }
+            r = polarFactor(multiplyTransposed(v, b));
+        }
+        return r;
+    }
+
+    /**
+     * @return the orthogonal matrix nearest to m, i.e. m (m'm)^-1/2.
+     */
+    static double[][] polarFactor(double[][] m) {
+        int c = m.length;
+        double[][] eigenvectors = new double[c][c];
+        double[] eigenvalues = eigen(multiplyTransposed(m, m), eigenvectors);
+        double[][] inverseRoot = new double[c][c];
+        for (int i = 0; i < c; i++) {
+            for (int j = 0; j < c; j++) {
+                double sum = 0;
+                for (int k = 0; k < c; k++) {
+                    if (eigenvalues[k] > 1e-12 * eigenvalues[0])
+                        sum += eigenvectors[i][k] * eigenvectors[j][k] / Math.sqrt(eigenvalues[k]);
+                }
+                inverseRoot[i][j] = sum;
+            }
+        }
+        return multiply(m, inverseRoot);
+    }
+
+    /**
+     * Cyclic Jacobi eigenvalue algorithm for a symmetric matrix.
+     *
+     * @param a            the symmetric matrix, left unchanged.
+     * @param eigenvectors receives the eigenvectors as columns, sorted like the eigenvalues.
+     * @return the eigenvalues, descending.
+     */
+    static double[] eigen(double[][] a, double[][] eigenvectors) {
+        int n = a.length;
+        double[][] m = new double[n][];
+        for (int i = 0; i < n; i++) {
+            m[i] = a[i].clone();
+            Arrays.fill(eigenvectors[i], 0);
+            eigenvectors[i][i] = 1;
+        }
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double offDiagonal = 0, diagonal = 0;
+            for (int i = 0; i < n; i++) {
+                diagonal += m[i][i] * m[i][i];
+                for (int j = i + 1; j < n; j++) offDiagonal += m[i][j] * m[i][j];
+            }
+            if (offDiagonal <= 1e-24 * diagonal || offDiagonal == 0) break;
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    if (m[p][q] == 0) continue;
+                    double theta = (m[q][q] - m[p][p]) / (2 * m[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) t = 1;
+                    double cos = 1 / Math.sqrt(t * t + 1), sin = t * cos;
+                    for (int k = 0; k < n; k++) {
+                        double mkp = m[k][p], mkq = m[k][q];
+                        m[k][p] = cos * mkp - sin * mkq;
+                        m[k][q] = sin * mkp + cos * mkq;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double mpk = m[p][k], mqk = m[q][k];
+                        m[p][k] = cos * mpk - sin * mqk;
+                        m[q][k] = sin * mpk + cos * mqk;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double vkp = eigenvectors[k][p], vkq = eigenvectors[k][q];
+                        eigenvectors[k][p] = cos * vkp - sin * vkq;
+                        eigenvectors[k][q] = sin * vkp + cos * vkq;
+                    }
+                }
+            }
+        }
+        // selection sort of the eigenpairs, descending.
+        double[] eigenvalues = new double[n];
+        for (int i = 0; i < n; i++) eigenvalues[i] = m[i][i];
+        for (int i = 0; i < n; i++) {
+            int max = i;
+            for (int j = i + 1; j < n; j++) {
+                if (eigenvalues[j] > eigenvalues[max]) max = j;
+            }
+            if (max != i) {
+                double value = eigenvalues[i];
+                eigenvalues[i] = eigenvalues[max];
+                eigenvalues[max] = value;
+                for (int k = 0; k < n; k++) {
+                    double e = eigenvectors[k][i];
+                    eigenvectors[k][i] = eigenvectors[k][max];
+                    eigenvectors[k][max] = e;
+                }
+            }
+        }
+        return eigenvalues;
+    }
+
+    /**
+     * Modified Gram-Schmidt on the columns.
+     */
+    static void orthonormalize(double[][] m) {
+        int rows = m.length, columns = m[0].length;
+        for (int j = 0; j < columns; j++) {
+            for (int i = 0; i < j; i++) {
+                double dot = 0;
+                for (int k = 0; k < rows; k++) dot += m[k][i] * m[k][j];
+                for (int k = 0; k < rows; k++) m[k][j] -= dot * m[k][i];
+            }
+            double norm = 0;
+            for (int k = 0; k < rows; k++) norm += m[k][j] * m[k][j];
+            norm = Math.sqrt(norm);
+            for (int k = 0; k < rows; k++) m[k][j] = norm > 0 ? m[k][j] / norm : 0;
+        }
+    }
+
+    static double[][] multiply(double[][] a, double[][] b) {
+        int n = a.length, inner = b.length, m = b[0].length;
+        double[][] result = new double[n][m];
+        for (int i = 0; i < n; i++) {
+            double[] row = result[i];
+            for (int k = 0; k < inner; k++) {
+                double aik = a[i][k];
+                if (aik == 0) continue;
+                double[] bk = b[k];
+                for (int j = 0; j < m; j++) row[j] += aik * bk[j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a'b
+     */
+    static double[][] multiplyTransposed(double[][] a, double[][] b) {
+        int n = a[0].length, m = b[0].length;
+        double[][] result = new double[n][m];
+        for (int k = 0; k < a.length; k++) {
+            double[] ak = a[k], bk = b[k];
+            for (int i = 0; i < n; i++) {
+                double aki = ak[i];
+                if (aki == 0) continue;
+                double[] row = result[i];
+                for (int j = 0; j < m; j++) row[j] += aki * bk[j];
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,102 @@
+package net.semanticmetadata.lire.solr.hashing;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+
+import java.util.List;
+
+/**
+ * How evenly a sample of documents is spread over the posting lists of the MetricSpaces terms. Each document is
+ * in the posting lists of its {@link ReferencePoints#getPostingListLength()} nearest reference points. A query
+ * looking like one of the documents reads the posting lists of the same terms, so the sum of their lengths is
+ * the number of candidates it collects. Skewed posting lists make this number large.
+ */
+public class PostingListBalance {
+    private final int[] postingListLengths;
+    private final int documents;
+    private final double candidates;
+
+    private PostingListBalance(int[] postingListLengths, int documents, double candidates) {
+        this.postingListLengths = postingListLengths;
+        this.documents = documents;
+        this.candidates = candidates;
+    }
+
+    public static PostingListBalance compute(ReferencePoints points, List<? extends GlobalFeature> documents) {
+        int[][] terms = new int[documents.size()][];
+        int[] postingListLengths = new int[points.size()];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = points.getNearestReferencePoints(documents.get(i), points.getPostingListLength());
+            for (int term : terms[i]) {
+                postingListLengths[term]++;
+            }
+        }
+        double candidates = 0;
+        for (int[] documentTerms : terms) {
+            for (int term : documentTerms) {
+                candidates += postingListLengths[term];
+            }
+        }
+        return new PostingListBalance(postingListLengths, terms.length, terms.length > 0 ? candidates / terms.length : 0);
+    }
+
+    /**
+     * @return the number of reference points with at least one document.
+     */
+    public int getUsedReferencePoints() {
+        int used = 0;
+        for (int length : postingListLengths) {
+            if (length > 0) used++;
+        }
+        return used;
+    }
+
+    public int getMaximumLength() {
+        int maximum = 0;
+        for (int length : postingListLengths) {
+            maximum = Math.max(maximum, length);
+        }
+        return maximum;
+    }
+
+    public double getMeanLength() {
+        long sum = 0;
+        for (int length : postingListLengths) {
+            sum += length;
+        }
+        return postingListLengths.length > 0 ? (double) sum / postingListLengths.length : 0;
+    }
+
+    /**
+     * @return the standard deviation of the posting list lengths divided by their mean, 0 for perfect balance.
+     */
+    public double getCoefficientOfVariation() {
+        double mean = getMeanLength();
+        if (mean == 0) return 0;
+        double sum = 0;
+        for (int length : postingListLengths) {
+            sum += (length - mean) * (length - mean);
+        }
+        return Math.sqrt(sum / postingListLengths.length) / mean;
+    }
+
+    /**
+     * @return the mean number of postings read by a query looking like a document of the sample.
+     */
+    public double getCandidatesPerQuery() {
+        return candidates;
+    }
+
+    /**
+     * @return the candidates per query as share of the documents, counting a document once per posting list.
+     */
+    public double getSelectivity() {
+        return documents > 0 ? candidates / documents : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d of %d reference points used, posting lists mean %.1f, max %d, cv %.2f, %.1f candidates per query (%.2f%% of %d documents)",
+                getUsedReferencePoints(), postingListLengths.length, getMeanLength(), getMaximumLength(),
+                getCoefficientOfVariation(), candidates, 100 * getSelectivity(), documents);
+    }
+}
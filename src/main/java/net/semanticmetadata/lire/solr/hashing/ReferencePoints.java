@@ -0,0 +1,348 @@
+package net.semanticmetadata.lire.solr.hashing;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureDescriptor;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+/**
+ * <p>The reference points of the MetricSpaces hashing for one feature class. Hash terms and boosted queries are
+ * the same as the ones of LIRE's {@link net.semanticmetadata.lire.indexers.hashing.MetricSpaces}, but the
+ * reference points are read from a binary file that can be memory mapped, and their byte[] representations are
+ * decoded when the first hash is generated, not when the file is read.</p>
+ *
+ * <p>LIRE doesn't find the exact nearest reference points: once it has enough of them, a reference point is only
+ * taken if it is nearer than the one taken last, so the first reference points of the file end up in the posting
+ * lists of most documents. Reference points trained for an index, which has to be re-indexed anyway, are marked
+ * to use the exact nearest ones instead, see {@link #isExactNearest()}.</p>
+ *
+ * <p>The binary file starts with the magic number, the version and the flags, followed by the length and the
+ * UTF-8 bytes of the feature class name, the number of reference points and the length of the posting list as given when the
+ * reference points were selected, the number of reference points in the file and their end offsets. The byte[]
+ * representations follow. All integers are big endian, version 1 files have no flags. Files in LIRE's text format are converted with
+ * {@link net.semanticmetadata.lire.solr.tools.ConvertHashingData}.</p>
+ */
+public class ReferencePoints {
+    public static final int MAGIC = 0x4c525053; // LRPS
+    public static final int VERSION = 2;
+    public static final int FLAG_EXACT_NEAREST = 1;
+    private static final Comparator<Result> byDistanceAndIndex =
+            Comparator.<Result>comparingDouble(r -> r.distance).thenComparingInt(r -> r.index);
+
+    private final Class<? extends GlobalFeature> featureClass;
+    private final int numberOfReferencePoints;
+    private final int lengthOfPostingList;
+    private final boolean exactNearest;
+    // end offsets of the byte[] representations in data.
+    private final int[] offsets;
+    private final ByteBuffer data;
+    private volatile GlobalFeature[] points = null;
+
+    private ReferencePoints(Class<? extends GlobalFeature> featureClass, int numberOfReferencePoints,
+                            int lengthOfPostingList, boolean exactNearest, int[] offsets, ByteBuffer data) {
+        this.featureClass = featureClass;
+        this.numberOfReferencePoints = numberOfReferencePoints;
+        this.lengthOfPostingList = lengthOfPostingList;
+        this.exactNearest = exactNearest;
+        this.offsets = offsets;
+        this.data = data;
+    }
+
+    /**
+     * Reads the binary format. Only the header is read, the buffer is kept for decoding the reference points on
+     * first use, so it may be a memory mapped file.
+     */
+    public static ReferencePoints read(ByteBuffer buffer) throws IOException {
+        try {
+            ByteBuffer header = buffer.duplicate();
+            if (header.getInt() != MAGIC) throw new IOException("Not a reference points file.");
+            int version = header.getInt();
+            if (version < 1 || version > VERSION) throw new IOException("Unsupported reference points version " + version);
+            int flags = version > 1 ? header.getInt() : 0;
+            byte[] name = new byte[header.getInt()];
+            header.get(name);
+            Class<? extends GlobalFeature> featureClass = featureClass(new String(name, StandardCharsets.UTF_8));
+            int numberOfReferencePoints = header.getInt();
+            int lengthOfPostingList = header.getInt();
+            int[] offsets = new int[header.getInt()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = header.getInt();
+            }
+            ByteBuffer data = header.slice();
+            if (offsets.length > 0 && offsets[offsets.length - 1] > data.remaining())
+                throw new IOException("The reference points file is truncated.");
+            return new ReferencePoints(featureClass, numberOfReferencePoints, lengthOfPostingList,
+                    (flags & FLAG_EXACT_NEAREST) != 0, offsets, data);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("The reference points file is truncated.", e);
+        }
+    }
+
+    /**
+     * Reads LIRE's text format as written by {@link net.semanticmetadata.lire.indexers.hashing.MetricSpaces}: the
+     * class name, the number of reference points and the length of the posting list, then one Base64 encoded
+     * feature per line. Lines starting with # are comments.
+     */
+    public static ReferencePoints readText(InputStream in) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line = br.readLine();
+        while (line != null && line.trim().startsWith("#")) line = br.readLine();
+        if (line == null) throw new IOException("No feature class given in the reference points file.");
+        Class<? extends GlobalFeature> featureClass = featureClass(line.trim());
+        line = br.readLine();
+        if (line == null) throw new IOException("No parameters given in the reference points file.");
+        String[] parameters = line.trim().split(",");
+        List<byte[]> points = new ArrayList<>(Integer.parseInt(parameters[0]));
+        while ((line = br.readLine()) != null) {
+            if (!line.startsWith("#") && line.length() > 1) {
+                points.add(Base64.getDecoder().decode(line));
+            }
+        }
+        return create(featureClass, Integer.parseInt(parameters[0]), Integer.parseInt(parameters[1]), false, points);
+    }
+
+    /**
+     * Creates the reference points from their byte[] representations, e.g. as selected from an index.
+     *
+     * @param exactNearest true to index and search with the exact nearest reference points, false for the same
+     *                     hash terms as LIRE.
+     */
+    public static ReferencePoints create(Class<? extends GlobalFeature> featureClass, int numberOfReferencePoints,
+                                         int lengthOfPostingList, boolean exactNearest, List<byte[]> points) {
+        int[] offsets = new int[points.size()];
+        int length = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            length += points.get(i).length;
+            offsets[i] = length;
+        }
+        ByteBuffer data = ByteBuffer.allocate(length);
+        for (byte[] point : points) {
+            data.put(point);
+        }
+        data.flip();
+        return new ReferencePoints(featureClass, numberOfReferencePoints, lengthOfPostingList, exactNearest, offsets, data);
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        byte[] name = featureClass.getName().getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(exactNearest ? FLAG_EXACT_NEAREST : 0);
+        dos.writeInt(name.length);
+        dos.write(name);
+        dos.writeInt(numberOfReferencePoints);
+        dos.writeInt(lengthOfPostingList);
+        dos.writeInt(offsets.length);
+        for (int offset : offsets) {
+            dos.writeInt(offset);
+        }
+        byte[] bytes = new byte[offsets.length > 0 ? offsets[offsets.length - 1] : 0];
+        data.duplicate().get(bytes);
+        dos.write(bytes);
+        dos.flush();
+    }
+
+    public Class<? extends GlobalFeature> getFeatureClass() {
+        return featureClass;
+    }
+
+    public int getNumberOfReferencePoints() {
+        return numberOfReferencePoints;
+    }
+
+    public int getPostingListLength() {
+        return lengthOfPostingList;
+    }
+
+    /**
+     * @return true if the exact nearest reference points are used, false for the same hash terms as LIRE.
+     */
+    public boolean isExactNearest() {
+        return exactNearest;
+    }
+
+    /**
+     * @return the number of reference points in the file.
+     */
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * @return the byte[] representation of the i-th reference point.
+     */
+    public byte[] getByteArrayRepresentation(int i) {
+        int start = i > 0 ? offsets[i - 1] : 0;
+        byte[] bytes = new byte[offsets[i] - start];
+        ByteBuffer point = data.duplicate();
+        point.position(start);
+        point.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the indexes of the reference points the feature is indexed with, the nearest first.
+     */
+    public int[] getNearestReferencePoints(GlobalFeature feature, int queryLength) {
+        TreeSet<Result> results = getResults(feature, queryLength);
+        int[] nearest = new int[results.size()];
+        int i = 0;
+        for (Result r : results) {
+            nearest[i++] = r.index;
+        }
+        return nearest;
+    }
+
+    /**
+     * @return the hash terms of the feature, the nearest reference point first.
+     */
+    public List<String> generateHashList(GlobalFeature feature) {
+        return generateHashList(feature, lengthOfPostingList);
+    }
+
+    public List<String> generateHashList(GlobalFeature feature, int queryLength) {
+        List<String> result = new LinkedList<>();
+        for (Result r : getResults(feature, queryLength)) {
+            result.add(String.format("R%06d", r.index));
+        }
+        return result;
+    }
+
+    /**
+     * @return the hash terms for indexing, the nearest reference point repeated most often.
+     */
+    public String generateHashString(GlobalFeature feature) {
+        return generateHashString(feature, lengthOfPostingList);
+    }
+
+    public String generateHashString(GlobalFeature feature, int queryLength) {
+        TreeSet<Result> results = getResults(feature, queryLength);
+        StringBuilder sb = new StringBuilder(results.size() * 8);
+        int position = 0;
+        for (Result r : results) {
+            for (int i = 0; i < results.size() - position; i++) {
+                sb.append(String.format("R%06d ", r.index));
+            }
+            position++;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return a query for the given number of nearest reference points, boosted by their rank.
+     */
+    public String generateBoostedQuery(GlobalFeature feature, int queryLength) {
+        TreeSet<Result> results = getResults(feature, queryLength);
+        StringBuilder sb = new StringBuilder(results.size() * 12);
+        double boost = results.size();
+        for (Result r : results) {
+            sb.append(String.format(Locale.ENGLISH, "R%06d^%1.2f ", r.index, boost / results.size()));
+            boost -= 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Finds the nearest reference points, unless marked otherwise the same way as LIRE does, so the hash terms
+     * match the ones of existing indexes.
+     */
+    private TreeSet<Result> getResults(GlobalFeature feature, int queryLength) {
+        int size = Math.min(queryLength, lengthOfPostingList);
+        if (size < 1) size = lengthOfPostingList;
+        GlobalFeature[] points = getPoints();
+        if (exactNearest) {
+            TreeSet<Result> results = new TreeSet<>(byDistanceAndIndex);
+            for (int i = 0; i < points.length; i++) {
+                double distance = points[i].getDistance(feature);
+                if (results.size() < size) {
+                    results.add(new Result(distance, i));
+                } else if (distance < results.last().distance) {
+                    results.add(new Result(distance, i));
+                    results.pollLast();
+                }
+            }
+            return results;
+        }
+        TreeSet<Result> results = new TreeSet<>();
+        double maxDistance = Double.MAX_VALUE;
+        for (int i = 0; i < points.length; i++) {
+            double distance = points[i].getDistance(feature);
+            if (results.size() < size) {
+                results.add(new Result(distance, i));
+                maxDistance = results.last().distance;
+            } else if (distance < maxDistance) {
+                results.add(new Result(distance, i));
+                maxDistance = distance;
+                if (results.size() > size) results.pollLast();
+            }
+        }
+        return results;
+    }
+
+    private GlobalFeature[] getPoints() {
+        GlobalFeature[] result = points;
+        if (result == null) {
+            synchronized (this) {
+                if (points == null) points = decode();
+                result = points;
+            }
+        }
+        return result;
+    }
+
+    private GlobalFeature[] decode() {
+        FeatureDescriptor descriptor = FeatureRegistry.getDefault().getDescriptorForClass(featureClass);
+        Supplier<? extends GlobalFeature> factory = descriptor != null
+                ? descriptor::newFeature : FeatureDescriptor.constructorFactory(featureClass);
+        GlobalFeature[] result = new GlobalFeature[offsets.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = factory.get();
+            result[i].setByteArrayRepresentation(getByteArrayRepresentation(i));
+        }
+        return result;
+    }
+
+    private static Class<? extends GlobalFeature> featureClass(String name) throws IOException {
+        try {
+            return Class.forName(name).asSubclass(GlobalFeature.class);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Unknown feature class " + name, e);
+        }
+    }
+
+    /**
+     * Ordered by distance only, like in LIRE, so reference points at the same distance are counted once.
+     */
+    private static class Result implements Comparable<Result> {
+        final double distance;
+        final int index;
+
+        Result(double distance, int index) {
+            this.distance = distance;
+            this.index = index;
+        }
+
+        @Override
+        public int compareTo(Result o) {
+            return (int) Math.signum(distance - o.distance);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package net.semanticmetadata.lire.solr.indexing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The progress of a {@link ParallelSolrIndexer} run, saved as a properties file so a run can be resumed after a
+ * crash. It has the offset in the file list, i.e. the number of files up to which all are done, the files done
+ * after the offset, as the stages finish them out of order, and the manifest of the output shards written so far.
+ * A file is done when it is in a closed shard or written to its own file, or when it failed or was skipped.
+ *
+ * <p>The checkpoint is written to a temporary file first and then moved over the old one, so there is always a
+ * complete checkpoint on disk.</p>
+ */
+class Checkpoint {
+    private final File file;
+    private final String fileList;
+    private final int shardSize;
+    private long offset = 0;
+    private long started = System.currentTimeMillis();
+    private long since = 0;
+    private boolean finished = false;
+    private final List<String> shards = new ArrayList<>();
+    private final List<Long> shardDocuments = new ArrayList<>();
+    // the files done after the offset, by their distance to the offset.
+    private BitSet done = new BitSet();
+    private long lastSave = System.currentTimeMillis();
+
+    /**
+     * @param file      the properties file.
+     * @param fileList  the canonical path of the list of images.
+     * @param shardSize the number of documents per shard, 0 if each image gets its own file.
+     */
+    Checkpoint(File file, String fileList, int shardSize) {
+        this.file = file;
+        this.fileList = fileList;
+        this.shardSize = shardSize;
+    }
+
+    static Checkpoint load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Checkpoint checkpoint = new Checkpoint(file, properties.getProperty("fileList"),
+                Integer.parseInt(properties.getProperty("shardSize", "0")));
+        checkpoint.offset = Long.parseLong(properties.getProperty("offset", "0"));
+        checkpoint.started = Long.parseLong(properties.getProperty("started", "0"));
+        checkpoint.since = Long.parseLong(properties.getProperty("since", "0"));
+        checkpoint.finished = Boolean.parseBoolean(properties.getProperty("finished", "false"));
+        int numberOfShards = Integer.parseInt(properties.getProperty("shards", "0"));
+        for (int i = 0; i < numberOfShards; i++) {
+            checkpoint.shards.add(properties.getProperty("shard." + i + ".file"));
+            checkpoint.shardDocuments.add(Long.parseLong(properties.getProperty("shard." + i + ".documents", "0")));
+        }
+        for (String seq : properties.getProperty("done", "").split(",")) {
+            if (!seq.isEmpty()) checkpoint.done(Long.parseLong(seq));
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Starts a run over the files changed since the start of the last one, the shards are kept.
+     */
+    synchronized void startIncrementalRun() {
+        since = started;
+        started = System.currentTimeMillis();
+        offset = 0;
+        done = new BitSet();
+        finished = false;
+    }
+
+    /**
+     * @param seq the number of the file in the list, not counting empty lines.
+     */
+    synchronized boolean isDone(long seq) {
+        return seq < offset || done.get((int) (seq - offset));
+    }
+
+    synchronized void done(long seq) {
+        if (seq >= offset) done.set((int) (seq - offset));
+    }
+
+    /**
+     * @return the number of files done, the ones skipped when resuming.
+     */
+    synchronized long countDone() {
+        return offset + done.cardinality();
+    }
+
+    /**
+     * Adds a closed shard with the files in it and saves the checkpoint.
+     */
+    synchronized void addShard(String name, List<Long> seqs) throws IOException {
+        for (long seq : seqs) {
+            done(seq);
+        }
+        shards.add(name);
+        shardDocuments.add((long) seqs.size());
+        save();
+    }
+
+    synchronized void saveIfDue(long intervalMillis) throws IOException {
+        if (System.currentTimeMillis() - lastSave >= intervalMillis) save();
+    }
+
+    synchronized void finish() throws IOException {
+        finished = true;
+        save();
+    }
+
+    synchronized void save() throws IOException {
+        int next = done.nextClearBit(0);
+        if (next > 0) {
+            offset += next;
+            done = done.get(next, Math.max(next, done.length()));
+        }
+        Properties properties = new Properties();
+        properties.setProperty("fileList", fileList);
+        properties.setProperty("shardSize", Integer.toString(shardSize));
+        properties.setProperty("offset", Long.toString(offset));
+        properties.setProperty("started", Long.toString(started));
+        properties.setProperty("since", Long.toString(since));
+        properties.setProperty("finished", Boolean.toString(finished));
+        properties.setProperty("shards", Integer.toString(shards.size()));
+        for (int i = 0; i < shards.size(); i++) {
+            properties.setProperty("shard." + i + ".file", shards.get(i));
+            properties.setProperty("shard." + i + ".documents", Long.toString(shardDocuments.get(i)));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(offset + i);
+        }
+        properties.setProperty("done", sb.toString());
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            properties.store(writer, "ParallelSolrIndexer checkpoint");
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastSave = System.currentTimeMillis();
+    }
+
+    String getFileList() {
+        return fileList;
+    }
+
+    int getShardSize() {
+        return shardSize;
+    }
+
+    synchronized int getShardCount() {
+        return shards.size();
+    }
+
+    synchronized long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the start of the last run in an incremental run, files not modified since are skipped, 0 otherwise.
+     */
+    long getSince() {
+        return since;
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+}
@@ -1,6 +1,5 @@
 package net.semanticmetadata.lire.solr.indexing;
 
-import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
 import net.semanticmetadata.lire.solr.tools.EncodeAndHashCSV;
 import net.semanticmetadata.lire.solr.tools.FileListFromSolrXML;
 import net.semanticmetadata.lire.solr.tools.XmlMerge;
@@ -14,8 +13,8 @@ import java.io.IOException;
  * names in the first row) and creates an XML file that can be imported to Solr supporting LireSolr extensions. It calls
  * different utiliy classes in this order: {@link net.semanticmetadata.lire.solr.tools.EncodeAndHashCSV},
  * {@link net.semanticmetadata.lire.solr.tools.FileListFromSolrXML}, {@link ParallelSolrIndexer}, and
- * {@link net.semanticmetadata.lire.solr.tools.XmlMerge}. As the very last part of the process is done in memory, the CSV
- * file should not get too big (10 k images work just fine on a laptop computer).
+ * {@link net.semanticmetadata.lire.solr.tools.XmlMerge}. Encoding, indexing and merging stream their data, only the file
+ * list is created from a document read into memory, so the CSV file can get a lot bigger than the heap.
  */
 public class ImportFromCSV implements Runnable {
     File csvFile, outFile;
@@ -26,7 +25,6 @@ public class ImportFromCSV implements Runnable {
     }
 
     public static void main(String[] args) throws ParseException {
-        HashingMetricSpacesManager.init();
         File infile = null, outfile = null;
         Options options = new Options();
         options.addOption("i", "input-file", true, "CSV File to import (required).");
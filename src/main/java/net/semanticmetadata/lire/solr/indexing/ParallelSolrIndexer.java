@@ -44,20 +44,23 @@ import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
 import net.semanticmetadata.lire.imageanalysis.features.global.EdgeHistogram;
 import net.semanticmetadata.lire.imageanalysis.features.global.JCD;
 import net.semanticmetadata.lire.imageanalysis.features.global.PHOG;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
-import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
-import net.semanticmetadata.lire.indexers.parallel.WorkItem;
 import net.semanticmetadata.lire.solr.FeatureRegistry;
 import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.tools.Utilities;
 import net.semanticmetadata.lire.utils.ImageUtils;
+import org.apache.solr.common.SolrInputDocument;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This indexing application allows for parallel extraction of global features from multiple image files for
@@ -71,45 +74,76 @@ import java.util.concurrent.LinkedBlockingQueue;
  * <ul>
  * <li> -i &lt;infile&gt; ... gives a file with a list of images to be indexed, one per line.</li>
  * <li> -o &lt;outfile&gt; ... gives XML file the output is written to. if none is given the outfile is &lt;infile&gt;.xml</li>
+ * <li> -u &lt;url&gt; ... sends the documents to the Solr core or collection with the URL instead of writing XML, e.g. http://localhost:8983/solr/lire</li>
  * <li> -n &lt;threads&gt; ... gives the number of threads used for extraction. The number of cores is a good value for that.</li>
+ * <li> -d &lt;threads&gt; ... gives the number of threads used for decoding the images, default is half the extraction threads.</li>
+ * <li> -r &lt;threads&gt; ... gives the number of threads reading the files, default is 64 with virtual threads and 4 without.</li>
+ * <li> -q &lt;size&gt; ... gives the number of files read ahead and of documents waiting to be written, default is 250.</li>
+ * <li> -m &lt;seconds&gt; ... gives the interval of the status output, default is 10.</li>
+ * <li> -s &lt;documents&gt; ... splits the output into shards of that many documents, e.g. out-00000.xml, out-00001.xml, ... for -o out.xml.</li>
+ * <li> -c &lt;seconds&gt; ... gives the interval of the checkpoints, a shard is closed after that time even if it is not full, default is 300.</li>
+ * <li> --resume ... continues a run that did not finish, with the files not done yet.</li>
+ * <li> --incremental ... runs again over the list, only for the files modified since the start of the last run.</li>
  * <li> -f ... forces to overwrite the &lt;outfile&gt;. If the &lt;outfile&gt; already exists and -f is not given, then the operation is aborted.</li>
  * <li> -a ... use both BitSampling and MetricSpaces.</li>
  * <li> -l ... disables BitSampling and uses MetricSpaces instead.</li>
  * </ul>
  * <p>
- * TODO: Make feature list change-able
+ * The work is done in a pipeline of stages, each with its own threads and a bounded queue in front of it: reading
+ * the files, decoding the images, extracting the features and writing the documents. A stage that can't keep up
+ * fills its queue and blocks the stages before it, so the memory stays bounded. Reading uses virtual threads if the
+ * JVM has them (Java 21 and newer). A single thread writes to the outfile, so the others never wait for a lock.
+ * The status output shows the throughput, queue size and busy share of each stage, the busiest one is marked with
+ * a '*' and is the one to give more threads, if the machine has the cores.
  * </p>
- * You then basically need to enrich the file with whatever metadata you prefer and send it to Solr using for instance curl:
+ * <p>
+ * With shards or individual files the progress is saved in a checkpoint, &lt;outfile&gt;.checkpoint or
+ * &lt;infile&gt;.checkpoint, see {@link Checkpoint}. A shard is only in the checkpoint once it is closed and synced
+ * to disk, so after a crash --resume writes the shard that was open again and then goes on with new shards. The
+ * incremental mode adds new shards for the changed files to the ones of the earlier runs. Images that can't be read,
+ * decoded or analyzed count as done, a document that can't be written aborts the run, so it is written on --resume.
+ * </p>
+ * <p>
+ * With -u the documents are sent with javabin by a {@link SolrUpdateClient}, the features as byte[] instead of Base64,
+ * and committed at the end. There are no checkpoints then, as Solr has the documents.
+ * </p>
+ * Otherwise you then basically need to enrich the file with whatever metadata you prefer and send it to Solr using for instance curl:
  * <pre>curl http://localhost:9000/solr/lire/update  -H "Content-Type: text/xml" --data-binary @extracted_file.xml
  * curl http://localhost:9000/solr/lire/update  -H "Content-Type: text/xml" --data-binary "&lt;commit/&gt;"</pre>
  *
  * @author Mathias Lux, mathias@juggle.at on  13.08.2013
  */
 public class ParallelSolrIndexer implements Runnable {
-    private final int maxCacheSize = 250;
-    //    private static HashMap<Class, String> classToPrefix = new HashMap<Class, String>(5);
+    private static final Item END = new Item(null, -1);
+    // items taken from a queue at once, so the threads of a stage don't contend on every item.
+    private static final int BATCH_SIZE = 64;
     private boolean force = false;
     private static boolean individualFiles = false;
     private static int numberOfThreads = 8;
+    private int decodeThreads = 0, readThreads = 0;
+    private int queueSize = 250;
 
     private boolean useMetricSpaces = false, useBitSampling = true;
 
-    LinkedBlockingQueue<WorkItem> images = new LinkedBlockingQueue<WorkItem>(maxCacheSize);
-    boolean ended = false;
-    int overallCount = 0;
     OutputStream dos = null;
     Set<Class> listOfFeatures;
 
     File fileList = null;
     File outFile = null;
-    private int monitoringInterval = 1;
+    private int monitoringInterval = 10;
+    // documents per shard, 0 for a single outfile.
+    private int shardSize = 0;
+    private int checkpointInterval = 300;
+    private boolean resume = false, incremental = false;
+    private Checkpoint checkpoint = null;
+    private String solrUrl = null;
+    private SolrUpdateClient solr = null;
+    // files skipped in an incremental run as they were not modified.
+    private final LongAdder unchanged = new LongAdder();
 
     public ParallelSolrIndexer() {
         // default constructor.
         listOfFeatures = new HashSet<Class>();
-
-        HashingMetricSpacesManager.init(); // load reference points from disk.
-
     }
 
     /**
@@ -122,7 +156,6 @@ public class ParallelSolrIndexer implements Runnable {
     }
 
     public static void main(String[] args) throws IOException {
-        HashingMetricSpacesManager.init();
         ParallelSolrIndexer e = new ParallelSolrIndexer();
 
         // parse programs args ...
@@ -141,6 +174,15 @@ public class ParallelSolrIndexer implements Runnable {
                 if ((i + 1) < args.length)
                     e.setOutFile(new File(args[i + 1]));
                 else printHelp();
+            } else if (arg.startsWith("-u")) {
+                // the documents are sent to Solr instead of written to a file.
+                if ((i + 1) < args.length)
+                    e.setSolrUrl(args[i + 1]);
+                else printHelp();
+            } else if (arg.startsWith("--resume")) {
+                e.setResume(true);
+            } else if (arg.startsWith("--incremental")) {
+                e.setIncremental(true);
             } else if (arg.startsWith("-f") || arg.startsWith("--force")) {
                 e.setForce(true);
             } else if (arg.startsWith("-y") || arg.startsWith("--features")) {
@@ -149,8 +191,8 @@ public class ParallelSolrIndexer implements Runnable {
                     String[] ft = args[i + 1].split(",");
                     for (int j = 0; j < ft.length; j++) {
                         String s = ft[j].trim();
-                        if (FeatureRegistry.getClassForCode(s) != null) {
-                            e.addFeature(FeatureRegistry.getClassForCode(s));
+                        if (FeatureRegistry.getDefault().getClassForCode(s) != null) {
+                            e.addFeature(FeatureRegistry.getDefault().getClassForCode(s));
                         }
                     }
                 }
@@ -171,6 +213,22 @@ public class ParallelSolrIndexer implements Runnable {
                         e1.printStackTrace();
                     }
                 else printHelp();
+            } else if (arg.startsWith("-d") || arg.startsWith("-r") || arg.startsWith("-q") || arg.startsWith("-m")
+                    || arg.startsWith("-s") || arg.startsWith("-c")) {
+                if ((i + 1) < args.length)
+                    try {
+                        int value = Integer.parseInt(args[i + 1]);
+                        if (arg.startsWith("-d")) e.setDecodeThreads(value);
+                        else if (arg.startsWith("-r")) e.setReadThreads(value);
+                        else if (arg.startsWith("-q")) e.setQueueSize(value);
+                        else if (arg.startsWith("-s")) e.setShardSize(value);
+                        else if (arg.startsWith("-c")) e.setCheckpointInterval(value);
+                        else e.setMonitoringInterval(value);
+                    } catch (Exception e1) {
+                        System.err.println("Could not set " + arg + " to \"" + args[i + 1] + "\".");
+                        e1.printStackTrace();
+                    }
+                else printHelp();
             }
         }
         // check if there is an infile, an outfile and some features to extract.
@@ -184,18 +242,31 @@ public class ParallelSolrIndexer implements Runnable {
     private static void printHelp() {
         System.out.println("This help text is shown if you start the ParallelSolrIndexer with the '-h' option.\n" +
                 "\n" +
-                "$> ParallelSolrIndexer -i <infile> [-o <outfile>] [-n <threads>] [-f] [-p] [-l] [-a] \\\\ \n" +
-                "         [-y <list of feature classes>]\n" +
+                "$> ParallelSolrIndexer -i <infile> [-o <outfile> | -u <url>] [-n <threads>] [-d <threads>] [-r <threads>] \\\\ \n" +
+                "         [-q <size>] [-m <seconds>] [-s <documents>] [-c <seconds>] [--resume] [--incremental] \\ \n" +
+                "         [-f] [-p] [-l] [-a] [-y <list of feature classes>]\n" +
                 "\n" +
                 "Note: if you don't specify an outfile just \".xml\" is appended to the input image for output. So there will be one XML\n" +
                 "file per image. Specifying an outfile will collect the information of all images in one single file.\n" +
                 "\n" +
-                "-n ... number of threads should be something your computer can cope with. default is 4.\n" +
+                "-u ... sends the documents with javabin to the Solr core with the URL, e.g. http://localhost:8983/solr/lire\n" +
+                "-n ... number of threads extracting features, should be something your computer can cope with. default is 8.\n" +
+                "-d ... number of threads decoding images. default is half the number of extraction threads.\n" +
+                "-r ... number of threads reading files. default is 64 with virtual threads (Java 21+), 4 otherwise.\n" +
+                "-q ... number of files read ahead and of documents waiting to be written. default is 250.\n" +
+                "-m ... seconds between status lines. default is 10.\n" +
+                "-s ... documents per output shard, out.xml is written as out-00000.xml, out-00001.xml, ...\n" +
+                "-c ... seconds between checkpoints, a shard is closed after that time even if not full. default is 300.\n" +
+                "--resume ... continues an unfinished run with shards or individual files from its checkpoint.\n" +
+                "--incremental ... runs over the list again, only for files modified since the last run started.\n" +
                 "-f ... forces overwrite of outfile\n" +
                 "-a ... use both BitSampling and MetricSpaces.\n" +
                 "-l ... disables BitSampling and uses MetricSpaces instead.\n" +
                 "-y ... defines which feature classes are to be extracted. default is \"-y ph,cl,eh,jc\". \"-y ce,ac\" would \n" +
-                "       add to the other four features. ");
+                "       add to the other four features. \n" +
+                "\n" +
+                "The status lines show images/s, queue size and busy share of each stage, the busiest is marked with '*'.\n" +
+                "Give that stage more threads if there are idle cores.");
     }
 
     public static String arrayToString(int[] array) {
@@ -234,10 +305,78 @@ public class ParallelSolrIndexer implements Runnable {
         this.outFile = outFile;
     }
 
+    /**
+     * Sets the number of threads decoding the images, 0 for half the number of extraction threads.
+     */
+    public void setDecodeThreads(int decodeThreads) {
+        this.decodeThreads = decodeThreads;
+    }
+
+    /**
+     * Sets the number of threads reading the files, 0 for the default.
+     */
+    public void setReadThreads(int readThreads) {
+        this.readThreads = readThreads;
+    }
+
+    /**
+     * Sets the number of files read ahead and of documents waiting to be written.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Sets the seconds between two status lines.
+     */
+    public void setMonitoringInterval(int monitoringInterval) {
+        this.monitoringInterval = monitoringInterval;
+    }
+
+    /**
+     * Sets the number of documents per output shard, 0 for a single outfile.
+     */
+    public void setShardSize(int shardSize) {
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * Sets the seconds between two checkpoints.
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Continues the unfinished run from its checkpoint.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Runs again over the list of the last run, only for the files modified since it started.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Sets the URL of the Solr core or collection the documents are sent to instead of writing XML.
+     */
+    public void setSolrUrl(String solrUrl) {
+        this.solrUrl = solrUrl;
+    }
+
     private boolean isConfigured() {
         boolean configured = true;
         if (fileList == null || !fileList.exists()) configured = false;
-        else if (outFile == null) {
+        else if (solrUrl != null) {
+            if (resume || incremental) {
+                System.err.println("--resume and --incremental need shards or individual files, not -u.");
+                configured = false;
+            }
+        } else if (outFile == null) {
             individualFiles = true;
             // create an outfile ...
 //            try {
@@ -246,7 +385,7 @@ public class ParallelSolrIndexer implements Runnable {
 //            } catch (IOException e) {
 //                configured = false;
 //            }
-        } else if (outFile.exists() && !force) {
+        } else if (shardSize <= 0 && !resume && !incremental && outFile.exists() && !force) {
             System.err.println(outFile.getName() + " already exists. Please delete or choose another outfile.");
             configured = false;
         }
@@ -260,48 +399,216 @@ public class ParallelSolrIndexer implements Runnable {
             System.err.println("No text file with a list of images given.");
             return;
         }
+        if (listOfFeatures.isEmpty()) {
+            addFeature(PHOG.class);
+            addFeature(ColorLayout.class);
+            addFeature(EdgeHistogram.class);
+            addFeature(JCD.class);
+        }
         System.out.println("Extracting features: ");
         for (Iterator<Class> iterator = listOfFeatures.iterator(); iterator.hasNext(); ) {
             System.out.println("\t" + iterator.next().getCanonicalName());
         }
         try {
-            if (!individualFiles) {
+            if (!prepareCheckpoint()) return;
+            if (solrUrl != null) {
+                solr = SolrUpdateClient.forUrl(solrUrl, SolrUpdateClient.DEFAULT_BATCH_SIZE,
+                        SolrUpdateClient.DEFAULT_THREADS, SolrUpdateClient.DEFAULT_RETRIES);
+            } else if (!individualFiles && shardSize <= 0) {
                 // create a BufferedOutputStream with a large buffer
                 dos = new BufferedOutputStream(new FileOutputStream(outFile), 1024 * 1024 * 8);
-                dos.write("<add>\n".getBytes());
+                dos.write("<add>\n".getBytes(StandardCharsets.UTF_8));
+            }
+            long total = countFiles() - (checkpoint != null ? checkpoint.countDone() : 0);
+            ThreadFactory virtualThreads = virtualThreadFactory();
+            ThreadFactory platformThreads = Executors.defaultThreadFactory();
+            ThreadFactory ioThreads = virtualThreads != null ? virtualThreads : platformThreads;
+            int readers = readThreads > 0 ? readThreads : (virtualThreads != null ? 64 : 4);
+            int decoders = decodeThreads > 0 ? decodeThreads : Math.max(1, numberOfThreads / 2);
+
+            BlockingQueue<Item> toRead = new ArrayBlockingQueue<>(Math.max(queueSize, readers));
+            BlockingQueue<Item> toDecode = new ArrayBlockingQueue<>(queueSize);
+            // decoded images are large, so only a few of them wait for extraction.
+            BlockingQueue<Item> toExtract = new ArrayBlockingQueue<>(2 * numberOfThreads);
+            BlockingQueue<Item> toWrite = new ArrayBlockingQueue<>(queueSize);
+            List<Stage<Item>> stages = new ArrayList<>();
+            stages.add(new Stage<>("read", readers, ioThreads, toRead, toDecode, END, () -> this::read, 1));
+            stages.add(new Stage<>("decode", decoders, platformThreads, toDecode, toExtract, END, () -> this::decode, 1));
+            stages.add(new Stage<>("extract", numberOfThreads, platformThreads, toExtract, toWrite, END, Extractor::new, 1));
+            // one writer owns the outfile, individual files can be written in parallel.
+            DocumentWriter writer = new DocumentWriter();
+            stages.add(individualFiles
+                    ? new Stage<>("write", readers, ioThreads, toWrite, null, END, DocumentWriter::new, BATCH_SIZE)
+                    : new Stage<>("write", 1, platformThreads, toWrite, null, END, () -> writer, BATCH_SIZE));
+            Stage<Item> writeStage = stages.get(stages.size() - 1);
+            if (checkpoint != null) {
+                // an image that can't be read, decoded or extracted would fail again, so it is done.
+                for (Stage<Item> stage : stages) {
+                    if (stage != writeStage) stage.setFailureListener(item -> checkpoint.done(item.seq));
+                }
             }
-            Thread p = new Thread(new Producer(), "Producer");
-            p.start();
-            LinkedList<Thread> threads = new LinkedList<Thread>();
+            // a document that could not be written is not done, so the run stops and --resume writes it again.
+            writeStage.setFailureListener(item -> stages.forEach(Stage::abort));
+
             long l = System.currentTimeMillis();
-            for (int i = 0; i < numberOfThreads; i++) {
-                Thread c = new Thread(new Consumer(), "Consumer-" + i);
-                c.start();
-                threads.add(c);
+            for (Stage<Item> stage : stages) {
+                stage.start();
             }
-            if (ParallelSolrIndexer.numberOfThreads > 1) {
-                Thread m = new Thread(new Monitoring(), "Monitoring");
-                m.start();
+            Thread m = new Thread(new Monitoring(stages, total), "Monitoring");
+            m.setDaemon(true);
+            m.start();
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fileList), StandardCharsets.UTF_8))) {
+                String file;
+                long seq = 0;
+                while ((file = br.readLine()) != null && !writeStage.isAborted()) {
+                    if (file.trim().isEmpty()) continue;
+                    if (checkpoint == null || !checkpoint.isDone(seq)) toRead.put(new Item(file.trim(), seq));
+                    seq++;
+                }
+            } finally {
+                toRead.put(END);
             }
-            for (Iterator<Thread> iterator = threads.iterator(); iterator.hasNext(); ) {
-                iterator.next().join();
+            for (Stage<Item> stage : stages) {
+                stage.join();
             }
+            m.interrupt();
             long l1 = System.currentTimeMillis() - l;
+            long overallCount = stages.get(stages.size() - 1).getProcessed();
             System.out.println("Analyzed " + overallCount + " images in " + l1 / 1000 + " seconds, ~" + (overallCount > 0 ? (l1 / overallCount) : "inf.") + " ms each.");
-            if (!individualFiles) {
-                dos.write("</add>\n".getBytes());
+            for (Stage<Item> stage : stages) {
+                System.out.println(String.format("\t%s: %d threads, %d done, %d failed, %.1f s busy", stage.getName(),
+                        stage.getThreads(), stage.getProcessed(), stage.getFailed(), stage.getBusyNanos() / 1e9));
+            }
+            if (writeStage.isAborted()) {
+                // keeps what has been done so far, without the open shard, as its file may be broken.
+                if (checkpoint != null) checkpoint.save();
+                System.err.println("Writing failed, the run has been aborted." + (checkpoint != null ? " Continue it with --resume." : ""));
+                return;
+            }
+            if (dos != null) {
+                dos.write("</add>\n".getBytes(StandardCharsets.UTF_8));
                 dos.close();
             }
-//            writer.commit();
-//            writer.close();
-//            threadFinished = true;
-
+            writer.closeShard();
+            if (solr != null) {
+                solr.close();
+                System.out.println(String.format("Sent %d documents to %s, %d failed.", solr.getSent(), solrUrl, solr.getFailed()));
+            }
+            if (checkpoint != null) {
+                checkpoint.finish();
+                if (unchanged.sum() > 0) System.out.println("Skipped " + unchanged.sum() + " images not modified since the last run.");
+            }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            // also after a failure, so the documents sent so far are committed and the file is closed.
+            for (Closeable closeable : new Closeable[]{solr, dos}) {
+                try {
+                    if (closeable != null) closeable.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
 
     }
 
+    /**
+     * Loads the checkpoint to resume from, or creates a new one if the output is sharded or written to individual
+     * files.
+     *
+     * @return false if the run can't go on.
+     */
+    private boolean prepareCheckpoint() throws IOException {
+        if (solrUrl != null) return true;
+        File file = individualFiles ? new File(fileList.getPath() + ".checkpoint") : new File(outFile.getPath() + ".checkpoint");
+        if (resume || incremental) {
+            if (!file.exists()) {
+                System.err.println("There is no checkpoint " + file.getPath() + " to continue from.");
+                return false;
+            }
+            checkpoint = Checkpoint.load(file);
+            if (resume && checkpoint.isFinished()) {
+                System.out.println("The run of " + file.getPath() + " is finished, there is nothing to resume.");
+                return false;
+            } else if (resume && !fileList.getCanonicalPath().equals(checkpoint.getFileList())) {
+                System.err.println("The checkpoint is for the list " + checkpoint.getFileList() + ", not for " + fileList.getCanonicalPath() + ".");
+                return false;
+            } else if (incremental && !checkpoint.isFinished()) {
+                System.err.println("The last run of " + file.getPath() + " did not finish, use --resume first.");
+                return false;
+            }
+            if (incremental) checkpoint.startIncrementalRun();
+            if (!individualFiles) shardSize = checkpoint.getShardSize();
+            System.out.println(String.format("Continuing from %d images done and %d shards.", checkpoint.countDone(), checkpoint.getShardCount()));
+        } else if (individualFiles || shardSize > 0) {
+            if (!individualFiles && file.exists() && !force) {
+                System.err.println(file.getName() + " already exists. Use --resume, --incremental or -f to start over.");
+                return false;
+            }
+            checkpoint = new Checkpoint(file, fileList.getCanonicalPath(), individualFiles ? 0 : shardSize);
+            checkpoint.save();
+        }
+        return true;
+    }
+
+    /**
+     * @return the output file of the shard with the given number, e.g. out-00003.xml for out.xml.
+     */
+    private File shardFile(int number) {
+        String name = outFile.getName();
+        int dot = name.lastIndexOf('.');
+        String shard = dot > 0
+                ? String.format("%s-%05d%s", name.substring(0, dot), number, name.substring(dot))
+                : String.format("%s-%05d", name, number);
+        return new File(outFile.getAbsoluteFile().getParentFile(), shard);
+    }
+
+    /**
+     * @return the number of files in the list, for the ETA.
+     */
+    private long countFiles() throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fileList), StandardCharsets.UTF_8))) {
+            return br.lines().filter(line -> !line.trim().isEmpty()).count();
+        }
+    }
+
+    /**
+     * @return a factory of virtual threads, or null if the JVM has none. Looked up by reflection as the plugin is
+     * built for older Java versions.
+     */
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private Item read(Item item) throws IOException {
+        File next = new File(item.file);
+        if (checkpoint != null && checkpoint.getSince() > 0
+                && Files.getLastModifiedTime(next.toPath()).toMillis() < checkpoint.getSince()) {
+            checkpoint.done(item.seq);
+            unchanged.increment();
+            return null;
+        }
+        item.id = next.getCanonicalPath();
+        item.buffer = Files.readAllBytes(next.toPath());
+        return item;
+    }
+
+    private Item decode(Item item) throws IOException {
+        // reads the image. Make sure twelve monkeys lib is in the path to read all jpegs and tiffs.
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(item.buffer));
+        if (read == null) throw new IOException("Unsupported image format.");
+        item.buffer = null;
+        // converts color space to INT_RGB
+        item.image = ImageUtils.createWorkingCopy(read);
+        return item;
+    }
+
     private void addFeatures(List features) {
         for (Iterator<Class> iterator = listOfFeatures.iterator(); iterator.hasNext(); ) {
             Class next = iterator.next();
@@ -333,164 +640,205 @@ public class ParallelSolrIndexer implements Runnable {
         this.useBitSampling = useBothHashingAlgortihms;
     }
 
+    /**
+     * An image on its way through the stages, the fields no longer needed are cleared to save memory.
+     */
+    static class Item {
+        final String file;
+        // the number of the file in the list, not counting empty lines.
+        final long seq;
+        String id;
+        byte[] buffer;
+        BufferedImage image;
+        // field name to byte[] for the features and String for the hashes.
+        final Map<String, Object> fields = new LinkedHashMap<>();
+
+        Item(String file, long seq) {
+            this.file = file;
+            this.seq = seq;
+        }
+
+        @Override
+        public String toString() {
+            return file;
+        }
+    }
+
     class Monitoring implements Runnable {
+        private final List<Stage<Item>> stages;
+        private final long total;
+
+        Monitoring(List<Stage<Item>> stages, long total) {
+            this.stages = stages;
+            this.total = total;
+        }
+
         public void run() {
-            long ms = System.currentTimeMillis();
-            try {
-                Thread.sleep(1000 * monitoringInterval); // wait xx seconds
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            while (!ended) {
+            long start = System.nanoTime(), last = start;
+            long[] lastProcessed = new long[stages.size()], lastBusy = new long[stages.size()];
+            long lastDone = 0;
+            double rate = -1;
+            while (true) {
                 try {
-                    // print the current status:
-                    long time = System.currentTimeMillis() - ms;
-                    System.out.println("Analyzed " + overallCount + " images in " + time / 1000 + " seconds, " + ((overallCount > 0) ? (time / overallCount) : "n.a.") + " ms each (" + images.size() + " images currently in queue).");
-                    Thread.sleep(1000 * monitoringInterval); // wait xx seconds
+                    Thread.sleep(1000L * monitoringInterval); // wait xx seconds
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    return;
                 }
-            }
-        }
-    }
-
-    class Producer implements Runnable {
-        public void run() {
-            try {
-                BufferedReader br = new BufferedReader(new FileReader(fileList));
-                String file = null;
-                File next = null;
-                while ((file = br.readLine()) != null) {
-                    next = new File(file);
-                    try {
-                        // reading from hard drive to buffer to reduce the load on the HDD and move decoding to the
-                        // consumers using java.nio
-                        int fileSize = (int) next.length();
-                        byte[] buffer = new byte[fileSize];
-                        FileInputStream fis = new FileInputStream(next);
-                        FileChannel channel = fis.getChannel();
-                        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
-                        map.load();
-                        map.get(buffer);
-                        String path = next.getCanonicalPath();
-                        images.put(new WorkItem(path, buffer));
-                    } catch (Exception e) {
-                        System.err.println("Could not read image " + file + ": " + e.getMessage());
+                long now = System.nanoTime();
+                double seconds = (now - last) / 1e9;
+                last = now;
+                long done = 0;
+                double maxBusy = -1;
+                int bottleneck = 0;
+                double[] busy = new double[stages.size()];
+                String[] status = new String[stages.size()];
+                for (int i = 0; i < stages.size(); i++) {
+                    Stage<Item> stage = stages.get(i);
+                    long processed = stage.getProcessed(), busyNanos = stage.getBusyNanos();
+                    // busy time is counted when an item is done, so it may slightly exceed the interval.
+                    busy[i] = Math.min(1, (busyNanos - lastBusy[i]) / (seconds * 1e9 * stage.getThreads()));
+                    status[i] = String.format("%s %.1f/s q %d %.0f%%", stage.getName(),
+                            (processed - lastProcessed[i]) / seconds, stage.getQueueSize(), 100 * busy[i]);
+                    if (busy[i] > maxBusy) {
+                        maxBusy = busy[i];
+                        bottleneck = i;
                     }
+                    lastProcessed[i] = processed;
+                    lastBusy[i] = busyNanos;
+                    // an image is done once written or failed in any stage.
+                    done += stage.getFailed();
                 }
-                for (int i = 0; i < numberOfThreads*2; i++) {
-                    String tmpString = null;
-                    byte[] tmpImg = null;
-                    try {
-                        images.put(new WorkItem(tmpString, tmpImg));
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                done += lastProcessed[stages.size() - 1] + unchanged.sum();
+                // the rate is smoothed over the last few intervals.
+                double current = (done - lastDone) / seconds;
+                rate = rate < 0 ? current : 0.7 * rate + 0.3 * current;
+                lastDone = done;
+                StringBuilder sb = new StringBuilder(256);
+                sb.append(String.format("Analyzed %d of %d images in %d seconds, %.1f images/s, ETA %s |", done, total,
+                        (now - start) / 1000000000L, rate, rate > 0 ? formatDuration((long) ((total - done) / rate)) : "n.a."));
+                for (int i = 0; i < stages.size(); i++) {
+                    sb.append(' ').append(status[i]).append(i == bottleneck ? " *" : "").append(i < stages.size() - 1 ? " |" : "");
                 }
-
-            } catch (IOException e) {
-                e.printStackTrace();
+                System.out.println(sb);
             }
-            ended = true;
+        }
+
+        private String formatDuration(long seconds) {
+            return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
         }
     }
 
-    class Consumer implements Runnable {
-        WorkItem tmp = null;
+    /**
+     * Extracts the features of an image, each thread has its own feature instances.
+     */
+    class Extractor implements Stage.Worker<Item> {
         LinkedList<GlobalFeature> features = new LinkedList<GlobalFeature>();
-        int count = 0;
-        boolean locallyEnded = false;
-        StringBuilder sb = new StringBuilder(1024);
 
-        Consumer() {
+        Extractor() {
             addFeatures(features);
         }
 
-        public void run() {
-            while (!locallyEnded) {
-                try {
-                    // we wait for the stack to be either filled or empty & not being filled any more.
-                    // make sure the thread locally knows that the end has come (outer loop)
-//                    if (images.peek().getBuffer() == null)
-//                        locallyEnded = true;
-                    // well the last thing we want is an exception in the very last round.
-                    if (!locallyEnded) {
-                        tmp = images.take();
-                        if (tmp.getBuffer() == null)
-                            locallyEnded = true;
-                        else {
-                            count++;
-                            overallCount++;
-                        }
+        @Override
+        public Item process(Item item) {
+            for (GlobalFeature feature : features) {
+                String featureCode = FeatureRegistry.getDefault().getCodeForClass(feature.getClass());
+                if (featureCode != null) {
+                    feature.extract(item.image);
+                    String histogramField = FeatureRegistry.codeToFeatureField(featureCode);
+                    String hashesField = FeatureRegistry.codeToHashField(featureCode);
+                    String metricSpacesField = FeatureRegistry.codeToMetricSpacesField(featureCode);
+                    item.fields.put(histogramField, feature.getByteArrayRepresentation());
+                    if (useBitSampling) {
+                        item.fields.put(hashesField, arrayToString(HashingMetricSpacesManager.getDefault().generateHashes(hashesField, feature.getFeatureVector())));
                     }
-
-                    if (!locallyEnded) {
-                        sb.delete(0, sb.length());
-                        ByteArrayInputStream b = new ByteArrayInputStream(tmp.getBuffer());
-
-                        // reads the image. Make sure twelve monkeys lib is in the path to read all jpegs and tiffs.
-                        BufferedImage read = ImageIO.read(b);
-                        // converts color space to INT_RGB
-                        BufferedImage img = ImageUtils.createWorkingCopy(read);                        
-
-                        // --------< creating doc >-------------------------
-                        sb.append("<doc>");
-                        sb.append("<field name=\"id\">");
-                        sb.append(tmp.getFileName());
-                        sb.append("</field>");
-
-                        for (GlobalFeature feature : features) {
-                            String featureCode = FeatureRegistry.getCodeForClass(feature.getClass());
-                            if (featureCode != null) {
-                                feature.extract(img);
-                                String histogramField = FeatureRegistry.codeToFeatureField(featureCode);
-                                String hashesField = FeatureRegistry.codeToHashField(featureCode);
-                                String metricSpacesField = FeatureRegistry.codeToMetricSpacesField(featureCode);
-
-                                sb.append("<field name=\"" + histogramField + "\">");
-                                sb.append(Base64.getEncoder().encodeToString(feature.getByteArrayRepresentation()));
-                                sb.append("</field>");
-                                if (useBitSampling) {
-                                    sb.append("<field name=\"" + hashesField + "\">");
-                                    sb.append(arrayToString(BitSampling.generateHashes(feature.getFeatureVector())));
-                                    sb.append("</field>");
-                                }
-                                if (useMetricSpaces && MetricSpaces.supportsFeature(feature)) {
-                                    sb.append("<field name=\"" + metricSpacesField + "\">");
-                                    sb.append(MetricSpaces.generateHashString(feature));
-                                    sb.append("</field>");
-                                }
-                            }
-                        }
-                        sb.append("</doc>\n");
-
-                        // --------< / creating doc >-------------------------
-
-                        // finally write everything to the stream - in case no exception was thrown..
-                        if (!individualFiles) {
-                            synchronized (dos) {
-                                dos.write(sb.toString().getBytes());
-                                // dos.flush();  // flushing takes too long ... better not.
-                            }
-                        } else {
-                            OutputStream mos = new BufferedOutputStream(new FileOutputStream(tmp.getFileName() + "_solr.xml"));
-                            mos.write(sb.toString().getBytes());
-                            mos.flush();
-                            mos.close();
-                        }
+                    if (useMetricSpaces && HashingMetricSpacesManager.getDefault().supportsFeature(feature)) {
+                        item.fields.put(metricSpacesField, HashingMetricSpacesManager.getDefault().generateHashString(feature));
                     }
-//                    if (!individualFiles) {
-//                        synchronized (dos) {
-//                            dos.write(buffer.toString().getBytes());
-//                        }
-//                    }
-                } catch (Exception e) {
-                    System.err.println("Error processing file " + tmp.getFileName());
-                    e.printStackTrace();
                 }
             }
+            item.image = null;
+            return item;
         }
     }
 
+    /**
+     * Serializes the documents to XML and writes them either to the outfile or its shards, which only one writer
+     * has, or to a file next to each image. With -u the documents are queued for sending to Solr instead.
+     */
+    class DocumentWriter implements Stage.Worker<Item> {
+        StringBuilder sb = new StringBuilder(1024);
+        // the open shard and the files in it.
+        FileOutputStream shard = null;
+        OutputStream shardOut = null;
+        File shardFile = null;
+        long shardOpened = 0;
+        List<Long> inShard = new ArrayList<>();
+
+        @Override
+        public Item process(Item item) throws IOException, InterruptedException {
+            if (solr != null) {
+                SolrInputDocument document = new SolrInputDocument();
+                document.addField("id", item.id);
+                for (Map.Entry<String, Object> field : item.fields.entrySet()) {
+                    document.addField(field.getKey(), field.getValue());
+                }
+                solr.add(document);
+                return item;
+            }
+            // --------< creating doc >-------------------------
+            sb.delete(0, sb.length());
+            sb.append("<doc>");
+            sb.append("<field name=\"id\">");
+            Utilities.appendEscaped(sb, item.id);
+            sb.append("</field>");
+            for (Map.Entry<String, Object> field : item.fields.entrySet()) {
+                sb.append("<field name=\"").append(field.getKey()).append("\">");
+                if (field.getValue() instanceof byte[])
+                    sb.append(Base64.getEncoder().encodeToString((byte[]) field.getValue()));
+                else sb.append(field.getValue());
+                sb.append("</field>");
+            }
+            sb.append("</doc>\n");
+            // --------< / creating doc >-------------------------
+
+            byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+            if (individualFiles) {
+                try (OutputStream mos = new BufferedOutputStream(new FileOutputStream(item.id + "_solr.xml"))) {
+                    mos.write(bytes);
+                }
+                checkpoint.done(item.seq);
+                checkpoint.saveIfDue(1000L * checkpointInterval);
+            } else if (shardSize > 0) {
+                if (shardOut == null) {
+                    shardFile = shardFile(checkpoint.getShardCount());
+                    shard = new FileOutputStream(shardFile);
+                    shardOut = new BufferedOutputStream(shard, 1024 * 1024 * 8);
+                    shardOut.write("<add>\n".getBytes(StandardCharsets.UTF_8));
+                    shardOpened = System.currentTimeMillis();
+                }
+                shardOut.write(bytes);
+                inShard.add(item.seq);
+                if (inShard.size() >= shardSize || System.currentTimeMillis() - shardOpened >= 1000L * checkpointInterval)
+                    closeShard();
+            } else {
+                dos.write(bytes);
+                // dos.flush();  // flushing takes too long ... better not.
+            }
+            return item;
+        }
 
+        /**
+         * Closes the open shard, syncs it to disk and adds it to the checkpoint.
+         */
+        void closeShard() throws IOException {
+            if (shardOut == null) return;
+            shardOut.write("</add>\n".getBytes(StandardCharsets.UTF_8));
+            shardOut.flush();
+            shard.getFD().sync();
+            shardOut.close();
+            shardOut = null;
+            checkpoint.addShard(shardFile.getName(), inShard);
+            inShard.clear();
+        }
+    }
 }
@@ -0,0 +1,217 @@
+package net.semanticmetadata.lire.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends documents to Solr in batches from a number of threads, as an alternative to writing XML files and posting
+ * them with curl. With {@link #forUrl(String, int, int, int)} the documents go over javabin, so the feature fields
+ * can be given as raw byte[] values instead of Base64, see {@link net.semanticmetadata.lire.solr.BinaryDocValuesField}.
+ *
+ * <p>{@link #add(SolrInputDocument)} blocks if the senders are behind. A batch failing with a server or connection
+ * error is sent again up to retries times, waiting 1, 2, 4, ... seconds in between. If Solr rejects a batch, e.g.
+ * for a bad field, its documents are sent one by one, so only the bad ones are lost. Failed documents are counted
+ * and logged. Any other exception stops the sending, it is thrown again by the next {@link #add(SolrInputDocument)}
+ * and by {@link #close()}.</p>
+ */
+public class SolrUpdateClient implements Closeable {
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_RETRIES = 3;
+    private static final SolrInputDocument END = new SolrInputDocument();
+
+    private final SolrClient client;
+    private final String collection;
+    private final int batchSize;
+    private final int retries;
+    private final BlockingQueue<SolrInputDocument> queue;
+    private final List<Thread> senders = new ArrayList<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private boolean ownsClient = false;
+    private boolean commit = true;
+    private volatile boolean closed = false;
+
+    /**
+     * @param client     the client, e.g. an embedded server, it is not closed with this one.
+     * @param collection the collection, or null if the client has a default one.
+     * @param threads    the number of threads sending batches.
+     * @param retries    the number of times a failing batch is sent again.
+     */
+    public SolrUpdateClient(SolrClient client, String collection, int batchSize, int threads, int retries) {
+        this.client = client;
+        this.collection = collection;
+        this.batchSize = Math.max(1, batchSize);
+        this.retries = retries;
+        queue = new ArrayBlockingQueue<>(2 * this.batchSize * Math.max(1, threads));
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            Thread sender = new Thread(this::send, "SolrUpdateClient-" + i);
+            // doesn't keep the JVM running if the client is not closed.
+            sender.setDaemon(true);
+            sender.start();
+            senders.add(sender);
+        }
+    }
+
+    /**
+     * @param url the URL of the core or collection, e.g. http://localhost:8983/solr/lire
+     */
+    public static SolrUpdateClient forUrl(String url, int batchSize, int threads, int retries) {
+        HttpSolrClient client = new HttpSolrClient.Builder(url).build();
+        client.setRequestWriter(new BinaryRequestWriter());
+        SolrUpdateClient updateClient = new SolrUpdateClient(client, null, batchSize, threads, retries);
+        updateClient.ownsClient = true;
+        return updateClient;
+    }
+
+    /**
+     * @param commit true to commit when closing, the default.
+     */
+    public void setCommit(boolean commit) {
+        this.commit = commit;
+    }
+
+    /**
+     * Queues the document for sending, thread safe.
+     *
+     * @throws IllegalStateException if the client is closed or sending failed, with the failure as cause.
+     */
+    public void add(SolrInputDocument document) throws InterruptedException {
+        if (closed) throw new IllegalStateException("The client is closed.");
+        checkFailure();
+        // the senders might stop while the queue is full.
+        while (!queue.offer(document, 100, TimeUnit.MILLISECONDS)) {
+            checkFailure();
+        }
+    }
+
+    private void checkFailure() {
+        Throwable t = failure.get();
+        if (t != null) throw new IllegalStateException("Sending the documents failed: " + t, t);
+    }
+
+    private void send() {
+        List<SolrInputDocument> batch = new ArrayList<>(batchSize);
+        try {
+            boolean ended = false;
+            while (!ended) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                if (batch.removeIf(document -> document == END)) ended = true;
+                if (!batch.isEmpty()) send(batch, true);
+                batch.clear();
+            }
+            // lets the other senders see the end too.
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private void send(List<SolrInputDocument> batch, boolean split) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                UpdateRequest request = new UpdateRequest();
+                request.add(batch);
+                request.process(client, collection);
+                sent.add(batch.size());
+                return;
+            } catch (SolrException e) {
+                if (e.code() >= 400 && e.code() < 500) {
+                    // rejected by Solr, sending it again won't help.
+                    if (split && batch.size() > 1) {
+                        for (SolrInputDocument document : batch) {
+                            send(Collections.singletonList(document), false);
+                        }
+                    } else {
+                        failed.add(batch.size());
+                        System.err.println("Solr rejected document " + batch.get(0).getFieldValue("id") + ": " + e.getMessage());
+                    }
+                    return;
+                }
+                if (!retry(batch, attempt, e)) return;
+            } catch (SolrServerException | IOException e) {
+                if (!retry(batch, attempt, e)) return;
+            }
+        }
+    }
+
+    private boolean retry(List<SolrInputDocument> batch, int attempt, Exception e) throws InterruptedException {
+        if (attempt >= retries) {
+            failed.add(batch.size());
+            System.err.println("Could not send " + batch.size() + " documents after " + (attempt + 1) + " attempts: " + e.getMessage());
+            return false;
+        }
+        retried.increment();
+        Thread.sleep(1000L << attempt);
+        return true;
+    }
+
+    /**
+     * Sends the queued documents, commits if set and closes the client if it was created here.
+     *
+     * @throws IOException if committing or sending failed, with the first failure of the senders as cause.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            while (failure.get() == null && !queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                // the queue is full, waiting for the senders.
+            }
+            for (Thread sender : senders) {
+                while (sender.isAlive()) {
+                    // after a failure the queued documents are not sent any more.
+                    if (failure.get() != null) sender.interrupt();
+                    sender.join(100);
+                }
+            }
+            if (failure.get() != null) {
+                throw new IOException("Sending the documents failed: " + failure.get(), failure.get());
+            }
+            if (commit) client.commit(collection);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SolrServerException e) {
+            throw new IOException(e);
+        } finally {
+            if (ownsClient) client.close();
+        }
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the number of batches sent again.
+     */
+    public long getRetried() {
+        return retried.sum();
+    }
+}
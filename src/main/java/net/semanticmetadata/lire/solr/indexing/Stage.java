@@ -0,0 +1,178 @@
+package net.semanticmetadata.lire.solr.indexing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * One stage of a pipeline: a number of threads taking items from a bounded input queue, processing them and putting
+ * them into the input queue of the next stage. The queues give back-pressure, a slow stage fills its input queue and
+ * blocks the stages before it. The end of the input is marked with the end item, which is passed on to the next
+ * stage once all threads of this stage are done.
+ *
+ * <p>Items are taken in batches of up to batchSize, so a thread touches the queue lock once per batch. The stage
+ * counts processed and failed items and the time spent processing, so the bottleneck can be found by comparing the
+ * busy share of the stages.</p>
+ *
+ * <p>An aborted stage drops the items it takes without processing them, but still passes on the end item, so the
+ * stages before it are not blocked and all stages end.</p>
+ *
+ * @param <T> the items.
+ */
+class Stage<T> {
+    /**
+     * Processes an item of the stage, each thread has its own worker.
+     */
+    interface Worker<T> {
+        /**
+         * @return the item for the next stage or null to drop it.
+         */
+        T process(T item) throws Exception;
+    }
+
+    private final String name;
+    private final int threads;
+    private final ThreadFactory threadFactory;
+    private final BlockingQueue<T> input;
+    private final BlockingQueue<T> output;
+    private final T end;
+    private final Supplier<Worker<T>> workers;
+    private final int batchSize;
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final List<Thread> started = new ArrayList<>();
+    private volatile boolean aborted = false;
+    private Consumer<T> failureListener = item -> {
+    };
+
+    /**
+     * @param output  the input of the next stage, null for the last stage.
+     * @param end     the item marking the end of the input.
+     * @param workers creates the worker of each thread.
+     */
+    Stage(String name, int threads, ThreadFactory threadFactory, BlockingQueue<T> input, BlockingQueue<T> output,
+          T end, Supplier<Worker<T>> workers, int batchSize) {
+        this.name = name;
+        this.threads = threads;
+        this.threadFactory = threadFactory;
+        this.input = input;
+        this.output = output;
+        this.end = end;
+        this.workers = workers;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Sets the listener called with the items the worker threw an exception for.
+     */
+    Stage<T> setFailureListener(Consumer<T> failureListener) {
+        this.failureListener = failureListener;
+        return this;
+    }
+
+    /**
+     * Drops the items not processed yet, the ones in process are finished.
+     */
+    void abort() {
+        aborted = true;
+    }
+
+    boolean isAborted() {
+        return aborted;
+    }
+
+    void start() {
+        running.set(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread thread = threadFactory.newThread(this::run);
+            thread.setName(name + "-" + i);
+            started.add(thread);
+            thread.start();
+        }
+    }
+
+    void join() throws InterruptedException {
+        for (Thread thread : started) {
+            thread.join();
+        }
+    }
+
+    private void run() {
+        Worker<T> worker = workers.get();
+        List<T> batch = new ArrayList<>(batchSize);
+        try {
+            boolean ended = false;
+            while (!ended) {
+                batch.add(input.take());
+                input.drainTo(batch, batchSize - 1);
+                for (T item : batch) {
+                    if (item == end) {
+                        ended = true;
+                        continue;
+                    }
+                    if (aborted) continue;
+                    long start = System.nanoTime();
+                    T result = null;
+                    try {
+                        result = worker.process(item);
+                        processed.increment();
+                    } catch (Exception e) {
+                        failed.increment();
+                        System.err.println("Error in " + name + " for " + item + ": " + e.getMessage());
+                        failureListener.accept(item);
+                    }
+                    busyNanos.add(System.nanoTime() - start);
+                    if (result != null && output != null) output.put(result);
+                }
+                batch.clear();
+            }
+            // lets the other threads of the stage see the end too.
+            input.put(end);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (running.decrementAndGet() == 0 && output != null) {
+                try {
+                    output.put(end);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    long getProcessed() {
+        return processed.sum();
+    }
+
+    long getFailed() {
+        return failed.sum();
+    }
+
+    long getBusyNanos() {
+        return busyNanos.sum();
+    }
+
+    int getQueueSize() {
+        return input.size();
+    }
+
+    boolean isRunning() {
+        return running.get() > 0;
+    }
+}
@@ -0,0 +1,171 @@
+package net.semanticmetadata.lire.solr.kernels;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * <p>Distance functions over primitive arrays and packed float vectors used in the re-ranking. The implementation
+ * is selected once at runtime: if the Java Vector API is available, i.e. Solr runs on Java 17+ with
+ * <code>--add-modules jdk.incubator.vector</code>, the SIMD implementation is used, otherwise the scalar one.
+ * Setting the system property <code>lire.kernels=scalar</code> forces the scalar implementation.</p>
+ *
+ * <p>All functions work on the common length of both vectors. Packed vectors are little endian float32 values
+ * as written by {@link #pack(float[])}. The SIMD implementation sums up in a different order, so float results
+ * may differ in the last digits, results over short[] and byte[] are exact.</p>
+ */
+public abstract class DistanceKernels {
+    private static final String VECTOR_IMPLEMENTATION = "net.semanticmetadata.lire.solr.kernels.VectorDistanceKernels";
+    private static final DistanceKernels INSTANCE = create();
+
+    /**
+     * @return the kernels for this JVM.
+     */
+    public static DistanceKernels get() {
+        return INSTANCE;
+    }
+
+    private static DistanceKernels create() {
+        if (!"scalar".equals(System.getProperty("lire.kernels"))) {
+            try {
+                return (DistanceKernels) Class.forName(VECTOR_IMPLEMENTATION).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                // no Vector API in this JVM, the scalar implementation is used.
+            }
+        }
+        return new ScalarDistanceKernels();
+    }
+
+    /**
+     * @return a short name of the implementation, e.g. for logging.
+     */
+    public abstract String getName();
+
+    // ---< float[] >---
+
+    public abstract double dot(float[] a, float[] b);
+
+    public abstract double l1(float[] a, float[] b);
+
+    public abstract double l2(float[] a, float[] b);
+
+    /**
+     * @return the dot product and the squared norms of a and b.
+     */
+    public abstract double[] dotAndNorms(float[] a, float[] b);
+
+    public double cosineDistance(float[] a, float[] b) {
+        return cosineDistance(dotAndNorms(a, b));
+    }
+
+    public double tanimotoDistance(float[] a, float[] b) {
+        return tanimotoDistance(dotAndNorms(a, b));
+    }
+
+    // ---< double[] >---
+
+    public abstract double dot(double[] a, double[] b);
+
+    public abstract double l1(double[] a, double[] b);
+
+    public abstract double l2(double[] a, double[] b);
+
+    public abstract double[] dotAndNorms(double[] a, double[] b);
+
+    public double cosineDistance(double[] a, double[] b) {
+        return cosineDistance(dotAndNorms(a, b));
+    }
+
+    public double tanimotoDistance(double[] a, double[] b) {
+        return tanimotoDistance(dotAndNorms(a, b));
+    }
+
+    // ---< short[] >---
+
+    public abstract double dot(short[] a, short[] b);
+
+    public abstract double l1(short[] a, short[] b);
+
+    public abstract double l2(short[] a, short[] b);
+
+    public abstract double[] dotAndNorms(short[] a, short[] b);
+
+    public double cosineDistance(short[] a, short[] b) {
+        return cosineDistance(dotAndNorms(a, b));
+    }
+
+    public double tanimotoDistance(short[] a, short[] b) {
+        return tanimotoDistance(dotAndNorms(a, b));
+    }
+
+    // ---< byte[] >---
+
+    public abstract double dot(byte[] a, byte[] b);
+
+    public abstract double l1(byte[] a, byte[] b);
+
+    public abstract double l2(byte[] a, byte[] b);
+
+    public abstract double[] dotAndNorms(byte[] a, byte[] b);
+
+    public double cosineDistance(byte[] a, byte[] b) {
+        return cosineDistance(dotAndNorms(a, b));
+    }
+
+    public double tanimotoDistance(byte[] a, byte[] b) {
+        return tanimotoDistance(dotAndNorms(a, b));
+    }
+
+    // ---< packed float32 >---
+
+    public abstract double dot(float[] a, BytesRef packed);
+
+    public abstract double l1(float[] a, BytesRef packed);
+
+    public abstract double l2(float[] a, BytesRef packed);
+
+    public abstract double[] dotAndNorms(float[] a, BytesRef packed);
+
+    public double cosineDistance(float[] a, BytesRef packed) {
+        return cosineDistance(dotAndNorms(a, packed));
+    }
+
+    public double tanimotoDistance(float[] a, BytesRef packed) {
+        return tanimotoDistance(dotAndNorms(a, packed));
+    }
+
+    /**
+     * Packs a float vector as little endian float32 values for the packed kernels.
+     */
+    public static byte[] pack(float[] vector) {
+        byte[] result = new byte[vector.length * 4];
+        for (int i = 0; i < vector.length; i++) {
+            int bits = Float.floatToIntBits(vector[i]);
+            result[i * 4] = (byte) bits;
+            result[i * 4 + 1] = (byte) (bits >>> 8);
+            result[i * 4 + 2] = (byte) (bits >>> 16);
+            result[i * 4 + 3] = (byte) (bits >>> 24);
+        }
+        return result;
+    }
+
+    /**
+     * Cosine distance like MetricsUtils.cosineDistance, 0 if one of the vectors is 0.
+     */
+    protected static double cosineDistance(double[] dotAndNorms) {
+        double normProduct = dotAndNorms[1] * dotAndNorms[2];
+        if (normProduct > 0) {
+            return 1d - dotAndNorms[0] / (Math.sqrt(dotAndNorms[1]) * Math.sqrt(dotAndNorms[2]));
+        }
+        return 0d;
+    }
+
+    /**
+     * Tanimoto distance 1 - ab/(aa + bb - ab), 0 if both vectors are 0.
+     */
+    protected static double tanimotoDistance(double[] dotAndNorms) {
+        double denominator = dotAndNorms[1] + dotAndNorms[2] - dotAndNorms[0];
+        if (denominator != 0) {
+            return 1d - dotAndNorms[0] / denominator;
+        }
+        return 0d;
+    }
+}
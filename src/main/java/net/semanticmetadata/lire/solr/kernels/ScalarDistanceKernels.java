@@ -0,0 +1,231 @@
+package net.semanticmetadata.lire.solr.kernels;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Plain Java loops, used if the Vector API is not available. float values are summed up as double, short and
+ * byte values as long, so the results over short[] and byte[] are exact.
+ */
+public class ScalarDistanceKernels extends DistanceKernels {
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    // ---< float[] >---
+
+    @Override
+    public double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            sum += (double) a[i] * b[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public double l1(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            sum += Math.abs((double) a[i] - b[i]);
+        }
+        return sum;
+    }
+
+    @Override
+    public double l2(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            double diff = (double) a[i] - b[i];
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+
+    @Override
+    public double[] dotAndNorms(float[] a, float[] b) {
+        double ab = 0, aa = 0, bb = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            double x = a[i], y = b[i];
+            ab += x * y;
+            aa += x * x;
+            bb += y * y;
+        }
+        return new double[]{ab, aa, bb};
+    }
+
+    // ---< double[] >---
+
+    @Override
+    public double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public double l1(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum;
+    }
+
+    @Override
+    public double l2(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            double diff = a[i] - b[i];
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+
+    @Override
+    public double[] dotAndNorms(double[] a, double[] b) {
+        double ab = 0, aa = 0, bb = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            ab += a[i] * b[i];
+            aa += a[i] * a[i];
+            bb += b[i] * b[i];
+        }
+        return new double[]{ab, aa, bb};
+    }
+
+    // ---< short[] >---
+
+    @Override
+    public double dot(short[] a, short[] b) {
+        long sum = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public double l1(short[] a, short[] b) {
+        long sum = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum;
+    }
+
+    @Override
+    public double l2(short[] a, short[] b) {
+        long sum = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            long diff = a[i] - b[i];
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+
+    @Override
+    public double[] dotAndNorms(short[] a, short[] b) {
+        long ab = 0, aa = 0, bb = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            ab += a[i] * b[i];
+            aa += a[i] * a[i];
+            bb += b[i] * b[i];
+        }
+        return new double[]{ab, aa, bb};
+    }
+
+    // ---< byte[] >---
+
+    @Override
+    public double dot(byte[] a, byte[] b) {
+        long sum = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public double l1(byte[] a, byte[] b) {
+        long sum = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum;
+    }
+
+    @Override
+    public double l2(byte[] a, byte[] b) {
+        long sum = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            int diff = a[i] - b[i];
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+
+    @Override
+    public double[] dotAndNorms(byte[] a, byte[] b) {
+        long ab = 0, aa = 0, bb = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            ab += a[i] * b[i];
+            aa += a[i] * a[i];
+            bb += b[i] * b[i];
+        }
+        return new double[]{ab, aa, bb};
+    }
+
+    // ---< packed float32 >---
+
+    /**
+     * Reads the i-th little endian float of a packed vector.
+     */
+    protected static float floatAt(BytesRef packed, int i) {
+        byte[] b = packed.bytes;
+        int o = packed.offset + (i << 2);
+        return Float.intBitsToFloat((b[o] & 0xFF) | ((b[o + 1] & 0xFF) << 8) | ((b[o + 2] & 0xFF) << 16) | ((b[o + 3] & 0xFF) << 24));
+    }
+
+    @Override
+    public double dot(float[] a, BytesRef packed) {
+        double sum = 0;
+        for (int i = 0, n = Math.min(a.length, packed.length >> 2); i < n; i++) {
+            sum += (double) a[i] * floatAt(packed, i);
+        }
+        return sum;
+    }
+
+    @Override
+    public double l1(float[] a, BytesRef packed) {
+        double sum = 0;
+        for (int i = 0, n = Math.min(a.length, packed.length >> 2); i < n; i++) {
+            sum += Math.abs((double) a[i] - floatAt(packed, i));
+        }
+        return sum;
+    }
+
+    @Override
+    public double l2(float[] a, BytesRef packed) {
+        double sum = 0;
+        for (int i = 0, n = Math.min(a.length, packed.length >> 2); i < n; i++) {
+            double diff = (double) a[i] - floatAt(packed, i);
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+
+    @Override
+    public double[] dotAndNorms(float[] a, BytesRef packed) {
+        double ab = 0, aa = 0, bb = 0;
+        for (int i = 0, n = Math.min(a.length, packed.length >> 2); i < n; i++) {
+            double x = a[i], y = floatAt(packed, i);
+            ab += x * y;
+            aa += x * x;
+            bb += y * y;
+        }
+        return new double[]{ab, aa, bb};
+    }
+}
@@ -0,0 +1,78 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.hashing.BitSamplingFunctions;
+import net.semanticmetadata.lire.solr.hashing.ReferencePoints;
+import org.apache.commons.cli.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Command line utility converting the hashing data of LIRE to the binary formats loaded by the
+ * {@link HashingMetricSpacesManager}: MetricSpaces reference points (*.msd or *.msd.gz) to
+ * {@link ReferencePoints} and serialized BitSampling functions (*.obj) to {@link BitSamplingFunctions}. Without
+ * an output file the result is written to the name the manager looks for, e.g.
+ * <pre>java -cp ... net.semanticmetadata.lire.solr.tools.ConvertHashingData -i logos-ca-ee_CEDD.msd.gz</pre>
+ * writes metricspaces/CEDD.lrp, to be put into the conf directory of a core.
+ */
+public class ConvertHashingData {
+    public static void main(String[] args) throws ParseException, IOException {
+        // Using Apache Commons CLI for parsing the command line options.
+        Options options = new Options();
+        options.addOption("i", "input-file", true, "The reference points (*.msd, *.msd.gz) or BitSampling functions (*.obj) of LIRE (required)");
+        options.addOption("o", "output-file", true, "The binary file to write, will not be overwritten, default is the name looked up by the manager");
+        options.getOption("i").setRequired(true);
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("ConvertHashingData", options);
+            return;
+        }
+        String input = cmd.getOptionValue('i');
+        if (input.endsWith(".obj")) {
+            BitSamplingFunctions functions;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(input))) {
+                functions = BitSamplingFunctions.readSerialized(in);
+            }
+            File outfile = new File(cmd.getOptionValue('o', HashingMetricSpacesManager.BIT_SAMPLING_RESOURCE));
+            if (!createFile(outfile)) return;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outfile))) {
+                functions.write(out);
+            }
+            System.out.println(String.format("# %d function bundles of %d bits for %d dimensions written to %s",
+                    functions.getNumberOfFunctionBundles(), functions.getBits(), functions.getDimensions(), outfile.getPath()));
+        } else {
+            ReferencePoints points;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(input))) {
+                points = ReferencePoints.readText(input.endsWith(".gz") ? new GZIPInputStream(in) : in);
+            }
+            File outfile = new File(cmd.getOptionValue('o', HashingMetricSpacesManager.getReferencePointsResource(points.getFeatureClass())));
+            if (!createFile(outfile)) return;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outfile))) {
+                points.write(out);
+            }
+            System.out.println(String.format("# %d reference points of %s written to %s",
+                    points.size(), points.getFeatureClass().getName(), outfile.getPath()));
+        }
+    }
+
+    private static boolean createFile(File outfile) {
+        if (outfile.exists()) {
+            System.err.println(String.format("File %s already exists and will not be overwritten.", outfile.getPath()));
+            return false;
+        }
+        if (outfile.getParentFile() != null) outfile.getParentFile().mkdirs();
+        return true;
+    }
+}
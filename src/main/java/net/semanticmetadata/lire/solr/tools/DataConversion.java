@@ -4,7 +4,6 @@ import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalByteFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalDoubleFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalShortFeature;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
 import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
 import net.semanticmetadata.lire.utils.CommandLineUtils;
 
@@ -25,7 +24,6 @@ public class DataConversion {
 
     public static void main(String[] args) throws IOException {
         // TODO: integrate Bitsampling ...
-        HashingMetricSpacesManager.init();
         // parse arguments
         Properties p = CommandLineUtils.getProperties(args, helpMessage, new String[]{"-d"});
         String type = "double";
@@ -43,7 +41,7 @@ public class DataConversion {
             f = getShort(my_data);
 
         // return result
-        int[] hashes = BitSampling.generateHashes(f.getFeatureVector());
+        int[] hashes = HashingMetricSpacesManager.getDefault().generateHashes(f.getFeatureVector());
         System.out.print(Base64.getEncoder().encodeToString(f.getByteArrayRepresentation()) + "|" + Utilities.hashesArrayToString(hashes));
     }
 
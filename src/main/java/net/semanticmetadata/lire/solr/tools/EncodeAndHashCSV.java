@@ -1,43 +1,71 @@
 package net.semanticmetadata.lire.solr.tools;
 
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
 import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
 import net.semanticmetadata.lire.solr.features.ShortFeatureCosineDistance;
+import net.semanticmetadata.lire.solr.indexing.SolrUpdateClient;
 import org.apache.commons.cli.*;
-import org.dom4j.Document;
-import org.dom4j.DocumentHelper;
-import org.dom4j.Element;
+import org.apache.solr.common.SolrInputDocument;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Command line utility that takes a csv file with the file name in the first col and converts
  * it to an XML file Solr can handle. We assume that the rest of the columns is a feature vector, i.e. from a CNN.
+ * With -u the documents are sent to Solr directly with javabin instead, see {@link SolrUpdateClient}.
+ * <p>
+ * The file is read in chunks of {@link #CHUNK_SIZE} rows, which are encoded and hashed in parallel and written in the
+ * order of the file as soon as they are done. At most two chunks per thread are in memory, so the size of the input
+ * doesn't matter.
+ * </p>
  */
 public class EncodeAndHashCSV implements Runnable {
     public static final int TOP_N_CLASSES = 32;
     public static final int TOP_N_CLASSES_FOR_QUERY = 5;
     public static final double TOP_CLASSES_FACTOR = 10d;
     public static final double THRESHOLD_RELATIVE_SIGNIFICANCE_TO_MAXIMUM = 0.8;
+    public static final int CHUNK_SIZE = 250;
 
     File infile, outfile;
+    SolrUpdateClient solr = null;
+    private int numberOfThreads = Runtime.getRuntime().availableProcessors();
 
     public EncodeAndHashCSV(File infile, File outfile) {
         this.infile = infile;
         this.outfile = outfile;
     }
 
+    /**
+     * Sends the documents to Solr instead of writing them to a file, the client is closed at the end.
+     */
+    public EncodeAndHashCSV(File infile, SolrUpdateClient solr) {
+        this.infile = infile;
+        this.solr = solr;
+    }
+
+    /**
+     * Sets the number of threads encoding and hashing the rows, default is the number of processors.
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
     public static void main(String[] args) throws ParseException {
-        HashingMetricSpacesManager.init();
         File infile = null, outfile = null;
 
         // Using Apache Commons CLI for parsing the command line options.
         Options options = new Options();
         options.addOption("i", "input-file", true, "CSV File to import (required)");
         options.addOption("o", "output-file", true, "XML File to export, will not be overwritten");
+        options.addOption("u", "url", true, "URL of the Solr core to send the documents to instead of a file, e.g. http://localhost:8983/solr/lire");
         options.addOption("t", "top-n-classes", true, "The number of top classes used for indexing");
         options.addOption("m", "maximum-value", true, "The maximum feature value used for normalization");
+        options.addOption("n", "threads", true, "The number of threads, default is the number of processors");
         options.getOption("i").setRequired(true);
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
@@ -48,7 +76,7 @@ public class EncodeAndHashCSV implements Runnable {
                 infile = null;
             }
         }
-        if (infile != null) {
+        if (infile != null && !cmd.hasOption('u')) {
             // check for the output file:
             if (cmd.hasOption('o')) {
                 outfile = new File(cmd.getOptionValue('o'));
@@ -63,7 +91,11 @@ public class EncodeAndHashCSV implements Runnable {
         }
         // check if valid. If so go on, otherwise print help:
         if (infile != null) {
-            EncodeAndHashCSV e = new EncodeAndHashCSV(infile, outfile);
+            EncodeAndHashCSV e = cmd.hasOption('u')
+                    ? new EncodeAndHashCSV(infile, SolrUpdateClient.forUrl(cmd.getOptionValue('u'), SolrUpdateClient.DEFAULT_BATCH_SIZE,
+                    SolrUpdateClient.DEFAULT_THREADS, SolrUpdateClient.DEFAULT_RETRIES))
+                    : new EncodeAndHashCSV(infile, outfile);
+            if (cmd.hasOption('n')) e.setNumberOfThreads(Integer.parseInt(cmd.getOptionValue('n')));
             e.run();
         } else {
             HelpFormatter formatter = new HelpFormatter();
@@ -73,54 +105,137 @@ public class EncodeAndHashCSV implements Runnable {
 
     @Override
     public void run() {
-        // read infile line by line
-        String[] classes;
-        try {
-            Document document = DocumentHelper.createDocument();
-            Element root = document.addElement("add");
-            BufferedReader br = new BufferedReader(new FileReader(infile));
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        // read infile in chunks of lines
+        // the client is closed too, so the documents are committed and its threads end also after a failure.
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(infile), StandardCharsets.UTF_8), 1 << 20);
+             SolrUpdateClient client = solr;
+             Writer out = solr == null
+                     ? new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outfile), StandardCharsets.UTF_8), 1 << 20)
+                     : null) {
             // we assume that the first line is the name of the classes and the first col is the file name:
             String line = br.readLine();
             String[] tmp_array = line.split(",");
-            classes = new String[tmp_array.length - 1];
+            String[] classes = new String[tmp_array.length - 1];
             System.arraycopy(tmp_array, 1, classes, 0, classes.length);
+            if (out != null) {
+                // the declaration like dom4j wrote it before.
+                out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+                out.write("<add>\n");
+            }
+            // the chunks being encoded in the order of the file, the oldest is written before more are read.
+            ArrayDeque<Future<Chunk>> window = new ArrayDeque<>();
+            List<String> lines = new ArrayList<>(CHUNK_SIZE);
             int line_count = 0;
             while ((line = br.readLine()) != null) {
-                tmp_array = line.split(",");
-                Element doc = root.addElement("doc");
-
-                Element field_id = doc.addElement("field");
-                field_id.addAttribute("name", "id");
-                field_id.addText(tmp_array[0]);
-
-                Element field_file = doc.addElement("field");
-                field_file.addAttribute("name", "localimagefile");
-                field_file.addText(tmp_array[0]);
-
-                // converting the data to double:
-                double[] feature = new double[classes.length];
-                for (int i = 0; i < feature.length; i++) {
-                    feature[i] = Double.parseDouble(tmp_array[i + 1]);
+                lines.add(line);
+                if (lines.size() == CHUNK_SIZE) {
+                    window.add(submit(executor, lines, classes));
+                    lines = new ArrayList<>(CHUNK_SIZE);
+                    if (window.size() >= 2 * numberOfThreads) line_count = write(window.poll().get(), out, line_count);
                 }
+            }
+            if (!lines.isEmpty()) window.add(submit(executor, lines, classes));
+            while (!window.isEmpty()) {
+                line_count = write(window.poll().get(), out, line_count);
+            }
+            if (out != null) out.write("</add>\n");
+        } catch (IOException | ExecutionException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdown();
+            if (solr != null) {
+                System.out.println(String.format("# %d documents sent, %d failed", solr.getSent(), solr.getFailed()));
+            }
+        }
+    }
 
+    private Future<Chunk> submit(ExecutorService executor, List<String> lines, String[] classes) {
+        return executor.submit(() -> {
+            Chunk chunk = new Chunk();
+            if (solr != null) chunk.documents = new ArrayList<>(lines.size());
+            StringBuilder sb = new StringBuilder(solr == null ? lines.size() * 512 : 0);
+            // field name to byte[] for the features and String for the others.
+            Map<String, Object> fields = new LinkedHashMap<>();
+            double[] feature = new double[classes.length];
+            for (String line : lines) {
+                fields.clear();
+                if (!parse(line, fields, feature)) {
+                    System.err.println("Could not parse line " + line.substring(0, Math.min(line.length(), 80)));
+                    continue;
+                }
                 // now create the feature vector ...
-                addFeatureVector(feature, classes, doc);
+                addFeatureVector(feature, classes, fields);
 
                 // now create the fields for the classes ...
-                addClassesString(feature, classes, doc);
+                addClassesString(feature, classes, fields);
 
-                line_count++;
-                if (line_count % 2000 == 0) {
-                    System.out.println(String.format("# %d images encoded and hashed", line_count));
+                if (solr != null) {
+                    SolrInputDocument solrDocument = new SolrInputDocument();
+                    for (Map.Entry<String, Object> field : fields.entrySet()) {
+                        solrDocument.addField(field.getKey(), field.getValue());
+                    }
+                    chunk.documents.add(solrDocument);
+                } else {
+                    sb.append("<doc>");
+                    for (Map.Entry<String, Object> field : fields.entrySet()) {
+                        sb.append("<field name=\"").append(field.getKey()).append("\">");
+                        if (field.getValue() instanceof byte[])
+                            sb.append(Base64.getEncoder().encodeToString((byte[]) field.getValue()));
+                        else Utilities.appendEscaped(sb, field.getValue().toString());
+                        sb.append("</field>");
+                    }
+                    sb.append("</doc>\n");
                 }
+                chunk.size++;
             }
-            // write the result
-            FileWriter out = new FileWriter(outfile);
-            document.write(out);
-            out.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            chunk.xml = sb.toString();
+            return chunk;
+        });
+    }
+
+    private int write(Chunk chunk, Writer out, int line_count) throws IOException, InterruptedException {
+        if (solr != null) {
+            for (SolrInputDocument document : chunk.documents) {
+                solr.add(document);
+            }
+        } else {
+            out.write(chunk.xml);
+        }
+        for (int i = 0; i < chunk.size; i++) {
+            line_count++;
+            if (line_count % 2000 == 0) {
+                System.out.println(String.format("# %d images encoded and hashed", line_count));
+            }
+        }
+        return line_count;
+    }
+
+    /**
+     * Reads the file name and the feature of a line without splitting it into strings first.
+     *
+     * @return false if the line has less values than the feature has dimensions or one of them is not a number.
+     */
+    static boolean parse(String line, Map<String, Object> fields, double[] feature) {
+        int start = line.indexOf(',');
+        if (start < 0) return false;
+        String id = line.substring(0, start);
+        fields.put("id", id);
+        fields.put("localimagefile", id);
+        // converting the data to double:
+        try {
+            for (int i = 0; i < feature.length; i++) {
+                if (start < 0) return false;
+                int end = line.indexOf(',', start + 1);
+                feature[i] = Double.parseDouble(line.substring(start + 1, end < 0 ? line.length() : end));
+                start = end;
+            }
+        } catch (NumberFormatException e) {
+            return false;
         }
+        return true;
     }
 
     /**
@@ -130,76 +245,55 @@ public class EncodeAndHashCSV implements Runnable {
      *
      * @param feature
      * @param classes
-     * @param doc
+     * @param fields
      */
-    private void addClassesString(double[] feature, String[] classes, Element doc) {
+    static void addClassesString(double[] feature, String[] classes, Map<String, Object> fields) {
         // sort the feature vector and get the 32 most important classes out
-        Map<String, Double> hm = new LinkedHashMap<>();
+        int[] sorted = Utilities.sortIndicesByValue(feature);
         StringBuilder field_classes_ws_text = new StringBuilder(1024);
         StringBuilder field_query_s_text = new StringBuilder(1024);
         StringBuilder field_query_boosted_text = new StringBuilder(1024);
         StringBuilder field_classes_significant_text = new StringBuilder(1024);
-        for (int i = 0; i < feature.length; i++) {
-            hm.put(classes[i], feature[i]);
-        }
-        hm = Utilities.sortByValue(hm);
-        int i = 0;
-        for (Iterator<String> iterator = hm.keySet().iterator(); iterator.hasNext() && i < TOP_N_CLASSES; i++) {
-            String cl = iterator.next();
+        for (int i = 0; i < sorted.length && i < TOP_N_CLASSES; i++) {
+            int cl = sorted[i];
             // decide how often the class is int he field per weight, here it's just the rounded weight.
-            double we = Math.max((Math.round(hm.get(cl)) * TOP_CLASSES_FACTOR), 0);
+            double we = Math.max((Math.round(feature[cl]) * TOP_CLASSES_FACTOR), 0);
             for (int j = 0; j < we; j++) {
-                field_classes_ws_text.append(cl);
+                field_classes_ws_text.append(classes[cl]);
                 field_classes_ws_text.append(' ');
             }
         }
-        i = 0;
-        for (Iterator<String> iterator = hm.keySet().iterator(); iterator.hasNext() && i < TOP_N_CLASSES_FOR_QUERY; i++) {
-            String cl = iterator.next();
+        for (int i = 0; i < sorted.length && i < TOP_N_CLASSES_FOR_QUERY; i++) {
+            int cl = sorted[i];
             field_query_s_text.append("classes_ws:");
-            field_query_s_text.append(cl);
+            field_query_s_text.append(classes[cl]);
             field_query_s_text.append(' ');
 
             field_query_boosted_text.append("classes_ws:");
-            field_query_boosted_text.append(cl);
+            field_query_boosted_text.append(classes[cl]);
             field_query_boosted_text.append('^');
-            field_query_boosted_text.append((int) Math.round(hm.get(cl)));
+            field_query_boosted_text.append((int) Math.round(feature[cl]));
             field_query_boosted_text.append(' ');
         }
         // find the classes with a weight > t times the maximum weight with t being initially 0.8
-        i = 0; // init count to zero
-        String firstClass = hm.keySet().iterator().next(); // get the first class
-        double minimumWeight = hm.get(firstClass) * THRESHOLD_RELATIVE_SIGNIFICANCE_TO_MAXIMUM; // set the threshold
-        double currentWeight = minimumWeight; // first element is highes one, so set it right now.
-        Iterator<String> iterator = hm.keySet().iterator();
+        double minimumWeight = feature[sorted[0]] * THRESHOLD_RELATIVE_SIGNIFICANCE_TO_MAXIMUM; // set the threshold
+        double currentWeight;
+        int i = 0;
         do {
-            String cl = iterator.next();
-            currentWeight = hm.get(cl);
+            int cl = sorted[i++];
+            currentWeight = feature[cl];
             if (currentWeight > minimumWeight) {
-                field_classes_significant_text.append(cl);
+                field_classes_significant_text.append(classes[cl]);
                 field_classes_significant_text.append(' ');
-                i++;
             }
-        } while (iterator.hasNext() && currentWeight > minimumWeight); // do this while there are still elements and the weight is above the threshold.
-        Element field_classes_ws = doc.addElement("field");
-        field_classes_ws.addAttribute("name", "classes_ws");
-        field_classes_ws.addText(field_classes_ws_text.toString().trim());
-
-        Element field_query_s = doc.addElement("field");
-        field_query_s.addAttribute("name", "query_s");
-        field_query_s.addText(field_query_s_text.toString().trim());
-
-        Element field_query_b = doc.addElement("field");
-        field_query_b.addAttribute("name", "query_boosted_s");
-        field_query_b.addText(field_query_boosted_text.toString().trim());
-
-        Element field_classes_significant_ws = doc.addElement("field");
-        field_classes_significant_ws.addAttribute("name", "classes_significant_ws");
-        field_classes_significant_ws.addText(field_classes_significant_text.toString().trim());
+        } while (i < sorted.length && currentWeight > minimumWeight); // do this while there are still elements and the weight is above the threshold.
+        fields.put("classes_ws", field_classes_ws_text.toString().trim());
+        fields.put("query_s", field_query_s_text.toString().trim());
+        fields.put("query_boosted_s", field_query_boosted_text.toString().trim());
+        fields.put("classes_significant_ws", field_classes_significant_text.toString().trim());
     }
 
-    private void addFeatureVector(double[] feature, String[] classes, Element doc) {
-        Element field_file;
+    private static void addFeatureVector(double[] feature, String[] classes, Map<String, Object> fields) {
         int[] hashes;
         ShortFeatureCosineDistance f1 = new ShortFeatureCosineDistance();
         // DoubleFeatureCosineDistance f2 = new DoubleFeatureCosineDistance();
@@ -221,17 +315,20 @@ public class EncodeAndHashCSV implements Runnable {
 //        feature = Utilities.normalize(feature);
 //        f1.setData(Utilities.quantizeToShort(feature));
         f1.setData(Utilities.toShortArray(tmpFeature));
-        hashes = BitSampling.generateHashes(f1.getFeatureVector());
-
-        field_file = doc.addElement("field");
-        field_file.addAttribute("name", "sf_hi");
-        field_file.addText(Base64.getEncoder().encodeToString(f1.getByteArrayRepresentation()));
+        hashes = HashingMetricSpacesManager.getDefault().generateHashes("sf_ha", f1.getFeatureVector());
 
-        field_file = doc.addElement("field");
-        field_file.addAttribute("name", "sf_ha");
-        field_file.addText(Utilities.hashesArrayToString(hashes));
+        fields.put("sf_hi", f1.getByteArrayRepresentation());
+        fields.put("sf_ha", Utilities.hashesArrayToString(hashes));
     }
 
+    /**
+     * The encoded rows of a chunk, as XML or as documents for Solr.
+     */
+    static class Chunk {
+        String xml;
+        List<SolrInputDocument> documents;
+        int size = 0;
+    }
 }
 /*
 This help text is shown if you start the EncodeAndHashCSV with the '-h' option.
@@ -1,7 +1,6 @@
 package net.semanticmetadata.lire.solr.tools;
 
 import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalShortFeature;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
 import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
 import org.apache.solr.common.util.XML;
 
@@ -15,7 +14,6 @@ import java.util.Base64;
 public class EncodeAndHashStax {
     static BufferedWriter bw;
     public static void main(String[] args) throws XMLStreamException, IOException {
-        HashingMetricSpacesManager.init();
 
         bw = new BufferedWriter(new FileWriter("150k_out.xml"));
 
@@ -74,7 +72,7 @@ public class EncodeAndHashStax {
             d[k] = Short.parseShort(numbers[k]);
         }
         feature.setData(d);
-                    int[] hashes = BitSampling.generateHashes(feature.getFeatureVector());
+                    int[] hashes = HashingMetricSpacesManager.getDefault().generateHashes("sf_ha", feature.getFeatureVector());
 
         write(Base64.getEncoder().encodeToString(feature.getByteArrayRepresentation()));
         return Utilities.hashesArrayToString(hashes);
@@ -2,7 +2,7 @@ package net.semanticmetadata.lire.solr.tools;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.*;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -92,7 +92,7 @@ public class FlickrPhoto implements Runnable {
         bufferedWriter.append(Base64.getEncoder().encodeToString(globalFeature.getByteArrayRepresentation()));
         bufferedWriter.append("</field>");
         bufferedWriter.append("<field name=\"" + fieldName + "_ha\">");
-        bufferedWriter.append(Utilities.hashesArrayToString(BitSampling.generateHashes(globalFeature.getFeatureVector())));
+        bufferedWriter.append(Utilities.hashesArrayToString(HashingMetricSpacesManager.getDefault().generateHashes(fieldName + "_ha", globalFeature.getFeatureVector())));
         bufferedWriter.append("</field>");
     }
 
@@ -0,0 +1,79 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.solr.FeatureDescriptor;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.hashing.BitSamplingFunctions;
+import org.apache.commons.cli.*;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Command line utility creating the BitSampling hash functions of an LSH layout for a single hash field, with the
+ * given number of tables and bits per table. Copy the output file to the conf directory of the core and re-index the
+ * field, e.g.
+ * <pre>java -cp ... net.semanticmetadata.lire.solr.tools.GenerateLshFunctions -f cl_ha -t 20 -b 16 -o conf/lsh/cl_ha.lbs</pre>
+ * More bits per table make the buckets smaller, more tables find more of the near neighbours. Multi-probe queries,
+ * see {@link BitSamplingFunctions#generateProbes(double[], int)}, need fewer tables for the same recall.
+ */
+public class GenerateLshFunctions {
+    public static final int DEFAULT_TABLES = 20;
+    public static final int DEFAULT_BITS = 16;
+
+    public static void main(String[] args) throws ParseException, IOException {
+        // Using Apache Commons CLI for parsing the command line options.
+        Options options = new Options();
+        options.addOption("f", "field", true, "The hash field, e.g. cl_ha (required)");
+        options.addOption("t", "tables", true, "The number of hash tables, default is " + DEFAULT_TABLES);
+        options.addOption("b", "bits", true, "The number of bits per table, default is " + DEFAULT_BITS);
+        options.addOption("d", "dimensions", true, "The length of the feature vectors, default is the one registered for the feature");
+        options.addOption("s", "seed", true, "The seed of the random hyperplanes");
+        options.addOption("o", "output-file", true, "The file to write, will not be overwritten, default is lsh/<field>.lbs");
+        options.getOption("f").setRequired(true);
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("GenerateLshFunctions", options);
+            return;
+        }
+        String field = cmd.getOptionValue('f');
+        if (!field.endsWith(FeatureRegistry.hashFieldPostfix)) {
+            field += FeatureRegistry.hashFieldPostfix;
+        }
+        int dimensions;
+        if (cmd.hasOption('d')) {
+            dimensions = Integer.parseInt(cmd.getOptionValue('d'));
+        } else {
+            FeatureDescriptor descriptor = FeatureRegistry.getDefault().getDescriptorForHashField(field);
+            if (descriptor == null || descriptor.getDimensions() < 1) {
+                System.err.println(String.format("The length of the feature vectors of %s is unknown, use -d.", field));
+                return;
+            }
+            dimensions = descriptor.getDimensions();
+        }
+        int tables = Integer.parseInt(cmd.getOptionValue('t', Integer.toString(DEFAULT_TABLES)));
+        int bits = Integer.parseInt(cmd.getOptionValue('b', Integer.toString(DEFAULT_BITS)));
+        Random random = cmd.hasOption('s') ? new Random(Long.parseLong(cmd.getOptionValue('s'))) : new Random();
+        File outfile = new File(cmd.getOptionValue('o', HashingMetricSpacesManager.getBitSamplingResource(field)));
+        if (outfile.exists()) {
+            System.err.println(String.format("File %s already exists and will not be overwritten.", outfile.getPath()));
+            return;
+        }
+
+        BitSamplingFunctions functions = BitSamplingFunctions.generate(tables, bits, dimensions, random);
+        if (outfile.getParentFile() != null) outfile.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outfile))) {
+            functions.write(out);
+        }
+        System.out.println(String.format("# %d tables of %d bits for %d dimensions written to %s",
+                tables, bits, dimensions, outfile.getPath()));
+    }
+}
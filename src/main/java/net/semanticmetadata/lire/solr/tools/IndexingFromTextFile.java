@@ -1,16 +1,16 @@
 package net.semanticmetadata.lire.solr.tools;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
-import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
 import net.semanticmetadata.lire.indexers.tools.text.AbstractDocumentWriter;
 import net.semanticmetadata.lire.solr.FeatureRegistry;
 import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
 import net.semanticmetadata.lire.solr.indexing.ParallelSolrIndexer;
+import net.semanticmetadata.lire.solr.indexing.SolrUpdateClient;
 import net.semanticmetadata.lire.utils.CommandLineUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.ThresholdingOutputStream;
+import org.apache.solr.common.SolrInputDocument;
 
 import java.io.*;
 import java.util.*;
@@ -18,17 +18,19 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Reads a text file created by {@link net.semanticmetadata.lire.indexers.tools.text.ParallelExtraction} and creates
- * an XML file for being sent to Solr while optionally adding hashes.
+ * an XML file for being sent to Solr while optionally adding hashes. With -u the documents are sent to Solr directly
+ * with javabin instead, see {@link SolrUpdateClient}.
  */
 public class IndexingFromTextFile extends AbstractDocumentWriter {
     private static final boolean useXML = true;
     private static String helpMessage = "HELP\n" +
             "====\n" +
             "\n" +
-            "$> IndexingFromTextFile -i <infile> -o <outfile> [-hb] [-hm] [-s <documents>]\n" +
+            "$> IndexingFromTextFile -i <infile> (-o <outfile> | -u <url>) [-hb] [-hm] [-s <documents>]\n" +
             "\n" +
             "-i  ... path to the input file\n" +
             "-o  ... path to the XML file for output\n" +
+            "-u  ... URL of the Solr core to send the documents to instead, e.g. http://localhost:8983/solr/lire\n" +
             "-s  ... split files to have a maximum of <documents> per file.\n" +
             "-hb ... employ BitSampling Hashing (overrules MetricSpaces, loads all *.mds files from current directory)\n" +
             "-hm ... employ MetricSpaces Indexing";
@@ -36,6 +38,7 @@ public class IndexingFromTextFile extends AbstractDocumentWriter {
     File outfile;
     LinkedBlockingQueue<QueueItem> queue = new LinkedBlockingQueue<>(500);
     BufferedWriter bw;
+    SolrUpdateClient solr;
     List<Thread> threads;
     private int numThreads = 8;
 
@@ -45,13 +48,26 @@ public class IndexingFromTextFile extends AbstractDocumentWriter {
         this.outfile = outFile;
         bw = new BufferedWriter(new FileWriter(outfile));
         super.loadMdsFilesAutomatically = false; // skip the auto load and read from resources ...
-        HashingMetricSpacesManager.init(); // load reference points from disk.
+    }
+
+    /**
+     * Sends the documents to Solr instead of writing them to a file, the client is closed at the end.
+     */
+    public IndexingFromTextFile(File infile, SolrUpdateClient solr,
+                                boolean doHashingBitSampling, boolean doMetricSpaceIndexing) throws IOException {
+        super(infile, true, doHashingBitSampling, doMetricSpaceIndexing);
+        this.solr = solr;
+        super.loadMdsFilesAutomatically = false; // skip the auto load and read from resources ...
     }
 
     public static void main(String[] args) {
-        Properties p = CommandLineUtils.getProperties(args, helpMessage, new String[]{"-i", "-o"});
+        Properties p = CommandLineUtils.getProperties(args, helpMessage, new String[]{"-i"});
+        if (p.getProperty("-o") == null && p.getProperty("-u") == null) {
+            System.err.println("Either -o or -u has to be given.");
+            System.out.println(helpMessage);
+            System.exit(1);
+        }
         File inFile = new File(p.getProperty("-i"));
-        File outFile = new File(p.getProperty("-o"));
         int splitAt = -1;
         if (p.getProperty("-s") != null)
             splitAt = Integer.parseInt(p.getProperty("-s"));
@@ -61,8 +77,10 @@ public class IndexingFromTextFile extends AbstractDocumentWriter {
             System.exit(1);
         }
         try {
-            IndexingFromTextFile i = new IndexingFromTextFile(inFile, outFile,
-                    p.get("-hb") != null, p.get("-hm") != null, splitAt);
+            IndexingFromTextFile i = p.getProperty("-u") != null
+                    ? new IndexingFromTextFile(inFile, SolrUpdateClient.forUrl(p.getProperty("-u"), SolrUpdateClient.DEFAULT_BATCH_SIZE,
+                    SolrUpdateClient.DEFAULT_THREADS, SolrUpdateClient.DEFAULT_RETRIES), p.get("-hb") != null, p.get("-hm") != null)
+                    : new IndexingFromTextFile(inFile, new File(p.getProperty("-o")), p.get("-hb") != null, p.get("-hm") != null, splitAt);
             Thread t = new Thread(i);
             t.start();
             t.join();
@@ -77,7 +95,7 @@ public class IndexingFromTextFile extends AbstractDocumentWriter {
     @Override
     protected void startWriting() {
         try {
-            bw.write("<add>");
+            if (bw != null) bw.write("<add>");
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -102,8 +120,13 @@ public class IndexingFromTextFile extends AbstractDocumentWriter {
             e.printStackTrace();
         }
         try {
-            bw.write("</add>");
-            bw.close();
+            if (solr != null) {
+                solr.close();
+                System.out.printf("Sent %d documents, %d failed.\n", solr.getSent(), solr.getFailed());
+            } else {
+                bw.write("</add>");
+                bw.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -142,7 +165,8 @@ public class IndexingFromTextFile extends AbstractDocumentWriter {
     }
 
     class Consumer implements Runnable {
-        HashMap<String, String> document = new HashMap<>();
+        // field name to byte[] for the features and String for the others.
+        HashMap<String, Object> document = new HashMap<>();
 
         @Override
         public void run() {
@@ -154,16 +178,17 @@ public class IndexingFromTextFile extends AbstractDocumentWriter {
                     document.put("title", data.id);
                     for (Iterator<GlobalFeature> iterator = data.features.iterator(); iterator.hasNext(); ) {
                         GlobalFeature f = iterator.next();
-                        document.put(FeatureRegistry.getCodeForClass(f.getClass()) + FeatureRegistry.featureFieldPostfix,
-                                org.apache.commons.codec.binary.Base64.encodeBase64String(f.getByteArrayRepresentation()));
+                        document.put(FeatureRegistry.getDefault().getCodeForClass(f.getClass()) + FeatureRegistry.featureFieldPostfix,
+                                f.getByteArrayRepresentation());
                         if (doHashingBitSampling) {
-                            document.put(FeatureRegistry.getCodeForClass(f.getClass()) + FeatureRegistry.hashFieldPostfix,
-                                    ParallelSolrIndexer.arrayToString(BitSampling.generateHashes(f.getFeatureVector())));
+                            document.put(FeatureRegistry.getDefault().getCodeForClass(f.getClass()) + FeatureRegistry.hashFieldPostfix,
+                                    ParallelSolrIndexer.arrayToString(HashingMetricSpacesManager.getDefault().generateHashes(
+                                            FeatureRegistry.getDefault().getCodeForClass(f.getClass()) + FeatureRegistry.hashFieldPostfix, f.getFeatureVector())));
 
                         } else if (doMetricSpaceIndexing) {
-                            if (MetricSpaces.supportsFeature(f)) {
-                                document.put(FeatureRegistry.getCodeForClass(f.getClass()) + FeatureRegistry.metricSpacesFieldPostfix,
-                                        MetricSpaces.generateHashString(f));
+                            if (HashingMetricSpacesManager.getDefault().supportsFeature(f)) {
+                                document.put(FeatureRegistry.getDefault().getCodeForClass(f.getClass()) + FeatureRegistry.metricSpacesFieldPostfix,
+                                        HashingMetricSpacesManager.getDefault().generateHashString(f));
                             }
 
                         }
@@ -176,13 +201,24 @@ public class IndexingFromTextFile extends AbstractDocumentWriter {
             }
         }
 
-        private void output(HashMap<String, String> document) {
+        private void output(HashMap<String, Object> document) throws InterruptedException {
+            if (solr != null) {
+                SolrInputDocument solrDocument = new SolrInputDocument();
+                for (Map.Entry<String, Object> field : document.entrySet()) {
+                    solrDocument.addField(field.getKey(), field.getValue());
+                }
+                solr.add(solrDocument);
+                return;
+            }
             StringBuilder sb = new StringBuilder();
             sb.append("<doc>");
             for (Iterator<String> iterator = document.keySet().iterator(); iterator.hasNext(); ) {
                 String fieldName = iterator.next();
+                Object value = document.get(fieldName);
                 sb.append("<field name=\"" + fieldName + "\">");
-                sb.append(document.get(fieldName));
+                if (value instanceof byte[])
+                    sb.append(org.apache.commons.codec.binary.Base64.encodeBase64String((byte[]) value));
+                else sb.append(value);
                 sb.append("</field>");
             }
             sb.append("</doc>\n");
@@ -229,10 +265,11 @@ public class IndexingFromTextFile extends AbstractDocumentWriter {
 HELP
 ====
 
-$> IndexingFromTextFile -i <infile> -o <outfile> [-hb] [-hm] [-s <documents>]
+$> IndexingFromTextFile -i <infile> (-o <outfile> | -u <url>) [-hb] [-hm] [-s <documents>]
 
 -i  ... path to the input file
 -o  ... path to the Lucene index for output
+-u  ... URL of the Solr core to send the documents to instead
 -s  ... split files to have a maximum of <documents> per file.
 -hb ... employ BitSampling Hashing (overrules MetricSpaces, loads all *.mds files from current directory)
 -hm ... employ MetricSpaces Indexing
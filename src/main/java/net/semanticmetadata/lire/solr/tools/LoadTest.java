@@ -0,0 +1,399 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureDescriptor;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import org.apache.commons.cli.*;
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.request.ContentStreamUpdateRequest;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.NamedList;
+
+import javax.imageio.ImageIO;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Command line utility for load testing the LIRE handlers of a single core. It starts an embedded Solr with the
+ * schema.xml and solrconfig.xml of a conf directory, indexes synthetic documents, features extracted from images of
+ * random rectangles, and sends queries from concurrent clients for a given time:</p>
+ * <pre>java -cp ... net.semanticmetadata.lire.solr.tools.LoadTest -c conf -n 20000 -f cl,eh,ph -t 32 -d 60</pre>
+ * <p>The query modes are <code>id</code>, <code>ms</code> (id with MetricSpaces), <code>hashes</code>,
+ * <code>upload</code> of a JPEG to <code>/lireq</code> and <code>func</code>, sorting by <code>lirefunc</code> in
+ * <code>/select</code>. For each mode the throughput, latency percentiles, errors and the bytes allocated per query
+ * by the client thread, which executes the request in the embedded server, are reported, and the GC pauses of the
+ * whole run.</p>
+ */
+public class LoadTest {
+    public static final String CORE_NAME = "lire";
+    public static final int DEFAULT_NUMBER_OF_DOCUMENTS = 10000;
+    public static final int DEFAULT_NUMBER_OF_CLIENTS = 16;
+    public static final int DEFAULT_DURATION = 30;
+    public static final int DEFAULT_WARMUP = 10;
+    public static final int NUMBER_OF_QUERY_IMAGES = 200;
+    private static final int BATCH_SIZE = 1000;
+
+    public static void main(String[] args) throws Exception {
+        // Using Apache Commons CLI for parsing the command line options.
+        Options options = new Options();
+        options.addOption("c", "conf", true, "The conf directory with schema.xml and solrconfig.xml, default is conf");
+        options.addOption("n", "documents", true, "The number of documents indexed, default is " + DEFAULT_NUMBER_OF_DOCUMENTS);
+        options.addOption("f", "features", true, "Comma separated feature codes, the first one is searched, default is cl,eh,ph");
+        options.addOption("t", "clients", true, "The number of concurrent clients, default is " + DEFAULT_NUMBER_OF_CLIENTS);
+        options.addOption("d", "duration", true, "The measured time in seconds, default is " + DEFAULT_DURATION);
+        options.addOption("w", "warmup", true, "The warmup time in seconds, default is " + DEFAULT_WARMUP);
+        options.addOption("m", "modes", true, "Comma separated query modes, default is id,ms,hashes,upload,func");
+        options.addOption("r", "rows", true, "The number of results per query, default is 10");
+        options.addOption("H", "solr-home", true, "The Solr home to create the core in, default is a temporary directory that is deleted afterwards");
+        options.addOption("o", "output-file", true, "The file to write the results to, default is the console");
+        options.addOption("s", "seed", true, "The seed for the documents and queries, default is 42");
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("LoadTest", options);
+            return;
+        }
+        File conf = new File(cmd.getOptionValue('c', "conf"));
+        if (!new File(conf, "solrconfig.xml").exists() || !new File(conf, "schema.xml").exists()) {
+            System.err.println(String.format("%s does not contain schema.xml and solrconfig.xml.", conf.getPath()));
+            return;
+        }
+        List<FeatureDescriptor> features = new ArrayList<>();
+        for (String code : cmd.getOptionValue('f', "cl,eh,ph").split(",")) {
+            FeatureDescriptor descriptor = FeatureRegistry.getDefault().getDescriptorForFeatureField(FeatureRegistry.codeToFeatureField(code));
+            if (descriptor == null || descriptor.getDimensions() == 0) {
+                System.err.println(String.format("Feature %s is not registered or not extracted from images, use one of %s.",
+                        code, FeatureRegistry.getDefault().getCodes()));
+                return;
+            }
+            features.add(descriptor);
+        }
+        int numberOfDocuments = Integer.parseInt(cmd.getOptionValue('n', Integer.toString(DEFAULT_NUMBER_OF_DOCUMENTS)));
+        int clients = Integer.parseInt(cmd.getOptionValue('t', Integer.toString(DEFAULT_NUMBER_OF_CLIENTS)));
+        int duration = Integer.parseInt(cmd.getOptionValue('d', Integer.toString(DEFAULT_DURATION)));
+        int warmup = Integer.parseInt(cmd.getOptionValue('w', Integer.toString(DEFAULT_WARMUP)));
+        String[] modes = cmd.getOptionValue('m', "id,ms,hashes,upload,func").split(",");
+        int rows = Integer.parseInt(cmd.getOptionValue('r', "10"));
+        long seed = Long.parseLong(cmd.getOptionValue('s', "42"));
+
+        Path solrHome = cmd.hasOption('H') ? new File(cmd.getOptionValue('H')).toPath() : Files.createTempDirectory("lire-loadtest");
+        Path coreDirectory = solrHome.resolve(CORE_NAME);
+        FileUtils.copyDirectory(conf, coreDirectory.resolve("conf").toFile());
+        Files.write(coreDirectory.resolve("core.properties"), ("name=" + CORE_NAME + "\n").getBytes(StandardCharsets.UTF_8));
+        // documents are hashed with the data of the core, as the handlers do.
+        HashingMetricSpacesManager hashing = HashingMetricSpacesManager.forDirectory(coreDirectory.resolve("conf"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try (EmbeddedSolrServer server = new EmbeddedSolrServer(solrHome, CORE_NAME);
+             PrintWriter out = cmd.hasOption('o')
+                     ? new PrintWriter(new OutputStreamWriter(new FileOutputStream(cmd.getOptionValue('o')), StandardCharsets.UTF_8))
+                     : new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+            long time = System.currentTimeMillis();
+            List<QueryImage> queryImages = index(server, executor, features, hashing, numberOfDocuments, seed);
+            System.err.println(String.format("# %d documents indexed in %d ms", numberOfDocuments, System.currentTimeMillis() - time));
+
+            String field = features.get(0).getCode();
+            run(server, executor, clients, queryImages, modes, field, rows, warmup, seed);
+            System.err.println(String.format("# %d s warmup done, measuring %d clients for %d s", warmup, clients, duration));
+            GcPauses gcPauses = new GcPauses();
+            time = System.nanoTime();
+            List<Samples> samples = run(server, executor, clients, queryImages, modes, field, rows, duration, seed + 1);
+            double seconds = (System.nanoTime() - time) / 1e9;
+            gcPauses.stop();
+            report(out, samples, modes, seconds, gcPauses);
+        } finally {
+            executor.shutdownNow();
+            if (!cmd.hasOption('H')) FileUtils.deleteQuietly(solrHome.toFile());
+        }
+    }
+
+    /**
+     * Indexes the synthetic documents in batches, extracting the features in parallel.
+     *
+     * @return the images and features of the first documents, used as queries.
+     */
+    private static List<QueryImage> index(EmbeddedSolrServer server, ExecutorService executor, List<FeatureDescriptor> features,
+                                          HashingMetricSpacesManager hashing, int numberOfDocuments, long seed) throws Exception {
+        List<QueryImage> queryImages = Collections.synchronizedList(new ArrayList<>());
+        for (int start = 0; start < numberOfDocuments; start += BATCH_SIZE) {
+            List<Future<SolrInputDocument>> batch = new ArrayList<>(BATCH_SIZE);
+            for (int i = start; i < Math.min(numberOfDocuments, start + BATCH_SIZE); i++) {
+                final int id = i;
+                batch.add(executor.submit(() -> {
+                    BufferedImage image = SyntheticDocuments.randomImage(new Random(seed + id));
+                    SolrInputDocument document = new SolrInputDocument();
+                    document.addField("id", Integer.toString(id));
+                    document.addField("title", "Synthetic image " + id);
+                    QueryImage queryImage = id < NUMBER_OF_QUERY_IMAGES ? new QueryImage(Integer.toString(id), toJpeg(image)) : null;
+                    for (FeatureDescriptor descriptor : features) {
+                        GlobalFeature feature = descriptor.newFeature();
+                        feature.extract(image);
+                        String hashField = FeatureRegistry.codeToHashField(descriptor.getCode());
+                        String encoded = Base64.getEncoder().encodeToString(feature.getByteArrayRepresentation());
+                        String hashes = Utilities.hashesArrayToString(hashing.generateHashes(hashField, feature.getFeatureVector()));
+                        document.addField(FeatureRegistry.codeToFeatureField(descriptor.getCode()), encoded);
+                        document.addField(hashField, hashes);
+                        if (hashing.supportsFeature(feature)) {
+                            document.addField(FeatureRegistry.codeToMetricSpacesField(descriptor.getCode()), hashing.generateHashString(feature));
+                        }
+                        if (queryImage != null && queryImage.feature == null) {
+                            queryImage.feature = encoded;
+                            queryImage.hashes = hashes;
+                        }
+                    }
+                    if (queryImage != null) queryImages.add(queryImage);
+                    return document;
+                }));
+            }
+            List<SolrInputDocument> documents = new ArrayList<>(batch.size());
+            for (Future<SolrInputDocument> document : batch) {
+                documents.add(document.get());
+            }
+            server.add(documents);
+        }
+        server.commit();
+        return new ArrayList<>(queryImages);
+    }
+
+    /**
+     * Sends random queries from all clients until the time is up.
+     *
+     * @return the samples of each client.
+     */
+    private static List<Samples> run(EmbeddedSolrServer server, ExecutorService executor, int clients, List<QueryImage> queryImages,
+                                     String[] modes, String field, int rows, int seconds, long seed) throws Exception {
+        long end = System.nanoTime() + seconds * 1000000000L;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        List<Future<Samples>> futures = new ArrayList<>(clients);
+        for (int c = 0; c < clients; c++) {
+            Random random = new Random(seed * 31 + c);
+            futures.add(executor.submit(() -> {
+                Samples samples = new Samples(modes.length);
+                long thread = Thread.currentThread().getId();
+                while (System.nanoTime() < end) {
+                    int mode = random.nextInt(modes.length);
+                    QueryImage queryImage = queryImages.get(random.nextInt(queryImages.size()));
+                    long allocated = threads.getThreadAllocatedBytes(thread);
+                    long start = System.nanoTime();
+                    boolean failed;
+                    try {
+                        NamedList<Object> response = server.request(createRequest(modes[mode], queryImage, field, rows));
+                        failed = response.get("Error") != null;
+                    } catch (Exception e) {
+                        failed = true;
+                    }
+                    samples.add(mode, System.nanoTime() - start, threads.getThreadAllocatedBytes(thread) - allocated, failed);
+                }
+                return samples;
+            }));
+        }
+        List<Samples> samples = new ArrayList<>(clients);
+        for (Future<Samples> future : futures) {
+            samples.add(future.get());
+        }
+        return samples;
+    }
+
+    private static SolrRequest<?> createRequest(String mode, QueryImage queryImage, String field, int rows) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("rows", rows);
+        switch (mode) {
+            case "id":
+            case "ms":
+                params.set("id", queryImage.id);
+                params.set("field", field);
+                params.set("ms", mode.equals("ms"));
+                break;
+            case "hashes":
+                params.set("hashes", queryImage.hashes);
+                params.set("feature", queryImage.feature);
+                params.set("field", field);
+                break;
+            case "upload":
+                ContentStreamUpdateRequest upload = new ContentStreamUpdateRequest("/lireq");
+                upload.addContentStream(new ContentStreamBase.ByteArrayStream(queryImage.jpeg, "query.jpg", "image/jpeg"));
+                params.set("field", field);
+                upload.setParams(params);
+                return upload;
+            case "func":
+                params.set("q", "*:*");
+                params.set("fl", "id");
+                params.set("sort", "lirefunc(" + field + ",\"" + queryImage.feature + "\") asc");
+                QueryRequest select = new QueryRequest(params);
+                select.setPath("/select");
+                return select;
+            default:
+                throw new IllegalArgumentException("Unknown query mode " + mode + ", use id, ms, hashes, upload or func.");
+        }
+        QueryRequest request = new QueryRequest(params);
+        request.setPath("/lireq");
+        return request;
+    }
+
+    private static void report(PrintWriter out, List<Samples> clientSamples, String[] modes, double seconds, GcPauses gcPauses) {
+        out.println("mode,queries,errors,qps,mean_ms,p50_ms,p90_ms,p99_ms,max_ms,allocated_kb_per_query");
+        Samples all = new Samples(1);
+        for (int mode = 0; mode < modes.length; mode++) {
+            Samples samples = new Samples(1);
+            for (Samples client : clientSamples) {
+                samples.addAll(0, client, mode);
+                all.addAll(0, client, mode);
+            }
+            out.println(samples.summary(modes[mode], 0, seconds));
+        }
+        out.println(all.summary("all", 0, seconds));
+        out.println(String.format(Locale.ENGLISH, "# GC: %d pauses, %d ms in total, longest %d ms",
+                gcPauses.count, gcPauses.total, gcPauses.longest));
+        out.flush();
+    }
+
+    private static byte[] toJpeg(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private static class QueryImage {
+        final String id;
+        final byte[] jpeg;
+        String feature;
+        String hashes;
+
+        QueryImage(String id, byte[] jpeg) {
+            this.id = id;
+            this.jpeg = jpeg;
+        }
+    }
+
+    /**
+     * Latencies and allocated bytes per query mode, of one client.
+     */
+    private static class Samples {
+        private final long[][] nanos;
+        private final long[][] bytes;
+        private final int[] size;
+        private final int[] errors;
+
+        Samples(int modes) {
+            nanos = new long[modes][1024];
+            bytes = new long[modes][1024];
+            size = new int[modes];
+            errors = new int[modes];
+        }
+
+        void add(int mode, long time, long allocated, boolean failed) {
+            if (size[mode] == nanos[mode].length) {
+                nanos[mode] = Arrays.copyOf(nanos[mode], size[mode] * 2);
+                bytes[mode] = Arrays.copyOf(bytes[mode], size[mode] * 2);
+            }
+            nanos[mode][size[mode]] = time;
+            bytes[mode][size[mode]++] = allocated;
+            if (failed) errors[mode]++;
+        }
+
+        void addAll(int mode, Samples other, int otherMode) {
+            for (int i = 0; i < other.size[otherMode]; i++) {
+                add(mode, other.nanos[otherMode][i], other.bytes[otherMode][i], false);
+            }
+            errors[mode] += other.errors[otherMode];
+        }
+
+        String summary(String name, int mode, double seconds) {
+            int n = size[mode];
+            long[] sorted = Arrays.copyOf(nanos[mode], n);
+            Arrays.sort(sorted);
+            double mean = n > 0 ? Arrays.stream(sorted).average().getAsDouble() / 1e6 : 0;
+            double allocated = n > 0 ? Arrays.stream(bytes[mode], 0, n).average().getAsDouble() / 1024 : 0;
+            return String.format(Locale.ENGLISH, "%s,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%.1f", name, n, errors[mode], n / seconds,
+                    mean, percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    n > 0 ? sorted[n - 1] / 1e6 : 0, allocated);
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+        }
+    }
+
+    /**
+     * Collects the stop-the-world pauses of all collectors from the GC notifications. ZGC and Shenandoah report
+     * their pauses with the "Pauses" collector and the concurrent work with the "Cycles" collector, only the
+     * former are counted. For the other collectors the minor and major collections are counted.
+     */
+    private static class GcPauses implements NotificationListener {
+        private final List<NotificationEmitter> emitters = new ArrayList<>();
+        int count = 0;
+        long total = 0;
+        long longest = 0;
+
+        GcPauses() {
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (bean instanceof NotificationEmitter) {
+                    ((NotificationEmitter) bean).addNotificationListener(this, null, null);
+                    emitters.add((NotificationEmitter) bean);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void handleNotification(Notification notification, Object handback) {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) return;
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            if (!isPause(info.getGcName(), info.getGcAction())) return;
+            long duration = info.getGcInfo().getDuration();
+            count++;
+            total += duration;
+            longest = Math.max(longest, duration);
+        }
+
+        static boolean isPause(String gcName, String gcAction) {
+            if (gcName.endsWith("Cycles")) return false;
+            if (gcName.endsWith("Pauses")) return true;
+            return gcAction.equals("end of minor GC") || gcAction.equals("end of major GC");
+        }
+
+        synchronized void stop() {
+            for (NotificationEmitter emitter : emitters) {
+                try {
+                    emitter.removeNotificationListener(this);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.PivotDistances;
+import org.apache.commons.cli.*;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Command line utility selecting pivots for the {@link PivotDistances} from the features of an existing index.
+ * A random sample of the features is taken and the pivots are chosen farthest-first, so they are spread over
+ * the feature space. Copy the output file to the conf directory of the core and configure the
+ * {@link net.semanticmetadata.lire.solr.PivotDistanceUpdateProcessorFactory}, e.g.
+ * <pre>java -cp ... net.semanticmetadata.lire.solr.tools.PivotSelection -i /var/solr/data/lire/data/index -f cl_hi -o cl_hi.pivots</pre>
+ */
+public class PivotSelection {
+    public static final int DEFAULT_NUMBER_OF_PIVOTS = 8;
+    public static final int DEFAULT_SAMPLE_SIZE = 10000;
+
+    public static void main(String[] args) throws ParseException, IOException {
+        // Using Apache Commons CLI for parsing the command line options.
+        Options options = new Options();
+        options.addOption("i", "index", true, "The Lucene index directory of the core (required)");
+        options.addOption("f", "field", true, "The feature field, default is cl_hi");
+        options.addOption("n", "number-of-pivots", true, "The number of pivots, default is " + DEFAULT_NUMBER_OF_PIVOTS);
+        options.addOption("s", "sample-size", true, "The number of features sampled from the index, default is " + DEFAULT_SAMPLE_SIZE);
+        options.addOption("o", "output-file", true, "The pivot file to write, will not be overwritten (required)");
+        options.getOption("i").setRequired(true);
+        options.getOption("o").setRequired(true);
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("PivotSelection", options);
+            return;
+        }
+        String field = cmd.getOptionValue('f', "cl_hi");
+        if (!field.endsWith(FeatureRegistry.featureFieldPostfix)) {
+            field += FeatureRegistry.featureFieldPostfix;
+        }
+        Class<? extends GlobalFeature> featureClass = FeatureRegistry.getDefault().getClassForFeatureField(field);
+        File outfile = new File(cmd.getOptionValue('o'));
+        if (featureClass == null || !PivotDistances.isMetric(featureClass)) {
+            System.err.println(String.format("Field %s has no metric feature, only ColorLayout, EdgeHistogram and JCD are supported.", field));
+            return;
+        }
+        if (outfile.exists()) {
+            System.err.println(String.format("File %s already exists and will not be overwritten.", outfile.getPath()));
+            return;
+        }
+        int numberOfPivots = Integer.parseInt(cmd.getOptionValue('n', Integer.toString(DEFAULT_NUMBER_OF_PIVOTS)));
+        int sampleSize = Integer.parseInt(cmd.getOptionValue('s', Integer.toString(DEFAULT_SAMPLE_SIZE)));
+
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(cmd.getOptionValue('i')).toPath()))) {
+            List<GlobalFeature> sample = sample(reader, field, featureClass, sampleSize, new Random());
+            System.out.println(String.format("# %d features sampled from %d documents", sample.size(), reader.numDocs()));
+            List<GlobalFeature> pivots = selectPivots(sample, numberOfPivots, new Random());
+            try (OutputStream out = new FileOutputStream(outfile)) {
+                new PivotDistances(featureClass, pivots).write(out);
+            }
+            System.out.println(String.format("# %d pivots written to %s", pivots.size(), outfile.getPath()));
+        }
+    }
+
+    /**
+     * Takes a uniform random sample of the features of the live documents with reservoir sampling.
+     */
+    static List<GlobalFeature> sample(IndexReader reader, String field, Class<? extends GlobalFeature> featureClass,
+                                      int sampleSize, Random random) throws IOException {
+        List<GlobalFeature> sample = new ArrayList<>(sampleSize);
+        long seen = 0;
+        for (LeafReaderContext context : reader.leaves()) {
+            Bits liveDocs = context.reader().getLiveDocs();
+            BinaryDocValues binaryValues = DocValues.getBinary(context.reader(), field);
+            for (int doc = binaryValues.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = binaryValues.nextDoc()) {
+                if (liveDocs != null && !liveDocs.get(doc)) continue;
+                BytesRef bytesRef = binaryValues.binaryValue();
+                if (bytesRef.length == 0) continue;
+                seen++;
+                int index = sample.size() < sampleSize ? sample.size() : (int) (random.nextDouble() * seen);
+                if (index < sampleSize) {
+                    GlobalFeature feature = newFeature(featureClass);
+                    feature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                    if (index == sample.size()) sample.add(feature);
+                    else sample.set(index, feature);
+                }
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * Farthest-first traversal: starting with a random feature, the next pivot is always the feature with the
+     * largest distance to its nearest pivot.
+     */
+    static List<GlobalFeature> selectPivots(List<GlobalFeature> sample, int numberOfPivots, Random random) {
+        List<GlobalFeature> pivots = new ArrayList<>(numberOfPivots);
+        if (sample.isEmpty()) return pivots;
+        double[] minDistance = new double[sample.size()];
+        Arrays.fill(minDistance, Double.MAX_VALUE);
+        int next = random.nextInt(sample.size());
+        while (pivots.size() < Math.min(numberOfPivots, sample.size())) {
+            GlobalFeature pivot = sample.get(next);
+            pivots.add(pivot);
+            next = -1;
+            for (int i = 0; i < sample.size(); i++) {
+                minDistance[i] = Math.min(minDistance[i], sample.get(i).getDistance(pivot));
+                if (minDistance[i] > 0 && (next < 0 || minDistance[i] > minDistance[next])) next = i;
+            }
+            if (next < 0) break; // all remaining features are duplicates of the pivots.
+        }
+        return pivots;
+    }
+
+    private static GlobalFeature newFeature(Class<? extends GlobalFeature> featureClass) {
+        try {
+            return featureClass.newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("Could not create feature " + featureClass.getName(), e);
+        }
+    }
+}
@@ -17,6 +17,7 @@ public class RandomAccessBinaryDocValues extends BinaryDocValues {
 
     private final Supplier<BinaryDocValues> supplier;
     private BinaryDocValues docValues;
+    private int resets = 0;
 
     public RandomAccessBinaryDocValues(Supplier<BinaryDocValues> supplier) {
         super();
@@ -74,6 +75,13 @@ public class RandomAccessBinaryDocValues extends BinaryDocValues {
         return docValues.cost();
     }
 
+    /**
+     * @return the number of times the underlying doc values had to be re-created for going backwards.
+     */
+    public int getResetCount() {
+        return resets;
+    }
+
     private void resetIfNeeded(int target) {
         if (docValues == null) {
             docValues = supplier.get();
@@ -82,6 +90,7 @@ public class RandomAccessBinaryDocValues extends BinaryDocValues {
             if (id != -1 && id != NO_MORE_DOCS
                     && target < docValues.docID()) {
                 docValues = supplier.get();
+                resets++;
             }
         }
     }
@@ -0,0 +1,306 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.searchers.SimpleResult;
+import net.semanticmetadata.lire.solr.BoundedDistance;
+import net.semanticmetadata.lire.solr.CandidateSearch;
+import net.semanticmetadata.lire.solr.FeatureDescriptor;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.PivotDistances;
+import org.apache.commons.cli.*;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * <p>Command line utility measuring what the search parameters trade off. It samples query features from the index,
+ * finds their exact k nearest neighbours by comparing them to all documents, and then runs the searches of
+ * {@link CandidateSearch}, as done by <code>/lireq</code> and <code>/lire</code>, for every combination of the
+ * given parameters:</p>
+ * <pre>java -cp ... net.semanticmetadata.lire.solr.tools.RecallBenchmark -i /var/solr/data/lire/data/index -f cl_ha -a 0.1,0.33,0.5 -n 1000,10000 -m bs,ms</pre>
+ * <p>For each setting it reports the recall at k, the mean and 99th percentile of the search time, and per query the
+ * number of candidates retrieved, of distances computed and of candidates pruned by their pivot distances, as CSV or
+ * JSON. The queries are documents of the index, each query finds itself at distance 0. Use the hashing data of the
+ * core with -c, or the system property <code>lire.hashing.conf</code>. If the documents have pivot distances, the
+ * pivot file of the core has to be given with -v, e.g. conf/pivots/cl_hi.pivots, so the candidates are pruned like
+ * the core does.</p>
+ */
+public class RecallBenchmark {
+    public static final int DEFAULT_NUMBER_OF_QUERIES = 100;
+    public static final int DEFAULT_K = 10;
+
+    public static void main(String[] args) throws org.apache.commons.cli.ParseException, IOException, ParseException {
+        // Using Apache Commons CLI for parsing the command line options.
+        Options options = new Options();
+        options.addOption("i", "index", true, "The Lucene index directory of the core (required)");
+        options.addOption("f", "field", true, "The hash field, default is cl_ha");
+        options.addOption("q", "queries", true, "The number of queries sampled from the index, default is " + DEFAULT_NUMBER_OF_QUERIES);
+        options.addOption("k", "k", true, "The number of nearest neighbours, i.e. rows, default is " + DEFAULT_K);
+        options.addOption("a", "accuracy", true, "Comma separated accuracy values, default is 0.1,0.2,0.33,0.5,0.9");
+        options.addOption("n", "candidates", true, "Comma separated candidate numbers, default is 1000,10000");
+        options.addOption("p", "probes", true, "Comma separated numbers of multi-probe buckets for BitSampling, default is 0");
+        options.addOption("m", "modes", true, "bs for BitSampling, ms for MetricSpaces or both, default is bs,ms");
+        options.addOption("w", "warmup", true, "Untimed runs of all queries before each setting, default is 1");
+        options.addOption("c", "conf", true, "The conf directory of the core, to use its hashing data");
+        options.addOption("v", "pivots", true, "The pivot file of the feature field, required if the index has pivot distances");
+        options.addOption("r", "format", true, "csv or json, default is csv");
+        options.addOption("o", "output-file", true, "The file to write the results to, default is the console");
+        options.addOption("s", "seed", true, "The seed for sampling the queries");
+        options.getOption("i").setRequired(true);
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (org.apache.commons.cli.ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("RecallBenchmark", options);
+            return;
+        }
+        String hashField = cmd.getOptionValue('f', "cl_ha");
+        if (!hashField.endsWith(FeatureRegistry.hashFieldPostfix)) {
+            hashField += FeatureRegistry.hashFieldPostfix;
+        }
+        FeatureDescriptor descriptor = FeatureRegistry.getDefault().getDescriptorForHashField(hashField);
+        String featureField = FeatureRegistry.getDefault().getFeatureFieldName(hashField);
+        if (featureField == null) {
+            System.err.println(String.format("Field %s has no registered feature.", hashField));
+            return;
+        }
+        int numberOfQueries = Integer.parseInt(cmd.getOptionValue('q', Integer.toString(DEFAULT_NUMBER_OF_QUERIES)));
+        int k = Integer.parseInt(cmd.getOptionValue('k', Integer.toString(DEFAULT_K)));
+        double[] accuracies = parseDoubles(cmd.getOptionValue('a', "0.1,0.2,0.33,0.5,0.9"));
+        int[] candidates = parseInts(cmd.getOptionValue('n', "1000,10000"));
+        int[] probes = parseInts(cmd.getOptionValue('p', "0"));
+        List<String> modes = Arrays.asList(cmd.getOptionValue('m', "bs,ms").split(","));
+        int warmup = Integer.parseInt(cmd.getOptionValue('w', "1"));
+        boolean json = cmd.getOptionValue('r', "csv").equals("json");
+        Random random = cmd.hasOption('s') ? new Random(Long.parseLong(cmd.getOptionValue('s'))) : new Random();
+        CandidateSearch candidateSearch = new CandidateSearch(cmd.hasOption('c')
+                ? HashingMetricSpacesManager.forDirectory(new File(cmd.getOptionValue('c')).toPath())
+                : HashingMetricSpacesManager.getDefault());
+
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(cmd.getOptionValue('i')).toPath()));
+             PrintWriter out = cmd.hasOption('o')
+                     ? new PrintWriter(new OutputStreamWriter(new FileOutputStream(cmd.getOptionValue('o')), StandardCharsets.UTF_8))
+                     : new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            PivotDistances pivots = null;
+            if (cmd.hasOption('v')) {
+                try (InputStream in = new FileInputStream(cmd.getOptionValue('v'))) {
+                    pivots = PivotDistances.read(in);
+                }
+                if (pivots.getFeatureClass() != descriptor.getFeatureClass()) {
+                    System.err.println(String.format("The pivots in %s do not match the feature of field %s.", cmd.getOptionValue('v'), featureField));
+                    return;
+                }
+            } else if (FieldInfos.getMergedFieldInfos(reader).fieldInfo(FeatureRegistry.getPivotFieldName(featureField)) != null) {
+                System.err.println(String.format("The index has pivot distances for %s, give the pivot file of the core with -v.", featureField));
+                return;
+            }
+            List<GlobalFeature> queries = PivotSelection.sample(reader, featureField,
+                    descriptor.getFeatureClass(), numberOfQueries, random);
+            System.err.println(String.format("# %d queries sampled from %d documents", queries.size(), reader.numDocs()));
+
+            long time = System.currentTimeMillis();
+            int[] allDocs = liveDocs(reader);
+            List<TreeSet<SimpleResult>> truth = new ArrayList<>(queries.size());
+            for (GlobalFeature query : queries) {
+                // the lower bounds of the pivots only skip documents that can't be among the nearest ones.
+                truth.add(CandidateSearch.reRank(searcher, descriptor, query, pivots, allDocs, k, null));
+            }
+            System.err.println(String.format("# exact %d nearest neighbours computed in %d ms", k, System.currentTimeMillis() - time));
+
+            List<Setting> settings = new ArrayList<>();
+            for (String mode : modes) {
+                for (double accuracy : accuracies) {
+                    for (int n : candidates) {
+                        if (mode.equals("bs")) {
+                            for (int p : probes) settings.add(new Setting(false, accuracy, n, p));
+                        } else if (mode.equals("ms")) {
+                            settings.add(new Setting(true, accuracy, n, 0));
+                        }
+                    }
+                }
+            }
+            if (json) out.println("[");
+            else out.println("mode,accuracy,candidates,probes,recall,mean_ms,p99_ms,candidates_per_query,distances_per_query,pruned_per_query");
+            for (int s = 0; s < settings.size(); s++) {
+                Setting setting = settings.get(s);
+                Measurement m = measure(setting, candidateSearch, searcher, descriptor, pivots, hashField, queries, truth, k, warmup);
+                if (json) {
+                    out.println(String.format(Locale.ENGLISH,
+                            "  {\"mode\": \"%s\", \"accuracy\": %.2f, \"candidates\": %d, \"probes\": %d, \"recall\": %.4f, \"mean_ms\": %.3f, \"p99_ms\": %.3f, \"candidates_per_query\": %.1f, \"distances_per_query\": %.1f, \"pruned_per_query\": %.1f}%s",
+                            setting.mode(), setting.accuracy, setting.candidates, setting.probes, m.recall, m.meanMs, m.p99Ms,
+                            m.candidatesPerQuery, m.distancesPerQuery, m.prunedPerQuery, s < settings.size() - 1 ? "," : ""));
+                } else {
+                    out.println(String.format(Locale.ENGLISH, "%s,%.2f,%d,%d,%.4f,%.3f,%.3f,%.1f,%.1f,%.1f",
+                            setting.mode(), setting.accuracy, setting.candidates, setting.probes, m.recall, m.meanMs, m.p99Ms,
+                            m.candidatesPerQuery, m.distancesPerQuery, m.prunedPerQuery));
+                }
+                out.flush();
+            }
+            if (json) out.println("]");
+        }
+    }
+
+    /**
+     * Runs all queries with the setting, after the untimed warmup runs.
+     *
+     * @param truth the exact k nearest neighbours of the queries, in the same order.
+     */
+    static Measurement measure(Setting setting, CandidateSearch candidateSearch, IndexSearcher searcher, FeatureDescriptor descriptor,
+                               PivotDistances pivots, String hashField, List<GlobalFeature> queries,
+                               List<TreeSet<SimpleResult>> truth, int k, int warmup) throws IOException, ParseException {
+        for (int i = 0; i < warmup; i++) {
+            for (GlobalFeature query : queries) {
+                setting.search(candidateSearch, searcher, descriptor, pivots, hashField, query, k, null);
+            }
+        }
+        long[] nanos = new long[queries.size()];
+        double recall = 0;
+        long retrieved = 0;
+        BoundedDistance.ReRankCounts counts = new BoundedDistance.ReRankCounts();
+        for (int i = 0; i < queries.size(); i++) {
+            long start = System.nanoTime();
+            SearchResult result = setting.search(candidateSearch, searcher, descriptor, pivots, hashField, queries.get(i), k, counts);
+            nanos[i] = System.nanoTime() - start;
+            recall += recall(truth.get(i), result.results, k);
+            retrieved += result.candidates;
+        }
+        Arrays.sort(nanos);
+        double mean = Arrays.stream(nanos).average().orElse(0) / 1e6;
+        double p99 = nanos.length > 0 ? nanos[Math.min(nanos.length - 1, (int) Math.ceil(0.99 * nanos.length) - 1)] / 1e6 : 0;
+        int n = Math.max(1, queries.size());
+        // every candidate with a feature is either compared to the query or pruned by its pivot distances.
+        return new Measurement(recall / n, mean, p99, (double) retrieved / n, (double) counts.distances / n, (double) counts.pruned / n);
+    }
+
+    /**
+     * @return the share of the exact k nearest neighbours found, results as near as the k-th nearest neighbour
+     * count as found, so ties don't lower the recall.
+     */
+    static double recall(TreeSet<SimpleResult> truth, TreeSet<SimpleResult> results, int k) {
+        if (truth.isEmpty()) return 1;
+        int expected = Math.min(k, truth.size());
+        double kthDistance = truth.last().getDistance();
+        int found = 0;
+        for (SimpleResult result : results) {
+            if (result.getDistance() <= kthDistance) found++;
+        }
+        return (double) Math.min(found, expected) / expected;
+    }
+
+    private static int[] liveDocs(IndexReader reader) {
+        int[] docs = new int[reader.numDocs()];
+        int count = 0;
+        for (LeafReaderContext context : reader.leaves()) {
+            Bits live = context.reader().getLiveDocs();
+            for (int doc = 0; doc < context.reader().maxDoc(); doc++) {
+                if (live == null || live.get(doc)) docs[count++] = context.docBase + doc;
+            }
+        }
+        return docs;
+    }
+
+    private static double[] parseDoubles(String values) {
+        return Arrays.stream(values.split(",")).mapToDouble(Double::parseDouble).toArray();
+    }
+
+    private static int[] parseInts(String values) {
+        return Arrays.stream(values.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private static class SearchResult {
+        final TreeSet<SimpleResult> results;
+        final int candidates;
+
+        SearchResult(TreeSet<SimpleResult> results, int candidates) {
+            this.results = results;
+            this.candidates = candidates;
+        }
+    }
+
+    static class Measurement {
+        final double recall;
+        final double meanMs;
+        final double p99Ms;
+        final double candidatesPerQuery;
+        final double distancesPerQuery;
+        final double prunedPerQuery;
+
+        Measurement(double recall, double meanMs, double p99Ms, double candidatesPerQuery, double distancesPerQuery, double prunedPerQuery) {
+            this.recall = recall;
+            this.meanMs = meanMs;
+            this.p99Ms = p99Ms;
+            this.candidatesPerQuery = candidatesPerQuery;
+            this.distancesPerQuery = distancesPerQuery;
+            this.prunedPerQuery = prunedPerQuery;
+        }
+    }
+
+    static class Setting {
+        final boolean useMetricSpaces;
+        final double accuracy;
+        final int candidates;
+        final int probes;
+
+        Setting(boolean useMetricSpaces, double accuracy, int candidates, int probes) {
+            this.useMetricSpaces = useMetricSpaces;
+            this.accuracy = accuracy;
+            this.candidates = candidates;
+            this.probes = probes;
+        }
+
+        String mode() {
+            return useMetricSpaces ? "ms" : "bs";
+        }
+
+        /**
+         * Runs the search like the {@link net.semanticmetadata.lire.solr.LireSearchComponent} on a single core.
+         */
+        SearchResult search(CandidateSearch candidateSearch, IndexSearcher searcher, FeatureDescriptor descriptor, PivotDistances pivots,
+                            String hashField, GlobalFeature queryFeature, int k, BoundedDistance.ReRankCounts counts) throws IOException, ParseException {
+            List<String> terms = new ArrayList<>();
+            if (!useMetricSpaces && !CandidateSearch.isExhaustive(accuracy)) {
+                terms = candidateSearch.selectHashTerms(queryFeature, hashField, accuracy, probes, term -> {
+                    try {
+                        return (long) searcher.getIndexReader().docFreq(new Term(hashField, term));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            }
+            Query query = candidateSearch.createQuery(queryFeature, hashField, terms, accuracy, useMetricSpaces);
+            TopDocs topDocs = searcher.search(query, candidates);
+            int[] docs = new int[topDocs.scoreDocs.length];
+            for (int i = 0; i < docs.length; i++) {
+                docs[i] = topDocs.scoreDocs[i].doc;
+            }
+            return new SearchResult(CandidateSearch.reRank(searcher, descriptor, queryFeature, pivots, docs, k, counts), docs.length);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.solr.FeatureDescriptor;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import org.apache.commons.cli.*;
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Command line utility writing Solr update files with synthetic documents for scale tests, e.g. of the index
+ * size, the memory of the hash term statistics or the re-ranking, see {@link SyntheticDocuments}:</p>
+ * <pre>java -cp ... net.semanticmetadata.lire.solr.tools.SyntheticCorpus -n 100000000 -f cl,eh,sf -k 100000 -z 0.8 -r javabin -o corpus/lire</pre>
+ * <p>The documents are written to files of -s documents each, e.g. corpus/lire-00000.javabin, in parallel and
+ * without holding more than one document per thread in memory. Post them to the core, e.g.</p>
+ * <pre>curl http://localhost:8983/solr/lire/update -H "Content-Type: application/javabin" --data-binary @corpus/lire-00000.javabin</pre>
+ * <p>Use -c with the conf directory of the core if it has its own hashing data.</p>
+ */
+public class SyntheticCorpus {
+    public static final int DEFAULT_DOCUMENTS_PER_FILE = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        // Using Apache Commons CLI for parsing the command line options.
+        Options options = new Options();
+        options.addOption("n", "documents", true, "The number of documents (required)");
+        options.addOption("f", "features", true, "Comma separated feature codes, default is cl,eh,ph");
+        options.addOption("k", "clusters", true, "The number of clusters, default is " + SyntheticDocuments.DEFAULT_CLUSTERS);
+        options.addOption("v", "variations", true, "The number of images extracted per cluster, default is " + SyntheticDocuments.DEFAULT_VARIATIONS);
+        options.addOption("p", "spread", true, "The distance of the documents from the center of their cluster, 0 to 1, default is " + SyntheticDocuments.DEFAULT_SPREAD);
+        options.addOption("z", "skew", true, "The Zipf exponent of the cluster sizes, default is 0 for clusters of the same size");
+        options.addOption("d", "dimensions", true, "The dimensions of generic features like sf and df, default is " + SyntheticDocuments.DEFAULT_DIMENSIONS);
+        options.addOption("r", "format", true, "xml, json or javabin, default is xml");
+        options.addOption("o", "output", true, "The prefix of the output files, default is synthetic");
+        options.addOption("s", "documents-per-file", true, "The number of documents per file, default is " + DEFAULT_DOCUMENTS_PER_FILE);
+        options.addOption("t", "threads", true, "The number of threads, default is the number of processors");
+        options.addOption("c", "conf", true, "The conf directory of the core, to use its hashing data");
+        options.addOption("m", "no-metric-spaces", false, "Leave out the *_ms fields, which are the slowest part");
+        options.addOption("x", "seed", true, "The seed, default is 42");
+        options.getOption("n").setRequired(true);
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("SyntheticCorpus", options);
+            return;
+        }
+        List<FeatureDescriptor> features = new ArrayList<>();
+        for (String code : cmd.getOptionValue('f', "cl,eh,ph").split(",")) {
+            FeatureDescriptor descriptor = FeatureRegistry.getDefault().getDescriptorForFeatureField(FeatureRegistry.codeToFeatureField(code));
+            if (descriptor == null) {
+                System.err.println(String.format("Feature %s is not registered, use one of %s.", code, FeatureRegistry.getDefault().getCodes()));
+                return;
+            }
+            features.add(descriptor);
+        }
+        String format = cmd.getOptionValue('r', "xml");
+        if (!format.equals("xml") && !format.equals("json") && !format.equals("javabin")) {
+            System.err.println(String.format("Unknown format %s, use xml, json or javabin.", format));
+            return;
+        }
+        long numberOfDocuments = Long.parseLong(cmd.getOptionValue('n'));
+        long documentsPerFile = Long.parseLong(cmd.getOptionValue('s', Integer.toString(DEFAULT_DOCUMENTS_PER_FILE)));
+        int threads = Integer.parseInt(cmd.getOptionValue('t', Integer.toString(Runtime.getRuntime().availableProcessors())));
+        String prefix = cmd.getOptionValue('o', "synthetic");
+        HashingMetricSpacesManager hashing = cmd.hasOption('c')
+                ? HashingMetricSpacesManager.forDirectory(new File(cmd.getOptionValue('c')).toPath())
+                : HashingMetricSpacesManager.getDefault();
+        SyntheticDocuments documents = new SyntheticDocuments(features, hashing,
+                Integer.parseInt(cmd.getOptionValue('k', Integer.toString(SyntheticDocuments.DEFAULT_CLUSTERS))),
+                Integer.parseInt(cmd.getOptionValue('v', Integer.toString(SyntheticDocuments.DEFAULT_VARIATIONS))),
+                Double.parseDouble(cmd.getOptionValue('p', Double.toString(SyntheticDocuments.DEFAULT_SPREAD))),
+                Double.parseDouble(cmd.getOptionValue('z', "0")),
+                Integer.parseInt(cmd.getOptionValue('d', Integer.toString(SyntheticDocuments.DEFAULT_DIMENSIONS))),
+                Long.parseLong(cmd.getOptionValue('x', "42")));
+        documents.setMetricSpaces(!cmd.hasOption('m'));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long time = System.currentTimeMillis();
+            documents.init(executor);
+            System.out.println(String.format("# clusters created in %d ms", System.currentTimeMillis() - time));
+            File parent = new File(prefix).getAbsoluteFile().getParentFile();
+            if (parent != null) parent.mkdirs();
+
+            AtomicLong written = new AtomicLong();
+            long start = System.currentTimeMillis();
+            List<Future<?>> files = new ArrayList<>();
+            for (long first = 0, file = 0; first < numberOfDocuments; first += documentsPerFile, file++) {
+                File outfile = new File(String.format("%s-%05d.%s", prefix, file, format));
+                long from = first, to = Math.min(numberOfDocuments, first + documentsPerFile);
+                files.add(executor.submit(() -> {
+                    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outfile), 1 << 16)) {
+                        write(documents, from, to, format, out);
+                    }
+                    long count = written.addAndGet(to - from);
+                    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                    System.out.println(String.format("# %s written, %d of %d documents, %.0f documents/s",
+                            outfile.getPath(), count, numberOfDocuments, count * 1000d / elapsed));
+                    return null;
+                }));
+            }
+            for (Future<?> file : files) {
+                file.get();
+            }
+            System.out.println(String.format("# %d documents written in %d ms", numberOfDocuments, System.currentTimeMillis() - time));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Writes the documents from (inclusive) to (exclusive) in the given format, one at a time.
+     */
+    static void write(SyntheticDocuments documents, long from, long to, String format, OutputStream out) throws IOException {
+        if (format.equals("javabin")) {
+            UpdateRequest request = new UpdateRequest();
+            request.setDocIterator(new Iterator<SolrInputDocument>() {
+                long next = from;
+
+                @Override
+                public boolean hasNext() {
+                    return next < to;
+                }
+
+                @Override
+                public SolrInputDocument next() {
+                    if (next >= to) throw new NoSuchElementException();
+                    return documents.createDocument(next++);
+                }
+            });
+            new JavaBinUpdateRequestCodec().marshal(request, out);
+            return;
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        boolean json = format.equals("json");
+        writer.write(json ? "[\n" : "<add>\n");
+        for (long id = from; id < to; id++) {
+            SolrInputDocument document = documents.createDocument(id);
+            if (json) {
+                writer.write(id > from ? ",{" : "{");
+                boolean first = true;
+                for (SolrInputField field : document) {
+                    if (!first) writer.write(',');
+                    first = false;
+                    // ids, Base64 and hashes need no escaping.
+                    writer.write('"' + field.getName() + "\":\"" + field.getValue() + '"');
+                }
+                writer.write("}\n");
+            } else {
+                writer.write("<doc>");
+                for (SolrInputField field : document) {
+                    writer.write("<field name=\"" + field.getName() + "\">" + field.getValue() + "</field>");
+                }
+                writer.write("</doc>\n");
+            }
+        }
+        writer.write(json ? "]\n" : "</add>\n");
+        writer.flush();
+    }
+}
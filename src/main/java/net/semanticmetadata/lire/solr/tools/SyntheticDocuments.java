@@ -0,0 +1,284 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.imageanalysis.features.GenericDoubleLireFeature;
+import net.semanticmetadata.lire.imageanalysis.features.GenericIntLireFeature;
+import net.semanticmetadata.lire.imageanalysis.features.GenericShortLireFeature;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureDescriptor;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Creates synthetic LIRE documents with clustered features, without any images on disk. Documents are
+ * deterministic: the same id, seed and parameters always give the same document, so they can be created in
+ * parallel and in any order.</p>
+ *
+ * <p>Each cluster is a scene of random rectangles. The features of image based features, e.g. cl or eh, are
+ * extracted from a few variations of each scene, with colors and positions moved by up to spread times the value
+ * range. A document takes each value of its byte[] representation from a random variation of its cluster, so
+ * there are many more distinct features than extracted ones. Features with a variable length representation,
+ * e.g. ce, are taken from the variations as they are. Generic features, e.g. sf and df, are drawn from sparse
+ * Gaussian clusters: a third of the dimensions of a cluster are set, and documents vary them by spread.</p>
+ *
+ * <p>The hashes in the *_ha and *_ms fields are computed from the feature as it is in *_hi, with the given
+ * hashing data, so they are consistent with searches of a core using the same data.</p>
+ */
+public class SyntheticDocuments {
+    public static final int DEFAULT_CLUSTERS = 1000;
+    public static final int DEFAULT_VARIATIONS = 16;
+    public static final double DEFAULT_SPREAD = 0.1;
+    public static final int DEFAULT_DIMENSIONS = 512;
+    private static final int IMAGE_SIZE = 128;
+
+    private final List<FeatureDescriptor> features;
+    private final HashingMetricSpacesManager hashing;
+    private final int clusters;
+    private final int variations;
+    private final double spread;
+    private final int dimensions;
+    private final long seed;
+    // the cumulative weights of the clusters.
+    private final double[] clusterWeights;
+    // the extracted variations per feature, cluster and variation, null for generic features.
+    private final byte[][][][] pool;
+    // true if the feature's values can be recombined, otherwise whole variations are used.
+    private final boolean[] recombine;
+    private final int[] valueWidths;
+    // the centers and set dimensions of the generic features per feature and cluster.
+    private final double[][][] centers;
+    private boolean metricSpaces = true;
+
+    /**
+     * @param features   the features of each document.
+     * @param hashing    computes the BitSampling and MetricSpaces hashes.
+     * @param clusters   the number of clusters.
+     * @param variations the number of extracted variations per cluster.
+     * @param spread     how far documents are from the center of their cluster, 0 to 1.
+     * @param skew       the exponent of the Zipf distribution of the cluster sizes, 0 for clusters of about the
+     *                   same size.
+     * @param dimensions the dimensions of generic features.
+     */
+    public SyntheticDocuments(List<FeatureDescriptor> features, HashingMetricSpacesManager hashing, int clusters,
+                              int variations, double spread, double skew, int dimensions, long seed) {
+        this.features = new ArrayList<>(features);
+        this.hashing = hashing;
+        this.clusters = clusters;
+        this.variations = variations;
+        this.spread = spread;
+        this.dimensions = dimensions;
+        this.seed = seed;
+        clusterWeights = new double[clusters];
+        double sum = 0;
+        for (int i = 0; i < clusters; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            clusterWeights[i] = sum;
+        }
+        pool = new byte[features.size()][][][];
+        recombine = new boolean[features.size()];
+        valueWidths = new int[features.size()];
+        centers = new double[features.size()][][];
+    }
+
+    /**
+     * @param metricSpaces false to leave out the *_ms fields, they take most of the time of creating a document.
+     */
+    public void setMetricSpaces(boolean metricSpaces) {
+        this.metricSpaces = metricSpaces;
+    }
+
+    /**
+     * Extracts the variations of the clusters and creates the centers of the generic features, has to be called
+     * before creating documents.
+     */
+    public void init(ExecutorService executor) throws Exception {
+        for (int f = 0; f < features.size(); f++) {
+            FeatureDescriptor descriptor = features.get(f);
+            GlobalFeature feature = descriptor.newFeature();
+            if (isGeneric(feature)) {
+                centers[f] = new double[clusters][];
+                for (int c = 0; c < clusters; c++) {
+                    Random random = new Random(seed * 31 + f * 1000003L + c);
+                    centers[f][c] = new double[dimensions];
+                    for (int i = 0; i < dimensions; i++) {
+                        if (random.nextInt(3) == 0) centers[f][c][i] = random.nextGaussian();
+                    }
+                }
+            }
+        }
+        List<Future<byte[][][]>> extracted = new ArrayList<>(clusters);
+        for (int c = 0; c < clusters; c++) {
+            final int cluster = c;
+            extracted.add(executor.submit(() -> extractVariations(cluster)));
+        }
+        for (int f = 0; f < features.size(); f++) {
+            if (centers[f] == null) pool[f] = new byte[clusters][][];
+        }
+        for (int c = 0; c < clusters; c++) {
+            byte[][][] variationsOfCluster = extracted.get(c).get();
+            for (int f = 0; f < features.size(); f++) {
+                if (pool[f] != null) pool[f][c] = variationsOfCluster[f];
+            }
+        }
+        for (int f = 0; f < features.size(); f++) {
+            if (pool[f] != null) {
+                valueWidths[f] = Math.max(1, features.get(f).getByteWidth());
+                recombine[f] = canRecombine(f);
+            }
+        }
+    }
+
+    /**
+     * @return true if the representations of the feature all have the same length and recombined ones decode.
+     */
+    private boolean canRecombine(int f) {
+        int length = pool[f][0][0].length;
+        for (byte[][] cluster : pool[f]) {
+            for (byte[] variation : cluster) {
+                if (variation.length != length) return false;
+            }
+        }
+        Random random = new Random(seed);
+        GlobalFeature feature = features.get(f).newFeature();
+        for (int i = 0; i < 32; i++) {
+            try {
+                byte[] bytes = recombined(f, random.nextInt(clusters), random);
+                feature.setByteArrayRepresentation(bytes);
+                if (feature.getByteArrayRepresentation().length != bytes.length) return false;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[][][] extractVariations(int cluster) {
+        byte[][][] result = new byte[features.size()][variations][];
+        for (int v = 0; v < variations; v++) {
+            BufferedImage image = scene(cluster, new Random(seed * 17 + cluster * 1009L + v));
+            for (int f = 0; f < features.size(); f++) {
+                if (centers[f] != null) continue;
+                GlobalFeature feature = features.get(f).newFeature();
+                feature.extract(image);
+                result[f][v] = feature.getByteArrayRepresentation();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the scene of the cluster, with colors and positions moved by up to spread times their range.
+     */
+    private BufferedImage scene(int cluster, Random variation) {
+        return scene(new Random(seed + cluster), (int) (spread * 255), (int) (spread * IMAGE_SIZE), variation);
+    }
+
+    /**
+     * @return an image of random rectangles, e.g. for extracting test features.
+     */
+    public static BufferedImage randomImage(Random random) {
+        return scene(random, 0, 0, random);
+    }
+
+    private static BufferedImage scene(Random random, int colorJitter, int positionJitter, Random variation) {
+        BufferedImage image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        for (int i = 0; i < 12; i++) {
+            int red = jitter(random.nextInt(256), colorJitter, variation, 255);
+            int green = jitter(random.nextInt(256), colorJitter, variation, 255);
+            int blue = jitter(random.nextInt(256), colorJitter, variation, 255);
+            int x = jitter(random.nextInt(IMAGE_SIZE), positionJitter, variation, IMAGE_SIZE);
+            int y = jitter(random.nextInt(IMAGE_SIZE), positionJitter, variation, IMAGE_SIZE);
+            g.setColor(new Color(red, green, blue));
+            g.fillRect(x, y, 8 + random.nextInt(100), 8 + random.nextInt(100));
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static int jitter(int value, int jitter, Random random, int max) {
+        if (jitter > 0) value += random.nextInt(2 * jitter + 1) - jitter;
+        return Math.max(0, Math.min(max, value));
+    }
+
+    private byte[] recombined(int f, int cluster, Random random) {
+        byte[][] variationsOfCluster = pool[f][cluster];
+        byte[] bytes = variationsOfCluster[random.nextInt(variations)].clone();
+        int width = valueWidths[f];
+        for (int i = 0; i + width <= bytes.length; i += width) {
+            System.arraycopy(variationsOfCluster[random.nextInt(variations)], i, bytes, i, width);
+        }
+        return bytes;
+    }
+
+    /**
+     * Creates the document with the given id, thread safe.
+     */
+    public SolrInputDocument createDocument(long id) {
+        Random random = new Random(seed ^ (id * 0x9E3779B97F4A7C15L));
+        int cluster = Arrays.binarySearch(clusterWeights, random.nextDouble() * clusterWeights[clusters - 1]);
+        cluster = Math.min(clusters - 1, cluster < 0 ? -cluster - 1 : cluster);
+        SolrInputDocument document = new SolrInputDocument();
+        document.addField("id", Long.toString(id));
+        for (int f = 0; f < features.size(); f++) {
+            FeatureDescriptor descriptor = features.get(f);
+            GlobalFeature feature = descriptor.getScratchFeature();
+            if (centers[f] != null) {
+                setGenericData(feature, centers[f][cluster], random);
+            } else {
+                feature.setByteArrayRepresentation(recombine[f]
+                        ? recombined(f, cluster, random)
+                        : pool[f][cluster][random.nextInt(variations)]);
+            }
+            String code = descriptor.getCode();
+            String hashField = FeatureRegistry.codeToHashField(code);
+            document.addField(FeatureRegistry.codeToFeatureField(code), Base64.getEncoder().encodeToString(feature.getByteArrayRepresentation()));
+            document.addField(hashField, Utilities.hashesArrayToString(hashing.generateHashes(hashField, feature.getFeatureVector())));
+            if (metricSpaces && hashing.supportsFeature(feature)) {
+                document.addField(FeatureRegistry.codeToMetricSpacesField(code), hashing.generateHashString(feature));
+            }
+        }
+        return document;
+    }
+
+    private void setGenericData(GlobalFeature feature, double[] center, Random random) {
+        double[] values = new double[center.length];
+        for (int i = 0; i < center.length; i++) {
+            if (center[i] != 0) values[i] = center[i] + spread * random.nextGaussian();
+        }
+        if (feature instanceof GenericShortLireFeature) {
+            short[] data = new short[values.length];
+            for (int i = 0; i < values.length; i++) {
+                data[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(values[i] * 1000)));
+            }
+            ((GenericShortLireFeature) feature).setData(data);
+        } else if (feature instanceof GenericIntLireFeature) {
+            int[] data = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                data[i] = (int) Math.round(Math.abs(values[i]) * 100);
+            }
+            ((GenericIntLireFeature) feature).setData(data);
+        } else {
+            ((GenericDoubleLireFeature) feature).setData(values);
+        }
+    }
+
+    /**
+     * @return true for the features filled with arbitrary vectors instead of extracted from images.
+     */
+    public static boolean isGeneric(GlobalFeature feature) {
+        return feature instanceof GenericShortLireFeature || feature instanceof GenericDoubleLireFeature
+                || feature instanceof GenericIntLireFeature;
+    }
+}
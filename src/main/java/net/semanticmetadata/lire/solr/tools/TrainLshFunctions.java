@@ -0,0 +1,155 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.hashing.BitSamplingFunctions;
+import net.semanticmetadata.lire.solr.hashing.IterativeQuantization;
+import org.apache.commons.cli.*;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Command line utility learning the BitSampling functions of a hash field from the features of an existing index
+ * with PCA and iterative quantization, see {@link IterativeQuantization}. The functions are learned on one part of
+ * a random sample and measured on the other part, for the functions currently used and for the new ones. Copy the
+ * output file to the conf directory of the core and re-index the *_ha field, e.g.
+ * <pre>java -cp ... net.semanticmetadata.lire.solr.tools.TrainLshFunctions -i /var/solr/data/lire/data/index -f sf_hi -t 4 -b 16 -o conf/lsh/sf_ha.lbs</pre>
+ * The number of tables times the bits per table must not exceed the dimensions of the feature.
+ */
+public class TrainLshFunctions {
+    public static final int DEFAULT_TABLES = 4;
+    public static final int DEFAULT_BITS = 16;
+    public static final int DEFAULT_SAMPLE_SIZE = 10000;
+    public static final int DEFAULT_EVALUATION_SIZE = 2000;
+
+    public static void main(String[] args) throws ParseException, IOException {
+        // Using Apache Commons CLI for parsing the command line options.
+        Options options = new Options();
+        options.addOption("i", "index", true, "The Lucene index directory of the core (required)");
+        options.addOption("f", "field", true, "The feature field, e.g. sf_hi (required)");
+        options.addOption("t", "tables", true, "The number of hash tables, default is " + DEFAULT_TABLES);
+        options.addOption("b", "bits", true, "The number of bits per table, default is " + DEFAULT_BITS);
+        options.addOption("s", "sample-size", true, "The number of features the functions are learned from, default is " + DEFAULT_SAMPLE_SIZE);
+        options.addOption("e", "evaluation-size", true, "The number of features the functions are measured on, default is " + DEFAULT_EVALUATION_SIZE);
+        options.addOption("k", "iterations", true, "The number of ITQ iterations, default is " + IterativeQuantization.DEFAULT_ITERATIONS);
+        options.addOption("c", "conf", true, "The conf directory of the core, to compare with its functions instead of the bundled ones");
+        options.addOption("o", "output-file", true, "The file to write, will not be overwritten, default is lsh/<hash field>.lbs");
+        options.getOption("i").setRequired(true);
+        options.getOption("f").setRequired(true);
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("TrainLshFunctions", options);
+            return;
+        }
+        String field = cmd.getOptionValue('f');
+        if (!field.endsWith(FeatureRegistry.featureFieldPostfix)) {
+            field += FeatureRegistry.featureFieldPostfix;
+        }
+        Class<? extends GlobalFeature> featureClass = FeatureRegistry.getDefault().getClassForFeatureField(field);
+        if (featureClass == null) {
+            System.err.println(String.format("Field %s has no registered feature.", field));
+            return;
+        }
+        String hashField = field.replace(FeatureRegistry.featureFieldPostfix, FeatureRegistry.hashFieldPostfix);
+        File outfile = new File(cmd.getOptionValue('o', HashingMetricSpacesManager.getBitSamplingResource(hashField)));
+        if (outfile.exists()) {
+            System.err.println(String.format("File %s already exists and will not be overwritten.", outfile.getPath()));
+            return;
+        }
+        int tables = Integer.parseInt(cmd.getOptionValue('t', Integer.toString(DEFAULT_TABLES)));
+        int bits = Integer.parseInt(cmd.getOptionValue('b', Integer.toString(DEFAULT_BITS)));
+        int sampleSize = Integer.parseInt(cmd.getOptionValue('s', Integer.toString(DEFAULT_SAMPLE_SIZE)));
+        int evaluationSize = Integer.parseInt(cmd.getOptionValue('e', Integer.toString(DEFAULT_EVALUATION_SIZE)));
+        int iterations = Integer.parseInt(cmd.getOptionValue('k', Integer.toString(IterativeQuantization.DEFAULT_ITERATIONS)));
+        HashingMetricSpacesManager manager = cmd.hasOption('c')
+                ? HashingMetricSpacesManager.forDirectory(new File(cmd.getOptionValue('c')).toPath())
+                : HashingMetricSpacesManager.getDefault();
+
+        Random random = new Random();
+        List<double[]> sample = new ArrayList<>();
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(cmd.getOptionValue('i')).toPath()))) {
+            for (GlobalFeature feature : PivotSelection.sample(reader, field, featureClass, sampleSize + evaluationSize, random)) {
+                sample.add(feature.getFeatureVector());
+            }
+            System.out.println(String.format("# %d features sampled from %d documents", sample.size(), reader.numDocs()));
+        }
+        Collections.shuffle(sample, random);
+        List<double[]> evaluation = sample.subList(0, Math.min(evaluationSize, sample.size() / 2));
+        List<double[]> training = sample.subList(evaluation.size(), sample.size());
+
+        try {
+            System.out.println("# before: " + report(manager.getBitSampling(hashField), evaluation));
+        } catch (IllegalArgumentException e) {
+            System.out.println("# before: " + e.getMessage());
+        }
+        long time = System.currentTimeMillis();
+        BitSamplingFunctions trained;
+        try {
+            trained = IterativeQuantization.train(training, tables, bits, iterations, random);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        System.out.println(String.format("# %d tables of %d bits learned in %d ms", tables, bits, System.currentTimeMillis() - time));
+        System.out.println("# after:  " + report(trained, evaluation));
+
+        if (outfile.getParentFile() != null) outfile.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outfile))) {
+            trained.write(out);
+        }
+        System.out.println(String.format("# functions written to %s", outfile.getPath()));
+    }
+
+    /**
+     * @return the mean entropy of the bits, 1 if every bit splits the data in halves, and the number of documents
+     * sharing a bucket with a query looking like one of the documents, summed over all tables.
+     */
+    static String report(BitSamplingFunctions functions, List<double[]> documents) {
+        int numberOfBits = functions.getNumberOfFunctionBundles() * functions.getBits();
+        int[] ones = new int[numberOfBits];
+        Map<Integer, Integer> bucketSizes = new HashMap<>();
+        List<int[]> hashes = new ArrayList<>(documents.size());
+        for (double[] vector : documents) {
+            int[] documentHashes = functions.generateHashes(vector);
+            hashes.add(documentHashes);
+            for (int i = 0; i < documentHashes.length; i++) {
+                bucketSizes.merge(documentHashes[i], 1, Integer::sum);
+                for (int j = 0; j < functions.getBits(); j++) {
+                    if ((documentHashes[i] >>> j & 1) != 0) ones[i * functions.getBits() + j]++;
+                }
+            }
+        }
+        double entropy = 0;
+        for (int count : ones) {
+            double p = (double) count / documents.size();
+            if (p > 0 && p < 1) entropy -= p * Math.log(p) / Math.log(2) + (1 - p) * Math.log(1 - p) / Math.log(2);
+        }
+        double candidates = 0;
+        for (int[] documentHashes : hashes) {
+            for (int hash : documentHashes) {
+                candidates += bucketSizes.get(hash);
+            }
+        }
+        return String.format("%d tables of %d bits, mean bit entropy %.2f, %d buckets used, %.1f candidates per query (%.2f%% of %d documents)",
+                functions.getNumberOfFunctionBundles(), functions.getBits(), entropy / numberOfBits, bucketSizes.size(),
+                candidates / documents.size(), 100 * candidates / documents.size() / documents.size(), documents.size());
+    }
+}
@@ -0,0 +1,199 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.hashing.PostingListBalance;
+import net.semanticmetadata.lire.solr.hashing.ReferencePoints;
+import org.apache.commons.cli.*;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Command line utility selecting the MetricSpaces reference points from the features of an existing index, so the
+ * posting lists of the *_ms terms are balanced for the data actually indexed. A random sample of the features is
+ * taken, the reference points are selected from one part of it and the balance of the posting lists is measured
+ * on the other part, for the reference points currently used and for the new ones. Copy the output file to the
+ * conf directory of the core and re-index the *_ms field, e.g.
+ * <pre>java -cp ... net.semanticmetadata.lire.solr.tools.TrainReferencePoints -i /var/solr/data/lire/data/index -f cl_hi -o conf/metricspaces/ColorLayout.lrp</pre>
+ * Methods are <code>random</code>, which follows the density of the data, <code>farthest-first</code>, which spreads
+ * the reference points over the feature space including outliers, and <code>kmedoids</code>, which starts from
+ * farthest-first and moves the reference points to the medoids of their clusters. Which one balances the posting
+ * lists best depends on the data, so compare the reported balance. The new reference points use the exact
+ * nearest reference points, see {@link ReferencePoints#isExactNearest()}.
+ */
+public class TrainReferencePoints {
+    public static final int DEFAULT_NUMBER_OF_REFERENCE_POINTS = 1000;
+    public static final int DEFAULT_POSTING_LIST_LENGTH = 25;
+    public static final int DEFAULT_SAMPLE_SIZE = 20000;
+    public static final int DEFAULT_EVALUATION_SIZE = 5000;
+    public static final int DEFAULT_ITERATIONS = 10;
+    // members of a cluster used for finding its medoid, to bound the quadratic cost of large clusters.
+    private static final int MAXIMUM_CLUSTER_SAMPLE = 1000;
+
+    public static void main(String[] args) throws ParseException, IOException {
+        // Using Apache Commons CLI for parsing the command line options.
+        Options options = new Options();
+        options.addOption("i", "index", true, "The Lucene index directory of the core (required)");
+        options.addOption("f", "field", true, "The feature field, default is cl_hi");
+        options.addOption("m", "method", true, "random, farthest-first or kmedoids, default is random");
+        options.addOption("n", "number-of-reference-points", true, "The number of reference points, default is " + DEFAULT_NUMBER_OF_REFERENCE_POINTS);
+        options.addOption("l", "posting-list-length", true, "The number of terms per document, default is " + DEFAULT_POSTING_LIST_LENGTH);
+        options.addOption("s", "sample-size", true, "The number of features the reference points are selected from, default is " + DEFAULT_SAMPLE_SIZE);
+        options.addOption("e", "evaluation-size", true, "The number of features the balance is measured on, default is " + DEFAULT_EVALUATION_SIZE);
+        options.addOption("k", "iterations", true, "The maximum number of k-medoids iterations, default is " + DEFAULT_ITERATIONS);
+        options.addOption("c", "conf", true, "The conf directory of the core, to compare with its reference points instead of the bundled ones");
+        options.addOption("o", "output-file", true, "The reference points file to write, will not be overwritten, default is metricspaces/<feature>.lrp");
+        options.getOption("i").setRequired(true);
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("TrainReferencePoints", options);
+            return;
+        }
+        String field = cmd.getOptionValue('f', "cl_hi");
+        if (!field.endsWith(FeatureRegistry.featureFieldPostfix)) {
+            field += FeatureRegistry.featureFieldPostfix;
+        }
+        Class<? extends GlobalFeature> featureClass = FeatureRegistry.getDefault().getClassForFeatureField(field);
+        if (featureClass == null) {
+            System.err.println(String.format("Field %s has no registered feature.", field));
+            return;
+        }
+        String method = cmd.getOptionValue('m', "random");
+        if (!method.equals("random") && !method.equals("farthest-first") && !method.equals("kmedoids")) {
+            System.err.println(String.format("Unknown method %s, use random, farthest-first or kmedoids.", method));
+            return;
+        }
+        File outfile = new File(cmd.getOptionValue('o', HashingMetricSpacesManager.getReferencePointsResource(featureClass)));
+        if (outfile.exists()) {
+            System.err.println(String.format("File %s already exists and will not be overwritten.", outfile.getPath()));
+            return;
+        }
+        int numberOfReferencePoints = Integer.parseInt(cmd.getOptionValue('n', Integer.toString(DEFAULT_NUMBER_OF_REFERENCE_POINTS)));
+        int postingListLength = Integer.parseInt(cmd.getOptionValue('l', Integer.toString(DEFAULT_POSTING_LIST_LENGTH)));
+        int sampleSize = Integer.parseInt(cmd.getOptionValue('s', Integer.toString(DEFAULT_SAMPLE_SIZE)));
+        int evaluationSize = Integer.parseInt(cmd.getOptionValue('e', Integer.toString(DEFAULT_EVALUATION_SIZE)));
+        int iterations = Integer.parseInt(cmd.getOptionValue('k', Integer.toString(DEFAULT_ITERATIONS)));
+        HashingMetricSpacesManager manager = cmd.hasOption('c')
+                ? HashingMetricSpacesManager.forDirectory(new File(cmd.getOptionValue('c')).toPath())
+                : HashingMetricSpacesManager.getDefault();
+
+        Random random = new Random();
+        List<GlobalFeature> sample;
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(cmd.getOptionValue('i')).toPath()))) {
+            sample = PivotSelection.sample(reader, field, featureClass, sampleSize + evaluationSize, random);
+            System.out.println(String.format("# %d features sampled from %d documents", sample.size(), reader.numDocs()));
+        }
+        Collections.shuffle(sample, random);
+        List<GlobalFeature> evaluation = sample.subList(0, Math.min(evaluationSize, sample.size() / 2));
+        List<GlobalFeature> training = sample.subList(evaluation.size(), sample.size());
+
+        ReferencePoints current = manager.getReferencePoints(featureClass);
+        if (current != null) {
+            System.out.println("# before: " + PostingListBalance.compute(current, evaluation));
+        } else {
+            System.out.println(String.format("# before: no reference points for %s", featureClass.getSimpleName()));
+        }
+        long time = System.currentTimeMillis();
+        List<GlobalFeature> selected;
+        if (method.equals("random")) {
+            selected = selectRandom(training, numberOfReferencePoints, random);
+        } else if (method.equals("farthest-first")) {
+            selected = PivotSelection.selectPivots(training, numberOfReferencePoints, random);
+        } else {
+            selected = selectKMedoids(training, numberOfReferencePoints, iterations, random);
+        }
+        List<byte[]> points = new ArrayList<>(selected.size());
+        for (GlobalFeature feature : selected) {
+            points.add(feature.getByteArrayRepresentation());
+        }
+        ReferencePoints trained = ReferencePoints.create(featureClass, points.size(), postingListLength, true, points);
+        System.out.println(String.format("# %d reference points selected with %s in %d ms", points.size(), method, System.currentTimeMillis() - time));
+        System.out.println("# after:  " + PostingListBalance.compute(trained, evaluation));
+
+        if (outfile.getParentFile() != null) outfile.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outfile))) {
+            trained.write(out);
+        }
+        System.out.println(String.format("# reference points written to %s", outfile.getPath()));
+    }
+
+    static List<GlobalFeature> selectRandom(List<GlobalFeature> sample, int numberOfReferencePoints, Random random) {
+        List<GlobalFeature> shuffled = new ArrayList<>(sample);
+        Collections.shuffle(shuffled, random);
+        return new ArrayList<>(shuffled.subList(0, Math.min(numberOfReferencePoints, shuffled.size())));
+    }
+
+    /**
+     * k-medoids by alternating assignment and update, starting from farthest-first reference points. A cluster's
+     * new medoid is the member with the smallest sum of distances to the other members, for large clusters
+     * computed on a random subset of them.
+     */
+    static List<GlobalFeature> selectKMedoids(List<GlobalFeature> sample, int numberOfReferencePoints, int iterations, Random random) {
+        List<GlobalFeature> medoids = PivotSelection.selectPivots(sample, numberOfReferencePoints, random);
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            List<List<GlobalFeature>> clusters = new ArrayList<>(medoids.size());
+            for (int i = 0; i < medoids.size(); i++) {
+                clusters.add(new ArrayList<>());
+            }
+            for (GlobalFeature feature : sample) {
+                int nearest = 0;
+                double nearestDistance = Double.MAX_VALUE;
+                for (int i = 0; i < medoids.size(); i++) {
+                    double distance = medoids.get(i).getDistance(feature);
+                    if (distance < nearestDistance) {
+                        nearestDistance = distance;
+                        nearest = i;
+                    }
+                }
+                clusters.get(nearest).add(feature);
+            }
+            boolean changed = false;
+            for (int i = 0; i < medoids.size(); i++) {
+                List<GlobalFeature> members = clusters.get(i);
+                if (members.size() > MAXIMUM_CLUSTER_SAMPLE) {
+                    Collections.shuffle(members, random);
+                    members = members.subList(0, MAXIMUM_CLUSTER_SAMPLE);
+                }
+                // the current medoid is only replaced by a better one, so the iteration converges.
+                GlobalFeature medoid = medoids.get(i);
+                double medoidCost = 0;
+                for (GlobalFeature member : members) {
+                    medoidCost += medoid.getDistance(member);
+                }
+                for (GlobalFeature candidate : members) {
+                    double cost = 0;
+                    for (GlobalFeature member : members) {
+                        cost += candidate.getDistance(member);
+                        if (cost >= medoidCost) break;
+                    }
+                    if (cost < medoidCost) {
+                        medoidCost = cost;
+                        medoid = candidate;
+                    }
+                }
+                if (medoid != medoids.get(i)) {
+                    medoids.set(i, medoid);
+                    changed = true;
+                }
+            }
+            if (!changed) break;
+        }
+        return medoids;
+    }
+}
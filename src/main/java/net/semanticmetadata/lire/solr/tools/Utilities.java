@@ -15,6 +15,19 @@ public class Utilities {
         return sb.toString();
     }
 
+    /**
+     * Appends the text with &amp;, &lt; and &gt; escaped, for the field values of Solr XML update files.
+     */
+    public static void appendEscaped(StringBuilder sb, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&') sb.append("&amp;");
+            else if (c == '<') sb.append("&lt;");
+            else if (c == '>') sb.append("&gt;");
+            else sb.append(c);
+        }
+    }
+
     /**
      * Sorts a map by value ... from https://stackoverflow.com/questions/109383/sort-a-mapkey-value-by-values
      * @param map
@@ -35,6 +48,34 @@ public class Utilities {
         return result;
     }
 
+    /**
+     * Sorts the indices of the values by value, largest first, like {@link #sortByValue(Map)} does for a map from
+     * index to value, but without boxing. Equal values keep their order.
+     */
+    public static int[] sortIndicesByValue(double[] values) {
+        int n = values.length;
+        int[] indices = new int[n], tmp = new int[n];
+        for (int i = 0; i < n; i++) {
+            indices[i] = i;
+        }
+        // bottom up merge sort, which is stable.
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n), hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    tmp[k++] = Double.compare(values[indices[j]], values[indices[i]]) > 0 ? indices[j++] : indices[i++];
+                }
+                while (i < mid) tmp[k++] = indices[i++];
+                while (j < hi) tmp[k++] = indices[j++];
+            }
+            int[] swap = indices;
+            indices = tmp;
+            tmp = swap;
+        }
+        return indices;
+    }
+
     /**
      * Does a max normalization of the input vector.
      * @param featureVector the input double values, is left untouched.
@@ -1,37 +1,75 @@
 package net.semanticmetadata.lire.solr.tools;
 
 import org.apache.commons.cli.*;
-import org.dom4j.Document;
-import org.dom4j.DocumentException;
-import org.dom4j.Element;
-import org.dom4j.io.SAXReader;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import java.io.*;
-import java.util.HashMap;
-import java.util.Iterator;
-
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 
+/**
+ * Merges two Solr XML files by document id: each document of fileB gets the fields of the document of fileA with the
+ * same id, besides the id, and an imgurl field. Documents of fileA without a document in fileB are left out, documents
+ * of fileB without one in fileA are written as they are. The ids of fileB are trimmed for the join, the ones of fileA
+ * are taken as they are. The attributes of the documents and fields, e.g. update="set", and of the add element of
+ * fileB are kept. Other update commands than documents, e.g. delete or commit, would lose their place in the sorted
+ * output, so files with them are rejected.
+ * <p>
+ * Both files are streamed with StAX. A file that is not sorted by id is sorted in runs of up to the buffer size, which
+ * are written to temporary files and merged, at most {@link #MERGE_FAN_IN} at a time, while joining. So the memory
+ * doesn't depend on the size of the files, but the temporary directory needs about the size of the unsorted input.
+ * The output is sorted by id.
+ * </p>
+ */
 public class XmlMerge implements Runnable {
+    public static final long DEFAULT_BUFFER_SIZE = 64L * 1024 * 1024;
+    public static final int MERGE_FAN_IN = 64;
+    private static final Comparator<Doc> BY_ID = Comparator.comparing(doc -> doc.id);
+
     File fileA, fileB;
     File outFile;
-
-    public static Document parse(InputStream in) throws DocumentException {
-        SAXReader reader = new SAXReader();
-        Document document = reader.read(in);
-        return document;
-    }
+    File tempDir = null;
+    long bufferSize = DEFAULT_BUFFER_SIZE;
+    int fanIn = MERGE_FAN_IN;
+    private PrintStream log = System.out;
+    private final List<File> temporaryFiles = new ArrayList<>();
 
     public XmlMerge(File fileA, File fileB, File outFile) {
         this.fileA = fileA;
         this.fileB = fileB;
         this.outFile = outFile;
+        // the output goes to stdout otherwise.
+        if (outFile == null) log = System.err;
+    }
+
+    /**
+     * @param tempDir the directory of the sorted runs, null for the default temporary directory.
+     */
+    public void setTempDir(File tempDir) {
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * @param bufferSize the estimated size in bytes of the documents sorted in memory at once.
+     */
+    public void setBufferSize(long bufferSize) {
+        this.bufferSize = bufferSize;
     }
 
-    public static void main(String[] args) throws IOException, DocumentException, ParseException {
+    public static void main(String[] args) throws ParseException {
         File fileA = null, fileB = null;
         File outFile = null;
         Options options = new Options();
         options.addOption("o", "output-file", true, "XML File to export, will not be overwritten. If not given output will be sent to stdout.");
+        options.addOption("t", "temp-dir", true, "Directory for the sorted runs of unsorted input files, default is the system's temporary directory.");
+        options.addOption("m", "memory", true, "Megabytes of documents sorted in memory at once, default is " + (DEFAULT_BUFFER_SIZE >> 20) + ".");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
         String[] leftoverArgs = cmd.getArgs();
@@ -60,6 +98,8 @@ public class XmlMerge implements Runnable {
         }
 
         XmlMerge m = new XmlMerge(fileA, fileB, outFile);
+        if (cmd.hasOption('t')) m.setTempDir(new File(cmd.getOptionValue('t')));
+        if (cmd.hasOption('m')) m.setBufferSize(Long.parseLong(cmd.getOptionValue('m')) << 20);
         m.run();
     }
 
@@ -69,64 +109,428 @@ public class XmlMerge implements Runnable {
     }
 
     public void run() {
-        try {
-            System.out.println(String.format("# Parsing document %s", fileA.getPath()));
-            Document srcDocument = parse(new FileInputStream(fileA));
-            System.out.println(String.format("# Parsing document %s", fileB.getPath()));
-            Document targetDocument = parse(new FileInputStream(fileB));
-
-            Element targetRoot = targetDocument.getRootElement();
-            int numDocs = targetRoot.elements().size();
-            int countDocs = 0;
-
-            // we need to cache the src documents nodes by their ids ...
-            System.out.println("# Caching nodes");
-            HashMap<String, Element> nodeCache = new HashMap<>(10000);
-            Iterator<Element> docIterator = srcDocument.getRootElement().elementIterator("doc");
-            while (docIterator.hasNext()) {
-                Element doc = docIterator.next();
-                String id = doc.selectSingleNode("field[@name='id']").getText();
-                nodeCache.put(id, (Element) doc.detach());
-            }
-            System.out.println("# " + nodeCache.size() + " nodes cached from " + fileA.getPath());
-            System.out.println("# Merging data");
-            docIterator = targetRoot.elementIterator("doc");
-            while (docIterator.hasNext()) {
-                Element targetDoc = docIterator.next();
-                String id = targetDoc.selectSingleNode("field[@name='id']").getText();
-                Element srcDoc = nodeCache.get(id.trim());
-                // System.out.println();
-                // add all from doc2 besides id
-                Iterator<Element> fieldIterator = srcDoc.elementIterator("field");
-                while (fieldIterator.hasNext()) {
-                    Element f = fieldIterator.next();
-                    if (!f.attributeValue("name").equals("id")) {
-                        f.detach();
-                        targetDoc.add(f);
+        List<String[]> addAttributes;
+        try (DocReader reader = new DocReader(fileB, true, false)) {
+            addAttributes = reader.getAddAttributes();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try (Source src = sorted(fileA, false); Source target = sorted(fileB, true);
+             DocWriter out = outFile != null ? new DocWriter(new FileOutputStream(outFile), true, addAttributes) : new DocWriter(System.out, false, addAttributes)) {
+            log.println("# Merging data");
+            long countDocs = 0, unmatched = 0;
+            Doc srcDoc = src.next();
+            Doc targetDoc;
+            while ((targetDoc = target.next()) != null) {
+                while (srcDoc != null && srcDoc.id.compareTo(targetDoc.id) < 0) srcDoc = src.next();
+                // the last one wins if fileA has the id more than once.
+                Doc match = null;
+                while (srcDoc != null && srcDoc.id.equals(targetDoc.id)) {
+                    match = srcDoc;
+                    srcDoc = src.next();
+                }
+                if (match != null) {
+                    // add all from doc2 besides id
+                    for (Field field : match.fields) {
+                        if (!field.name.equals("id")) targetDoc.fields.add(field);
                     }
+                } else {
+                    unmatched++;
                 }
                 // add imgurl if not here yet:
                 // <field name="imgurl">flickrphotos/04/6296825000_d16622c83b_m.jpg</field>
-                Element url = targetDoc.addElement("field");
-                url.addAttribute("name", "imgurl");
-                url.setText(id.substring(id.indexOf("test/")));
+                int test = targetDoc.rawId.indexOf("test/");
+                if (test >= 0) targetDoc.fields.add(new Field("imgurl", targetDoc.rawId.substring(test)));
+                out.write(targetDoc);
                 countDocs++;
-                if (countDocs%2000 == 0) System.out.printf("# %03d%% entries merged.\n", (int) (countDocs * 100d / numDocs));
-            }
-            if (outFile!=null) {
-                System.out.println((String.format("# Writing output to file %s", outFile.getPath())));
-                BufferedWriter writer = new BufferedWriter(new FileWriter(outFile), 1024 * 1024 * 10);
-                targetDocument.write(writer);
-                writer.close();
-            } else {
-                OutputStreamWriter writer = new OutputStreamWriter(System.out);
-                targetDocument. write(writer);
-                writer.close();
+                if (countDocs % 100000 == 0) log.println(String.format("# %d entries merged.", countDocs));
             }
-        } catch (DocumentException e) {
-            e.printStackTrace();
+            log.println(String.format("# %d entries merged, %d of them not found in %s.", countDocs, unmatched, fileA.getPath()));
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            for (File file : temporaryFiles) {
+                file.delete();
+            }
+            temporaryFiles.clear();
+        }
+    }
+
+    /**
+     * @param trimIds true to compare the trimmed ids.
+     * @return the documents of the file sorted by id, either read from the file as they are or merged from sorted runs.
+     */
+    private Source sorted(File file, boolean trimIds) throws IOException {
+        if (isSorted(file, trimIds)) return new DocReader(file, trimIds);
+        log.println(String.format("# Sorting %s", file.getPath()));
+        List<File> runs = new ArrayList<>();
+        try (DocReader reader = new DocReader(file, trimIds)) {
+            List<Doc> buffer = new ArrayList<>();
+            long size = 0;
+            Doc doc;
+            while ((doc = reader.next()) != null) {
+                buffer.add(doc);
+                size += doc.size();
+                if (size >= bufferSize) {
+                    runs.add(writeRun(buffer));
+                    size = 0;
+                }
+            }
+            if (!buffer.isEmpty() || runs.isEmpty()) runs.add(writeRun(buffer));
+        }
+        log.println(String.format("# %d sorted runs written for %s", runs.size(), file.getPath()));
+        // merges runs until they can be merged at once while joining.
+        while (runs.size() > fanIn) {
+            List<File> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<File> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                File run = createTempFile();
+                try (Source source = new MergingSource(group, trimIds); DocWriter out = new DocWriter(new FileOutputStream(run), true)) {
+                    Doc doc;
+                    while ((doc = source.next()) != null) out.write(doc);
+                }
+                for (File f : group) {
+                    f.delete();
+                }
+                merged.add(run);
+            }
+            runs = merged;
+        }
+        return runs.size() == 1 ? new DocReader(runs.get(0), trimIds) : new MergingSource(runs, trimIds);
+    }
+
+    private boolean isSorted(File file, boolean trimIds) throws IOException {
+        try (DocReader reader = new DocReader(file, trimIds, false)) {
+            Doc last = null, doc;
+            while ((doc = reader.next()) != null) {
+                if (last != null && last.id.compareTo(doc.id) > 0) return false;
+                last = doc;
+            }
+        }
+        return true;
+    }
+
+    private File writeRun(List<Doc> buffer) throws IOException {
+        // the sort is stable, so documents with the same id keep their order.
+        buffer.sort(BY_ID);
+        File run = createTempFile();
+        try (DocWriter out = new DocWriter(new FileOutputStream(run), true)) {
+            for (Doc doc : buffer) {
+                out.write(doc);
+            }
+        }
+        buffer.clear();
+        return run;
+    }
+
+    private File createTempFile() throws IOException {
+        File file = File.createTempFile("xml-merge-", ".xml", tempDir);
+        file.deleteOnExit();
+        temporaryFiles.add(file);
+        return file;
+    }
+
+    /**
+     * A Solr document as its fields, in the order of the file.
+     */
+    static class Doc {
+        // the id as it is in the file and as it is compared, trimmed for fileB.
+        String rawId, id;
+        // name and value of the attributes of the doc element, e.g. boost.
+        final List<String[]> attributes = new ArrayList<>();
+        final List<Field> fields = new ArrayList<>();
+
+        /**
+         * @return the estimated size in memory.
+         */
+        long size() {
+            long size = 64 + size(attributes);
+            for (Field field : fields) {
+                size += 64 + 2L * (field.name.length() + field.value.length()) + size(field.attributes);
+            }
+            return size;
+        }
+
+        private static long size(List<String[]> attributes) {
+            long size = 0;
+            for (String[] attribute : attributes) {
+                size += 48 + 2L * (attribute[0].length() + attribute[1].length());
+            }
+            return size;
+        }
+    }
+
+    /**
+     * A field of a Solr document with the attributes besides the name, e.g. update="set".
+     */
+    static class Field {
+        final String name, value;
+        final List<String[]> attributes = new ArrayList<>();
+
+        Field(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    interface Source extends Closeable {
+        /**
+         * @return the next document or null at the end.
+         */
+        Doc next() throws IOException;
+    }
+
+    /**
+     * Reads the documents of a Solr XML file one by one, documents without id are skipped. Elements other than add,
+     * doc and field, e.g. delete or commit, and child documents are rejected with an IOException.
+     */
+    static class DocReader implements Source {
+        private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+        static {
+            FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+            FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        }
+
+        private final File file;
+        private final boolean trimIds;
+        private final boolean warn;
+        private final InputStream in;
+        private final XMLStreamReader reader;
+        private final List<String[]> addAttributes = new ArrayList<>();
+
+        DocReader(File file, boolean trimIds) throws IOException {
+            this(file, trimIds, true);
+        }
+
+        /**
+         * @param trimIds true to compare the trimmed ids.
+         * @param warn    false to skip documents without id silently, e.g. if the file is read again later.
+         */
+        DocReader(File file, boolean trimIds, boolean warn) throws IOException {
+            this.file = file;
+            this.trimIds = trimIds;
+            this.warn = warn;
+            in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+            try {
+                reader = FACTORY.createXMLStreamReader(in);
+                // the root element.
+                reader.nextTag();
+                if (!reader.getLocalName().equals("add")) throw unsupported();
+                readAttributes(addAttributes, null);
+            } catch (XMLStreamException e) {
+                in.close();
+                throw error(e);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return name and value of the attributes of the add element, e.g. commitWithin.
+         */
+        List<String[]> getAddAttributes() {
+            return addAttributes;
+        }
+
+        @Override
+        public Doc next() throws IOException {
+            try {
+                Doc doc = null;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        if (doc == null && reader.getLocalName().equals("doc")) {
+                            doc = new Doc();
+                            readAttributes(doc.attributes, null);
+                        } else if (doc != null && reader.getLocalName().equals("field")) {
+                            String name = reader.getAttributeValue(null, "name");
+                            List<String[]> attributes = new ArrayList<>();
+                            readAttributes(attributes, "name");
+                            String value = reader.getElementText();
+                            if (name == null) continue;
+                            if (name.equals("id") && doc.rawId == null) {
+                                doc.rawId = value;
+                                doc.id = trimIds ? value.trim() : value;
+                            }
+                            Field field = new Field(name, value);
+                            field.attributes.addAll(attributes);
+                            doc.fields.add(field);
+                        } else {
+                            throw unsupported();
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && doc != null && reader.getLocalName().equals("doc")) {
+                        if (doc.id != null) return doc;
+                        if (warn) System.err.println(String.format("Skipping document without id in %s at line %d.", file.getPath(), reader.getLocation().getLineNumber()));
+                        doc = null;
+                    }
+                }
+                return null;
+            } catch (XMLStreamException e) {
+                throw error(e);
+            }
+        }
+
+        private void readAttributes(List<String[]> attributes, String skip) {
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                String name = reader.getAttributeLocalName(i);
+                if (!name.equals(skip)) attributes.add(new String[]{name, reader.getAttributeValue(i)});
+            }
+        }
+
+        private IOException unsupported() {
+            return new IOException(String.format("Unsupported element <%s> in %s at line %d, only documents can be merged.",
+                    reader.getLocalName(), file.getPath(), reader.getLocation().getLineNumber()));
+        }
+
+        private IOException error(XMLStreamException e) {
+            return new IOException(String.format("Could not read %s: %s", file.getPath(), e.getMessage()), e);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Merges sorted runs, documents with the same id come in the order of the runs.
+     */
+    static class MergingSource implements Source {
+        private final List<DocReader> readers = new ArrayList<>();
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(
+                Comparator.<Head, Doc>comparing(head -> head.doc, BY_ID).thenComparingInt(head -> head.run));
+
+        MergingSource(List<File> runs, boolean trimIds) throws IOException {
+            try {
+                for (File run : runs) {
+                    DocReader reader = new DocReader(run, trimIds);
+                    readers.add(reader);
+                    Doc doc = reader.next();
+                    if (doc != null) heads.add(new Head(doc, readers.size() - 1));
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public Doc next() throws IOException {
+            Head head = heads.poll();
+            if (head == null) return null;
+            Doc doc = head.doc;
+            head.doc = readers.get(head.run).next();
+            if (head.doc != null) heads.add(head);
+            return doc;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException exception = null;
+            for (DocReader reader : readers) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+            if (exception != null) throw exception;
+        }
+
+        private static class Head {
+            Doc doc;
+            final int run;
+
+            Head(Doc doc, int run) {
+                this.doc = doc;
+                this.run = run;
+            }
+        }
+    }
+
+    /**
+     * Writes documents to a Solr XML file.
+     */
+    static class DocWriter implements Closeable {
+        private static final XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+
+        private final OutputStream out;
+        private final boolean closeStream;
+        private final XMLStreamWriter writer;
+
+        DocWriter(OutputStream out, boolean closeStream) throws IOException {
+            this(out, closeStream, new ArrayList<>());
+        }
+
+        /**
+         * @param closeStream   false to only flush the stream when closing, e.g. for stdout.
+         * @param addAttributes name and value of the attributes of the add element.
+         */
+        DocWriter(OutputStream out, boolean closeStream, List<String[]> addAttributes) throws IOException {
+            this.out = new BufferedOutputStream(out, 1 << 20);
+            this.closeStream = closeStream;
+            try {
+                writer = FACTORY.createXMLStreamWriter(this.out, "UTF-8");
+                writer.writeStartDocument("UTF-8", "1.0");
+                writer.writeCharacters("\n");
+                writer.writeStartElement("add");
+                writeAttributes(addAttributes);
+                writer.writeCharacters("\n");
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        void write(Doc doc) throws IOException {
+            try {
+                writer.writeStartElement("doc");
+                writeAttributes(doc.attributes);
+                for (Field field : doc.fields) {
+                    writer.writeStartElement("field");
+                    writer.writeAttribute("name", field.name);
+                    writeAttributes(field.attributes);
+                    writer.writeCharacters(field.value);
+                    writer.writeEndElement();
+                }
+                writer.writeEndElement();
+                writer.writeCharacters("\n");
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private void writeAttributes(List<String[]> attributes) throws XMLStreamException {
+            for (String[] attribute : attributes) {
+                writer.writeAttribute(attribute[0], attribute[1]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                writer.writeEndElement();
+                writer.writeCharacters("\n");
+                writer.writeEndDocument();
+                writer.close();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            } finally {
+                if (closeStream) out.close();
+                else out.flush();
+            }
         }
     }
 }
@@ -0,0 +1,170 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.imageanalysis.features.global.EdgeHistogram;
+import net.semanticmetadata.lire.imageanalysis.features.global.PHOG;
+import net.semanticmetadata.lire.imageanalysis.features.global.mpeg7.ColorLayoutImpl;
+import net.semanticmetadata.lire.solr.features.DoubleFeatureCosineDistance;
+import net.semanticmetadata.lire.solr.features.ShortFeatureCosineDistance;
+import net.semanticmetadata.lire.solr.tools.SyntheticDocuments;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BoundedDistanceTest {
+
+    private static void checkDistances(Class<? extends GlobalFeature> featureClass) throws Exception {
+        Random random = new Random(11);
+        GlobalFeature query = featureClass.newInstance();
+        query.extract(SyntheticDocuments.randomImage(random));
+        // decode the query like the request handler does.
+        GlobalFeature decodedQuery = featureClass.newInstance();
+        decodedQuery.setByteArrayRepresentation(query.getByteArrayRepresentation());
+        BoundedDistance boundedDistance = BoundedDistance.forQuery(decodedQuery);
+        assertNotNull(boundedDistance);
+        GlobalFeature tmp = featureClass.newInstance();
+        for (int i = 0; i < 50; i++) {
+            GlobalFeature candidate = featureClass.newInstance();
+            candidate.extract(SyntheticDocuments.randomImage(random));
+            BytesRef bytes = new BytesRef(candidate.getByteArrayRepresentation());
+            tmp.setByteArrayRepresentation(bytes.bytes, bytes.offset, bytes.length);
+            double distance = decodedQuery.getDistance(tmp);
+            assertEquals(distance, boundedDistance.getDistance(bytes, Double.MAX_VALUE), 0d);
+            assertEquals(distance, boundedDistance.getDistance(bytes, distance), 0d);
+            if (distance > 0) {
+                double abandoned = boundedDistance.getDistance(bytes, distance / 2);
+                assertTrue(abandoned == BoundedDistance.ABANDONED || abandoned == distance);
+            }
+        }
+    }
+
+    @Test
+    public void colorLayout() throws Exception {
+        checkDistances(ColorLayout.class);
+    }
+
+    /**
+     * @return the representation of the ColorLayout with only the first numYCoeff and numCCoeff coefficients.
+     */
+    private static byte[] truncate(ColorLayout feature, int numYCoeff, int numCCoeff) {
+        byte[] b = feature.getByteArrayRepresentation();
+        int fullY = b[0], fullC = b[1];
+        byte[] truncated = new byte[2 + numYCoeff + 2 * numCCoeff];
+        truncated[0] = (byte) numYCoeff;
+        truncated[1] = (byte) numCCoeff;
+        System.arraycopy(b, 2, truncated, 2, numYCoeff);
+        System.arraycopy(b, 2 + fullY, truncated, 2 + numYCoeff, numCCoeff);
+        System.arraycopy(b, 2 + fullY + fullC, truncated, 2 + numYCoeff + numCCoeff, numCCoeff);
+        return truncated;
+    }
+
+    /**
+     * @return the Y, Cb and Cr coefficients of the representation, only the first numYCoeff and numCCoeff.
+     */
+    private static int[][] coefficients(byte[] b, int numYCoeff, int numCCoeff) {
+        int[][] coefficients = {new int[numYCoeff], new int[numCCoeff], new int[numCCoeff]};
+        for (int i = 0; i < numYCoeff; i++) coefficients[0][i] = b[2 + i];
+        for (int i = 0; i < numCCoeff; i++) {
+            coefficients[1][i] = b[2 + b[0] + i];
+            coefficients[2][i] = b[2 + b[0] + b[1] + i];
+        }
+        return coefficients;
+    }
+
+    @Test
+    public void colorLayoutWithOtherNumberOfCoefficients() {
+        Random random = new Random(14);
+        ColorLayout extracted = new ColorLayout();
+        extracted.extract(SyntheticDocuments.randomImage(random));
+        byte[][] queries = {extracted.getByteArrayRepresentation(), truncate(extracted, 6, 3)};
+        for (int i = 0; i < 20; i++) {
+            extracted.extract(SyntheticDocuments.randomImage(random));
+            // the candidate has fewer coefficients than the query and the other way round.
+            byte[][] candidates = {truncate(extracted, 10, 2), extracted.getByteArrayRepresentation()};
+            for (byte[] query : queries) {
+                ColorLayout decodedQuery = new ColorLayout();
+                decodedQuery.setByteArrayRepresentation(query);
+                BoundedDistance boundedDistance = BoundedDistance.forQuery(decodedQuery);
+                for (byte[] candidate : candidates) {
+                    // only the coefficients both features have are compared.
+                    int numYCoeff = Math.min(query[0], candidate[0]), numCCoeff = Math.min(query[1], candidate[1]);
+                    int[][] q = coefficients(query, numYCoeff, numCCoeff), c = coefficients(candidate, numYCoeff, numCCoeff);
+                    double distance = ColorLayoutImpl.getSimilarity(q[0], q[1], q[2], c[0], c[1], c[2]);
+                    assertEquals(distance, boundedDistance.getDistance(new BytesRef(candidate), Double.MAX_VALUE), 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void edgeHistogram() throws Exception {
+        checkDistances(EdgeHistogram.class);
+    }
+
+    @Test
+    public void phog() throws Exception {
+        checkDistances(PHOG.class);
+    }
+
+    @Test
+    public void sparseShortFeature() {
+        Random random = new Random(12);
+        ShortFeatureCosineDistance query = new ShortFeatureCosineDistance();
+        query.setData(randomShorts(random, 100));
+        BoundedDistance boundedDistance = BoundedDistance.forQuery(query);
+        assertNotNull(boundedDistance);
+        for (int i = 0; i < 50; i++) {
+            // also with differing dimensions, the distance is computed on the common length.
+            ShortFeatureCosineDistance candidate = new ShortFeatureCosineDistance();
+            candidate.setData(randomShorts(random, 90 + random.nextInt(20)));
+            BytesRef bytes = new BytesRef(candidate.getByteArrayRepresentation());
+            ShortFeatureCosineDistance tmp = new ShortFeatureCosineDistance();
+            tmp.setByteArrayRepresentation(bytes.bytes, bytes.offset, bytes.length);
+            assertEquals(query.getDistance(tmp), boundedDistance.getDistance(bytes, Double.MAX_VALUE), 0d);
+        }
+    }
+
+    @Test
+    public void sparseDoubleFeature() {
+        Random random = new Random(13);
+        DoubleFeatureCosineDistance query = new DoubleFeatureCosineDistance();
+        query.setData(randomDoubles(random, 100));
+        BoundedDistance boundedDistance = BoundedDistance.forQuery(query);
+        assertNotNull(boundedDistance);
+        for (int i = 0; i < 50; i++) {
+            DoubleFeatureCosineDistance candidate = new DoubleFeatureCosineDistance();
+            candidate.setData(randomDoubles(random, 90 + random.nextInt(20)));
+            BytesRef bytes = new BytesRef(candidate.getByteArrayRepresentation());
+            DoubleFeatureCosineDistance tmp = new DoubleFeatureCosineDistance();
+            tmp.setByteArrayRepresentation(bytes.bytes, bytes.offset, bytes.length);
+            // the SIMD kernels sum up in a different order.
+            assertEquals(query.getDistance(tmp), boundedDistance.getDistance(bytes, Double.MAX_VALUE), 1e-9);
+        }
+    }
+
+    private static short[] randomShorts(Random random, int length) {
+        short[] data = new short[length];
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(3) == 0) data[i] = (short) (random.nextInt(2000) - 1000);
+        }
+        return data;
+    }
+
+    private static double[] randomDoubles(Random random, int length) {
+        double[] data = new double[length];
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(3) == 0) data[i] = random.nextGaussian();
+        }
+        return data;
+    }
+
+    @Test
+    public void unsupportedFeature() {
+        assertNull(BoundedDistance.forQuery(new CEDD()));
+    }
+}
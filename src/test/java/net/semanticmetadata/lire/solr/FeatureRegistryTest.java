@@ -0,0 +1,97 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.imageanalysis.features.global.PHOG;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrResourceLoader;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FeatureRegistryTest {
+
+    @Test
+    public void builtInFeatures() {
+        FeatureDescriptor descriptor = FeatureRegistry.getDefault().getDescriptorForHashField("cl_ha");
+        assertNotNull(descriptor);
+        assertEquals(ColorLayout.class, descriptor.getFeatureClass());
+        assertSame(descriptor, FeatureRegistry.getDefault().getDescriptorForFeatureField("cl_hi"));
+        assertEquals("cl_hi", FeatureRegistry.getDefault().getFeatureFieldName("cl_ha"));
+        assertNull(FeatureRegistry.getDefault().getDescriptorForHashField("xx_ha"));
+        assertNull(FeatureRegistry.getDefault().getFeatureFieldName(null));
+    }
+
+    @Test
+    public void newAndScratchFeatures() throws InterruptedException {
+        FeatureDescriptor descriptor = FeatureRegistry.getDefault().getDescriptorForHashField("ce_ha");
+        GlobalFeature feature = descriptor.newFeature();
+        assertTrue(feature instanceof CEDD);
+        assertNotSame(feature, descriptor.newFeature());
+        GlobalFeature scratch = descriptor.getScratchFeature();
+        assertSame(scratch, descriptor.getScratchFeature());
+        AtomicReference<GlobalFeature> otherThread = new AtomicReference<>();
+        Thread thread = new Thread(() -> otherThread.set(descriptor.getScratchFeature()));
+        thread.start();
+        thread.join();
+        assertNotNull(otherThread.get());
+        assertNotSame(scratch, otherThread.get());
+    }
+
+    @Test
+    public void configure() {
+        NamedList<Object> feature = new NamedList<>();
+        feature.add("class", PHOG.class.getName());
+        feature.add("dimensions", 630);
+        feature.add("distance", "l1");
+        feature.add("codec", "nibble");
+        NamedList<Object> features = new NamedList<>();
+        features.add("zz", feature);
+        FeatureRegistry registry = new FeatureRegistry();
+        registry.configure(features, new SolrResourceLoader(Paths.get(".")));
+
+        FeatureDescriptor descriptor = registry.getDescriptorForHashField("zz_ha");
+        assertNotNull(descriptor);
+        assertEquals(PHOG.class, descriptor.getFeatureClass());
+        assertEquals(630, descriptor.getDimensions());
+        assertEquals("zz_hi", registry.getFeatureFieldName("zz_ha"));
+        assertTrue(descriptor.newFeature() instanceof PHOG);
+        // the declared codec and distance select the distance on the byte[] representation.
+        assertNotNull(BoundedDistance.forQuery(descriptor.newFeature(), descriptor));
+        // the built-in features are still there, other registries don't see the new one.
+        assertNotNull(registry.getDescriptorForHashField("cl_ha"));
+        assertNull(FeatureRegistry.getDefault().getDescriptorForHashField("zz_ha"));
+        assertNull(new FeatureRegistry().getDescriptorForHashField("zz_ha"));
+    }
+
+    @Test
+    public void codes() {
+        Set<String> codes = FeatureRegistry.getDefault().getCodes();
+        assertTrue(codes.containsAll(Arrays.asList("cl", "eh", "ce", "sf", "df")));
+        for (String code : codes) {
+            assertNotNull(code, FeatureRegistry.getDefault().getDescriptorForFeatureField(FeatureRegistry.codeToFeatureField(code)));
+        }
+        assertFalse(codes.contains("zz"));
+        FeatureRegistry registry = new FeatureRegistry();
+        registry.register(new FeatureDescriptor("zz", PHOG.class, PHOG::new, 630, 0, "l1", "nibble"));
+        assertTrue(registry.getCodes().contains("zz"));
+        assertTrue(registry.getCodes().containsAll(codes));
+        try {
+            registry.getCodes().remove("cl");
+            fail("codes are modifiable");
+        } catch (UnsupportedOperationException e) {
+            assertNotNull(registry.getDescriptorForHashField("cl_ha"));
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void defaultsAreReadOnly() {
+        FeatureRegistry.getDefault().register(new FeatureDescriptor("zz", PHOG.class, PHOG::new, 630, 0, "l1", "nibble"));
+    }
+}
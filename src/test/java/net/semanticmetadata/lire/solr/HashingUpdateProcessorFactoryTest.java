@@ -0,0 +1,99 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.solr.tools.Utilities;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Posts documents with features only through the lire-hashes chain of an embedded core.
+ */
+public class HashingUpdateProcessorFactoryTest {
+    private static final String CORE_NAME = "lire";
+    private static final String CHAIN = "<updateRequestProcessorChain name=\"lire-hashes\">\n" +
+            "  <processor class=\"net.semanticmetadata.lire.solr.HashingUpdateProcessorFactory\">\n" +
+            "    <arr name=\"fields\"><str>cl_ha</str></arr>\n" +
+            "  </processor>\n" +
+            "  <processor class=\"solr.RunUpdateProcessorFactory\"/>\n" +
+            "</updateRequestProcessorChain>\n";
+    private static Path solrHome;
+    private static EmbeddedSolrServer server;
+    private static HashingMetricSpacesManager hashing;
+    private static ColorLayout plain, replaced;
+
+    @BeforeClass
+    public static void setupCore() throws Exception {
+        solrHome = Files.createTempDirectory("lire-hashing");
+        Path conf = LireTestData.createCore(solrHome, CORE_NAME, CHAIN);
+        hashing = HashingMetricSpacesManager.forDirectory(conf);
+        server = new EmbeddedSolrServer(solrHome, CORE_NAME);
+
+        List<ColorLayout> features = LireTestData.decodedColorLayouts(2);
+        plain = features.get(0);
+        replaced = features.get(1);
+        UpdateRequest update = new UpdateRequest();
+        update.setParam("update.chain", "lire-hashes");
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", "plain");
+        doc.addField("cl_hi", Base64.encodeBase64String(plain.getByteArrayRepresentation()));
+        update.add(doc);
+        // hashes sent by the client are replaced.
+        doc = new SolrInputDocument();
+        doc.addField("id", "replaced");
+        doc.addField("cl_hi", Base64.encodeBase64String(replaced.getByteArrayRepresentation()));
+        doc.addField("cl_ha", "bogus");
+        doc.addField("cl_ms", "bogus");
+        update.add(doc);
+        update.process(server);
+        server.commit();
+    }
+
+    @AfterClass
+    public static void closeCore() throws Exception {
+        if (server != null) server.close();
+        FileUtils.deleteQuietly(solrHome.toFile());
+    }
+
+    private static long count(String field, String term) throws Exception {
+        return server.query(new SolrQuery("{!field f=" + field + "}" + term)).getResults().getNumFound();
+    }
+
+    private static void assertHashed(String id, ColorLayout feature) throws Exception {
+        String[] hashes = Utilities.hashesArrayToString(hashing.generateHashes("cl_ha", feature.getFeatureVector())).split(" ");
+        for (String hash : hashes) {
+            SolrQuery query = new SolrQuery("{!field f=cl_ha}" + hash);
+            query.addFilterQuery("id:" + id);
+            assertEquals(hash, 1, server.query(query).getResults().getNumFound());
+        }
+        assertTrue(hashing.supportsFeature(feature));
+        String nearest = hashing.generateHashString(feature).split(" ")[0];
+        SolrQuery query = new SolrQuery("{!field f=cl_ms}" + nearest);
+        query.addFilterQuery("id:" + id);
+        assertEquals(nearest, 1, server.query(query).getResults().getNumFound());
+    }
+
+    @Test
+    public void testHashesOfFeatureOnlyDocument() throws Exception {
+        assertHashed("plain", plain);
+    }
+
+    @Test
+    public void testClientHashesReplaced() throws Exception {
+        assertHashed("replaced", replaced);
+        assertEquals(0, count("cl_ha", "bogus"));
+        assertEquals(0, count("cl_ms", "bogus"));
+    }
+}
@@ -0,0 +1,116 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.cloud.SolrCloudTestCase;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Filters by lirefunc distance ranges with {!lirefilter} on a single core.
+ */
+public class LireDistanceFilterTest extends SolrCloudTestCase {
+    private static final String COLLECTION = LireTestData.COLLECTION;
+    private static final int NUMBER_OF_DOCS = 60;
+    private static final List<ColorLayout> features = new ArrayList<>();
+
+    @BeforeClass
+    public static void setupCluster() throws Exception {
+        cluster = LireTestData.createCollection(configureCluster(1), 1);
+        features.addAll(LireTestData.decodedColorLayouts(NUMBER_OF_DOCS));
+        UpdateRequest update = new UpdateRequest();
+        for (int i = 0; i < NUMBER_OF_DOCS; i++) {
+            update.add(LireTestData.document("img" + i, features.get(i)));
+        }
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", "nofeature");
+        update.add(doc);
+        update.process(cluster.getSolrClient(), COLLECTION);
+        cluster.getSolrClient().commit(COLLECTION);
+    }
+
+    private static String lirefunc(int query) {
+        return "lirefunc(cl,\"" + Base64.encodeBase64String(features.get(query).getByteArrayRepresentation()) + "\")";
+    }
+
+    private static Set<String> filter(String... fqs) throws Exception {
+        ModifiableSolrParams params = params("q", "*:*", "rows", "1000", "fl", "id");
+        params.add("fq", fqs);
+        Set<String> ids = new HashSet<>();
+        for (SolrDocument doc : cluster.getSolrClient().query(COLLECTION, params).getResults()) {
+            ids.add((String) doc.getFieldValue("id"));
+        }
+        return ids;
+    }
+
+    /**
+     * @return the documents sorted by their distance to the query.
+     */
+    private static List<Integer> sorted(int query) {
+        List<Integer> docs = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_DOCS; i++) docs.add(i);
+        docs.sort(Comparator.comparingDouble(i -> features.get(query).getDistance(features.get(i))));
+        return docs;
+    }
+
+    /**
+     * @return a bound between the distances of the n-th and the next document, so it does not depend on the float
+     * precision of the distances.
+     */
+    private static double between(int query, List<Integer> sorted, int n) {
+        ColorLayout queryFeature = features.get(query);
+        return (queryFeature.getDistance(features.get(sorted.get(n))) + queryFeature.getDistance(features.get(sorted.get(n + 1)))) / 2;
+    }
+
+    private static Set<String> ids(List<Integer> docs) {
+        Set<String> ids = new HashSet<>();
+        for (int doc : docs) ids.add("img" + doc);
+        return ids;
+    }
+
+    @Test
+    public void testPostFilter() throws Exception {
+        int query = 3;
+        List<Integer> sorted = sorted(query);
+        double lower = between(query, sorted, 4), upper = between(query, sorted, 24);
+        assertEquals(ids(sorted.subList(5, 25)), filter("{!lirefilter l=" + lower + " u=" + upper + "}" + lirefunc(query)));
+        // only the documents passing the other filters are checked.
+        assertEquals(ids(sorted.subList(5, 10)), filter("{!lirefilter l=" + lower + " u=" + upper + "}" + lirefunc(query),
+                "{!terms f=id}" + String.join(",", ids(sorted.subList(0, 10)))));
+    }
+
+    @Test
+    public void testRegularFilter() throws Exception {
+        int query = 11;
+        List<Integer> sorted = sorted(query);
+        double upper = between(query, sorted, 14);
+        assertEquals(ids(sorted.subList(0, 15)), filter("{!lirefilter cost=50 u=" + upper + "}" + lirefunc(query)));
+        assertEquals(filter("{!lirefilter u=" + upper + "}" + lirefunc(query)),
+                filter("{!lirefilter cost=50 u=" + upper + "}" + lirefunc(query)));
+    }
+
+    @Test
+    public void testDocumentsWithoutFeature() throws Exception {
+        // without bounds all documents with the feature match, with both kinds of filter.
+        Set<String> all = ids(sorted(0));
+        assertEquals(all, filter("{!lirefilter}" + lirefunc(0)));
+        assertEquals(all, filter("{!lirefilter cost=50}" + lirefunc(0)));
+    }
+
+    @Test
+    public void testNeedsLirefunc() throws Exception {
+        SolrException e = expectThrows(SolrException.class, () -> filter("{!lirefilter u=1}sum(1,2)"));
+        assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, e.code());
+    }
+}
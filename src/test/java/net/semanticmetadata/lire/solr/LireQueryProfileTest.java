@@ -0,0 +1,79 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LireQueryProfileTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void funnel() {
+        LireQueryProfile profile = new LireQueryProfile();
+        assertFalse(profile.hasHashes());
+        profile.addHash("a1", 12);
+        profile.addHash("b2", 3);
+        assertTrue(profile.hasHashes());
+        profile.setNumberOfSegments(3);
+        for (int segment : new int[]{0, 0, 2, 0, 2}) profile.countCandidate(segment);
+        BoundedDistance.ReRankCounts counts = new BoundedDistance.ReRankCounts();
+        counts.pruned = 1;
+        counts.missing = 1;
+        counts.distances = 3;
+        counts.abandoned = 1;
+        ResultHeap heap = new ResultHeap(2);
+        heap.offer(0, 3);
+        heap.offer(1, 2);
+        heap.offer(2, 1);
+        profile.addReRankCounts(counts, heap);
+        profile.addDocValuesResets(2);
+        profile.addStageTime("reRank", 100);
+        profile.addStageTime("candidateSearch", 10);
+        profile.addStageTime("reRank", 50);
+
+        NamedList<Object> result = profile.toNamedList();
+        List<NamedList<Object>> hashes = (List<NamedList<Object>>) result.get("hashes");
+        assertEquals(2, hashes.size());
+        assertEquals("a1", hashes.get(0).get("term"));
+        assertEquals(12, hashes.get(0).get("docFreq"));
+        // the postings are only added if they were read from the index.
+        assertNull(hashes.get(0).get("postings"));
+
+        NamedList<Object> funnel = (NamedList<Object>) result.get("funnel");
+        assertEquals(5L, funnel.get("candidates"));
+        assertEquals(Arrays.asList(3, 0, 2), funnel.get("candidatesPerSegment"));
+        assertEquals(1L, funnel.get("pruned"));
+        assertEquals(1L, funnel.get("missing"));
+        assertEquals(3L, funnel.get("distances"));
+        assertEquals(1d / 3, (Double) funnel.get("abandonedShare"), 0d);
+        assertEquals((long) heap.getInserts(), funnel.get("heapInserts"));
+        assertEquals((long) heap.getReplacements(), funnel.get("heapReplacements"));
+        assertEquals(2L, funnel.get("docValuesResets"));
+
+        NamedList<Object> nanos = (NamedList<Object>) result.get("nanos");
+        // stages are summed up and kept in the order they were first seen.
+        assertEquals("reRank", nanos.getName(0));
+        assertEquals(150L, nanos.get("reRank"));
+        assertEquals(10L, nanos.get("candidateSearch"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void emptyProfile() {
+        NamedList<Object> result = new LireQueryProfile().toNamedList();
+        assertTrue(((List<Object>) result.get("hashes")).isEmpty());
+        NamedList<Object> funnel = (NamedList<Object>) result.get("funnel");
+        assertEquals(0L, funnel.get("candidates"));
+        assertNull(funnel.get("candidatesPerSegment"));
+        assertEquals(0d, funnel.get("abandonedShare"));
+    }
+
+    @Test
+    public void docFreqOfUnknownField() {
+        assertEquals(0, HashTermStatistics.docFreq("unknown_ha", "a1"));
+    }
+}
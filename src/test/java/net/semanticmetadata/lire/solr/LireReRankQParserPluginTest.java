@@ -0,0 +1,104 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.cloud.SolrCloudTestCase;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Re-ranks the hits of a text query with rq={!lire ...} on a single core.
+ */
+public class LireReRankQParserPluginTest extends SolrCloudTestCase {
+    private static final String COLLECTION = LireTestData.COLLECTION;
+    private static final int NUMBER_OF_DOCS = 40;
+    private static final List<ColorLayout> features = new ArrayList<>();
+
+    @BeforeClass
+    public static void setupCluster() throws Exception {
+        cluster = LireTestData.createCollection(configureCluster(1), 1);
+        features.addAll(LireTestData.decodedColorLayouts(NUMBER_OF_DOCS));
+        UpdateRequest update = new UpdateRequest();
+        for (int i = 0; i < NUMBER_OF_DOCS; i++) {
+            SolrInputDocument doc = LireTestData.document("img" + i, features.get(i));
+            // the main query ranks the documents by their number of x.
+            doc.addField("rank_ws", xs(NUMBER_OF_DOCS - i));
+            update.add(doc);
+        }
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", "nofeature");
+        doc.addField("rank_ws", xs(NUMBER_OF_DOCS + 1));
+        update.add(doc);
+        update.process(cluster.getSolrClient(), COLLECTION);
+        cluster.getSolrClient().commit(COLLECTION);
+    }
+
+    private static String xs(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) sb.append("x ");
+        return sb.toString();
+    }
+
+    private static SolrDocumentList search(int query, int reRankDocs, int rows) throws Exception {
+        return cluster.getSolrClient().query(COLLECTION, params("q", "rank_ws:x",
+                "rq", "{!lire field=cl feature=$f reRankDocs=" + reRankDocs + "}",
+                "f", Base64.encodeBase64String(features.get(query).getByteArrayRepresentation()),
+                "rows", Integer.toString(rows), "fl", "id,score")).getResults();
+    }
+
+    private static float score(SolrDocument doc) {
+        return ((Number) doc.getFieldValue("score")).floatValue();
+    }
+
+    @Test
+    public void testReRankedByDistance() throws Exception {
+        int query = 5;
+        SolrDocumentList results = search(query, 20, 10);
+        assertEquals(10, results.size());
+        // the first 20 hits of the main query are nofeature and img0 to img18.
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 19; i++) expected.add(i);
+        ColorLayout queryFeature = features.get(query);
+        expected.sort(Comparator.comparingDouble(i -> queryFeature.getDistance(features.get(i))));
+        assertEquals("img" + query, results.get(0).getFieldValue("id"));
+        for (int i = 0; i < results.size(); i++) {
+            int doc = expected.get(i);
+            assertEquals("img" + doc, results.get(i).getFieldValue("id"));
+            assertEquals(1d / (1d + queryFeature.getDistance(features.get(doc))), score(results.get(i)), 1e-5);
+        }
+    }
+
+    @Test
+    public void testNotReRankedDocsStayBelow() throws Exception {
+        int query = 30;
+        SolrDocumentList results = search(query, 10, 20);
+        assertEquals(20, results.size());
+        // the re-ranked hits are img0 to img8 and nofeature, which has no distance and comes last.
+        ColorLayout queryFeature = features.get(query);
+        float last = Float.MAX_VALUE;
+        for (int i = 0; i < 9; i++) {
+            String id = (String) results.get(i).getFieldValue("id");
+            int doc = Integer.parseInt(id.substring("img".length()));
+            assertTrue(doc < 9);
+            assertTrue(score(results.get(i)) > 0f);
+            assertTrue(score(results.get(i)) <= last);
+            assertEquals(1d / (1d + queryFeature.getDistance(features.get(doc))), score(results.get(i)), 1e-5);
+            last = score(results.get(i));
+        }
+        assertEquals("nofeature", results.get(9).getFieldValue("id"));
+        assertEquals(0f, score(results.get(9)), 0f);
+        // the others keep the order of the main query, but not its scores.
+        for (int i = 10; i < 20; i++) {
+            assertEquals("img" + (i - 1), results.get(i).getFieldValue("id"));
+            assertEquals(0f, score(results.get(i)), 0f);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.cloud.SolrCloudTestCase;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Searches with /lireq on a single core.
+ */
+public class LireRequestHandlerTest extends SolrCloudTestCase {
+    private static final String COLLECTION = LireTestData.COLLECTION;
+    private static final int NUMBER_OF_DOCS = 100;
+    private static final List<ColorLayout> features = new ArrayList<>();
+
+    @BeforeClass
+    public static void setupCluster() throws Exception {
+        cluster = LireTestData.createCollection(configureCluster(1), 1);
+        features.addAll(LireTestData.decodedColorLayouts(NUMBER_OF_DOCS));
+        // two commits, so there are two segments.
+        for (int batch = 0; batch < 2; batch++) {
+            UpdateRequest update = new UpdateRequest();
+            for (int i = batch * NUMBER_OF_DOCS / 2; i < (batch + 1) * NUMBER_OF_DOCS / 2; i++) {
+                update.add(LireTestData.document("img" + i, features.get(i)));
+            }
+            update.process(cluster.getSolrClient(), COLLECTION);
+            cluster.getSolrClient().commit(COLLECTION);
+        }
+        // a candidate of img5 without a feature, it is counted as missing by the re-ranking.
+        SolrInputDocument doc = LireTestData.document("nofeature", features.get(5));
+        doc.removeField("cl_hi");
+        new UpdateRequest().add(doc).process(cluster.getSolrClient(), COLLECTION);
+        cluster.getSolrClient().commit(COLLECTION);
+    }
+
+    private static QueryResponse lireq(SolrParams params) throws Exception {
+        QueryRequest request = new QueryRequest(params);
+        request.setPath("/lireq");
+        return request.process(cluster.getSolrClient(), COLLECTION);
+    }
+
+    private static long number(NamedList<?> list, String name) {
+        return ((Number) list.get(name)).longValue();
+    }
+
+    private static int index(SolrDocument doc) {
+        return Integer.parseInt(doc.getFieldValue("id").toString().substring("img".length()));
+    }
+
+    @Test
+    public void testSearchByIdMatchesLinearSearch() throws Exception {
+        int queryIndex = 42;
+        SolrDocumentList results = lireq(params("id", "img" + queryIndex, "field", "cl_ha", "accuracy", "1",
+                "candidates", "1000", "rows", "10", "fl", "id")).getResults();
+        assertEquals(10, results.size());
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_DOCS; i++) expected.add(i);
+        ColorLayout query = features.get(queryIndex);
+        expected.sort(Comparator.comparingDouble(i -> query.getDistance(features.get(i))));
+        assertEquals("img" + queryIndex, results.get(0).getFieldValue("id"));
+        for (int i = 0; i < results.size(); i++) {
+            SolrDocument doc = results.get(i);
+            // only the requested fields and the distance are returned.
+            assertEquals(2, doc.getFieldNames().size());
+            assertEquals(query.getDistance(features.get(expected.get(i))), ((Number) doc.getFieldValue("d")).doubleValue(), 0.001);
+            assertEquals(query.getDistance(features.get(index(doc))), ((Number) doc.getFieldValue("d")).doubleValue(), 0.001);
+        }
+    }
+
+    @Test
+    public void testTransformers() throws Exception {
+        SolrDocumentList results = lireq(params("id", "img7", "field", "cl_ha", "accuracy", "1",
+                "rows", "5", "fl", "id,[docid],cl_hi")).getResults();
+        assertEquals(5, results.size());
+        Set<Object> docIds = new HashSet<>();
+        for (SolrDocument doc : results) {
+            assertNotNull(doc.getFieldValue("[docid]"));
+            docIds.add(doc.getFieldValue("[docid]"));
+            ColorLayout feature = new ColorLayout();
+            feature.setByteArrayRepresentation((byte[]) doc.getFieldValue("cl_hi"));
+            assertEquals(features.get(7).getDistance(feature), ((Number) doc.getFieldValue("d")).doubleValue(), 0.001);
+        }
+        assertEquals(5, docIds.size());
+    }
+
+    @Test
+    public void testRandomSearch() throws Exception {
+        SolrDocumentList results = lireq(params("random", "true", "rows", "5", "seed", "3", "fl", "id")).getResults();
+        assertEquals(5, results.size());
+        // all documents, with or without feature.
+        assertEquals(NUMBER_OF_DOCS + 1, results.getNumFound());
+        Set<Object> ids = new HashSet<>();
+        for (SolrDocument doc : results) {
+            assertEquals(1, doc.getFieldNames().size());
+            ids.add(doc.getFieldValue("id"));
+        }
+        assertEquals(5, ids.size());
+        // the same seed gives the same documents.
+        SolrDocumentList again = lireq(params("random", "true", "rows", "5", "seed", "3", "fl", "id")).getResults();
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(results.get(i).getFieldValue("id"), again.get(i).getFieldValue("id"));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDebugFunnel() throws Exception {
+        QueryResponse response = lireq(params("id", "img5", "field", "cl_ha", "accuracy", "0.5",
+                "candidates", "1000", "rows", "10", "debug", "true"));
+        NamedList<Object> debug = (NamedList<Object>) response.getResponse().get("debug");
+        assertNotNull(debug);
+
+        List<NamedList<Object>> hashes = (List<NamedList<Object>>) debug.get("hashes");
+        assertFalse(hashes.isEmpty());
+        for (NamedList<Object> hash : hashes) {
+            assertNotNull(hash.get("term"));
+            assertNotNull(hash.get("docFreq"));
+            // the query document has all of its hashes.
+            assertTrue(number(hash, "postings") >= 1);
+        }
+
+        NamedList<Object> funnel = (NamedList<Object>) debug.get("funnel");
+        long candidates = number(funnel, "candidates");
+        assertEquals(Long.parseLong(response.getResponse().get("RawDocsCount").toString()), candidates);
+        long perSegment = 0;
+        for (Object count : (List<Object>) funnel.get("candidatesPerSegment")) {
+            perSegment += ((Number) count).longValue();
+        }
+        assertEquals(candidates, perSegment);
+        // each candidate is either pruned, has no feature or is compared to the query.
+        assertEquals(1, number(funnel, "missing"));
+        assertEquals(candidates, number(funnel, "pruned") + number(funnel, "missing") + number(funnel, "distances"));
+        assertTrue(number(funnel, "distances") > 0);
+        assertTrue(number(funnel, "heapInserts") >= response.getResults().size());
+        assertEquals(10, response.getResults().size());
+
+        NamedList<Object> nanos = (NamedList<Object>) debug.get("nanos");
+        assertNotNull(nanos.get("candidateSearch"));
+        assertNotNull(nanos.get("reRank"));
+    }
+
+    @Test
+    public void testNoDebugByDefault() throws Exception {
+        QueryResponse response = lireq(params("id", "img5", "field", "cl_ha", "accuracy", "0.5", "rows", "10"));
+        assertNull(response.getResponse().get("debug"));
+        response = lireq(params("id", "img5", "field", "cl_ha", "accuracy", "0.5", "rows", "10", "debug", "false"));
+        assertNull(response.getResponse().get("debug"));
+    }
+}
@@ -0,0 +1,107 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.cloud.SolrCloudTestCase;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.ShardParams;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the distributed LIRE search on a two shard collection and compares it to a linear search.
+ */
+public class LireSearchComponentTest extends SolrCloudTestCase {
+    private static final String COLLECTION = LireTestData.COLLECTION;
+    private static final int NUMBER_OF_DOCS = 200;
+    private static final List<ColorLayout> features = new ArrayList<>();
+
+    @BeforeClass
+    public static void setupCluster() throws Exception {
+        cluster = LireTestData.createCollection(configureCluster(2), 2);
+        features.addAll(LireTestData.decodedColorLayouts(NUMBER_OF_DOCS));
+        UpdateRequest update = new UpdateRequest();
+        for (int i = 0; i < NUMBER_OF_DOCS; i++) {
+            update.add(LireTestData.document("img" + i, features.get(i)));
+        }
+        update.process(cluster.getSolrClient(), COLLECTION);
+        cluster.getSolrClient().commit(COLLECTION);
+    }
+
+    @Test
+    public void testSearchByIdMatchesLinearSearch() throws Exception {
+        int queryIndex = 42;
+        QueryRequest request = new QueryRequest(params("id", "img" + queryIndex, "field", "cl_ha",
+                "accuracy", "1", "candidates", "1000", "rows", "10", "fl", "id"));
+        request.setPath("/lire");
+        QueryResponse response = request.process(cluster.getSolrClient(), COLLECTION);
+        SolrDocumentList results = response.getResults();
+        assertEquals(10, results.size());
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_DOCS; i++) expected.add(i);
+        ColorLayout query = features.get(queryIndex);
+        expected.sort(Comparator.comparingDouble(i -> query.getDistance(features.get(i))));
+        assertEquals("img" + queryIndex, results.get(0).getFieldValue("id"));
+        for (int i = 0; i < results.size(); i++) {
+            SolrDocument doc = results.get(i);
+            assertEquals(query.getDistance(features.get(expected.get(i))), ((Number) doc.getFieldValue("d")).doubleValue(), 0.001);
+        }
+    }
+
+    @Test
+    public void testSearchByFeatureWithHashes() throws Exception {
+        ColorLayout query = features.get(7);
+        QueryRequest request = new QueryRequest(params("feature", Base64.encodeBase64String(query.getByteArrayRepresentation()),
+                "field", "cl_ha", "accuracy", "0.5", "rows", "5"));
+        request.setPath("/lire");
+        SolrDocumentList results = request.process(cluster.getSolrClient(), COLLECTION).getResults();
+        assertTrue(results.size() > 0);
+        assertEquals("img7", results.get(0).getFieldValue("id"));
+        double last = 0;
+        for (SolrDocument doc : results) {
+            double d = ((Number) doc.getFieldValue("d")).doubleValue();
+            assertTrue(d >= last);
+            last = d;
+        }
+    }
+
+    @Test
+    public void testShardsTolerantWithShardDown() throws Exception {
+        JettySolrRunner jetty = cluster.getJettySolrRunner(1);
+        jetty.stop();
+        cluster.waitForJettyToStop(jetty);
+        try {
+            ColorLayout query = features.get(7);
+            // the term statistics are collected from the shards for an accuracy below 0.9.
+            QueryRequest request = new QueryRequest(params("feature", Base64.encodeBase64String(query.getByteArrayRepresentation()),
+                    "field", "cl_ha", "accuracy", "0.5", "rows", "10", "fl", "id", ShardParams.SHARDS_TOLERANT, "true"));
+            request.setPath("/lire");
+            QueryResponse response = request.process(cluster.getSolrClient(), COLLECTION);
+            assertEquals(Boolean.TRUE, response.getHeader().get("partialResults"));
+            SolrDocumentList results = response.getResults();
+            assertTrue(results.size() > 0);
+            double last = 0;
+            for (SolrDocument doc : results) {
+                double d = ((Number) doc.getFieldValue("d")).doubleValue();
+                int index = Integer.parseInt(doc.getFieldValue("id").toString().substring("img".length()));
+                assertEquals(query.getDistance(features.get(index)), d, 0.001);
+                assertTrue(d >= last);
+                last = d;
+            }
+        } finally {
+            jetty.start();
+            cluster.waitForAllNodes(30);
+            cluster.waitForActiveCollection(COLLECTION, 2, 2);
+        }
+    }
+}
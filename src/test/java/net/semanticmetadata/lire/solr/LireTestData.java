@@ -0,0 +1,91 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.solr.tools.SyntheticDocuments;
+import net.semanticmetadata.lire.solr.tools.Utilities;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
+import org.apache.solr.cloud.MiniSolrCloudCluster;
+import org.apache.solr.cloud.SolrCloudTestCase;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Features, documents and collections shared by the tests.
+ */
+public class LireTestData {
+    public static final String COLLECTION = "lire";
+
+    /**
+     * Starts the cluster with the conf directory of the project and creates the collection, one replica per shard.
+     * Use it in a SolrCloudTestCase as <code>cluster = LireTestData.createCollection(configureCluster(1), 1);</code>
+     *
+     * @return the cluster, to be set as the cluster of the test case, so it is shut down after the tests.
+     */
+    public static MiniSolrCloudCluster createCollection(SolrCloudTestCase.Builder builder, int shards) throws Exception {
+        MiniSolrCloudCluster cluster = builder.addConfig("lire", Paths.get("conf")).build();
+        CollectionAdminRequest.createCollection(COLLECTION, "lire", shards, 1).process(cluster.getSolrClient());
+        cluster.waitForActiveCollection(COLLECTION, shards, shards);
+        return cluster;
+    }
+
+    /**
+     * Creates a core with the conf directory of the project in the solr home, to be loaded by an
+     * EmbeddedSolrServer or a CoreContainer.
+     *
+     * @param chains update request processor chains added to the solrconfig.xml, may be empty.
+     * @return the conf directory of the core.
+     */
+    public static Path createCore(Path solrHome, String coreName, String chains) throws IOException {
+        Path conf = solrHome.resolve(coreName).resolve("conf");
+        FileUtils.copyDirectory(new File("conf"), conf.toFile());
+        Path solrconfig = conf.resolve("solrconfig.xml");
+        String config = new String(Files.readAllBytes(solrconfig), StandardCharsets.UTF_8);
+        Files.write(solrconfig, config.replace("</config>", chains + "</config>").getBytes(StandardCharsets.UTF_8));
+        Files.write(solrHome.resolve(coreName).resolve("core.properties"), ("name=" + coreName + "\n").getBytes(StandardCharsets.UTF_8));
+        return conf;
+    }
+
+    /**
+     * @return a ColorLayout of a random image, decoded like the features in the index. An extracted ColorLayout
+     * has more coefficients than a decoded one, so its distances are different.
+     */
+    public static ColorLayout decodedColorLayout(Random random) {
+        ColorLayout extracted = new ColorLayout();
+        extracted.extract(SyntheticDocuments.randomImage(random));
+        ColorLayout feature = new ColorLayout();
+        feature.setByteArrayRepresentation(extracted.getByteArrayRepresentation());
+        return feature;
+    }
+
+    /**
+     * @return the same decoded features for every test.
+     */
+    public static List<ColorLayout> decodedColorLayouts(int count) {
+        Random random = new Random(17);
+        List<ColorLayout> features = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) features.add(decodedColorLayout(random));
+        return features;
+    }
+
+    /**
+     * @return a document with the feature in cl_hi and its BitSampling hashes in cl_ha.
+     */
+    public static SolrInputDocument document(String id, ColorLayout feature) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", id);
+        doc.addField("cl_hi", Base64.encodeBase64String(feature.getByteArrayRepresentation()));
+        doc.addField("cl_ha", Utilities.hashesArrayToString(HashingMetricSpacesManager.getDefault().generateHashes("cl_ha", feature.getFeatureVector())));
+        return doc;
+    }
+}
@@ -0,0 +1,136 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.core.CoreContainer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sorts by lirefunc on embedded cores, one with pivot distances and one without, and returns the same function in
+ * fl, so the distances kept by the sort are reused. There are more documents than rows, so documents are compared
+ * to the bottom of the sort queue, abandoned early and, with pivots, skipped by their lower bound.
+ */
+public class LireValueSourceSortTest {
+    private static final int NUMBER_OF_DOCS = 60;
+    private static final int ROWS = 10;
+    private static final String CHAIN = "<updateRequestProcessorChain name=\"lire-pivots\">\n" +
+            "  <processor class=\"net.semanticmetadata.lire.solr.PivotDistanceUpdateProcessorFactory\">\n" +
+            "    <lst name=\"pivots\"><str name=\"cl_hi\">pivots/cl_hi.pivots</str></lst>\n" +
+            "  </processor>\n" +
+            "  <processor class=\"solr.RunUpdateProcessorFactory\"/>\n" +
+            "</updateRequestProcessorChain>\n";
+    private static final List<ColorLayout> features = new ArrayList<>();
+    private static Path solrHome;
+    private static CoreContainer container;
+    private static EmbeddedSolrServer plain, pivots;
+
+    @BeforeClass
+    public static void setupCores() throws Exception {
+        features.addAll(LireTestData.decodedColorLayouts(NUMBER_OF_DOCS));
+        solrHome = Files.createTempDirectory("lire-sort");
+        LireTestData.createCore(solrHome, "plain", "");
+        Path conf = LireTestData.createCore(solrHome, "pivots", CHAIN);
+        // the pivots are other images than the indexed ones.
+        Random random = new Random(5);
+        List<GlobalFeature> pivotFeatures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) pivotFeatures.add(LireTestData.decodedColorLayout(random));
+        Files.createDirectories(conf.resolve("pivots"));
+        try (OutputStream out = Files.newOutputStream(conf.resolve("pivots").resolve("cl_hi.pivots"))) {
+            new PivotDistances(ColorLayout.class, pivotFeatures).write(out);
+        }
+        container = CoreContainer.createAndLoad(solrHome);
+        plain = new EmbeddedSolrServer(container, "plain");
+        pivots = new EmbeddedSolrServer(container, "pivots");
+        index(plain, null);
+        index(pivots, "lire-pivots");
+    }
+
+    private static void index(EmbeddedSolrServer server, String chain) throws Exception {
+        UpdateRequest update = new UpdateRequest();
+        if (chain != null) update.setParam("update.chain", chain);
+        for (int i = 0; i < NUMBER_OF_DOCS; i++) {
+            update.add(LireTestData.document("img" + i, features.get(i)));
+        }
+        update.process(server);
+        server.commit();
+    }
+
+    @AfterClass
+    public static void closeCores() throws Exception {
+        if (container != null) container.shutdown();
+        FileUtils.deleteQuietly(solrHome.toFile());
+    }
+
+    private static String lirefunc(int query) {
+        return "lirefunc(cl,\"" + Base64.encodeBase64String(features.get(query).getByteArrayRepresentation()) + "\")";
+    }
+
+    /**
+     * Checks the order and the returned distances against the distances of the features.
+     */
+    private static void assertSorted(EmbeddedSolrServer server, int query, boolean ascending) throws Exception {
+        SolrQuery solrQuery = new SolrQuery("*:*");
+        solrQuery.set("sort", lirefunc(query) + (ascending ? " asc" : " desc"));
+        solrQuery.setFields("id", "d:" + lirefunc(query));
+        solrQuery.setRows(ROWS);
+        SolrDocumentList results = server.query(solrQuery).getResults();
+        assertEquals(NUMBER_OF_DOCS, results.getNumFound());
+        assertEquals(ROWS, results.size());
+
+        ColorLayout queryFeature = features.get(query);
+        List<Double> expected = new ArrayList<>();
+        for (ColorLayout feature : features) expected.add(queryFeature.getDistance(feature));
+        Collections.sort(expected);
+        if (!ascending) Collections.reverse(expected);
+        for (int i = 0; i < results.size(); i++) {
+            SolrDocument doc = results.get(i);
+            int index = Integer.parseInt(doc.getFieldValue("id").toString().substring("img".length()));
+            double distance = ((Number) doc.getFieldValue("d")).doubleValue();
+            assertEquals(expected.get(i), distance, 0.001);
+            assertEquals(queryFeature.getDistance(features.get(index)), distance, 0.001);
+        }
+    }
+
+    @Test
+    public void testAscending() throws Exception {
+        for (int query : new int[]{0, 13, 42}) {
+            assertSorted(plain, query, true);
+            assertSorted(pivots, query, true);
+        }
+    }
+
+    @Test
+    public void testDescending() throws Exception {
+        for (int query : new int[]{0, 13, 42}) {
+            assertSorted(plain, query, false);
+            assertSorted(pivots, query, false);
+        }
+    }
+
+    @Test
+    public void testPivotDistancesIndexed() throws Exception {
+        SolrQuery solrQuery = new SolrQuery("id:img3");
+        solrQuery.setFields("id", "cl_pv");
+        assertNotNull(pivots.query(solrQuery).getResults().get(0).getFieldValue("cl_pv"));
+        assertNull(plain.query(solrQuery).getResults().get(0).getFieldValue("cl_pv"));
+    }
+}
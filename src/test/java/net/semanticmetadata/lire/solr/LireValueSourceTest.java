@@ -0,0 +1,36 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class LireValueSourceTest {
+
+    private static byte[] feature(Color color) {
+        BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, 16, 32);
+        g.dispose();
+        ColorLayout cl = new ColorLayout();
+        cl.extract(image);
+        return cl.getByteArrayRepresentation();
+    }
+
+    @Test
+    public void equalsAndHashCode() {
+        byte[] red = feature(Color.RED);
+        LireValueSource a = new LireValueSource("cl", red, Double.MAX_VALUE);
+        LireValueSource b = new LireValueSource("cl_hi", red.clone(), Double.MAX_VALUE);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(a.getSortField(false), b.getSortField(false));
+        assertNotEquals(a, new LireValueSource("cl", feature(Color.BLUE), Double.MAX_VALUE));
+        assertNotEquals(a, new LireValueSource("cl", red, 10d));
+    }
+}
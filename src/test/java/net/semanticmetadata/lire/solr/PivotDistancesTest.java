@@ -0,0 +1,80 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PivotDistancesTest {
+
+    @Test
+    public void lowerBoundNeverExceedsDistance() {
+        Random random = new Random(3);
+        List<GlobalFeature> pivotFeatures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) pivotFeatures.add(LireTestData.decodedColorLayout(random));
+        PivotDistances pivots = new PivotDistances(ColorLayout.class, pivotFeatures);
+        ColorLayout query = LireTestData.decodedColorLayout(random);
+        PivotDistances.QueryDistances queryDistances = pivots.queryDistances(query);
+        for (int i = 0; i < 100; i++) {
+            ColorLayout candidate = LireTestData.decodedColorLayout(random);
+            BytesRef packed = new BytesRef(pivots.pack(pivots.distances(candidate)));
+            double lowerBound = queryDistances.lowerBound(packed);
+            double distance = query.getDistance(candidate);
+            assertFalse(PivotDistances.exceeds(lowerBound, distance));
+        }
+    }
+
+    @Test
+    public void missingPivotDistancesGiveNoBound() {
+        Random random = new Random(4);
+        List<GlobalFeature> pivotFeatures = new ArrayList<>();
+        for (int i = 0; i < 2; i++) pivotFeatures.add(LireTestData.decodedColorLayout(random));
+        PivotDistances.QueryDistances queryDistances = new PivotDistances(ColorLayout.class, pivotFeatures).queryDistances(LireTestData.decodedColorLayout(random));
+        assertEquals(0d, queryDistances.lowerBound(new BytesRef(BytesRef.EMPTY_BYTES)), 0d);
+    }
+
+    @Test
+    public void otherPivotsGiveNoBound() {
+        Random random = new Random(6);
+        List<GlobalFeature> pivotFeatures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) pivotFeatures.add(LireTestData.decodedColorLayout(random));
+        PivotDistances pivots = new PivotDistances(ColorLayout.class, pivotFeatures);
+        // the same number of pivots, one of them replaced, e.g. after selecting new pivots.
+        List<GlobalFeature> reloadedFeatures = new ArrayList<>(pivotFeatures);
+        reloadedFeatures.set(2, LireTestData.decodedColorLayout(random));
+        PivotDistances reloaded = new PivotDistances(ColorLayout.class, reloadedFeatures);
+        assertNotEquals(pivots.getChecksum(), reloaded.getChecksum());
+        assertEquals(pivots.getChecksum(), new PivotDistances(ColorLayout.class, new ArrayList<>(pivotFeatures)).getChecksum());
+
+        ColorLayout query = LireTestData.decodedColorLayout(random);
+        ColorLayout candidate = LireTestData.decodedColorLayout(random);
+        BytesRef packed = new BytesRef(pivots.pack(pivots.distances(candidate)));
+        assertTrue(pivots.queryDistances(query).lowerBound(packed) > 0);
+        assertEquals(0d, reloaded.queryDistances(query).lowerBound(packed), 0d);
+        // distances packed without checksum, as before the checksum was added.
+        BytesRef unversioned = new BytesRef(packed.bytes, 4, packed.length - 4);
+        assertEquals(0d, pivots.queryDistances(query).lowerBound(unversioned), 0d);
+    }
+
+    @Test
+    public void writeAndRead() throws Exception {
+        Random random = new Random(5);
+        List<GlobalFeature> pivotFeatures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) pivotFeatures.add(LireTestData.decodedColorLayout(random));
+        PivotDistances pivots = new PivotDistances(ColorLayout.class, pivotFeatures);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pivots.write(out);
+        PivotDistances read = PivotDistances.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(ColorLayout.class, read.getFeatureClass());
+        ColorLayout feature = LireTestData.decodedColorLayout(random);
+        assertArrayEquals(pivots.distances(feature), read.distances(feature), 0d);
+    }
+}
@@ -0,0 +1,46 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.BitDocSet;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RandomDocumentSamplerTest {
+
+    @Test
+    public void sampleIsDistinctAndLive() {
+        FixedBitSet live = new FixedBitSet(1000);
+        for (int i = 0; i < 1000; i += 2) live.set(i);
+        int[] docs = RandomDocumentSampler.sample(1000, 500, live, null, 100, new Random(42));
+        assertEquals(100, docs.length);
+        HashSet<Integer> seen = new HashSet<>();
+        for (int doc : docs) {
+            assertTrue(live.get(doc));
+            assertTrue(seen.add(doc));
+        }
+    }
+
+    @Test
+    public void sameSeedSameSample() {
+        int[] a = RandomDocumentSampler.sample(10000, 10000, null, null, 20, new Random(7));
+        int[] b = RandomDocumentSampler.sample(10000, 10000, null, null, 20, new Random(7));
+        assertArrayEquals(a, b);
+    }
+
+    @Test
+    public void sparseFilterReturnsAllMatches() {
+        FixedBitSet bits = new FixedBitSet(100000);
+        bits.set(3);
+        bits.set(500);
+        bits.set(99999);
+        int[] docs = RandomDocumentSampler.sample(100000, 100000, null, new BitDocSet(bits), 10, new Random());
+        assertEquals(3, docs.length);
+        HashSet<Integer> seen = new HashSet<>();
+        for (int doc : docs) seen.add(doc);
+        assertTrue(seen.contains(3) && seen.contains(500) && seen.contains(99999));
+    }
+}
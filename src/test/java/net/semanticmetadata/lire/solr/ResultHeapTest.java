@@ -0,0 +1,48 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.searchers.SimpleResult;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class ResultHeapTest {
+
+    @Test
+    public void keepsNearestResults() {
+        Random random = new Random(5);
+        int k = 25;
+        ResultHeap heap = new ResultHeap(k);
+        TreeSet<SimpleResult> expected = new TreeSet<>();
+        for (int doc = 0; doc < 1000; doc++) {
+            // few distinct distances, so the order by docId is tested too.
+            double distance = random.nextInt(50);
+            heap.offer(doc, distance);
+            expected.add(new SimpleResult(distance, doc));
+            if (expected.size() > k) expected.pollLast();
+            assertEquals(expected.size() < k ? Double.MAX_VALUE : expected.last().getDistance(), heap.bound(), 0d);
+        }
+        assertTrue(heap.isFull());
+        TreeSet<SimpleResult> results = heap.toResults();
+        assertEquals(k, results.size());
+        Iterator<SimpleResult> iterator = results.iterator();
+        for (SimpleResult result : expected) {
+            SimpleResult actual = iterator.next();
+            assertEquals(result.getIndexNumber(), actual.getIndexNumber());
+            assertEquals(result.getDistance(), actual.getDistance(), 0d);
+        }
+        assertEquals(k, heap.getInserts());
+    }
+
+    @Test
+    public void emptyHeap() {
+        ResultHeap heap = new ResultHeap(0);
+        heap.offer(1, 0.5);
+        assertTrue(heap.isFull());
+        assertEquals(Double.MAX_VALUE, heap.bound(), 0d);
+        assertTrue(heap.toResults().isEmpty());
+    }
+}
@@ -1,7 +1,10 @@
 package net.semanticmetadata.lire.solr.features;
 
+import net.semanticmetadata.lire.utils.MetricsUtils;
 import org.junit.Test;
 
+import java.util.Random;
+
 import static org.junit.Assert.*;
 
 public class ShortFeatureCosineDistanceTest {
@@ -20,4 +23,19 @@ public class ShortFeatureCosineDistanceTest {
         se.setByteArrayRepresentation(byteArrayRepresentation);
         assertArrayEquals(se.getFeatureVector(), sd.getFeatureVector(), 0.001);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void getDistanceMatchesCosineDistance() {
+        Random random = new Random(1);
+        ShortFeatureCosineDistance a = new ShortFeatureCosineDistance(), b = new ShortFeatureCosineDistance();
+        short[] da = new short[1400], db = new short[1400];
+        for (int i = 0; i < da.length; i++) {
+            da[i] = (short) random.nextInt();
+            db[i] = (short) random.nextInt();
+        }
+        a.setData(da);
+        b.setData(db);
+        assertEquals(MetricsUtils.cosineDistance(a.getFeatureVector(), b.getFeatureVector()), a.getDistance(b), 1e-12);
+        assertEquals(0d, a.getDistance(a), 1e-12);
+    }
+}
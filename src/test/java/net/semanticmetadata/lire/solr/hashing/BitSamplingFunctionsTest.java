@@ -0,0 +1,141 @@
+package net.semanticmetadata.lire.solr.hashing;
+
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class BitSamplingFunctionsTest {
+
+    @Test
+    public void sameHashesAsLire() throws Exception {
+        BitSampling.readHashFunctions();
+        BitSamplingFunctions functions = BitSamplingFunctions.readSerialized(BitSampling.class.getResourceAsStream("LshBitSampling.obj"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        functions.write(out);
+        BitSamplingFunctions binary = BitSamplingFunctions.read(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(functions.getNumberOfFunctionBundles(), binary.getNumberOfFunctionBundles());
+        assertEquals(functions.getDimensions(), binary.getDimensions());
+
+        Random random = new Random(13);
+        for (int i = 0; i < 50; i++) {
+            double[] vector = new double[1 + random.nextInt(binary.getDimensions())];
+            for (int j = 0; j < vector.length; j++) {
+                vector[j] = random.nextInt(4) == 0 ? 0 : random.nextGaussian() * 10;
+            }
+            int[] expected = BitSampling.generateHashes(vector);
+            assertArrayEquals(expected, functions.generateHashes(vector));
+            assertArrayEquals(expected, binary.generateHashes(vector));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyDimensions() throws Exception {
+        BitSamplingFunctions functions = BitSamplingFunctions.readSerialized(BitSampling.class.getResourceAsStream("LshBitSampling.obj"));
+        functions.generateHashes(new double[functions.getDimensions() + 1]);
+    }
+
+    @Test
+    public void tableInHash() throws Exception {
+        BitSamplingFunctions functions = BitSamplingFunctions.generate(8, 4, 16, new Random(3));
+        assertTrue(functions.isTableInHash());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        functions.write(out);
+        BitSamplingFunctions binary = BitSamplingFunctions.read(ByteBuffer.wrap(out.toByteArray()));
+        assertTrue(binary.isTableInHash());
+        double[] vector = randomVector(new Random(5), 16);
+        int[] hashes = binary.generateHashes(vector);
+        assertArrayEquals(functions.generateHashes(vector), hashes);
+        for (int i = 0; i < hashes.length; i++) {
+            assertEquals(i, hashes[i] >> 4);
+        }
+    }
+
+    @Test
+    public void probesNearestHyperplanesFirst() throws Exception {
+        BitSamplingFunctions functions = BitSamplingFunctions.generate(4, 8, 32, new Random(23));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        functions.write(out);
+        ByteBuffer file = ByteBuffer.wrap(out.toByteArray());
+        Random random = new Random(29);
+        for (int n = 0; n < 20; n++) {
+            double[] vector = randomVector(random, 32);
+            int[] hashes = functions.generateHashes(vector);
+            int[] probes = functions.generateProbes(vector, 40);
+            assertEquals(40, probes.length);
+            Set<Integer> distinct = new HashSet<>();
+            for (int hash : hashes) distinct.add(hash);
+            for (int probe : probes) {
+                // a probe is in one of the tables and is neither a bucket of the vector nor another probe.
+                assertTrue(probe >> 8 < 4);
+                assertTrue(distinct.add(probe));
+            }
+            // the first probe flips the bit of the hyperplane nearest to the vector.
+            int nearestTable = 0, nearestBit = 0;
+            double nearest = Double.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 8; j++) {
+                    double distance = distance(file, i * 8 + j, vector);
+                    if (distance < nearest) {
+                        nearest = distance;
+                        nearestTable = i;
+                        nearestBit = j;
+                    }
+                }
+            }
+            assertEquals(hashes[nearestTable] ^ 1 << nearestBit, probes[0]);
+        }
+        // there are no more than 4 * (2^8 - 1) probes.
+        assertEquals(4 * 255, functions.generateProbes(randomVector(random, 32), 5000).length);
+        assertEquals(0, functions.generateProbes(randomVector(random, 32), 0).length);
+    }
+
+    @Test
+    public void fieldLayoutFromCoreDirectory() throws Exception {
+        Path conf = Files.createTempDirectory("conf");
+        Path file = conf.resolve(HashingMetricSpacesManager.getBitSamplingResource("cl_ha"));
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            BitSamplingFunctions.generate(10, 6, 33, new Random(31)).write(out);
+        }
+        HashingMetricSpacesManager manager = HashingMetricSpacesManager.forDirectory(conf);
+        assertEquals(10, manager.getBitSampling("cl_ha").getNumberOfFunctionBundles());
+        assertEquals(6, manager.getBitSampling("cl_ha").getBits());
+        assertEquals(10, manager.generateHashes("cl_ha", new double[33]).length);
+        // fields without their own layout use the common functions.
+        assertSame(manager.getBitSampling(), manager.getBitSampling("eh_ha"));
+        Files.delete(file);
+        Files.delete(file.getParent());
+        Files.delete(conf);
+    }
+
+    private static double[] randomVector(Random random, int dimensions) {
+        double[] vector = new double[dimensions];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = random.nextGaussian();
+        }
+        return vector;
+    }
+
+    // the distance of the vector to the hyperplane of the function, read from the written file.
+    private static double distance(ByteBuffer file, int function, double[] vector) {
+        double product = 0, norm = 0;
+        for (int k = 0; k < vector.length; k++) {
+            // six ints of header, then the floats.
+            float weight = file.getFloat(24 + 4 * (function * vector.length + k));
+            product += weight * vector[k];
+            norm += weight * weight;
+        }
+        return Math.abs(product) / Math.sqrt(norm);
+    }
+}
@@ -0,0 +1,100 @@
+package net.semanticmetadata.lire.solr.hashing;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IterativeQuantizationTest {
+
+    @Test
+    public void eigenDecomposition() {
+        Random random = new Random(37);
+        double[][] a = new double[6][6];
+        for (int i = 0; i < 6; i++) {
+            for (int j = 0; j <= i; j++) {
+                a[i][j] = a[j][i] = random.nextGaussian();
+            }
+        }
+        double[][] vectors = new double[6][6];
+        double[] values = IterativeQuantization.eigen(a, vectors);
+        for (int k = 0; k < 6; k++) {
+            if (k > 0) assertTrue(values[k - 1] >= values[k]);
+            for (int i = 0; i < 6; i++) {
+                double product = 0;
+                for (int j = 0; j < 6; j++) product += a[i][j] * vectors[j][k];
+                assertEquals(values[k] * vectors[i][k], product, 1e-9);
+            }
+        }
+        // the polar factor is orthogonal.
+        double[][] r = IterativeQuantization.polarFactor(a);
+        double[][] identity = IterativeQuantization.multiplyTransposed(r, r);
+        for (int i = 0; i < 6; i++) {
+            for (int j = 0; j < 6; j++) {
+                assertEquals(i == j ? 1 : 0, identity[i][j], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void balancedBitsOnClusteredData() throws Exception {
+        // tightly clustered vectors far from the origin, varying in a few directions only.
+        Random random = new Random(41);
+        int dimensions = 64;
+        double[][] directions = new double[8][dimensions];
+        for (double[] direction : directions) {
+            for (int k = 0; k < dimensions; k++) direction[k] = random.nextGaussian();
+        }
+        List<double[]> sample = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            double[] vector = new double[dimensions];
+            for (int k = 0; k < dimensions; k++) vector[k] = 10 + 0.01 * random.nextGaussian();
+            for (double[] direction : directions) {
+                double weight = 0.2 * random.nextGaussian();
+                for (int k = 0; k < dimensions; k++) vector[k] += weight * direction[k];
+            }
+            sample.add(vector);
+        }
+        BitSamplingFunctions learned = IterativeQuantization.train(sample, 2, 4, 30, new Random(43));
+        assertTrue(learned.hasThresholds());
+        assertEquals(2, learned.getNumberOfFunctionBundles());
+        // the thresholds survive writing and reading.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        learned.write(out);
+        BitSamplingFunctions binary = BitSamplingFunctions.read(ByteBuffer.wrap(out.toByteArray()));
+        assertTrue(binary.hasThresholds());
+        assertArrayEquals(learned.generateHashes(sample.get(0)), binary.generateHashes(sample.get(0)));
+
+        BitSamplingFunctions random8 = BitSamplingFunctions.generate(2, 4, dimensions, new Random(47));
+        double learnedBalance = minimumBitBalance(learned, sample);
+        double randomBalance = minimumBitBalance(random8, sample);
+        // every learned bit splits the data, random hyperplanes through the origin mostly don't.
+        assertTrue("learned " + learnedBalance, learnedBalance > 0.25);
+        assertTrue("random " + randomBalance, randomBalance < learnedBalance);
+    }
+
+    // the smallest share of the minority side over all bits.
+    private static double minimumBitBalance(BitSamplingFunctions functions, List<double[]> sample) {
+        int bits = functions.getNumberOfFunctionBundles() * functions.getBits();
+        int[] ones = new int[bits];
+        for (double[] vector : sample) {
+            int[] hashes = functions.generateHashes(vector);
+            for (int i = 0; i < hashes.length; i++) {
+                for (int j = 0; j < functions.getBits(); j++) {
+                    if ((hashes[i] >> j & 1) != 0) ones[i * functions.getBits() + j]++;
+                }
+            }
+        }
+        double minimum = 1;
+        for (int count : ones) {
+            double share = (double) count / sample.size();
+            minimum = Math.min(minimum, Math.min(share, 1 - share));
+        }
+        return minimum;
+    }
+}
@@ -0,0 +1,55 @@
+package net.semanticmetadata.lire.solr.hashing;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.solr.LireTestData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PostingListBalanceTest {
+
+    @Test
+    public void countsPostings() {
+        Random random = new Random(17);
+        List<byte[]> points = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            points.add(LireTestData.decodedColorLayout(random).getByteArrayRepresentation());
+        }
+        ReferencePoints referencePoints = ReferencePoints.create(ColorLayout.class, 20, 4, true, points);
+        List<GlobalFeature> documents = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            documents.add(LireTestData.decodedColorLayout(random));
+        }
+        PostingListBalance balance = PostingListBalance.compute(referencePoints, documents);
+        // every document is in the posting lists of its four nearest reference points.
+        assertEquals(100 * 4 / 20d, balance.getMeanLength(), 1e-9);
+        assertTrue(balance.getMaximumLength() >= balance.getMeanLength());
+        assertTrue(balance.getUsedReferencePoints() <= 20);
+        // a query reads four posting lists, each at least one document long.
+        assertTrue(balance.getCandidatesPerQuery() >= 4);
+        assertEquals(balance.getCandidatesPerQuery() / 100, balance.getSelectivity(), 1e-9);
+    }
+
+    @Test
+    public void perfectBalance() {
+        Random random = new Random(19);
+        List<GlobalFeature> documents = new ArrayList<>();
+        List<byte[]> points = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ColorLayout feature = LireTestData.decodedColorLayout(random);
+            documents.add(feature);
+            points.add(feature.getByteArrayRepresentation());
+        }
+        // each document is its own nearest reference point.
+        PostingListBalance balance = PostingListBalance.compute(ReferencePoints.create(ColorLayout.class, 10, 1, true, points), documents);
+        assertEquals(10, balance.getUsedReferencePoints());
+        assertEquals(1, balance.getMaximumLength());
+        assertEquals(0, balance.getCoefficientOfVariation(), 1e-9);
+        assertEquals(1, balance.getCandidatesPerQuery(), 1e-9);
+    }
+}
@@ -0,0 +1,81 @@
+package net.semanticmetadata.lire.solr.hashing;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.LireTestData;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReferencePointsTest {
+
+    @Test
+    public void sameHashesAsLire() throws Exception {
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder("# reference points for the test\n");
+        text.append(ColorLayout.class.getName()).append("\n200,12\n");
+        for (int i = 0; i < 200; i++) {
+            text.append(Base64.getEncoder().encodeToString(LireTestData.decodedColorLayout(random).getByteArrayRepresentation())).append('\n');
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        MetricSpaces.loadReferencePoints(new ByteArrayInputStream(bytes));
+        // the binary format gives the same reference points as the text format.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ReferencePoints.readText(new ByteArrayInputStream(bytes)).write(out);
+        ReferencePoints points = ReferencePoints.read(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(ColorLayout.class, points.getFeatureClass());
+        assertEquals(200, points.size());
+        assertEquals(12, points.getPostingListLength());
+
+        for (int i = 0; i < 20; i++) {
+            ColorLayout query = LireTestData.decodedColorLayout(random);
+            assertEquals(MetricSpaces.generateHashString(query), points.generateHashString(query));
+            assertEquals(MetricSpaces.generateHashList(query), points.generateHashList(query));
+            for (int queryLength : new int[]{0, 3, 12, 20}) {
+                assertEquals(MetricSpaces.generateBoostedQuery(query, queryLength), points.generateBoostedQuery(query, queryLength));
+            }
+        }
+    }
+
+    @Test
+    public void coreDirectoryBeforeClassPath() throws Exception {
+        Random random = new Random(11);
+        List<byte[]> features = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            features.add(LireTestData.decodedColorLayout(random).getByteArrayRepresentation());
+        }
+        Path conf = Files.createTempDirectory("conf");
+        Path file = conf.resolve(HashingMetricSpacesManager.getReferencePointsResource(ColorLayout.class));
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            ReferencePoints.create(ColorLayout.class, 10, 3, false, features).write(out);
+        }
+        HashingMetricSpacesManager manager = HashingMetricSpacesManager.forDirectory(conf);
+        GlobalFeature query = LireTestData.decodedColorLayout(random);
+        assertTrue(manager.supportsFeature(query));
+        assertEquals(3, manager.getPostingListLength(query));
+        assertEquals(3, manager.generateHashList(query).size());
+        assertSame(manager.getReferencePoints(ColorLayout.class), manager.getReferencePoints(ColorLayout.class));
+        // reference points not in the conf directory are taken from the class path.
+        assertSame(HashingMetricSpacesManager.getDefault().getReferencePoints(CEDD.class), manager.getReferencePoints(CEDD.class));
+        assertNotNull(manager.getReferencePoints(CEDD.class));
+        Files.delete(file);
+        Files.delete(file.getParent());
+        Files.delete(conf);
+    }
+}
@@ -0,0 +1,50 @@
+package net.semanticmetadata.lire.solr.indexing;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class CheckpointTest extends TestCase {
+    public void testSaveAndLoad() throws IOException {
+        File file = File.createTempFile("lire", ".checkpoint");
+        try {
+            Checkpoint checkpoint = new Checkpoint(file, "/images/list.txt", 3);
+            // files done out of order, 2 is still in the open shard.
+            checkpoint.addShard("out-00000.xml", Arrays.asList(0L, 1L, 3L));
+            checkpoint.done(5);
+            checkpoint.save();
+            assertEquals(2, checkpoint.getOffset());
+
+            Checkpoint loaded = Checkpoint.load(file);
+            assertEquals("/images/list.txt", loaded.getFileList());
+            assertEquals(3, loaded.getShardSize());
+            assertEquals(1, loaded.getShardCount());
+            assertEquals(2, loaded.getOffset());
+            assertEquals(4, loaded.countDone());
+            assertTrue(loaded.isDone(1));
+            assertFalse(loaded.isDone(2));
+            assertTrue(loaded.isDone(3));
+            assertFalse(loaded.isDone(4));
+            assertTrue(loaded.isDone(5));
+            assertFalse(loaded.isFinished());
+
+            loaded.addShard("out-00001.xml", Arrays.asList(2L, 4L));
+            loaded.finish();
+            loaded = Checkpoint.load(file);
+            assertEquals(6, loaded.getOffset());
+            assertEquals(2, loaded.getShardCount());
+            assertTrue(loaded.isFinished());
+
+            // the next run only takes files modified since this one started, and adds shards.
+            loaded.startIncrementalRun();
+            assertTrue(loaded.getSince() > 0);
+            assertEquals(0, loaded.getOffset());
+            assertFalse(loaded.isDone(0));
+            assertEquals(2, loaded.getShardCount());
+        } finally {
+            file.delete();
+        }
+    }
+}
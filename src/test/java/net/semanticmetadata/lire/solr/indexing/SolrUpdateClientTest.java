@@ -0,0 +1,102 @@
+package net.semanticmetadata.lire.solr.indexing;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.LireTestData;
+import net.semanticmetadata.lire.solr.tools.Utilities;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.cloud.SolrCloudTestCase;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sends documents with raw byte[] features over javabin to a core and searches them.
+ */
+public class SolrUpdateClientTest extends SolrCloudTestCase {
+    private static final String COLLECTION = LireTestData.COLLECTION;
+    private static final int NUMBER_OF_DOCS = 100;
+
+    @BeforeClass
+    public static void setupCluster() throws Exception {
+        cluster = LireTestData.createCollection(configureCluster(1), 1);
+    }
+
+    @Test
+    public void testJavabinWithRawFeatures() throws Exception {
+        Random random = new Random(23);
+        List<ColorLayout> features = new ArrayList<>();
+        String url = cluster.getJettySolrRunners().get(0).getBaseUrl().toString() + "/" + COLLECTION;
+        SolrUpdateClient client = SolrUpdateClient.forUrl(url, 16, 2, 1);
+        for (int i = 0; i < NUMBER_OF_DOCS; i++) {
+            ColorLayout feature = LireTestData.decodedColorLayout(random);
+            features.add(feature);
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("id", "img" + i);
+            doc.addField("cl_hi", feature.getByteArrayRepresentation());
+            doc.addField("cl_ha", Utilities.hashesArrayToString(HashingMetricSpacesManager.getDefault().generateHashes("cl_ha", feature.getFeatureVector())));
+            client.add(doc);
+            if (i == 50) {
+                // rejected for the missing id, the other documents of its batch are sent anyway.
+                SolrInputDocument bad = new SolrInputDocument();
+                bad.addField("cl_hi", feature.getByteArrayRepresentation());
+                client.add(bad);
+            }
+        }
+        client.close();
+        assertEquals(NUMBER_OF_DOCS, client.getSent());
+        assertEquals(1, client.getFailed());
+        assertEquals(NUMBER_OF_DOCS, cluster.getSolrClient().query(COLLECTION, new SolrQuery("*:*")).getResults().getNumFound());
+
+        // the features are indexed as they were sent, so the distances are the ones of the features.
+        ColorLayout query = features.get(42);
+        QueryRequest request = new QueryRequest(params("id", "img42", "field", "cl_ha",
+                "accuracy", "1", "candidates", "1000", "rows", "10", "fl", "id"));
+        request.setPath("/lire");
+        SolrDocumentList results = request.process(cluster.getSolrClient(), COLLECTION).getResults();
+        assertEquals("img42", results.get(0).getFieldValue("id"));
+        for (SolrDocument doc : results) {
+            int index = Integer.parseInt(((String) doc.getFieldValue("id")).substring(3));
+            assertEquals(query.getDistance(features.get(index)), ((Number) doc.getFieldValue("d")).doubleValue(), 0.001);
+        }
+    }
+
+    @Test
+    public void testSenderFailure() throws Exception {
+        SolrClient broken = new SolrClient() {
+            @Override
+            public NamedList<Object> request(SolrRequest request, String collection) {
+                throw new IllegalArgumentException("broken");
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        SolrUpdateClient client = new SolrUpdateClient(broken, null, 2, 2, 0);
+        try {
+            // more documents than fit into the queue, so add(...) can't just queue them all.
+            for (int i = 0; i < 1000; i++) {
+                SolrInputDocument doc = new SolrInputDocument();
+                doc.addField("id", "img" + i);
+                client.add(doc);
+            }
+            fail("The failure of the senders was not reported.");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        expectThrows(IOException.class, client::close);
+        assertEquals(0, client.getSent());
+    }
+}
@@ -0,0 +1,80 @@
+package net.semanticmetadata.lire.solr.indexing;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+
+public class StageTest extends TestCase {
+    private static final Integer END = Integer.MIN_VALUE;
+
+    public void testPipeline() throws InterruptedException {
+        // small queues, so the producer and the first stage are blocked by the later ones.
+        BlockingQueue<Integer> first = new ArrayBlockingQueue<>(4), second = new ArrayBlockingQueue<>(2);
+        ConcurrentLinkedQueue<Integer> results = new ConcurrentLinkedQueue<>();
+        List<Stage<Integer>> stages = new ArrayList<>();
+        stages.add(new Stage<>("square", 3, Executors.defaultThreadFactory(), first, second, END, () -> i -> {
+            if (i % 100 == 0) throw new IllegalArgumentException("multiple of a hundred");
+            return i % 10 == 1 ? null : i * i;
+        }, 1));
+        stages.add(new Stage<>("collect", 2, Executors.defaultThreadFactory(), second, null, END, () -> i -> {
+            results.add(i);
+            return i;
+        }, 8));
+        for (Stage<Integer> stage : stages) {
+            stage.start();
+        }
+        for (int i = 0; i < 1000; i++) {
+            first.put(i);
+        }
+        first.put(END);
+        for (Stage<Integer> stage : stages) {
+            stage.join();
+            assertFalse(stage.isRunning());
+        }
+        assertEquals(990, stages.get(0).getProcessed());
+        assertEquals(10, stages.get(0).getFailed());
+        assertEquals(890, stages.get(1).getProcessed());
+        assertEquals(890, results.size());
+        long sum = 0, expected = 0;
+        for (int result : results) sum += result;
+        for (int i = 0; i < 1000; i++) {
+            if (i % 100 != 0 && i % 10 != 1) expected += i * i;
+        }
+        assertEquals(expected, sum);
+    }
+
+    public void testAbort() throws InterruptedException {
+        BlockingQueue<Integer> first = new ArrayBlockingQueue<>(4), second = new ArrayBlockingQueue<>(2);
+        ConcurrentLinkedQueue<Integer> results = new ConcurrentLinkedQueue<>();
+        List<Stage<Integer>> stages = new ArrayList<>();
+        stages.add(new Stage<>("pass", 1, Executors.defaultThreadFactory(), first, second, END, () -> i -> i, 1));
+        stages.add(new Stage<>("collect", 1, Executors.defaultThreadFactory(), second, null, END, () -> i -> {
+            if (i == 10) throw new IllegalStateException("disk full");
+            results.add(i);
+            return i;
+        }, 1));
+        stages.get(1).setFailureListener(i -> stages.forEach(Stage::abort));
+        for (Stage<Integer> stage : stages) {
+            stage.start();
+        }
+        // more items than the queues hold, the producer is not blocked after the abort.
+        for (int i = 0; i < 1000; i++) {
+            first.put(i);
+        }
+        first.put(END);
+        for (Stage<Integer> stage : stages) {
+            stage.join();
+            assertFalse(stage.isRunning());
+            assertTrue(stage.isAborted());
+        }
+        assertEquals(1, stages.get(1).getFailed());
+        // single threads keep the order, so nothing after the failed item is collected.
+        assertEquals(10, results.size());
+        assertFalse(results.contains(10));
+    }
+}
@@ -25,4 +25,10 @@ public class UtilitiesTest extends TestCase {
         d = Utilities.normalize(d);
         System.out.println(Arrays.toString(Utilities.quantizeToShort(d)));
     }
+
+    public void testAppendEscaped() {
+        StringBuilder sb = new StringBuilder("<field>");
+        Utilities.appendEscaped(sb, "/images/a&b <1>.jpg");
+        assertEquals("<field>/images/a&amp;b &lt;1&gt;.jpg", sb.toString());
+    }
 }
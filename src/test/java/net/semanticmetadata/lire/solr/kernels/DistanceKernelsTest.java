@@ -0,0 +1,74 @@
+package net.semanticmetadata.lire.solr.kernels;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the kernels selected for this JVM, the SIMD ones if the Vector API is available, to the scalar ones.
+ */
+public class DistanceKernelsTest {
+    private final DistanceKernels kernels = DistanceKernels.get();
+    private final DistanceKernels scalar = new ScalarDistanceKernels();
+
+    private static void assertClose(double expected, double actual) {
+        assertEquals(expected, actual, 1e-4 * Math.max(1d, Math.abs(expected)));
+    }
+
+    @Test
+    public void floatKernels() {
+        Random random = new Random(1);
+        for (int n : new int[]{0, 1, 7, 33, 1000}) {
+            float[] a = new float[n], b = new float[n];
+            for (int i = 0; i < n; i++) {
+                a[i] = random.nextFloat();
+                b[i] = random.nextFloat();
+            }
+            assertClose(scalar.dot(a, b), kernels.dot(a, b));
+            assertClose(scalar.l1(a, b), kernels.l1(a, b));
+            assertClose(scalar.l2(a, b), kernels.l2(a, b));
+            assertClose(scalar.cosineDistance(a, b), kernels.cosineDistance(a, b));
+            assertClose(scalar.tanimotoDistance(a, b), kernels.tanimotoDistance(a, b));
+            BytesRef packed = new BytesRef(DistanceKernels.pack(b));
+            assertClose(scalar.dot(a, b), kernels.dot(a, packed));
+            assertClose(scalar.l1(a, b), kernels.l1(a, packed));
+            assertClose(scalar.l2(a, b), kernels.l2(a, packed));
+            assertClose(scalar.cosineDistance(a, b), kernels.cosineDistance(a, packed));
+        }
+    }
+
+    @Test
+    public void shortAndByteKernelsAreExact() {
+        Random random = new Random(2);
+        for (int n : new int[]{0, 1, 7, 33, 1000}) {
+            short[] sa = new short[n], sb = new short[n];
+            byte[] ba = new byte[n], bb = new byte[n];
+            for (int i = 0; i < n; i++) {
+                sa[i] = (short) random.nextInt();
+                sb[i] = (short) random.nextInt();
+                ba[i] = (byte) random.nextInt();
+                bb[i] = (byte) random.nextInt();
+            }
+            assertEquals(scalar.dot(sa, sb), kernels.dot(sa, sb), 0d);
+            assertEquals(scalar.l1(sa, sb), kernels.l1(sa, sb), 0d);
+            assertEquals(scalar.l2(sa, sb), kernels.l2(sa, sb), 0d);
+            assertEquals(scalar.cosineDistance(sa, sb), kernels.cosineDistance(sa, sb), 0d);
+            assertEquals(scalar.dot(ba, bb), kernels.dot(ba, bb), 0d);
+            assertEquals(scalar.l1(ba, bb), kernels.l1(ba, bb), 0d);
+            assertEquals(scalar.l2(ba, bb), kernels.l2(ba, bb), 0d);
+            assertEquals(scalar.tanimotoDistance(ba, bb), kernels.tanimotoDistance(ba, bb), 0d);
+        }
+    }
+
+    @Test
+    public void zeroVectors() {
+        double[] zero = new double[16], one = new double[16];
+        one[3] = 1d;
+        assertEquals(0d, kernels.cosineDistance(zero, one), 0d);
+        assertEquals(0d, kernels.tanimotoDistance(zero, zero), 0d);
+        assertEquals(0d, kernels.cosineDistance(one, one), 1e-12);
+    }
+}
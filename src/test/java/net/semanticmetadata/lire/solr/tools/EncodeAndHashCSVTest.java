@@ -0,0 +1,46 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class EncodeAndHashCSVTest {
+
+    @Test
+    public void parse() {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        double[] feature = new double[3];
+        assertTrue(EncodeAndHashCSV.parse("img1.jpg,0.5,-1,2e-3", fields, feature));
+        assertEquals("img1.jpg", fields.get("id"));
+        assertEquals("img1.jpg", fields.get("localimagefile"));
+        assertArrayEquals(new double[]{0.5, -1, 0.002}, feature, 0);
+
+        assertFalse(EncodeAndHashCSV.parse("img2.jpg,0.5,1", new LinkedHashMap<>(), feature));
+        assertFalse(EncodeAndHashCSV.parse("img3.jpg,0.5,x,1", new LinkedHashMap<>(), feature));
+        assertFalse(EncodeAndHashCSV.parse("img4.jpg", new LinkedHashMap<>(), feature));
+    }
+
+    @Test
+    public void sortIndicesByValue() {
+        double[] values = {0.1, 0.7, 0.3, 0.7, -1, 0.9};
+        assertArrayEquals(new int[]{5, 1, 3, 2, 0, 4}, Utilities.sortIndicesByValue(values));
+        assertArrayEquals(new int[0], Utilities.sortIndicesByValue(new double[0]));
+    }
+
+    @Test
+    public void classes() {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        EncodeAndHashCSV.addClassesString(new double[]{1.4, 2.6, 0.05, 1.6}, new String[]{"cat", "dog", "car", "tree"}, fields);
+        String classes = (String) fields.get("classes_ws");
+        // the rounded weight times 10 occurrences, largest first.
+        assertTrue(classes.startsWith("dog dog"));
+        assertTrue(classes.indexOf("tree") < classes.indexOf("cat"));
+        assertFalse(classes.contains("car"));
+        assertEquals(30 + 20 + 10, classes.split(" ").length);
+        assertEquals("dog", fields.get("classes_significant_ws"));
+        assertEquals("classes_ws:dog^3 classes_ws:tree^2 classes_ws:cat^1 classes_ws:car^0", fields.get("query_boosted_s"));
+    }
+}
@@ -0,0 +1,111 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.searchers.SimpleResult;
+import net.semanticmetadata.lire.solr.CandidateSearch;
+import net.semanticmetadata.lire.solr.FeatureDescriptor;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.LireTestData;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class RecallBenchmarkTest {
+
+    private static TreeSet<SimpleResult> results(double... distances) {
+        TreeSet<SimpleResult> results = new TreeSet<>();
+        for (int i = 0; i < distances.length; i++) {
+            results.add(new SimpleResult(distances[i], i));
+        }
+        return results;
+    }
+
+    @Test
+    public void recall() {
+        TreeSet<SimpleResult> truth = results(0, 1, 2, 3);
+        assertEquals(1, RecallBenchmark.recall(truth, results(0, 1, 2, 3), 4), 0);
+        assertEquals(0.5, RecallBenchmark.recall(truth, results(0, 2, 5, 7), 4), 0);
+        assertEquals(0, RecallBenchmark.recall(truth, results(4, 5), 4), 0);
+        assertEquals(0, RecallBenchmark.recall(truth, results(), 4), 0);
+    }
+
+    @Test
+    public void recallWithTies() {
+        // other documents at the distance of the k-th nearest neighbour are as good.
+        TreeSet<SimpleResult> truth = results(0, 1, 3);
+        TreeSet<SimpleResult> results = new TreeSet<>();
+        results.add(new SimpleResult(0, 0));
+        results.add(new SimpleResult(3, 7));
+        results.add(new SimpleResult(3, 8));
+        assertEquals(1, RecallBenchmark.recall(truth, results, 3), 0);
+        // but never more than all of them.
+        assertEquals(1, RecallBenchmark.recall(truth, results(0, 0.5, 1, 2, 3), 3), 0);
+    }
+
+    @Test
+    public void recallOfSmallIndex() {
+        // fewer documents than k, all of them are expected.
+        assertEquals(1, RecallBenchmark.recall(results(0, 1), results(0, 1), 10), 0);
+        assertEquals(0.5, RecallBenchmark.recall(results(0, 1), results(0), 10), 0);
+        assertEquals(1, RecallBenchmark.recall(new TreeSet<>(), results(), 10), 0);
+    }
+
+    @Test
+    public void measureSetting() throws Exception {
+        int k = 5;
+        List<ColorLayout> features = LireTestData.decodedColorLayouts(50);
+        HashingMetricSpacesManager hashing = HashingMetricSpacesManager.getDefault();
+        try (Directory directory = new ByteBuffersDirectory()) {
+            // the fields as the schema indexes them, the feature as BinaryDocValues and the hashes as terms.
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+                for (ColorLayout feature : features) {
+                    Document doc = new Document();
+                    doc.add(new BinaryDocValuesField("cl_hi", new BytesRef(feature.getByteArrayRepresentation())));
+                    for (String hash : Utilities.hashesArrayToString(hashing.generateHashes("cl_ha", feature.getFeatureVector())).split(" ")) {
+                        doc.add(new StringField("cl_ha", hash, Field.Store.NO));
+                    }
+                    writer.addDocument(doc);
+                }
+            }
+            try (IndexReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                FeatureDescriptor descriptor = FeatureRegistry.getDefault().getDescriptorForHashField("cl_ha");
+                int[] allDocs = IntStream.range(0, reader.maxDoc()).toArray();
+                List<GlobalFeature> queries = new ArrayList<>(features.subList(0, 5));
+                List<TreeSet<SimpleResult>> truth = new ArrayList<>();
+                for (GlobalFeature query : queries) {
+                    truth.add(CandidateSearch.reRank(searcher, descriptor, query, null, allDocs, k, null));
+                }
+
+                RecallBenchmark.Measurement measurement = RecallBenchmark.measure(new RecallBenchmark.Setting(false, 0.5, 100, 0),
+                        new CandidateSearch(hashing), searcher, descriptor, null, "cl_ha", queries, truth, k, 0);
+                assertTrue(measurement.candidatesPerQuery > 0);
+                // the specialized ColorLayout loop computes a distance for every candidate, there are no pivots to prune.
+                assertTrue(measurement.distancesPerQuery > 0);
+                assertEquals(measurement.candidatesPerQuery, measurement.distancesPerQuery, 0);
+                assertEquals(0, measurement.prunedPerQuery, 0);
+                // each query finds at least itself.
+                assertTrue(measurement.recall > 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureDescriptor;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class SyntheticDocumentsTest {
+
+    private static SyntheticDocuments create(String... codes) throws Exception {
+        List<FeatureDescriptor> features = new ArrayList<>();
+        for (String code : codes) {
+            features.add(FeatureRegistry.getDefault().getDescriptorForFeatureField(FeatureRegistry.codeToFeatureField(code)));
+        }
+        SyntheticDocuments documents = new SyntheticDocuments(features, HashingMetricSpacesManager.getDefault(),
+                4, 4, 0.1, 1, 64, 7);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            documents.init(executor);
+        } finally {
+            executor.shutdown();
+        }
+        return documents;
+    }
+
+    @Test
+    public void consistentHashes() throws Exception {
+        SyntheticDocuments documents = create("cl", "sf");
+        for (String code : new String[]{"cl", "sf"}) {
+            SolrInputDocument document = documents.createDocument(3);
+            GlobalFeature feature = FeatureRegistry.getDefault().getDescriptorForFeatureField(FeatureRegistry.codeToFeatureField(code)).newFeature();
+            feature.setByteArrayRepresentation(Base64.getDecoder().decode((String) document.getFieldValue(FeatureRegistry.codeToFeatureField(code))));
+            String hashField = FeatureRegistry.codeToHashField(code);
+            assertEquals(Utilities.hashesArrayToString(HashingMetricSpacesManager.getDefault().generateHashes(hashField, feature.getFeatureVector())),
+                    document.getFieldValue(hashField));
+        }
+        // cl has reference points, sf has none.
+        assertNotNull(documents.createDocument(3).getFieldValue("cl_ms"));
+        assertNull(documents.createDocument(3).getFieldValue("sf_ms"));
+    }
+
+    @Test
+    public void deterministicAndDistinct() throws Exception {
+        SyntheticDocuments documents = create("cl", "eh");
+        assertEquals(documents.createDocument(5).getFieldValue("eh_hi"), create("cl", "eh").createDocument(5).getFieldValue("eh_hi"));
+        // recombined values give far more distinct features than the 16 extracted ones.
+        Set<Object> distinct = new HashSet<>();
+        for (int id = 0; id < 200; id++) {
+            distinct.add(documents.createDocument(id).getFieldValue("eh_hi"));
+        }
+        assertTrue("distinct " + distinct.size(), distinct.size() > 100);
+    }
+}
@@ -0,0 +1,197 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class XmlMergeTest {
+
+    private static File write(List<String> docs) throws IOException {
+        return write("<add>", docs);
+    }
+
+    private static File write(String add, List<String> docs) throws IOException {
+        File file = File.createTempFile("xml-merge-test-", ".xml");
+        file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.println(add);
+            for (String doc : docs) {
+                out.println(doc);
+            }
+            out.println("</add>");
+        }
+        return file;
+    }
+
+    private static List<XmlMerge.Doc> read(File file) throws IOException {
+        List<XmlMerge.Doc> docs = new ArrayList<>();
+        try (XmlMerge.DocReader reader = new XmlMerge.DocReader(file, true)) {
+            XmlMerge.Doc doc;
+            while ((doc = reader.next()) != null) docs.add(doc);
+        }
+        return docs;
+    }
+
+    private static String value(XmlMerge.Doc doc, String name) {
+        XmlMerge.Field field = field(doc, name);
+        return field == null ? null : field.value;
+    }
+
+    private static XmlMerge.Field field(XmlMerge.Doc doc, String name) {
+        for (XmlMerge.Field field : doc.fields) {
+            if (field.name.equals(name)) return field;
+        }
+        return null;
+    }
+
+    private static String attribute(List<String[]> attributes, String name) {
+        for (String[] attribute : attributes) {
+            if (attribute[0].equals(name)) return attribute[1];
+        }
+        return null;
+    }
+
+    private static File output() throws IOException {
+        File out = File.createTempFile("xml-merge-test-", ".xml");
+        out.delete();
+        out.deleteOnExit();
+        return out;
+    }
+
+    @Test
+    public void mergeUnsorted() throws IOException {
+        List<String> src = new ArrayList<>(), target = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            String id = String.format("/images/test/%04d.jpg", i);
+            if (i % 10 != 0) src.add("<doc><field name=\"id\">" + id + "</field><field name=\"sf_hi\">" + i + "&amp;</field></doc>");
+            target.add("<doc><field name=\"id\"> " + id + "</field><field name=\"cl_hi\">c" + i + "</field></doc>");
+        }
+        Random random = new Random(17);
+        Collections.shuffle(src, random);
+        Collections.shuffle(target, random);
+        // the last one wins for ids given twice.
+        src.add("<doc><field name=\"id\">/images/test/0001.jpg</field><field name=\"sf_hi\">again</field></doc>");
+        src.add("<doc><field name=\"sf_hi\">no id</field></doc>");
+
+        File out = output();
+        XmlMerge merge = new XmlMerge(write(src), write(target), out);
+        // a few documents per run and two runs per merge, so there are several merge passes.
+        merge.setBufferSize(4096);
+        merge.fanIn = 2;
+        merge.run();
+
+        List<XmlMerge.Doc> docs = read(out);
+        assertEquals(500, docs.size());
+        for (int i = 0; i < docs.size(); i++) {
+            XmlMerge.Doc doc = docs.get(i);
+            assertEquals(String.format("/images/test/%04d.jpg", i), doc.id);
+            assertEquals("c" + i, value(doc, "cl_hi"));
+            assertEquals(i % 10 == 0 ? null : i == 1 ? "again" : i + "&", value(doc, "sf_hi"));
+            assertEquals(String.format("test/%04d.jpg", i), value(doc, "imgurl"));
+        }
+    }
+
+    @Test
+    public void mergeSorted() throws IOException {
+        File src = write(List.of(
+                "<doc><field name=\"id\">a</field><field name=\"x\">1</field></doc>",
+                "<doc><field name=\"id\">c</field><field name=\"x\">3</field></doc>"));
+        File target = write(List.of(
+                "<doc><field name=\"id\">a</field></doc>",
+                "<doc><field name=\"id\">b</field></doc>",
+                "<doc><field name=\"id\">c</field></doc>"));
+        File out = output();
+        new XmlMerge(src, target, out).run();
+
+        List<XmlMerge.Doc> docs = read(out);
+        assertEquals(3, docs.size());
+        assertEquals("1", value(docs.get(0), "x"));
+        assertNull(value(docs.get(1), "x"));
+        assertEquals("3", value(docs.get(2), "x"));
+        assertNull(value(docs.get(0), "imgurl"));
+    }
+
+    @Test
+    public void keepAttributes() throws IOException {
+        File src = write(List.of(
+                "<doc><field name=\"id\">a</field><field name=\"x\" update=\"set\" boost=\"2\">1</field></doc>"));
+        File target = write("<add commitWithin=\"1000\" overwrite=\"false\">", List.of(
+                "<doc boost=\"3\"><field name=\"id\">a</field><field name=\"y\" update=\"add\">2</field></doc>"));
+        File out = output();
+        new XmlMerge(src, target, out).run();
+
+        try (XmlMerge.DocReader reader = new XmlMerge.DocReader(out, true)) {
+            assertEquals("1000", attribute(reader.getAddAttributes(), "commitWithin"));
+            assertEquals("false", attribute(reader.getAddAttributes(), "overwrite"));
+            XmlMerge.Doc doc = reader.next();
+            assertEquals("3", attribute(doc.attributes, "boost"));
+            assertEquals("set", attribute(field(doc, "x").attributes, "update"));
+            assertEquals("2", attribute(field(doc, "x").attributes, "boost"));
+            assertEquals("add", attribute(field(doc, "y").attributes, "update"));
+            assertEquals(2, field(doc, "x").attributes.size());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void joinOnUntrimmedIdsOfFileA() throws IOException {
+        // only the ids of fileB are trimmed, like the merge did before it was streamed.
+        File src = write(List.of(
+                "<doc><field name=\"id\">a</field><field name=\"x\">1</field></doc>",
+                "<doc><field name=\"id\"> b</field><field name=\"x\">2</field></doc>"));
+        File target = write(List.of(
+                "<doc><field name=\"id\"> a </field></doc>",
+                "<doc><field name=\"id\">b</field></doc>"));
+        File out = output();
+        new XmlMerge(src, target, out).run();
+
+        List<XmlMerge.Doc> docs = read(out);
+        assertEquals(2, docs.size());
+        assertEquals(" a ", docs.get(0).rawId);
+        assertEquals("1", value(docs.get(0), "x"));
+        assertNull(value(docs.get(1), "x"));
+    }
+
+    @Test
+    public void rejectOtherCommands() throws IOException {
+        File file = write(List.of(
+                "<doc><field name=\"id\">a</field></doc>",
+                "<delete><id>b</id></delete>"));
+        try (XmlMerge.DocReader reader = new XmlMerge.DocReader(file, true)) {
+            assertEquals("a", reader.next().id);
+            reader.next();
+            fail("delete accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("<delete>"));
+        }
+        File child = write(List.of(
+                "<doc><field name=\"id\">a</field><doc><field name=\"id\">a1</field></doc></doc>"));
+        try (XmlMerge.DocReader reader = new XmlMerge.DocReader(child, true)) {
+            reader.next();
+            fail("child document accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("<doc>"));
+        }
+        File update = File.createTempFile("xml-merge-test-", ".xml");
+        update.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(update, StandardCharsets.UTF_8.name())) {
+            writer.println("<update><add><doc><field name=\"id\">a</field></doc></add></update>");
+        }
+        try {
+            new XmlMerge.DocReader(update, true).close();
+            fail("update accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("<update>"));
+        }
+    }
+}
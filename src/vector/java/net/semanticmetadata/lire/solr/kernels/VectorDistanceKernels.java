@@ -0,0 +1,438 @@
+package net.semanticmetadata.lire.solr.kernels;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * <p>SIMD kernels based on the incubating Java Vector API, loaded by {@link DistanceKernels#get()} if the module
+ * jdk.incubator.vector is available. The preferred vector size of the CPU is used, e.g. 16 float lanes with
+ * AVX-512. The remaining elements are handled by scalar loops.</p>
+ *
+ * <p>float vectors are summed up in float lanes. short vectors are converted to double lanes and byte vectors to
+ * int lanes, so their results are exact.</p>
+ */
+public class VectorDistanceKernels extends ScalarDistanceKernels {
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    // species with the same number of lanes, so the conversions do not change the number of lanes.
+    private static final VectorSpecies<Short> SHORTS_AS_DOUBLES =
+            VectorSpecies.of(short.class, VectorShape.forBitSize(DOUBLES.length() * Short.SIZE));
+    private static final VectorSpecies<Byte> BYTES_AS_INTS =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.length() * Byte.SIZE));
+    private static final VectorSpecies<Byte> BYTES_AS_FLOATS =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(FLOATS.vectorBitSize()));
+    // int lanes can sum up 2^31 / 2^14 products of bytes without overflow.
+    private static final int MAX_BYTE_LENGTH = (1 << 17) * INTS.length();
+
+    public VectorDistanceKernels() {
+        if (FLOATS.length() < 4) {
+            throw new UnsupportedOperationException("No SIMD support, preferred vector size is " + FLOATS.vectorBitSize() + " bits.");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "vector" + FLOATS.vectorBitSize();
+    }
+
+    // ---< float[] >---
+
+    @Override
+    public double dot(float[] a, float[] b) {
+        int n = Math.min(a.length, b.length);
+        int bound = FLOATS.loopBound(n);
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            sum = FloatVector.fromArray(FLOATS, a, i).fma(FloatVector.fromArray(FLOATS, b, i), sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            result += a[i] * b[i];
+        }
+        return result;
+    }
+
+    @Override
+    public double l1(float[] a, float[] b) {
+        int n = Math.min(a.length, b.length);
+        int bound = FLOATS.loopBound(n);
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            sum = sum.add(FloatVector.fromArray(FLOATS, a, i).sub(FloatVector.fromArray(FLOATS, b, i)).abs());
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            result += Math.abs(a[i] - b[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public double l2(float[] a, float[] b) {
+        int n = Math.min(a.length, b.length);
+        int bound = FLOATS.loopBound(n);
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector diff = FloatVector.fromArray(FLOATS, a, i).sub(FloatVector.fromArray(FLOATS, b, i));
+            sum = diff.fma(diff, sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            double diff = a[i] - b[i];
+            result += diff * diff;
+        }
+        return Math.sqrt(result);
+    }
+
+    @Override
+    public double[] dotAndNorms(float[] a, float[] b) {
+        int n = Math.min(a.length, b.length);
+        int bound = FLOATS.loopBound(n);
+        FloatVector ab = FloatVector.zero(FLOATS), aa = ab, bb = ab;
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector x = FloatVector.fromArray(FLOATS, a, i);
+            FloatVector y = FloatVector.fromArray(FLOATS, b, i);
+            ab = x.fma(y, ab);
+            aa = x.fma(x, aa);
+            bb = y.fma(y, bb);
+        }
+        double[] result = {ab.reduceLanes(VectorOperators.ADD), aa.reduceLanes(VectorOperators.ADD), bb.reduceLanes(VectorOperators.ADD)};
+        for (; i < n; i++) {
+            double x = a[i], y = b[i];
+            result[0] += x * y;
+            result[1] += x * x;
+            result[2] += y * y;
+        }
+        return result;
+    }
+
+    // ---< double[] >---
+
+    @Override
+    public double dot(double[] a, double[] b) {
+        int n = Math.min(a.length, b.length);
+        int bound = DOUBLES.loopBound(n);
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length()) {
+            sum = DoubleVector.fromArray(DOUBLES, a, i).fma(DoubleVector.fromArray(DOUBLES, b, i), sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            result += a[i] * b[i];
+        }
+        return result;
+    }
+
+    @Override
+    public double l1(double[] a, double[] b) {
+        int n = Math.min(a.length, b.length);
+        int bound = DOUBLES.loopBound(n);
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length()) {
+            sum = sum.add(DoubleVector.fromArray(DOUBLES, a, i).sub(DoubleVector.fromArray(DOUBLES, b, i)).abs());
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            result += Math.abs(a[i] - b[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public double l2(double[] a, double[] b) {
+        int n = Math.min(a.length, b.length);
+        int bound = DOUBLES.loopBound(n);
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length()) {
+            DoubleVector diff = DoubleVector.fromArray(DOUBLES, a, i).sub(DoubleVector.fromArray(DOUBLES, b, i));
+            sum = diff.fma(diff, sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            double diff = a[i] - b[i];
+            result += diff * diff;
+        }
+        return Math.sqrt(result);
+    }
+
+    @Override
+    public double[] dotAndNorms(double[] a, double[] b) {
+        int n = Math.min(a.length, b.length);
+        int bound = DOUBLES.loopBound(n);
+        DoubleVector ab = DoubleVector.zero(DOUBLES), aa = ab, bb = ab;
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length()) {
+            DoubleVector x = DoubleVector.fromArray(DOUBLES, a, i);
+            DoubleVector y = DoubleVector.fromArray(DOUBLES, b, i);
+            ab = x.fma(y, ab);
+            aa = x.fma(x, aa);
+            bb = y.fma(y, bb);
+        }
+        double[] result = {ab.reduceLanes(VectorOperators.ADD), aa.reduceLanes(VectorOperators.ADD), bb.reduceLanes(VectorOperators.ADD)};
+        for (; i < n; i++) {
+            result[0] += a[i] * b[i];
+            result[1] += a[i] * a[i];
+            result[2] += b[i] * b[i];
+        }
+        return result;
+    }
+
+    // ---< short[] >---
+
+    private static DoubleVector shortsAsDoubles(short[] a, int i) {
+        return (DoubleVector) ShortVector.fromArray(SHORTS_AS_DOUBLES, a, i).convertShape(VectorOperators.S2D, DOUBLES, 0);
+    }
+
+    @Override
+    public double dot(short[] a, short[] b) {
+        int n = Math.min(a.length, b.length);
+        int bound = SHORTS_AS_DOUBLES.loopBound(n);
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (; i < bound; i += SHORTS_AS_DOUBLES.length()) {
+            sum = shortsAsDoubles(a, i).fma(shortsAsDoubles(b, i), sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            result += a[i] * b[i];
+        }
+        return result;
+    }
+
+    @Override
+    public double l1(short[] a, short[] b) {
+        int n = Math.min(a.length, b.length);
+        int bound = SHORTS_AS_DOUBLES.loopBound(n);
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (; i < bound; i += SHORTS_AS_DOUBLES.length()) {
+            sum = sum.add(shortsAsDoubles(a, i).sub(shortsAsDoubles(b, i)).abs());
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            result += Math.abs(a[i] - b[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public double l2(short[] a, short[] b) {
+        int n = Math.min(a.length, b.length);
+        int bound = SHORTS_AS_DOUBLES.loopBound(n);
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (; i < bound; i += SHORTS_AS_DOUBLES.length()) {
+            DoubleVector diff = shortsAsDoubles(a, i).sub(shortsAsDoubles(b, i));
+            sum = diff.fma(diff, sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            double diff = a[i] - b[i];
+            result += diff * diff;
+        }
+        return Math.sqrt(result);
+    }
+
+    @Override
+    public double[] dotAndNorms(short[] a, short[] b) {
+        int n = Math.min(a.length, b.length);
+        int bound = SHORTS_AS_DOUBLES.loopBound(n);
+        DoubleVector ab = DoubleVector.zero(DOUBLES), aa = ab, bb = ab;
+        int i = 0;
+        for (; i < bound; i += SHORTS_AS_DOUBLES.length()) {
+            DoubleVector x = shortsAsDoubles(a, i);
+            DoubleVector y = shortsAsDoubles(b, i);
+            ab = x.fma(y, ab);
+            aa = x.fma(x, aa);
+            bb = y.fma(y, bb);
+        }
+        double[] result = {ab.reduceLanes(VectorOperators.ADD), aa.reduceLanes(VectorOperators.ADD), bb.reduceLanes(VectorOperators.ADD)};
+        for (; i < n; i++) {
+            result[0] += a[i] * b[i];
+            result[1] += a[i] * a[i];
+            result[2] += b[i] * b[i];
+        }
+        return result;
+    }
+
+    // ---< byte[] >---
+
+    private static IntVector bytesAsInts(byte[] a, int i) {
+        return (IntVector) ByteVector.fromArray(BYTES_AS_INTS, a, i).convertShape(VectorOperators.B2I, INTS, 0);
+    }
+
+    @Override
+    public double dot(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        if (n > MAX_BYTE_LENGTH) return super.dot(a, b);
+        int bound = BYTES_AS_INTS.loopBound(n);
+        IntVector sum = IntVector.zero(INTS);
+        int i = 0;
+        for (; i < bound; i += BYTES_AS_INTS.length()) {
+            sum = sum.add(bytesAsInts(a, i).mul(bytesAsInts(b, i)));
+        }
+        long result = sum.reduceLanesToLong(VectorOperators.ADD);
+        for (; i < n; i++) {
+            result += a[i] * b[i];
+        }
+        return result;
+    }
+
+    @Override
+    public double l1(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        if (n > MAX_BYTE_LENGTH) return super.l1(a, b);
+        int bound = BYTES_AS_INTS.loopBound(n);
+        IntVector sum = IntVector.zero(INTS);
+        int i = 0;
+        for (; i < bound; i += BYTES_AS_INTS.length()) {
+            sum = sum.add(bytesAsInts(a, i).sub(bytesAsInts(b, i)).abs());
+        }
+        long result = sum.reduceLanesToLong(VectorOperators.ADD);
+        for (; i < n; i++) {
+            result += Math.abs(a[i] - b[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public double l2(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        if (n > MAX_BYTE_LENGTH) return super.l2(a, b);
+        int bound = BYTES_AS_INTS.loopBound(n);
+        IntVector sum = IntVector.zero(INTS);
+        int i = 0;
+        for (; i < bound; i += BYTES_AS_INTS.length()) {
+            IntVector diff = bytesAsInts(a, i).sub(bytesAsInts(b, i));
+            sum = sum.add(diff.mul(diff));
+        }
+        long result = sum.reduceLanesToLong(VectorOperators.ADD);
+        for (; i < n; i++) {
+            int diff = a[i] - b[i];
+            result += diff * diff;
+        }
+        return Math.sqrt(result);
+    }
+
+    @Override
+    public double[] dotAndNorms(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        if (n > MAX_BYTE_LENGTH) return super.dotAndNorms(a, b);
+        int bound = BYTES_AS_INTS.loopBound(n);
+        IntVector ab = IntVector.zero(INTS), aa = ab, bb = ab;
+        int i = 0;
+        for (; i < bound; i += BYTES_AS_INTS.length()) {
+            IntVector x = bytesAsInts(a, i);
+            IntVector y = bytesAsInts(b, i);
+            ab = ab.add(x.mul(y));
+            aa = aa.add(x.mul(x));
+            bb = bb.add(y.mul(y));
+        }
+        long sumAB = ab.reduceLanesToLong(VectorOperators.ADD);
+        long sumAA = aa.reduceLanesToLong(VectorOperators.ADD);
+        long sumBB = bb.reduceLanesToLong(VectorOperators.ADD);
+        for (; i < n; i++) {
+            sumAB += a[i] * b[i];
+            sumAA += a[i] * a[i];
+            sumBB += b[i] * b[i];
+        }
+        return new double[]{sumAB, sumAA, sumBB};
+    }
+
+    // ---< packed float32 >---
+
+    /**
+     * Loads floats from a packed vector, the Vector API reinterprets bytes in little endian order.
+     */
+    private static FloatVector packedFloats(BytesRef packed, int i) {
+        return ByteVector.fromArray(BYTES_AS_FLOATS, packed.bytes, packed.offset + (i << 2)).reinterpretAsFloats();
+    }
+
+    @Override
+    public double dot(float[] a, BytesRef packed) {
+        int n = Math.min(a.length, packed.length >> 2);
+        int bound = FLOATS.loopBound(n);
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            sum = FloatVector.fromArray(FLOATS, a, i).fma(packedFloats(packed, i), sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            result += a[i] * floatAt(packed, i);
+        }
+        return result;
+    }
+
+    @Override
+    public double l1(float[] a, BytesRef packed) {
+        int n = Math.min(a.length, packed.length >> 2);
+        int bound = FLOATS.loopBound(n);
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            sum = sum.add(FloatVector.fromArray(FLOATS, a, i).sub(packedFloats(packed, i)).abs());
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            result += Math.abs(a[i] - floatAt(packed, i));
+        }
+        return result;
+    }
+
+    @Override
+    public double l2(float[] a, BytesRef packed) {
+        int n = Math.min(a.length, packed.length >> 2);
+        int bound = FLOATS.loopBound(n);
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector diff = FloatVector.fromArray(FLOATS, a, i).sub(packedFloats(packed, i));
+            sum = diff.fma(diff, sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            double diff = a[i] - floatAt(packed, i);
+            result += diff * diff;
+        }
+        return Math.sqrt(result);
+    }
+
+    @Override
+    public double[] dotAndNorms(float[] a, BytesRef packed) {
+        int n = Math.min(a.length, packed.length >> 2);
+        int bound = FLOATS.loopBound(n);
+        FloatVector ab = FloatVector.zero(FLOATS), aa = ab, bb = ab;
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector x = FloatVector.fromArray(FLOATS, a, i);
+            FloatVector y = packedFloats(packed, i);
+            ab = x.fma(y, ab);
+            aa = x.fma(x, aa);
+            bb = y.fma(y, bb);
+        }
+        double[] result = {ab.reduceLanes(VectorOperators.ADD), aa.reduceLanes(VectorOperators.ADD), bb.reduceLanes(VectorOperators.ADD)};
+        for (; i < n; i++) {
+            double x = a[i], y = floatAt(packed, i);
+            result[0] += x * y;
+            result[1] += x * x;
+            result[2] += y * y;
+        }
+        return result;
+    }
+}